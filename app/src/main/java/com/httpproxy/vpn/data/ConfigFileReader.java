@@ -13,6 +13,7 @@ import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -25,8 +26,17 @@ import java.util.Set;
  * <p>
  * JSON 格式示例：
  * {
- *   "proxy": { "type": "http", "host": "127.0.0.1", "port": 1080, "username": "", "password": "" },
- *   "defaultPackages": ["com.android.chrome", "com.tencent.mm"]
+ *   "proxy": { "type": "http", "host": "127.0.0.1", "port": 1080, "username": "", "password": "",
+ *              "prewarm": 0, "prewarmIdleSeconds": 20, "dnsTtlSeconds": 60, "dnsNegativeTtlSeconds": 5,
+ *              "socksOptimistic": false, "fastOpen": false, "forwardHttp": false,
+ *              "http2": false },
+ *   "defaultPackages": ["com.android.chrome", "com.tencent.mm"],
+ *   "engine": "blocking",
+ *   "tun": false,
+ *   "rules": ["DOMAIN-SUFFIX,lan,DIRECT", "IP-CIDR,192.168.0.0/16,DIRECT", "MATCH,PROXY"],
+ *   "upstreams": [{ "type": "http", "host": "10.0.0.1", "port": 8080 }, { "type": "socks5", "host": "10.0.0.2", "port": 1080 }],
+ *   "balance": "ewma",
+ *   "limits": { "maxTunnels": 512, "maxTunnelsPerHost": 64, "maxHandshakes": 64, "queue": 128, "queueTimeoutSeconds": 10 }
  * }
  */
 public class ConfigFileReader {
@@ -38,29 +48,126 @@ public class ConfigFileReader {
     private static final String KEY_PORT = "port";
     private static final String KEY_USERNAME = "username";
     private static final String KEY_PASSWORD = "password";
+    private static final String KEY_PREWARM = "prewarm";
+    private static final String KEY_PREWARM_IDLE_SECONDS = "prewarmIdleSeconds";
+    private static final String KEY_DNS_TTL_SECONDS = "dnsTtlSeconds";
+    private static final String KEY_DNS_NEGATIVE_TTL_SECONDS = "dnsNegativeTtlSeconds";
+    private static final String KEY_SOCKS_OPTIMISTIC = "socksOptimistic";
+    private static final String KEY_FAST_OPEN = "fastOpen";
+    private static final String KEY_FORWARD_HTTP = "forwardHttp";
+    private static final String KEY_HTTP2 = "http2";
     private static final String KEY_DEFAULT_PACKAGES = "defaultPackages";
+    private static final String KEY_ENGINE = "engine";
+    private static final String KEY_TUN = "tun";
+    private static final String KEY_RULES = "rules";
+    private static final String KEY_UPSTREAMS = "upstreams";
+    private static final String KEY_BALANCE = "balance";
+    private static final String KEY_LIMITS = "limits";
+    private static final String KEY_MAX_TUNNELS = "maxTunnels";
+    private static final String KEY_MAX_TUNNELS_PER_HOST = "maxTunnelsPerHost";
+    private static final String KEY_MAX_HANDSHAKES = "maxHandshakes";
+    private static final String KEY_QUEUE = "queue";
+    private static final String KEY_QUEUE_TIMEOUT_SECONDS = "queueTimeoutSeconds";
+
+    /** 缓存快照的复检间隔 */
+    public static final long REVALIDATE_INTERVAL_MS = 2000;
+    private static final long REVALIDATE_INTERVAL_NANOS = REVALIDATE_INTERVAL_MS * 1000000L;
+    private static final Object CACHE_LOCK = new Object();
+    private static volatile Snapshot cache;
 
     /** 代理配置（从文件读取的部分） */
     public static class ProxyConfig {
+        /** http、https 或 socks5 */
         public String type = ProxyPreferences.TYPE_HTTP;
         public String host = "";
         public int port = 1080;
         public String username = "";
         public String password = "";
+        /** 预先建立的到代理的空闲连接数，0 表示不预热 */
+        public int prewarm = 0;
+        /** 预热连接最长空闲秒数，应小于代理服务器的空闲超时 */
+        public int prewarmIdleSeconds = 20;
+        /** 代理主机名解析结果的缓存秒数 */
+        public int dnsTtlSeconds = 60;
+        /** 解析失败结果的缓存秒数 */
+        public int dnsNegativeTtlSeconds = 5;
+        /** SOCKS5 握手是否在确认代理可用后一次发出全部请求 */
+        public boolean socksOptimistic = false;
+        /** CONNECT 快速打开：先回复客户端，首批数据随 CONNECT 请求一起发出（仅阻塞引擎） */
+        public boolean fastOpen = false;
+        /** 普通 HTTP 请求以绝对形式直接发给 HTTP 代理，不经 CONNECT（仅阻塞引擎） */
+        public boolean forwardHttp = false;
+        /** 隧道作为 HTTP/2 CONNECT 流共用到 HTTP 代理的连接，代理不支持时退回逐条 CONNECT */
+        public boolean http2 = false;
+    }
+
+    /** 本地代理的准入控制上限（仅阻塞引擎），0 表示不限制 */
+    public static class LimitsConfig {
+        /** 同时服务的客户端连接数 */
+        public int maxTunnels = 512;
+        /** 到同一目标的隧道数 */
+        public int maxTunnelsPerHost = 64;
+        /** 同时进行的上游连接与握手数 */
+        public int maxHandshakes = 64;
+        /** 超出上限时最多排队等待的连接数，0 表示直接回复 503 */
+        public int queue = 128;
+        /** 排队等待的最长秒数，超时回复 503 */
+        public int queueTimeoutSeconds = 10;
     }
 
-    /** 读取结果 */
+    /** 读取结果。{@link #read} 返回的是缓存中共享的快照，调用方只能读取，不得修改。 */
     public static class ConfigResult {
         public ProxyConfig proxy;
         public Set<String> defaultPackages;
+        /** 本地代理引擎（blocking / nio），未配置时为 null */
+        public String engine;
+        /** 是否由用户态 TCP 栈直接处理 VPN 接口上的连接 */
+        public boolean tun;
+        /** 路由规则（写法见 {@link com.httpproxy.vpn.rule.RuleSet}），未配置时为空列表 */
+        public List<String> rules;
+        /** 多个上游代理（只使用其中的 type、host、port、username、password），未配置时为空列表 */
+        public List<ProxyConfig> upstreams;
+        /** 多个上游代理的选择策略（round-robin / least-active / ewma），未配置时为 null */
+        public String balance;
+        /** 准入控制上限，未配置时为 null */
+        public LimitsConfig limits;
         public boolean fromFile;
     }
 
     /**
      * 尝试从存储读取配置，文件不存在或解析失败时返回 null。
+     * <p>
+     * 解析结果按文件路径、修改时间与大小缓存：{@link #REVALIDATE_INTERVAL_MS} 内直接返回缓存的快照，
+     * 不访问存储；超过后只检查文件属性，文件未变化时不重新读取与解析。
      */
     public static ConfigResult read(Context context) {
-        File file = findConfigFile(context);
+        long now = System.nanoTime();
+        Snapshot s = cache;
+        if (s != null && now - s.checkedAt < REVALIDATE_INTERVAL_NANOS) return s.result;
+        synchronized (CACHE_LOCK) {
+            s = cache;
+            if (s != null && now - s.checkedAt < REVALIDATE_INTERVAL_NANOS) return s.result;
+            File file = findConfigFile(context);
+            String path = file != null ? file.getAbsolutePath() : null;
+            long lastModified = file != null ? file.lastModified() : 0;
+            long length = file != null ? file.length() : 0;
+            ConfigResult result;
+            if (s != null && s.matches(path, lastModified, length)) {
+                result = s.result;
+            } else {
+                result = load(file);
+            }
+            cache = new Snapshot(path, lastModified, length, result, now);
+            return result;
+        }
+    }
+
+    /** 丢弃缓存的快照，下次 {@link #read} 时重新检查文件。写入配置文件后会自动调用。 */
+    public static void invalidate() {
+        cache = null;
+    }
+
+    private static ConfigResult load(File file) {
         if (file == null || !file.exists() || !file.canRead()) return null;
         try {
             String json = readFile(file);
@@ -73,7 +180,7 @@ public class ConfigFileReader {
 
     /**
      * 写入代理配置到配置文件。
-     * - 若文件已存在：写回同一路径，并保留 existing defaultPackages
+     * - 若文件已存在：写回同一路径，并保留 existing defaultPackages 及 proxy 中的其他字段（如 prewarm）
      * - 若文件不存在：写入应用私有目录 Android/data/.../files/httpproxy.json
      */
     public static boolean write(Context context, ProxyConfig proxy) {
@@ -89,7 +196,8 @@ public class ConfigFileReader {
                 }
             }
 
-            JSONObject proxyObj = new JSONObject();
+            JSONObject proxyObj = root.optJSONObject(KEY_PROXY);
+            if (proxyObj == null) proxyObj = new JSONObject();
             proxyObj.put(KEY_TYPE, proxy.type == null ? ProxyPreferences.TYPE_HTTP : proxy.type);
             proxyObj.put(KEY_HOST, proxy.host == null ? "" : proxy.host);
             proxyObj.put(KEY_PORT, proxy.port);
@@ -109,6 +217,7 @@ public class ConfigFileReader {
                 out.write(root.toString(2).getBytes(StandardCharsets.UTF_8));
                 out.flush();
             }
+            invalidate();
             return true;
         } catch (Exception ignored) {
             return false;
@@ -118,17 +227,27 @@ public class ConfigFileReader {
     /** 获取配置文件的可能路径（用于提示用户） */
     public static String[] getConfigPaths(Context context) {
         List<String> paths = new ArrayList<>();
-        File appFiles = context.getExternalFilesDir(null);
-        if (appFiles != null) {
-            paths.add(new File(appFiles, FILE_NAME).getAbsolutePath());
+        for (File dir : getConfigDirectories(context)) {
+            paths.add(new File(dir, FILE_NAME).getAbsolutePath());
         }
+        return paths.toArray(new String[0]);
+    }
+
+    /** 配置文件可能所在的目录，按查找优先级排列（用于监听文件变化）。 */
+    public static List<File> getConfigDirectories(Context context) {
+        List<File> dirs = new ArrayList<>();
+        File appFiles = context.getExternalFilesDir(null);
+        if (appFiles != null) dirs.add(appFiles);
         if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
             File download = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
-            if (download != null) {
-                paths.add(new File(download, FILE_NAME).getAbsolutePath());
-            }
+            if (download != null) dirs.add(download);
         }
-        return paths.toArray(new String[0]);
+        return dirs;
+    }
+
+    /** 配置文件名 */
+    public static String getFileName() {
+        return FILE_NAME;
     }
 
     private static File findConfigFile(Context context) {
@@ -189,18 +308,96 @@ public class ConfigFileReader {
             if (proxy.has(KEY_PORT)) result.proxy.port = proxy.getInt(KEY_PORT);
             if (proxy.has(KEY_USERNAME)) result.proxy.username = proxy.optString(KEY_USERNAME, "");
             if (proxy.has(KEY_PASSWORD)) result.proxy.password = proxy.optString(KEY_PASSWORD, "");
+            result.proxy.prewarm = Math.max(0, proxy.optInt(KEY_PREWARM, 0));
+            result.proxy.prewarmIdleSeconds = Math.max(1, proxy.optInt(KEY_PREWARM_IDLE_SECONDS, 20));
+            result.proxy.dnsTtlSeconds = Math.max(0, proxy.optInt(KEY_DNS_TTL_SECONDS, 60));
+            result.proxy.dnsNegativeTtlSeconds = Math.max(0, proxy.optInt(KEY_DNS_NEGATIVE_TTL_SECONDS, 5));
+            result.proxy.socksOptimistic = proxy.optBoolean(KEY_SOCKS_OPTIMISTIC, false);
+            result.proxy.fastOpen = proxy.optBoolean(KEY_FAST_OPEN, false);
+            result.proxy.forwardHttp = proxy.optBoolean(KEY_FORWARD_HTTP, false);
+            result.proxy.http2 = proxy.optBoolean(KEY_HTTP2, false);
         } else {
             result.proxy = null;
         }
 
-        result.defaultPackages = new HashSet<>();
+        Set<String> packages = new HashSet<>();
         if (root.has(KEY_DEFAULT_PACKAGES)) {
             JSONArray arr = root.getJSONArray(KEY_DEFAULT_PACKAGES);
             for (int i = 0; i < arr.length(); i++) {
                 String pkg = arr.optString(i, "").trim();
-                if (!pkg.isEmpty()) result.defaultPackages.add(pkg);
+                if (!pkg.isEmpty()) packages.add(pkg);
+            }
+        }
+        result.defaultPackages = Collections.unmodifiableSet(packages);
+
+        if (root.has(KEY_ENGINE)) {
+            String engine = root.optString(KEY_ENGINE, "").trim();
+            if (!engine.isEmpty()) result.engine = engine;
+        }
+        result.tun = root.optBoolean(KEY_TUN, false);
+
+        List<String> rules = new ArrayList<>();
+        JSONArray ruleArray = root.optJSONArray(KEY_RULES);
+        if (ruleArray != null) {
+            for (int i = 0; i < ruleArray.length(); i++) {
+                String rule = ruleArray.optString(i, "").trim();
+                if (!rule.isEmpty()) rules.add(rule);
+            }
+        }
+        result.rules = Collections.unmodifiableList(rules);
+
+        List<ProxyConfig> upstreams = new ArrayList<>();
+        JSONArray upstreamArray = root.optJSONArray(KEY_UPSTREAMS);
+        if (upstreamArray != null) {
+            for (int i = 0; i < upstreamArray.length(); i++) {
+                JSONObject item = upstreamArray.optJSONObject(i);
+                if (item == null) continue;
+                ProxyConfig upstream = new ProxyConfig();
+                upstream.type = item.optString(KEY_TYPE, ProxyPreferences.TYPE_HTTP);
+                upstream.host = item.optString(KEY_HOST, "").trim();
+                upstream.port = item.optInt(KEY_PORT, 1080);
+                upstream.username = item.optString(KEY_USERNAME, "");
+                upstream.password = item.optString(KEY_PASSWORD, "");
+                if (!upstream.host.isEmpty() && upstream.port > 0 && upstream.port <= 65535) upstreams.add(upstream);
             }
         }
+        result.upstreams = Collections.unmodifiableList(upstreams);
+        String balance = root.optString(KEY_BALANCE, "").trim();
+        if (!balance.isEmpty()) result.balance = balance;
+
+        JSONObject limits = root.optJSONObject(KEY_LIMITS);
+        if (limits != null) {
+            LimitsConfig l = new LimitsConfig();
+            l.maxTunnels = Math.max(0, limits.optInt(KEY_MAX_TUNNELS, l.maxTunnels));
+            l.maxTunnelsPerHost = Math.max(0, limits.optInt(KEY_MAX_TUNNELS_PER_HOST, l.maxTunnelsPerHost));
+            l.maxHandshakes = Math.max(0, limits.optInt(KEY_MAX_HANDSHAKES, l.maxHandshakes));
+            l.queue = Math.max(0, limits.optInt(KEY_QUEUE, l.queue));
+            l.queueTimeoutSeconds = Math.max(1, limits.optInt(KEY_QUEUE_TIMEOUT_SECONDS, l.queueTimeoutSeconds));
+            result.limits = l;
+        }
         return result;
     }
+
+    /** 一次读取的结果及其对应的文件属性。 */
+    private static final class Snapshot {
+
+        final String path;
+        final long lastModified;
+        final long length;
+        final ConfigResult result;
+        final long checkedAt;
+
+        Snapshot(String path, long lastModified, long length, ConfigResult result, long checkedAt) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.result = result;
+            this.checkedAt = checkedAt;
+        }
+
+        boolean matches(String path, long lastModified, long length) {
+            return (path == null ? this.path == null : path.equals(this.path))
+                    && lastModified == this.lastModified && length == this.length;
+        }
+    }
 }
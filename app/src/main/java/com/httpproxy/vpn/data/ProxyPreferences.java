@@ -3,7 +3,9 @@ package com.httpproxy.vpn.data;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -22,9 +24,19 @@ public class ProxyPreferences {
 
     public static final String TYPE_HTTP = "http";
     public static final String TYPE_SOCKS5 = "socks5";
+    /** 经 TLS 连接的 HTTP 代理 */
+    public static final String TYPE_HTTPS = "https";
+
+    public static final String ENGINE_BLOCKING = "blocking";
+    public static final String ENGINE_NIO = "nio";
+
+    public static final String BALANCE_ROUND_ROBIN = "round-robin";
+    public static final String BALANCE_LEAST_ACTIVE = "least-active";
+    public static final String BALANCE_EWMA = "ewma";
 
     private static final int DEFAULT_PORT = 1080;
     private static final String DEFAULT_HOST = "";
+    private static final ConfigFileReader.LimitsConfig DEFAULT_LIMITS = new ConfigFileReader.LimitsConfig();
 
     private final SharedPreferences prefs;
     private final Context appContext;
@@ -100,8 +112,100 @@ public class ProxyPreferences {
         prefs.edit().putBoolean(KEY_VPN_ENABLED, enabled).apply();
     }
 
-    /** 配置是否完整（可启动 VPN 的最小条件：类型、主机、端口）。 */
+    /** 预热的上游空闲连接数，仅能通过配置文件的 proxy.prewarm 字段修改，默认不预热。 */
+    public int getPrewarm() {
+        ConfigFileReader.ProxyConfig fc = getFileProxyConfig();
+        return fc != null ? fc.prewarm : 0;
+    }
+
+    public int getPrewarmIdleSeconds() {
+        ConfigFileReader.ProxyConfig fc = getFileProxyConfig();
+        return fc != null ? fc.prewarmIdleSeconds : 20;
+    }
+
+    /** 代理主机名解析结果的缓存秒数，仅能通过配置文件的 proxy.dnsTtlSeconds 字段修改。 */
+    public int getDnsTtlSeconds() {
+        ConfigFileReader.ProxyConfig fc = getFileProxyConfig();
+        return fc != null ? fc.dnsTtlSeconds : 60;
+    }
+
+    public int getDnsNegativeTtlSeconds() {
+        ConfigFileReader.ProxyConfig fc = getFileProxyConfig();
+        return fc != null ? fc.dnsNegativeTtlSeconds : 5;
+    }
+
+    /** SOCKS5 流水线握手，仅能通过配置文件的 proxy.socksOptimistic 字段开启。 */
+    public boolean isSocksOptimistic() {
+        ConfigFileReader.ProxyConfig fc = getFileProxyConfig();
+        return fc != null && fc.socksOptimistic;
+    }
+
+    /** CONNECT 快速打开，仅能通过配置文件的 proxy.fastOpen 字段开启。 */
+    public boolean isFastOpen() {
+        ConfigFileReader.ProxyConfig fc = getFileProxyConfig();
+        return fc != null && fc.fastOpen;
+    }
+
+    /** 普通 HTTP 请求直接转发给 HTTP 代理，仅能通过配置文件的 proxy.forwardHttp 字段开启。 */
+    public boolean isForwardHttp() {
+        ConfigFileReader.ProxyConfig fc = getFileProxyConfig();
+        return fc != null && fc.forwardHttp;
+    }
+
+    /** HTTP 代理的 HTTP/2 多路复用，仅能通过配置文件的 proxy.http2 字段开启。 */
+    public boolean isHttp2() {
+        ConfigFileReader.ProxyConfig fc = getFileProxyConfig();
+        return fc != null && fc.http2;
+    }
+
+    /** 本地代理引擎，仅能通过配置文件的 engine 字段修改，默认阻塞引擎。 */
+    public String getEngine() {
+        ConfigFileReader.ConfigResult r = ConfigFileReader.read(appContext);
+        return r != null && r.engine != null ? r.engine : ENGINE_BLOCKING;
+    }
+
+    /** 用户态 TCP 栈（tun2proxy），仅能通过配置文件的 tun 字段开启。 */
+    public boolean isTunEnabled() {
+        ConfigFileReader.ConfigResult r = ConfigFileReader.read(appContext);
+        return r != null && r.tun;
+    }
+
+    /** 路由规则，仅能通过配置文件的 rules 字段配置；文件未变化时返回同一个列表实例。 */
+    public List<String> getRules() {
+        ConfigFileReader.ConfigResult r = ConfigFileReader.read(appContext);
+        return r != null && r.rules != null ? r.rules : Collections.<String>emptyList();
+    }
+
+    /** 多个上游代理，仅能通过配置文件的 upstreams 字段配置；配置后代替单个代理，其余代理选项仍取自 proxy。 */
+    public List<ConfigFileReader.ProxyConfig> getUpstreams() {
+        ConfigFileReader.ConfigResult r = ConfigFileReader.read(appContext);
+        return r != null && r.upstreams != null ? r.upstreams : Collections.<ConfigFileReader.ProxyConfig>emptyList();
+    }
+
+    /** 多个上游代理的选择策略，仅能通过配置文件的 balance 字段修改，默认按握手延迟（ewma）。 */
+    public String getBalance() {
+        ConfigFileReader.ConfigResult r = ConfigFileReader.read(appContext);
+        return r != null && r.balance != null ? r.balance : BALANCE_EWMA;
+    }
+
+    /** 本地代理的准入控制上限，仅能通过配置文件的 limits 字段修改，未配置时使用默认值。 */
+    public ConfigFileReader.LimitsConfig getLimits() {
+        ConfigFileReader.ConfigResult r = ConfigFileReader.read(appContext);
+        return r != null && r.limits != null ? r.limits : DEFAULT_LIMITS;
+    }
+
+    /** 监听应用内配置的修改（SharedPreferences 只保存弱引用，调用方需持有 listener）。 */
+    public void registerListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        prefs.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    public void unregisterListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        prefs.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    /** 配置是否完整（可启动 VPN 的最小条件：类型、主机、端口，或配置了多个上游代理）。 */
     public boolean isConfigComplete() {
+        if (!getUpstreams().isEmpty()) return true;
         String host = getHost();
         return host != null && !host.trim().isEmpty() && getPort() > 0 && getPort() <= 65535;
     }
@@ -43,6 +43,8 @@ public class ConfigActivity extends AppCompatActivity {
         etPassword.setText(prefs.getPassword());
         if (ProxyPreferences.TYPE_SOCKS5.equals(prefs.getProxyType())) {
             rgType.check(R.id.rb_socks5);
+        } else if (ProxyPreferences.TYPE_HTTPS.equals(prefs.getProxyType())) {
+            rgType.check(R.id.rb_https);
         } else {
             rgType.check(R.id.rb_http);
         }
@@ -68,8 +70,9 @@ public class ConfigActivity extends AppCompatActivity {
             Toast.makeText(this, getString(R.string.config_host) + " 不能为空", Toast.LENGTH_SHORT).show();
             return;
         }
-        String type = rgType.getCheckedRadioButtonId() == R.id.rb_socks5
-                ? ProxyPreferences.TYPE_SOCKS5 : ProxyPreferences.TYPE_HTTP;
+        int checked = rgType.getCheckedRadioButtonId();
+        String type = checked == R.id.rb_socks5 ? ProxyPreferences.TYPE_SOCKS5
+                : checked == R.id.rb_https ? ProxyPreferences.TYPE_HTTPS : ProxyPreferences.TYPE_HTTP;
         String username = etUsername.getText() != null ? etUsername.getText().toString() : "";
         String password = etPassword.getText() != null ? etPassword.getText().toString() : "";
 
@@ -0,0 +1,86 @@
+package com.httpproxy.vpn.vpn;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.httpproxy.vpn.data.ConfigFileReader;
+import com.httpproxy.vpn.data.ProxyPreferences;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 监听 httpproxy.json 与应用内代理配置的修改，合并短时间内的多次修改后在主线程回调一次。
+ * <p>
+ * 配置文件可能位于多个目录（见 {@link ConfigFileReader#getConfigDirectories}），每个目录各用一个 FileObserver；
+ * 文件变化时先使 {@link ConfigFileReader} 的缓存失效，保证回调中读到的是新内容。
+ */
+final class ConfigWatcher {
+
+    /** 编辑器保存文件时常分多次写入，合并这段时间内的事件 */
+    private static final long DEBOUNCE_MS = 500;
+    private static final int FILE_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+            | FileObserver.CREATE | FileObserver.DELETE;
+
+    private final ProxyPreferences prefs;
+    private final Runnable onChange;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<FileObserver> observers = new ArrayList<>();
+    private final Runnable fire = new Runnable() {
+        @Override
+        public void run() {
+            onChange.run();
+        }
+    };
+    private final SharedPreferences.OnSharedPreferenceChangeListener prefsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sp, String key) {
+                    if (isProxyKey(key)) schedule();
+                }
+            };
+
+    ConfigWatcher(Context context, ProxyPreferences prefs, Runnable onChange) {
+        this.prefs = prefs;
+        this.onChange = onChange;
+        final String fileName = ConfigFileReader.getFileName();
+        for (File dir : ConfigFileReader.getConfigDirectories(context)) {
+            observers.add(new FileObserver(dir.getAbsolutePath(), FILE_EVENTS) {
+                @Override
+                public void onEvent(int event, String path) {
+                    if (!fileName.equals(path)) return;
+                    ConfigFileReader.invalidate();
+                    schedule();
+                }
+            });
+        }
+    }
+
+    void start() {
+        for (FileObserver observer : observers) observer.startWatching();
+        prefs.registerListener(prefsListener);
+    }
+
+    void stop() {
+        prefs.unregisterListener(prefsListener);
+        for (FileObserver observer : observers) observer.stopWatching();
+        handler.removeCallbacks(fire);
+    }
+
+    private void schedule() {
+        handler.removeCallbacks(fire);
+        handler.postDelayed(fire, DEBOUNCE_MS);
+    }
+
+    private static boolean isProxyKey(String key) {
+        return ProxyPreferences.KEY_PROXY_TYPE.equals(key)
+                || ProxyPreferences.KEY_HOST.equals(key)
+                || ProxyPreferences.KEY_PORT.equals(key)
+                || ProxyPreferences.KEY_USERNAME.equals(key)
+                || ProxyPreferences.KEY_PASSWORD.equals(key);
+    }
+}
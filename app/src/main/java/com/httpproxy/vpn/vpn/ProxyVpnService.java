@@ -8,19 +8,39 @@ import android.content.Intent;
 import android.net.VpnService;
 import android.content.pm.ServiceInfo;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.text.format.Formatter;
 
 import androidx.core.app.NotificationCompat;
 
 import com.httpproxy.vpn.R;
+import com.httpproxy.vpn.data.ConfigFileReader;
 import com.httpproxy.vpn.data.ProxyPreferences;
+import com.httpproxy.vpn.proxy.CircuitBreaker;
+import com.httpproxy.vpn.proxy.CircuitBreakerClient;
+import com.httpproxy.vpn.proxy.DirectProxyConnector;
+import com.httpproxy.vpn.proxy.DnsCache;
+import com.httpproxy.vpn.proxy.Http2UpstreamClient;
 import com.httpproxy.vpn.proxy.HttpUpstreamClient;
+import com.httpproxy.vpn.proxy.PrewarmedSocketPool;
+import com.httpproxy.vpn.proxy.ProxyConnector;
+import com.httpproxy.vpn.proxy.ProxyMetrics;
 import com.httpproxy.vpn.proxy.Socks5UpstreamClient;
+import com.httpproxy.vpn.proxy.TlsProxyConnector;
+import com.httpproxy.vpn.proxy.UpstreamPool;
 import com.httpproxy.vpn.proxy.UpstreamProxyClient;
+import com.httpproxy.vpn.rule.RuleSet;
+import com.httpproxy.vpn.tun.TunEngine;
 import com.httpproxy.vpn.ui.MainActivity;
 
 import static com.httpproxy.vpn.ui.MainActivity.ProxyVpnServiceRunningHolder;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -32,10 +52,32 @@ public class ProxyVpnService extends VpnService {
     public static final String ACTION_DISCONNECT = "com.httpproxy.vpn.DISCONNECT";
     private static final String CHANNEL_ID = "proxy_vpn_channel";
     private static final int NOTIFICATION_ID = 1;
+    /** 通知栏运行指标的刷新间隔 */
+    private static final long STATS_REFRESH_MS = 5000;
+    private static final int MTU = 1500;
 
     private ProxyPreferences prefs;
-    private LocalProxyServer localProxy;
+    private CircuitBreakerClient upstream;
+    /** 当前上游对应的配置，用于判断配置修改后是否需要替换上游 */
+    private String upstreamSettings;
+    private ConfigWatcher configWatcher;
+    private RuleSet rules = RuleSet.EMPTY;
+    /** 编译 {@link #rules} 所用的规则列表，配置文件未变化时读到的是同一个实例 */
+    private List<String> ruleSource;
+    private ProxyEngine localProxy;
+    /** 用户态 TCP 栈，未开启时为 null */
+    private TunEngine tunEngine;
     private ParcelFileDescriptor vpnFd;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable statsRefresher = new Runnable() {
+        @Override
+        public void run() {
+            if (vpnFd == null) return;
+            NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+            if (nm != null) nm.notify(NOTIFICATION_ID, buildNotification());
+            handler.postDelayed(this, STATS_REFRESH_MS);
+        }
+    };
 
     @Override
     public void onCreate() {
@@ -78,21 +120,33 @@ public class ProxyVpnService extends VpnService {
     private void startVpn() {
         if (vpnFd != null) return;
 
-        UpstreamProxyClient upstream = createUpstreamClient();
-        localProxy = new LocalProxyServer(upstream);
+        upstreamSettings = upstreamSettings();
+        upstream = createUpstreamClient();
+        localProxy = createProxyEngine(upstream);
+        compileRules();
+        localProxy.setRules(rules);
         try {
             localProxy.start();
         } catch (Exception e) {
+            upstream.abort();
             stopSelf();
             return;
         }
 
+        boolean tun = prefs.isTunEnabled();
         Builder builder = new Builder()
                 .setSession(getString(R.string.notification_title))
-                .setMtu(1500)
+                .setMtu(MTU)
                 .addAddress("10.0.0.2", 32)
-                .addRoute("0.0.0.0", 0)
-                .addDnsServer("8.8.8.8");
+                .addRoute("0.0.0.0", 0);
+        if (tun) {
+            // DNS 由用户态栈用假 IP 回答；只路由假 IP 的 IPv6 网段，其他 IPv6 流量不经过 VPN
+            builder.addDnsServer(TunEngine.DNS_SERVER)
+                    .addAddress(TunEngine.IPV6_ADDRESS, 128)
+                    .addRoute(TunEngine.FAKE_IPV6_NETWORK, TunEngine.FAKE_IPV6_PREFIX);
+        } else {
+            builder.addDnsServer("8.8.8.8");
+        }
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
             builder.setHttpProxy(android.net.ProxyInfo.buildDirectProxy("127.0.0.1", localProxy.getPort()));
         }
@@ -117,10 +171,19 @@ public class ProxyVpnService extends VpnService {
         vpnFd = builder.establish();
         if (vpnFd == null) {
             localProxy.stop();
+            upstream.abort();
             stopSelf();
             return;
         }
 
+        if (tun) {
+            // 不遵守系统 HTTP 代理的应用流量由用户态 TCP 栈接管
+            tunEngine = new TunEngine(upstream, new FileInputStream(vpnFd.getFileDescriptor()),
+                    new FileOutputStream(vpnFd.getFileDescriptor()), MTU);
+            tunEngine.setRules(rules);
+            tunEngine.start();
+        }
+
         prefs.setVpnEnabled(true);
         ProxyVpnServiceRunningHolder.setRunning(true);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
@@ -128,12 +191,72 @@ public class ProxyVpnService extends VpnService {
         } else {
             startForeground(NOTIFICATION_ID, buildNotification());
         }
+        handler.postDelayed(statsRefresher, STATS_REFRESH_MS);
+        configWatcher = new ConfigWatcher(this, prefs, this::reloadConfig);
+        configWatcher.start();
+    }
+
+    private void reloadConfig() {
+        reloadRules();
+        reloadUpstream();
+        reloadLimits();
+    }
+
+    /** 准入控制上限原地调整，已排队与等待中的连接按新上限继续。 */
+    private void reloadLimits() {
+        if (vpnFd == null || !(localProxy instanceof LocalProxyServer)) return;
+        applyLimits((LocalProxyServer) localProxy);
+    }
+
+    /** 规则修改后原地替换，之后建立的连接按新规则路由。 */
+    private void reloadRules() {
+        if (vpnFd == null || localProxy == null || !compileRules()) return;
+        localProxy.setRules(rules);
+        if (tunEngine != null) tunEngine.setRules(rules);
+    }
+
+    /** 规则列表有变化时重新编译，返回是否更新了 {@link #rules}。 */
+    private boolean compileRules() {
+        List<String> source = prefs.getRules();
+        if (source == ruleSource) return false;
+        ruleSource = source;
+        rules = source.isEmpty() ? RuleSet.EMPTY : RuleSet.compile(source);
+        return true;
+    }
+
+    /**
+     * 配置修改后原地替换上游代理：新连接立即使用新上游，已建立的连接继续转发直到自然结束，
+     * VPN 接口不重建。本地代理引擎的切换仍需重新连接 VPN。
+     */
+    private void reloadUpstream() {
+        if (vpnFd == null || localProxy == null || !prefs.isConfigComplete()) return;
+        String settings = upstreamSettings();
+        if (settings.equals(upstreamSettings)) return;
+        CircuitBreakerClient old = upstream;
+        upstream = createUpstreamClient();
+        upstreamSettings = settings;
+        localProxy.setUpstream(upstream);
+        if (tunEngine != null) tunEngine.setUpstream(upstream);
+        if (localProxy instanceof LocalProxyServer) {
+            ((LocalProxyServer) localProxy).setFastOpen(prefs.isFastOpen());
+        }
+        // 只关闭旧上游的预热连接，已交给隧道的连接（含 HTTP/2 共享连接上的流）继续转发
+        old.close();
     }
 
     private void stopVpn() {
         ProxyVpnServiceRunningHolder.setRunning(false);
         prefs.setVpnEnabled(false);
+        handler.removeCallbacks(statsRefresher);
+        if (configWatcher != null) {
+            configWatcher.stop();
+            configWatcher = null;
+        }
         stopForeground(true);
+        if (tunEngine != null) {
+            tunEngine.stop();
+            tunEngine = null;
+        }
         if (vpnFd != null) {
             try {
                 vpnFd.close();
@@ -144,18 +267,99 @@ public class ProxyVpnService extends VpnService {
             localProxy.stop();
             localProxy = null;
         }
+        if (upstream != null) {
+            upstream.abort();
+            upstream = null;
+        }
+    }
+
+    /** 上游客户端外包一层熔断器，状态变化时立即刷新通知。 */
+    private CircuitBreakerClient createUpstreamClient() {
+        DnsCache.get().configure(prefs.getDnsTtlSeconds() * 1000L, prefs.getDnsNegativeTtlSeconds() * 1000L);
+        UpstreamProxyClient client;
+        List<ConfigFileReader.ProxyConfig> upstreams = prefs.getUpstreams();
+        if (upstreams.isEmpty()) {
+            String type = prefs.getProxyType();
+            client = createClient(type, createConnector(type, prefs.getHost(), prefs.getPort()),
+                    prefs.getUsername(), prefs.getPassword());
+        } else {
+            List<UpstreamPool.Member> members = new ArrayList<>();
+            for (ConfigFileReader.ProxyConfig c : upstreams) {
+                ProxyConnector connector = createConnector(c.type, c.host, c.port);
+                members.add(new UpstreamPool.Member(c.host + ":" + c.port,
+                        createClient(c.type, connector, c.username, c.password), connector));
+            }
+            client = new UpstreamPool(members, balancePolicy());
+        }
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.setListener(state -> handler.post(() -> {
+            if (vpnFd == null) return;
+            handler.removeCallbacks(statsRefresher);
+            statsRefresher.run();
+        }));
+        return CircuitBreakerClient.wrap(client, breaker);
+    }
+
+    private ProxyConnector createConnector(String type, String host, int port) {
+        ProxyConnector connector = new DirectProxyConnector(host, port);
+        int prewarm = prefs.getPrewarm();
+        if (prewarm > 0) {
+            // HTTPS 代理只预热 TCP 连接，TLS 握手在取用时进行，靠会话恢复缩短
+            connector = new PrewarmedSocketPool(connector, prewarm, prefs.getPrewarmIdleSeconds() * 1000L);
+        }
+        if (ProxyPreferences.TYPE_HTTPS.equals(type)) connector = new TlsProxyConnector(connector, host, port);
+        return connector;
     }
 
-    private UpstreamProxyClient createUpstreamClient() {
-        String type = prefs.getProxyType();
-        String host = prefs.getHost();
-        int port = prefs.getPort();
-        String user = prefs.getUsername();
-        String pass = prefs.getPassword();
+    private UpstreamProxyClient createClient(String type, ProxyConnector connector, String user, String pass) {
         if (ProxyPreferences.TYPE_SOCKS5.equals(type)) {
-            return new Socks5UpstreamClient(host, port, user, pass);
+            return new Socks5UpstreamClient(connector, user, pass, prefs.isSocksOptimistic());
+        }
+        HttpUpstreamClient http = new HttpUpstreamClient(connector, user, pass, prefs.isForwardHttp());
+        if (!prefs.isHttp2()) return http;
+        ProxyConnector h2 = connector instanceof TlsProxyConnector
+                ? ((TlsProxyConnector) connector).withApplicationProtocols("h2", "http/1.1") : connector;
+        return new Http2UpstreamClient(h2, user, pass, http);
+    }
+
+    private UpstreamPool.Policy balancePolicy() {
+        String balance = prefs.getBalance();
+        if (ProxyPreferences.BALANCE_ROUND_ROBIN.equals(balance)) return UpstreamPool.Policy.ROUND_ROBIN;
+        if (ProxyPreferences.BALANCE_LEAST_ACTIVE.equals(balance)) return UpstreamPool.Policy.LEAST_ACTIVE;
+        return UpstreamPool.Policy.EWMA;
+    }
+
+    private String upstreamSettings() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(prefs.getProxyType()).append('\n').append(prefs.getHost()).append('\n').append(prefs.getPort()).append('\n')
+                .append(prefs.getUsername()).append('\n').append(prefs.getPassword()).append('\n')
+                .append(prefs.getPrewarm()).append('\n').append(prefs.getPrewarmIdleSeconds()).append('\n')
+                .append(prefs.getDnsTtlSeconds()).append('\n').append(prefs.getDnsNegativeTtlSeconds()).append('\n')
+                .append(prefs.isSocksOptimistic()).append('\n').append(prefs.isFastOpen()).append('\n')
+                .append(prefs.isForwardHttp()).append('\n').append(prefs.isHttp2()).append('\n')
+                .append(prefs.getBalance());
+        for (ConfigFileReader.ProxyConfig c : prefs.getUpstreams()) {
+            sb.append('\n').append(c.type).append(' ').append(c.host).append(' ').append(c.port)
+                    .append(' ').append(c.username).append(' ').append(c.password);
+        }
+        return sb.toString();
+    }
+
+    private ProxyEngine createProxyEngine(UpstreamProxyClient upstream) {
+        if (ProxyPreferences.ENGINE_NIO.equals(prefs.getEngine())) {
+            return new NioProxyServer(upstream);
         }
-        return new HttpUpstreamClient(host, port, user, pass);
+        LocalProxyServer server = new LocalProxyServer(upstream);
+        server.setFastOpen(prefs.isFastOpen());
+        applyLimits(server);
+        return server;
+    }
+
+    /** 准入控制上限，运行中修改即时生效。 */
+    private void applyLimits(LocalProxyServer server) {
+        ConfigFileReader.LimitsConfig limits = prefs.getLimits();
+        server.setLimits(limits.maxTunnels, limits.maxTunnelsPerHost, limits.maxHandshakes, limits.queue,
+                limits.queueTimeoutSeconds * 1000L);
     }
 
     private Notification buildNotification() {
@@ -165,13 +369,26 @@ public class ProxyVpnService extends VpnService {
                 PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
         return new NotificationCompat.Builder(this, CHANNEL_ID)
                 .setContentTitle(getString(R.string.notification_title))
-                .setContentText(getString(R.string.notification_text))
+                .setContentText(statsText())
+                .setOnlyAlertOnce(true)
                 .setSmallIcon(android.R.drawable.ic_lock_lock)
                 .setContentIntent(pi)
                 .setOngoing(true)
                 .build();
     }
 
+    /** 通知栏显示的运行指标：活动连接数与累计上下行流量；上游熔断时显示不可用。 */
+    private String statsText() {
+        if (upstream != null && upstream.breaker().state() != CircuitBreaker.State.CLOSED) {
+            return getString(R.string.notification_upstream_down);
+        }
+        ProxyMetrics metrics = ProxyMetrics.get();
+        if (metrics.totalTunnels() == 0) return getString(R.string.notification_text);
+        return getString(R.string.notification_stats, metrics.activeTunnels(),
+                Formatter.formatShortFileSize(this, metrics.bytesUp()),
+                Formatter.formatShortFileSize(this, metrics.bytesDown()));
+    }
+
     @Override
     public void onDestroy() {
         stopVpn();
@@ -0,0 +1,17 @@
+package com.httpproxy.vpn.benchmark;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/** 源站：把收到的数据原样发回。 */
+final class EchoOrigin extends FakeServer {
+
+    EchoOrigin() throws IOException {
+        super();
+    }
+
+    @Override
+    protected void serve(Socket socket) throws IOException {
+        copy(socket.getInputStream(), socket.getOutputStream());
+    }
+}
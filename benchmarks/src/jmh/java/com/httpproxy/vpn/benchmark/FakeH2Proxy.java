@@ -0,0 +1,579 @@
+package com.httpproxy.vpn.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * HTTP/2 明文（h2c 先验知识）CONNECT 代理：每个 CONNECT 流连上目标后回复 200 并双向转发，不校验认证。
+ * <p>
+ * 双方向都按流与连接两级窗口做流量控制，客户端超出窗口时以 FLOW_CONTROL_ERROR 关闭连接。
+ * 响应头的 server 字段第一次加入动态表、之后按索引引用，用来覆盖客户端 HPACK 解码的动态表路径；
+ * 请求头只解码本项目客户端发出的形式（静态表索引或名称的字面量，不做 Huffman）。
+ * 不支持 h2c 的代理可直接用 {@link FakeHttpProxy}，它对连接前言不回复即关闭，客户端随之退回 HTTP/1.1。
+ */
+final class FakeH2Proxy extends FakeServer {
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int CANCEL = 0x8;
+
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int DEFAULT_WINDOW = 65535;
+    /** 本端的接收窗口，与客户端相同 */
+    private static final int STREAM_WINDOW = 1 << 20;
+    private static final int CONNECTION_WINDOW = 16 << 20;
+
+    /** HPACK 静态表中的索引 */
+    private static final int INDEX_AUTHORITY = 1;
+    private static final int INDEX_METHOD = 2;
+    private static final int INDEX_STATUS_200 = 8;
+    private static final int INDEX_SERVER = 54;
+    /** 动态表的第一项 */
+    private static final int INDEX_DYNAMIC = 62;
+    private static final String SERVER = "fake-h2";
+
+    private final int maxStreams;
+
+    FakeH2Proxy() throws IOException {
+        this(100);
+    }
+
+    /** @param maxStreams 通告给客户端的 SETTINGS_MAX_CONCURRENT_STREAMS */
+    FakeH2Proxy(int maxStreams) throws IOException {
+        super();
+        this.maxStreams = maxStreams;
+    }
+
+    @Override
+    protected void serve(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), MAX_FRAME_SIZE + 9));
+        byte[] preface = new byte[PREFACE.length];
+        in.readFully(preface);
+        if (!Arrays.equals(preface, PREFACE)) return;
+        Connection connection = new Connection(socket);
+        try {
+            connection.run(in);
+        } finally {
+            connection.closeAll();
+        }
+    }
+
+    /** 一条到客户端的连接。写帧在 this 的锁内进行，窗口也由 this 保护。 */
+    private final class Connection {
+
+        private final Socket socket;
+        private final OutputStream out;
+        private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+        private long sendWindow = DEFAULT_WINDOW;
+        private int peerInitialWindow = DEFAULT_WINDOW;
+        private int recvWindow = DEFAULT_WINDOW;
+        private int recvUnacked;
+        private boolean serverIndexed;
+        private boolean closed;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedOutputStream(socket.getOutputStream(), MAX_FRAME_SIZE + 9);
+        }
+
+        void run(DataInputStream in) throws IOException {
+            synchronized (this) {
+                writeFrameHeader(12, TYPE_SETTINGS, 0, 0);
+                writeSetting(SETTINGS_MAX_CONCURRENT_STREAMS, maxStreams);
+                writeSetting(SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+                writeFrameHeader(4, TYPE_WINDOW_UPDATE, 0, 0);
+                writeInt(CONNECTION_WINDOW - DEFAULT_WINDOW);
+                out.flush();
+                recvWindow = CONNECTION_WINDOW;
+            }
+            byte[] header = new byte[9];
+            try {
+                while (true) {
+                    in.readFully(header);
+                    int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+                    int type = header[3] & 0xff;
+                    int flags = header[4] & 0xff;
+                    int id = readInt(header, 5) & 0x7fffffff;
+                    if (length > MAX_FRAME_SIZE) throw new ProtocolException("frame too large");
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    if (!onFrame(in, type, flags, id, payload)) return;
+                }
+            } catch (FlowControlException e) {
+                goAway(FLOW_CONTROL_ERROR);
+            } catch (ProtocolException e) {
+                goAway(PROTOCOL_ERROR);
+            }
+        }
+
+        /** 返回 false 表示对端发来 GOAWAY，连接结束。 */
+        private boolean onFrame(DataInputStream in, int type, int flags, int id, byte[] payload) throws IOException {
+            switch (type) {
+                case TYPE_DATA:
+                    onData(flags, id, payload);
+                    break;
+                case TYPE_HEADERS:
+                    onHeaders(in, flags, id, payload);
+                    break;
+                case TYPE_RST_STREAM: {
+                    Stream stream = streams.remove(id);
+                    if (stream != null) stream.reset();
+                    break;
+                }
+                case TYPE_SETTINGS:
+                    if ((flags & FLAG_ACK) != 0) break;
+                    applySettings(payload);
+                    synchronized (this) {
+                        writeFrameHeader(0, TYPE_SETTINGS, FLAG_ACK, 0);
+                        out.flush();
+                    }
+                    break;
+                case TYPE_PING:
+                    if ((flags & FLAG_ACK) != 0) break;
+                    synchronized (this) {
+                        writeFrameHeader(8, TYPE_PING, FLAG_ACK, 0);
+                        out.write(payload);
+                        out.flush();
+                    }
+                    break;
+                case TYPE_GOAWAY:
+                    return false;
+                case TYPE_WINDOW_UPDATE: {
+                    int increment = readInt(payload, 0) & 0x7fffffff;
+                    synchronized (this) {
+                        if (id == 0) {
+                            sendWindow += increment;
+                        } else {
+                            Stream stream = streams.get(id);
+                            if (stream != null) stream.sendWindow += increment;
+                        }
+                        notifyAll();
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+            return true;
+        }
+
+        private void onData(int flags, int id, byte[] payload) throws IOException {
+            int off = 0;
+            int len = payload.length;
+            if ((flags & FLAG_PADDED) != 0) {
+                off = 1;
+                len -= 1 + (payload[0] & 0xff);
+            }
+            Stream stream = streams.get(id);
+            synchronized (this) {
+                recvWindow -= payload.length;
+                if (recvWindow < 0) throw new FlowControlException();
+                if (stream != null) {
+                    stream.recvWindow -= payload.length;
+                    if (stream.recvWindow < 0) throw new FlowControlException();
+                }
+            }
+            if (stream != null && stream.target == null) {
+                // 回复 200 之前不应有数据
+                throw new ProtocolException("DATA before response");
+            }
+            if (stream != null && len > 0) {
+                try {
+                    stream.target.getOutputStream().write(payload, off, len);
+                } catch (IOException e) {
+                    streams.remove(id);
+                    stream.reset();
+                    rstStream(id, CANCEL);
+                }
+            }
+            if (stream != null && (flags & FLAG_END_STREAM) != 0) stream.endOfInput();
+            consumed(stream, payload.length);
+        }
+
+        /** 已写给目标的数据：累计到窗口的一半时补充流与连接的接收窗口。 */
+        private synchronized void consumed(Stream stream, int n) throws IOException {
+            int streamCredit = 0;
+            if (stream != null && !stream.inputDone) {
+                stream.recvUnacked += n;
+                if (stream.recvUnacked >= STREAM_WINDOW / 2) {
+                    streamCredit = stream.recvUnacked;
+                    stream.recvWindow += streamCredit;
+                    stream.recvUnacked = 0;
+                }
+            }
+            recvUnacked += n;
+            int connectionCredit = 0;
+            if (recvUnacked >= CONNECTION_WINDOW / 2) {
+                connectionCredit = recvUnacked;
+                recvWindow += connectionCredit;
+                recvUnacked = 0;
+            }
+            if (streamCredit > 0) {
+                writeFrameHeader(4, TYPE_WINDOW_UPDATE, 0, stream.id);
+                writeInt(streamCredit);
+            }
+            if (connectionCredit > 0) {
+                writeFrameHeader(4, TYPE_WINDOW_UPDATE, 0, 0);
+                writeInt(connectionCredit);
+            }
+            if (streamCredit > 0 || connectionCredit > 0) out.flush();
+        }
+
+        private void onHeaders(DataInputStream in, int flags, int id, byte[] payload) throws IOException {
+            int off = 0;
+            int end = payload.length;
+            if ((flags & FLAG_PADDED) != 0) {
+                end -= payload[0] & 0xff;
+                off = 1;
+            }
+            if ((flags & FLAG_PRIORITY) != 0) off += 5;
+            ByteArrayOutputStream block = new ByteArrayOutputStream(end - off);
+            block.write(payload, off, end - off);
+            while ((flags & FLAG_END_HEADERS) == 0) {
+                byte[] header = new byte[9];
+                in.readFully(header);
+                int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+                if ((header[3] & 0xff) != TYPE_CONTINUATION || length > MAX_FRAME_SIZE) {
+                    throw new ProtocolException("expected CONTINUATION");
+                }
+                byte[] more = new byte[length];
+                in.readFully(more);
+                block.write(more, 0, length);
+                flags = header[4] & 0xff;
+            }
+            String[] request = decodeRequest(block.toByteArray());
+            if (!"CONNECT".equals(request[0]) || request[1] == null) {
+                respond(id, "400", true);
+                return;
+            }
+            Stream stream = new Stream(id);
+            synchronized (this) {
+                stream.sendWindow = peerInitialWindow;
+            }
+            streams.put(id, stream);
+            try {
+                executor.execute(() -> open(stream, request[1]));
+            } catch (RejectedExecutionException e) {
+                // 已关闭
+                throw new InterruptedIOException();
+            }
+        }
+
+        /** 连接目标并回复，随后把目标的数据转发给客户端。在单独的线程中执行，延迟与连接目标不阻塞读帧。 */
+        private void open(Stream stream, String authority) {
+            try {
+                roundTrip(null, true);
+                int colon = authority.lastIndexOf(':');
+                String host = authority.substring(0, colon);
+                if (host.startsWith("[")) host = host.substring(1, host.length() - 1);
+                Socket target;
+                try {
+                    target = new Socket(host, Integer.parseInt(authority.substring(colon + 1)));
+                    target.setTcpNoDelay(true);
+                } catch (IOException | NumberFormatException e) {
+                    streams.remove(stream.id);
+                    respond(stream.id, "502", true);
+                    return;
+                }
+                stream.target = target;
+                // 连接目标期间客户端已取消
+                if (stream.reset) {
+                    closeQuietly(target);
+                    return;
+                }
+                respond(stream.id, "200", false);
+                copy(stream.target.getInputStream(), stream);
+                stream.endOfOutput();
+            } catch (IOException e) {
+                if (streams.remove(stream.id) != null) {
+                    stream.reset();
+                    try {
+                        rstStream(stream.id, CANCEL);
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        /** 发送响应头：:status 200 取静态表，server 第一次加入动态表，之后引用动态表。 */
+        private synchronized void respond(int id, String status, boolean endStream) throws IOException {
+            ByteArrayOutputStream block = new ByteArrayOutputStream(32);
+            if ("200".equals(status)) {
+                writeHpackInt(block, 0x80, 7, INDEX_STATUS_200);
+            } else {
+                writeHpackInt(block, 0x00, 4, INDEX_STATUS_200);
+                writeHpackString(block, status);
+            }
+            if (serverIndexed) {
+                writeHpackInt(block, 0x80, 7, INDEX_DYNAMIC);
+            } else {
+                writeHpackInt(block, 0x40, 6, INDEX_SERVER);
+                writeHpackString(block, SERVER);
+                serverIndexed = true;
+            }
+            writeFrameHeader(block.size(), TYPE_HEADERS, FLAG_END_HEADERS | (endStream ? FLAG_END_STREAM : 0), id);
+            block.writeTo(out);
+            out.flush();
+        }
+
+        /** 按流与连接的发送窗口写出 DATA 帧，窗口用尽时等待 WINDOW_UPDATE。 */
+        private void writeData(Stream stream, byte[] b, int off, int len) throws IOException {
+            synchronized (this) {
+                while (len > 0) {
+                    while (!closed && !stream.reset && (stream.sendWindow <= 0 || sendWindow <= 0)) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    if (closed || stream.reset) throw new IOException("stream closed");
+                    int n = (int) Math.min(Math.min(len, MAX_FRAME_SIZE), Math.min(stream.sendWindow, sendWindow));
+                    stream.sendWindow -= n;
+                    sendWindow -= n;
+                    writeFrameHeader(n, TYPE_DATA, 0, stream.id);
+                    out.write(b, off, n);
+                    off += n;
+                    len -= n;
+                }
+                out.flush();
+            }
+        }
+
+        private synchronized void writeEndStream(Stream stream) throws IOException {
+            writeFrameHeader(0, TYPE_DATA, FLAG_END_STREAM, stream.id);
+            out.flush();
+        }
+
+        private synchronized void rstStream(int id, int code) throws IOException {
+            writeFrameHeader(4, TYPE_RST_STREAM, 0, id);
+            writeInt(code);
+            out.flush();
+        }
+
+        private synchronized void goAway(int code) {
+            try {
+                writeFrameHeader(8, TYPE_GOAWAY, 0, 0);
+                writeInt(0);
+                writeInt(code);
+                out.flush();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void applySettings(byte[] payload) {
+            synchronized (this) {
+                for (int i = 0; i + 6 <= payload.length; i += 6) {
+                    int key = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+                    if (key != SETTINGS_INITIAL_WINDOW_SIZE) continue;
+                    int value = readInt(payload, i + 2);
+                    int delta = value - peerInitialWindow;
+                    peerInitialWindow = value;
+                    for (Stream stream : streams.values()) stream.sendWindow += delta;
+                }
+                notifyAll();
+            }
+        }
+
+        /** 流的两个方向都已结束时移出连接。 */
+        private void finished(Stream stream) {
+            if (stream.inputDone && stream.outputDone) streams.remove(stream.id);
+        }
+
+        void closeAll() {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            for (Stream stream : streams.values()) stream.reset();
+            streams.clear();
+            closeQuietly(socket);
+        }
+
+        private void writeFrameHeader(int length, int type, int flags, int id) throws IOException {
+            out.write(length >>> 16);
+            out.write(length >>> 8);
+            out.write(length);
+            out.write(type);
+            out.write(flags);
+            writeInt(id);
+        }
+
+        private void writeSetting(int key, int value) throws IOException {
+            out.write(key >>> 8);
+            out.write(key);
+            writeInt(value);
+        }
+
+        private void writeInt(int value) throws IOException {
+            out.write(value >>> 24);
+            out.write(value >>> 16);
+            out.write(value >>> 8);
+            out.write(value);
+        }
+
+        /** 一个 CONNECT 流，作为 OutputStream 供 {@link #copy} 把目标的数据写给客户端。 */
+        private final class Stream extends OutputStream {
+
+            final int id;
+            volatile Socket target;
+            // 以下窗口由 Connection 的锁保护
+            long sendWindow;
+            int recvWindow = STREAM_WINDOW;
+            int recvUnacked;
+            volatile boolean reset;
+            volatile boolean inputDone;
+            volatile boolean outputDone;
+
+            Stream(int id) {
+                this.id = id;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writeData(this, b, off, len);
+            }
+
+            /** 客户端发来 END_STREAM：把 FIN 转给目标。 */
+            void endOfInput() {
+                inputDone = true;
+                try {
+                    target.shutdownOutput();
+                } catch (IOException e) {
+                    closeQuietly(target);
+                }
+                finished(this);
+                if (outputDone) closeQuietly(target);
+            }
+
+            /** 目标已关闭：向客户端发送 END_STREAM。 */
+            void endOfOutput() throws IOException {
+                outputDone = true;
+                writeEndStream(this);
+                finished(this);
+                if (inputDone) closeQuietly(target);
+            }
+
+            void reset() {
+                reset = true;
+                synchronized (Connection.this) {
+                    Connection.this.notifyAll();
+                }
+                closeQuietly(target);
+            }
+        }
+    }
+
+    /**
+     * 解码 CONNECT 请求头，返回 {:method, :authority}。只接受静态表索引（0x80）与不加入动态表的字面量
+     * （0x00、0x10，名称取静态表或随后给出），字符串不得使用 Huffman 编码。
+     */
+    private static String[] decodeRequest(byte[] block) throws ProtocolException {
+        String[] result = new String[2];
+        int[] pos = {0};
+        while (pos[0] < block.length) {
+            int b = block[pos[0]] & 0xff;
+            int nameIndex;
+            if ((b & 0x80) != 0) {
+                nameIndex = readHpackInt(block, pos, 7);
+                if (nameIndex == INDEX_METHOD) result[0] = "GET";
+                continue;
+            }
+            if ((b & 0xe0) != 0x00) throw new ProtocolException("unsupported HPACK representation");
+            nameIndex = readHpackInt(block, pos, 4);
+            if (nameIndex == 0) readHpackString(block, pos);
+            String value = readHpackString(block, pos);
+            if (nameIndex == INDEX_METHOD) result[0] = value;
+            if (nameIndex == INDEX_AUTHORITY) result[1] = value;
+        }
+        return result;
+    }
+
+    private static int readHpackInt(byte[] block, int[] pos, int prefixBits) throws ProtocolException {
+        int max = (1 << prefixBits) - 1;
+        int value = block[pos[0]++] & max;
+        if (value < max) return value;
+        for (int shift = 0; shift < 28; shift += 7) {
+            if (pos[0] >= block.length) throw new ProtocolException("truncated HPACK integer");
+            int b = block[pos[0]++] & 0xff;
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new ProtocolException("HPACK integer too large");
+    }
+
+    private static String readHpackString(byte[] block, int[] pos) throws ProtocolException {
+        if (pos[0] >= block.length || (block[pos[0]] & 0x80) != 0) throw new ProtocolException("unsupported HPACK string");
+        int length = readHpackInt(block, pos, 7);
+        if (pos[0] + length > block.length) throw new ProtocolException("truncated HPACK string");
+        String s = new String(block, pos[0], length, StandardCharsets.ISO_8859_1);
+        pos[0] += length;
+        return s;
+    }
+
+    private static void writeHpackInt(ByteArrayOutputStream out, int first, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(first | value);
+            return;
+        }
+        out.write(first | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeHpackString(ByteArrayOutputStream out, String s) {
+        byte[] b = s.getBytes(StandardCharsets.ISO_8859_1);
+        writeHpackInt(out, 0x00, 7, b.length);
+        out.write(b, 0, b.length);
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    /** 客户端超出了接收窗口 */
+    private static final class FlowControlException extends ProtocolException {
+    }
+}
@@ -0,0 +1,54 @@
+package com.httpproxy.vpn.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/** HTTP CONNECT 代理：不校验认证，连上目标后回复 200 并转发。 */
+final class FakeHttpProxy extends FakeServer {
+
+    private static final byte[] OK = "HTTP/1.1 200 Connection established\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BAD_GATEWAY = "HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    FakeHttpProxy() throws IOException {
+        super();
+    }
+
+    @Override
+    protected void serve(Socket socket) throws IOException {
+        String head = readHead(socket.getInputStream());
+        if (head == null || !head.startsWith("CONNECT ")) return;
+        roundTrip(socket.getInputStream(), true);
+        String authority = head.substring(8, head.indexOf(' ', 8));
+        int colon = authority.lastIndexOf(':');
+        String host = authority.substring(0, colon);
+        if (host.startsWith("[")) host = host.substring(1, host.length() - 1);
+        Socket target;
+        try {
+            target = new Socket(host, Integer.parseInt(authority.substring(colon + 1)));
+            target.setTcpNoDelay(true);
+        } catch (IOException | NumberFormatException e) {
+            socket.getOutputStream().write(BAD_GATEWAY);
+            return;
+        }
+        socket.getOutputStream().write(OK);
+        relay(socket, target);
+    }
+
+    /** 逐字节读到空行为止，不多读属于隧道的数据。 */
+    static String readHead(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(256);
+        int c;
+        while ((c = in.read()) >= 0) {
+            sb.append((char) c);
+            int n = sb.length();
+            if (n >= 4 && sb.charAt(n - 1) == '\n' && sb.charAt(n - 2) == '\r'
+                    && sb.charAt(n - 3) == '\n' && sb.charAt(n - 4) == '\r') {
+                return sb.toString();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,48 @@
+package com.httpproxy.vpn.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * HTTP/1.1 源站：GET /&lt;n&gt; 返回 n 字节的响应体，其他路径返回空响应体。连接保持复用，
+ * 直到客户端发送 Connection: close 或关闭连接。
+ */
+final class FakeOrigin extends FakeServer {
+
+    private static final byte[] BODY = new byte[16 * 1024];
+
+    FakeOrigin() throws IOException {
+        super();
+    }
+
+    @Override
+    protected void serve(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        String head;
+        while ((head = FakeHttpProxy.readHead(in)) != null) {
+            long size = bodySize(head);
+            boolean close = head.toLowerCase(Locale.ROOT).contains("\r\nconnection: close");
+            roundTrip(in, true);
+            out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + size + "\r\n"
+                    + (close ? "Connection: close\r\n" : "") + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            write(out, BODY, size);
+            if (close) return;
+        }
+    }
+
+    private static long bodySize(String head) {
+        int start = head.indexOf(" /");
+        if (start < 0) return 0;
+        int end = head.indexOf(' ', start + 2);
+        try {
+            return Long.parseLong(head.substring(start + 2, end));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.httpproxy.vpn.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 同一 JVM 内的回环测试服务器：每个连接一个守护线程，由子类实现协议。
+ * 可按 {@link Impairment} 注入往返延迟、带宽上限与连接失败。
+ */
+abstract class FakeServer implements Closeable {
+
+    private static final int MAX_CHUNK = 16 * 1024;
+
+    private final ServerSocket serverSocket;
+    private volatile Impairment impairment = Impairment.NONE;
+    protected final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, getClass().getSimpleName());
+        t.setDaemon(true);
+        return t;
+    });
+
+    FakeServer() throws IOException {
+        serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        executor.execute(this::acceptLoop);
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    void setImpairment(Impairment impairment) {
+        this.impairment = impairment;
+    }
+
+    /**
+     * 回复对端之前调用：对端已在等待（没有流水线发来的后续数据）时计为一个往返，延迟 latencyMillis。
+     * always 为 true 时无论如何都延迟，用于握手的最后一步。
+     */
+    protected void roundTrip(InputStream in, boolean always) throws IOException {
+        int latency = impairment.latencyMillis;
+        if (latency <= 0 || (!always && in.available() > 0)) return;
+        try {
+            Thread.sleep(latency);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /** 处理一个已接受的连接，返回后连接被关闭。 */
+    protected abstract void serve(Socket socket) throws IOException;
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                return;
+            }
+            if (impairment.shouldFail()) {
+                Loopback.abort(socket);
+                continue;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        serve(socket);
+                    } catch (IOException ignored) {
+                    } finally {
+                        closeQuietly(socket);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // 已关闭
+                closeQuietly(socket);
+                return;
+            }
+        }
+    }
+
+    /** 双向转发直到任一方向结束。 */
+    protected void relay(Socket a, Socket b) throws IOException {
+        try {
+            executor.execute(() -> {
+                try {
+                    copy(b.getInputStream(), a.getOutputStream());
+                } catch (IOException ignored) {
+                } finally {
+                    closeQuietly(a);
+                    closeQuietly(b);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            closeQuietly(b);
+            return;
+        }
+        try {
+            copy(a.getInputStream(), b.getOutputStream());
+        } finally {
+            closeQuietly(a);
+            closeQuietly(b);
+        }
+    }
+
+    /** 按带宽上限转发，直到 in 结束。 */
+    protected void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[MAX_CHUNK];
+        Throttle throttle = new Throttle(impairment.bandwidth);
+        int n;
+        while ((n = in.read(buf, 0, throttle.chunk(buf.length))) > 0) {
+            out.write(buf, 0, n);
+            throttle.sent(n);
+        }
+    }
+
+    /** 按带宽上限写出 total 字节，内容取自 data（循环使用）。 */
+    protected void write(OutputStream out, byte[] data, long total) throws IOException {
+        Throttle throttle = new Throttle(impairment.bandwidth);
+        while (total > 0) {
+            int n = (int) Math.min(total, throttle.chunk(data.length));
+            out.write(data, 0, n);
+            throttle.sent(n);
+            total -= n;
+        }
+    }
+
+    static void closeQuietly(Closeable c) {
+        try { if (c != null) c.close(); } catch (IOException ignored) { }
+    }
+
+    /** 单个连接单个方向的限速：写出后按已发送字节数睡到应有的时刻。 */
+    private static final class Throttle {
+
+        private final long bytesPerSecond;
+        private final long start = System.nanoTime();
+        private long sent;
+
+        Throttle(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /** 每次最多读写约 50ms 的数据，限速更平滑。 */
+        int chunk(int max) {
+            return bytesPerSecond <= 0 ? max : (int) Math.max(1, Math.min(max, bytesPerSecond / 20));
+        }
+
+        void sent(int n) throws IOException {
+            if (bytesPerSecond <= 0) return;
+            sent += n;
+            long due = start + sent * 1_000_000_000L / bytesPerSecond;
+            long wait = due - System.nanoTime();
+            if (wait <= 0) return;
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(serverSocket);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,65 @@
+package com.httpproxy.vpn.benchmark;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/** SOCKS5 代理：只支持 CONNECT，接受无认证与任意用户名/密码。 */
+final class FakeSocks5Proxy extends FakeServer {
+
+    FakeSocks5Proxy() throws IOException {
+        super();
+    }
+
+    @Override
+    protected void serve(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        if (in.readUnsignedByte() != 5) return;
+        byte[] methods = new byte[in.readUnsignedByte()];
+        in.readFully(methods);
+        boolean password = false;
+        for (byte m : methods) if (m == 2) password = true;
+        // 乐观握手把后续请求一起发来，各步回复不再各占一个往返
+        roundTrip(in, false);
+        out.write(new byte[]{5, (byte) (password ? 2 : 0)});
+        if (password) {
+            in.readUnsignedByte();
+            in.readFully(new byte[in.readUnsignedByte()]);
+            in.readFully(new byte[in.readUnsignedByte()]);
+            roundTrip(in, false);
+            out.write(new byte[]{1, 0});
+        }
+        byte[] request = new byte[4];
+        in.readFully(request);
+        String host;
+        if (request[3] == 1) {
+            byte[] a = new byte[4];
+            in.readFully(a);
+            host = InetAddress.getByAddress(a).getHostAddress();
+        } else if (request[3] == 4) {
+            byte[] a = new byte[16];
+            in.readFully(a);
+            host = InetAddress.getByAddress(a).getHostAddress();
+        } else {
+            byte[] name = new byte[in.readUnsignedByte()];
+            in.readFully(name);
+            host = new String(name, StandardCharsets.US_ASCII);
+        }
+        int port = in.readUnsignedShort();
+        roundTrip(in, true);
+        Socket target;
+        try {
+            target = new Socket(host, port);
+            target.setTcpNoDelay(true);
+        } catch (IOException e) {
+            out.write(new byte[]{5, 5, 0, 1, 0, 0, 0, 0, 0, 0});
+            return;
+        }
+        out.write(new byte[]{5, 0, 0, 1, 127, 0, 0, 1, 0, 0});
+        relay(socket, target);
+    }
+}
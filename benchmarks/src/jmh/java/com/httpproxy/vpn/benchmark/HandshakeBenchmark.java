@@ -0,0 +1,74 @@
+package com.httpproxy.vpn.benchmark;
+
+import com.httpproxy.vpn.proxy.DirectProxyConnector;
+import com.httpproxy.vpn.proxy.Http2UpstreamClient;
+import com.httpproxy.vpn.proxy.HttpUpstreamClient;
+import com.httpproxy.vpn.proxy.ProxyConnector;
+import com.httpproxy.vpn.proxy.Socks5UpstreamClient;
+import com.httpproxy.vpn.proxy.UpstreamProxyClient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 经上游代理建立一条隧道的开销：到代理的 TCP 连接加上 CONNECT 或 SOCKS5 握手，代理与源站都在进程内。
+ * 回环上没有网络延迟，测到的是协议处理与系统调用本身的成本。
+ * h2 复用同一条 HTTP/2 连接，每次只新开一个 CONNECT 流；h2-fallback 的代理不支持 h2c，测的是退回 HTTP/1.1 后的开销。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HandshakeBenchmark {
+
+    @Param({"http", "http-auth", "socks5", "socks5-auth", "socks5-optimistic", "h2", "h2-fallback"})
+    public String upstream;
+
+    private EchoOrigin origin;
+    private FakeServer proxy;
+    private UpstreamProxyClient client;
+
+    @Setup
+    public void setup() throws IOException {
+        origin = new EchoOrigin();
+        boolean auth = upstream.endsWith("-auth");
+        String user = auth ? "user" : "";
+        String pass = auth ? "secret" : "";
+        if (upstream.startsWith("h2")) {
+            proxy = "h2".equals(upstream) ? new FakeH2Proxy() : new FakeHttpProxy();
+            ProxyConnector connector = new DirectProxyConnector("127.0.0.1", proxy.port());
+            client = new Http2UpstreamClient(connector, user, pass, new HttpUpstreamClient(connector, user, pass));
+        } else if (upstream.startsWith("http")) {
+            proxy = new FakeHttpProxy();
+            client = new HttpUpstreamClient(new DirectProxyConnector("127.0.0.1", proxy.port()), user, pass);
+        } else {
+            proxy = new FakeSocks5Proxy();
+            client = new Socks5UpstreamClient(new DirectProxyConnector("127.0.0.1", proxy.port()), user, pass,
+                    upstream.endsWith("-optimistic"));
+        }
+    }
+
+    @Benchmark
+    public Socket tunnel() throws IOException {
+        Socket socket = client.connect("127.0.0.1", origin.port());
+        Loopback.abort(socket);
+        return socket;
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.abort();
+        proxy.close();
+        origin.close();
+    }
+}
@@ -0,0 +1,69 @@
+package com.httpproxy.vpn.benchmark;
+
+import com.httpproxy.vpn.vpn.HttpHeadParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/** 请求头解析：每个连接都要走一遍的路径，不应有任何分配（目标主机名的 String 除外）。 */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HttpHeadParserBenchmark {
+
+    private static final byte[] CONNECT = ("CONNECT www.example.com:443 HTTP/1.1\r\n"
+            + "Host: www.example.com:443\r\n"
+            + "Proxy-Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (Linux; Android 14; Pixel 8) AppleWebKit/537.36 (KHTML, like Gecko) "
+            + "Chrome/120.0.0.0 Mobile Safari/537.36\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final byte[] ABSOLUTE_GET = ("GET http://www.example.com/static/app.js?v=1234 HTTP/1.1\r\n"
+            + "Host: www.example.com\r\n"
+            + "Proxy-Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (Linux; Android 14; Pixel 8) AppleWebKit/537.36 (KHTML, like Gecko) "
+            + "Chrome/120.0.0.0 Mobile Safari/537.36\r\n"
+            + "Accept: */*\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Accept-Language: zh-CN,zh;q=0.9,en;q=0.8\r\n"
+            + "Referer: http://www.example.com/index.html\r\n"
+            + "Cookie: session=0123456789abcdef0123456789abcdef; theme=dark; lang=zh-CN\r\n"
+            + "If-None-Match: \"5f3c-1a2b3c4d\"\r\n"
+            + "If-Modified-Since: Mon, 01 Jan 2024 00:00:00 GMT\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private final HttpHeadParser parser = new HttpHeadParser();
+    private final byte[] buf = new byte[ABSOLUTE_GET.length];
+
+    @Benchmark
+    public int connect() throws ProtocolException {
+        parser.reset();
+        parser.parse(CONNECT, CONNECT.length);
+        parser.resolveTarget();
+        return parser.targetPort();
+    }
+
+    @Benchmark
+    public boolean absoluteGet() throws ProtocolException {
+        parser.reset();
+        parser.parse(ABSOLUTE_GET, ABSOLUTE_GET.length);
+        parser.resolveTarget();
+        return parser.isKeepAlive();
+    }
+
+    /** 转发给源站前改写为源站形式（就地改写，每次先复制原始请求头）。 */
+    @Benchmark
+    public int absoluteGetRewrite() throws ProtocolException {
+        System.arraycopy(ABSOLUTE_GET, 0, buf, 0, buf.length);
+        parser.reset();
+        parser.parse(buf, buf.length);
+        parser.resolveTarget();
+        return parser.rewriteToOriginForm();
+    }
+}
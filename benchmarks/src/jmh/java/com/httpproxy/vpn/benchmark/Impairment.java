@@ -0,0 +1,34 @@
+package com.httpproxy.vpn.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 测试服务器模拟的网络与故障条件。不可变，运行中可整体替换。
+ */
+final class Impairment {
+
+    static final Impairment NONE = new Impairment(0, 0, 0);
+
+    /** 每个往返增加的延迟（毫秒） */
+    final int latencyMillis;
+    /** 每个连接每个方向的带宽上限（字节/秒），0 表示不限 */
+    final long bandwidth;
+    /** 接受连接后立即以 RST 断开的概率 */
+    final double failureRate;
+
+    Impairment(int latencyMillis, long bandwidth, double failureRate) {
+        this.latencyMillis = latencyMillis;
+        this.bandwidth = bandwidth;
+        this.failureRate = failureRate;
+    }
+
+    boolean shouldFail() {
+        return failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate;
+    }
+
+    @Override
+    public String toString() {
+        return "latency=" + latencyMillis + "ms bandwidth=" + (bandwidth == 0 ? "unlimited" : bandwidth + "B/s")
+                + " failure=" + failureRate;
+    }
+}
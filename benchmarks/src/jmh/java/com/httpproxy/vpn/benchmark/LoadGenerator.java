@@ -0,0 +1,545 @@
+package com.httpproxy.vpn.benchmark;
+
+import com.httpproxy.vpn.proxy.DirectProxyConnector;
+import com.httpproxy.vpn.proxy.Http2UpstreamClient;
+import com.httpproxy.vpn.proxy.HttpUpstreamClient;
+import com.httpproxy.vpn.proxy.ProxyConnector;
+import com.httpproxy.vpn.proxy.ProxyMetrics;
+import com.httpproxy.vpn.proxy.Socks5UpstreamClient;
+import com.httpproxy.vpn.proxy.UpstreamProxyClient;
+import com.httpproxy.vpn.vpn.HttpHeadParser;
+import com.httpproxy.vpn.vpn.LocalProxyServer;
+import com.httpproxy.vpn.vpn.NioProxyServer;
+import com.httpproxy.vpn.vpn.ProxyEngine;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 端到端负载测试：在同一 JVM 内启动源站、上游代理（HTTP CONNECT、SOCKS5 或 HTTP/2 CONNECT）与本地代理，
+ * 由少量事件循环线程驱动数千个并发客户端持续经本地代理发请求，输出每秒请求数、首字节时间分位数、
+ * 峰值线程数与堆占用。
+ * <p>
+ * 每个客户端连接本地代理后，connect 模式先 CONNECT 到源站再在隧道内发 GET，http 模式直接发绝对形式的 GET，
+ * mixed 模式两者各半。每个连接发 requests 个请求后关闭，随即换新连接，并发数始终为 clients。
+ * 首字节时间从建立连接开始计（连接上的第一个请求，含 CONNECT 握手）或从写出请求开始计（后续请求）。
+ * <pre>
+ * ./gradlew :benchmarks:loadTest -Pload="--clients 2000 --upstream socks5 --latency 20"
+ * </pre>
+ */
+public final class LoadGenerator {
+
+    private static final int READ_BUFFER = 64 * 1024;
+    private static final long SAMPLE_MILLIS = 200;
+
+    private final Options options;
+    private final int proxyPort;
+    private final int originPort;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong bodyBytes = new AtomicLong();
+    private final AtomicLong connectErrors = new AtomicLong();
+    private final AtomicLong statusErrors = new AtomicLong();
+    private final AtomicLong closedErrors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    /** 之前完成的请求不计入结果 */
+    private volatile long measureFrom;
+    private volatile boolean stopping;
+
+    private LoadGenerator(Options options, int proxyPort, int originPort) {
+        this.options = options;
+        this.proxyPort = proxyPort;
+        this.originPort = originPort;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        System.out.println("options: " + options);
+
+        FakeOrigin origin = new FakeOrigin();
+        origin.setImpairment(new Impairment(options.originLatency, 0, 0));
+        FakeServer upstreamProxy;
+        UpstreamProxyClient client;
+        String user = options.auth ? "user" : "";
+        String pass = options.auth ? "secret" : "";
+        if ("socks5".equals(options.upstream)) {
+            upstreamProxy = new FakeSocks5Proxy();
+            client = new Socks5UpstreamClient(new DirectProxyConnector("127.0.0.1", upstreamProxy.port()),
+                    user, pass, options.optimistic);
+        } else if ("h2".equals(options.upstream)) {
+            upstreamProxy = new FakeH2Proxy();
+            ProxyConnector connector = new DirectProxyConnector("127.0.0.1", upstreamProxy.port());
+            client = new Http2UpstreamClient(connector, user, pass, new HttpUpstreamClient(connector, user, pass));
+        } else {
+            upstreamProxy = new FakeHttpProxy();
+            client = new HttpUpstreamClient(new DirectProxyConnector("127.0.0.1", upstreamProxy.port()), user, pass);
+        }
+        Impairment impairment = new Impairment(options.latency, options.bandwidth, options.failure);
+        upstreamProxy.setImpairment(impairment);
+        System.out.println("upstream " + options.upstream + ": " + impairment);
+
+        int port = Loopback.freePort();
+        ProxyEngine engine = "nio".equals(options.engine) ? new NioProxyServer(client, port, options.nioLoops)
+                : new LocalProxyServer(client, port);
+        engine.start();
+        try {
+            new LoadGenerator(options, port, origin.port()).run();
+        } finally {
+            engine.stop();
+            client.abort();
+            upstreamProxy.close();
+            origin.close();
+        }
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long baselineHeap = memory.getHeapMemoryUsage().getUsed();
+        int baselineThreads = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(options.warmup);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(options.duration);
+        ClientLoop[] loops = new ClientLoop[options.loops];
+        for (int i = 0; i < loops.length; i++) {
+            int clients = options.clients / loops.length + (i < options.clients % loops.length ? 1 : 0);
+            loops[i] = new ClientLoop(i, clients);
+            loops[i].thread.start();
+        }
+
+        long peakHeap = 0;
+        int peakProxyThreads = 0;
+        boolean reset = false;
+        while (System.nanoTime() < end) {
+            Thread.sleep(SAMPLE_MILLIS);
+            if (!reset && System.nanoTime() >= measureFrom) {
+                // 预热结束，峰值从这里开始算
+                threads.resetPeakThreadCount();
+                peakHeap = 0;
+                peakProxyThreads = 0;
+                reset = true;
+            }
+            peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+            peakProxyThreads = Math.max(peakProxyThreads, proxyThreads(threads));
+        }
+        long measuredNanos = System.nanoTime() - measureFrom;
+        int peakThreads = threads.getPeakThreadCount();
+        long done = completed.get();
+        long bytes = bodyBytes.get();
+        stopping = true;
+        for (ClientLoop loop : loops) {
+            loop.selector.wakeup();
+            loop.thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+
+        long[] ttfb = mergeSamples(loops);
+        double seconds = measuredNanos / 1e9;
+        System.out.println();
+        System.out.printf(Locale.ROOT, "engine=%s upstream=%s mode=%s clients=%d requests/conn=%d size=%dB%n",
+                options.engine, options.upstream, options.mode, options.clients, options.requests, options.size);
+        System.out.printf(Locale.ROOT, "requests: %d in %.1fs = %.0f req/s, body %.1f MB/s%n",
+                done, seconds, done / seconds, bytes / seconds / (1 << 20));
+        System.out.printf(Locale.ROOT, "errors: connect=%d status=%d closed=%d timeout=%d%n",
+                connectErrors.get(), statusErrors.get(), closedErrors.get(), timeouts.get());
+        System.out.printf(Locale.ROOT, "ttfb ms: p50=%.3f p99=%.3f p999=%.3f max=%.3f (n=%d)%n",
+                percentile(ttfb, 0.5), percentile(ttfb, 0.99), percentile(ttfb, 0.999),
+                ttfb.length == 0 ? 0 : ttfb[ttfb.length - 1] / 1e6, ttfb.length);
+        System.out.printf(Locale.ROOT, "threads: peak=%d (baseline %d), proxy peak=%d%n",
+                peakThreads, baselineThreads, peakProxyThreads);
+        System.out.printf(Locale.ROOT, "heap: peak=%.1f MB (baseline %.1f MB)%n",
+                peakHeap / 1048576.0, baselineHeap / 1048576.0);
+        ProxyMetrics metrics = ProxyMetrics.get();
+        System.out.printf(Locale.ROOT, "proxy: tunnels=%d active=%d errors=%d%n",
+                metrics.totalTunnels(), metrics.activeTunnels(), metrics.totalErrors());
+    }
+
+    /** 本地代理引擎自己的线程数，不含负载生成器与模拟服务器的线程。 */
+    private static int proxyThreads(ThreadMXBean threads) {
+        int n = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info == null) continue;
+            String name = info.getThreadName();
+            if (name.startsWith("LocalProxy") || name.startsWith("NioProxy") || name.startsWith("KeepAlive")) n++;
+        }
+        return n;
+    }
+
+    private static long[] mergeSamples(ClientLoop[] loops) {
+        int total = 0;
+        for (ClientLoop loop : loops) total += loop.samples;
+        long[] all = new long[total];
+        int off = 0;
+        for (ClientLoop loop : loops) {
+            System.arraycopy(loop.ttfb, 0, all, off, loop.samples);
+            off += loop.samples;
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /** 一个事件循环线程及其负责的客户端。 */
+    private final class ClientLoop implements Runnable {
+
+        final Thread thread;
+        final Selector selector;
+        final List<Session> sessions = new ArrayList<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER);
+        final HttpHeadParser parser = HttpHeadParser.forResponses();
+        final int clients;
+        long[] ttfb = new long[1 << 16];
+        int samples;
+        int started;
+
+        ClientLoop(int index, int clients) throws IOException {
+            this.clients = clients;
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "LoadGen-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < clients; i++) startSession();
+            try {
+                while (!stopping) {
+                    selector.select(100);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Session session = (Session) key.attachment();
+                        try {
+                            session.ready(key);
+                        } catch (IOException e) {
+                            session.fail(e);
+                        }
+                    }
+                    expire();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (Session s : new ArrayList<>(sessions)) s.close();
+                try { selector.close(); } catch (IOException ignored) { }
+            }
+        }
+
+        void startSession() {
+            if (stopping) return;
+            // mixed 模式按启动顺序交替，两种客户端各占一半
+            boolean tunnel = "connect".equals(options.mode) || ("mixed".equals(options.mode) && (started++ & 1) == 0);
+            Session session = new Session(this, tunnel);
+            try {
+                session.open();
+                session.index = sessions.size();
+                sessions.add(session);
+            } catch (IOException e) {
+                connectErrors.incrementAndGet();
+                session.close();
+            }
+        }
+
+        void sessionEnded(Session session) {
+            // 与末尾交换后删除，O(1)
+            Session last = sessions.remove(sessions.size() - 1);
+            if (last != session) {
+                sessions.set(session.index, last);
+                last.index = session.index;
+            }
+            startSession();
+        }
+
+        void expire() {
+            long now = System.nanoTime();
+            for (int i = sessions.size() - 1; i >= 0; i--) {
+                Session s = sessions.get(i);
+                if (now - s.lastProgress > TimeUnit.SECONDS.toNanos(options.timeout)) {
+                    timeouts.incrementAndGet();
+                    s.close();
+                    sessionEnded(s);
+                }
+            }
+        }
+
+        void record(long requestStart, long firstByte, long bytes) {
+            if (requestStart < measureFrom || stopping) return;
+            completed.incrementAndGet();
+            bodyBytes.addAndGet(bytes);
+            if (samples == ttfb.length) ttfb = Arrays.copyOf(ttfb, samples * 2);
+            ttfb[samples++] = firstByte - requestStart;
+        }
+    }
+
+    /** 一个客户端连接的状态机。 */
+    private final class Session {
+
+        private static final int STATE_CONNECTING = 0;
+        private static final int STATE_TUNNEL = 1;
+        private static final int STATE_RESPONSE = 2;
+
+        final ClientLoop loop;
+        final boolean tunnel;
+        /** 在 loop.sessions 中的下标 */
+        int index;
+        SocketChannel channel;
+        SelectionKey key;
+        int state;
+        ByteBuffer pending;
+        /** 响应头尚未完整时累积的字节 */
+        byte[] head = new byte[1024];
+        int headLength;
+        long remaining;
+        long bodyRead;
+        int requestsLeft;
+        long requestStart;
+        long firstByte;
+        long lastProgress;
+
+        Session(ClientLoop loop, boolean tunnel) {
+            this.loop = loop;
+            this.tunnel = tunnel;
+            this.requestsLeft = options.requests;
+        }
+
+        void open() throws IOException {
+            requestStart = System.nanoTime();
+            lastProgress = requestStart;
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            state = STATE_CONNECTING;
+            if (channel.connect(new InetSocketAddress("127.0.0.1", proxyPort))) {
+                key = channel.register(loop.selector, 0, this);
+                connected();
+            } else {
+                key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        void ready(SelectionKey key) throws IOException {
+            lastProgress = System.nanoTime();
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                connected();
+                return;
+            }
+            if (key.isWritable()) flush();
+            if (key.isValid() && key.isReadable()) read();
+        }
+
+        private void connected() throws IOException {
+            if (tunnel) {
+                state = STATE_TUNNEL;
+                send("CONNECT 127.0.0.1:" + originPort + " HTTP/1.1\r\nHost: 127.0.0.1:" + originPort + "\r\n\r\n");
+            } else {
+                sendRequest();
+            }
+        }
+
+        private void sendRequest() throws IOException {
+            state = STATE_RESPONSE;
+            headLength = 0;
+            firstByte = 0;
+            bodyRead = 0;
+            remaining = -1;
+            requestsLeft--;
+            String target = tunnel ? "/" + options.size : "http://127.0.0.1:" + originPort + "/" + options.size;
+            send("GET " + target + " HTTP/1.1\r\nHost: 127.0.0.1:" + originPort + "\r\n"
+                    + (requestsLeft == 0 ? "Connection: close\r\n" : "") + "\r\n");
+        }
+
+        private void send(String request) throws IOException {
+            pending = ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII));
+            flush();
+        }
+
+        private void flush() throws IOException {
+            channel.write(pending);
+            key.interestOps(pending.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void read() throws IOException {
+            ByteBuffer buf = loop.readBuffer;
+            buf.clear();
+            int n = channel.read(buf);
+            if (n < 0) {
+                closedErrors.incrementAndGet();
+                finish();
+                return;
+            }
+            if (n == 0) return;
+            buf.flip();
+            if (state == STATE_TUNNEL) {
+                if (!appendHead(buf)) return;
+                HttpHeadParser parser = loop.parser;
+                if (parser.statusCode() != 200) {
+                    statusErrors.incrementAndGet();
+                    finish();
+                    return;
+                }
+                // CONNECT 响应之后不应有数据：源站在收到请求前不会发送
+                sendRequest();
+                return;
+            }
+            if (firstByte == 0) firstByte = System.nanoTime();
+            if (remaining < 0) {
+                if (!appendHead(buf)) return;
+                HttpHeadParser parser = loop.parser;
+                if (parser.statusCode() != 200) {
+                    statusErrors.incrementAndGet();
+                    finish();
+                    return;
+                }
+                remaining = parser.contentLength();
+                if (remaining < 0) throw new ProtocolException("response without Content-Length");
+            }
+            int body = (int) Math.min(buf.remaining(), remaining);
+            buf.position(buf.position() + body);
+            remaining -= body;
+            bodyRead += body;
+            if (remaining > 0) return;
+            loop.record(requestStart, firstByte, bodyRead);
+            if (requestsLeft > 0 && !stopping) {
+                requestStart = System.nanoTime();
+                sendRequest();
+            } else {
+                finish();
+            }
+        }
+
+        /** 累积响应头，完整时返回 true，buf 的位置停在响应头之后。 */
+        private boolean appendHead(ByteBuffer buf) throws IOException {
+            int n = buf.remaining();
+            if (headLength + n > head.length) head = Arrays.copyOf(head, Math.max(head.length * 2, headLength + n));
+            int before = headLength;
+            buf.get(head, headLength, n);
+            headLength += n;
+            HttpHeadParser parser = loop.parser;
+            parser.reset();
+            if (!parser.parse(head, headLength)) return false;
+            int used = parser.headLength() - before;
+            buf.position(buf.position() - n + used);
+            headLength = 0;
+            return true;
+        }
+
+        void fail(IOException e) {
+            if (state == STATE_CONNECTING) {
+                connectErrors.incrementAndGet();
+            } else {
+                closedErrors.incrementAndGet();
+            }
+            finish();
+        }
+
+        private void finish() {
+            close();
+            loop.sessionEnded(this);
+        }
+
+        void close() {
+            if (key != null) key.cancel();
+            if (channel != null) {
+                try {
+                    // RST 关闭，不在回环上堆积 TIME_WAIT
+                    channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+                } catch (IOException ignored) {
+                }
+                try { channel.close(); } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /** 命令行参数，--name value 形式。 */
+    private static final class Options {
+        String engine = "blocking";
+        String upstream = "http";
+        String mode = "mixed";
+        int clients = 1000;
+        int requests = 1;
+        int size = 1024;
+        int duration = 30;
+        int warmup = 5;
+        int timeout = 30;
+        int loops = 4;
+        int nioLoops = 2;
+        int latency;
+        int originLatency;
+        long bandwidth;
+        double failure;
+        boolean auth;
+        boolean optimistic;
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for (int i = 0; i < args.length; i++) {
+                String name = args[i];
+                if (name.isEmpty()) continue;
+                if (name.equals("--auth")) {
+                    o.auth = true;
+                    continue;
+                }
+                if (name.equals("--optimistic")) {
+                    o.optimistic = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) throw new IllegalArgumentException("missing value for " + name);
+                String v = args[++i];
+                switch (name) {
+                    case "--engine": o.engine = v; break;
+                    case "--upstream": o.upstream = v; break;
+                    case "--mode": o.mode = v; break;
+                    case "--clients": o.clients = Integer.parseInt(v); break;
+                    case "--requests": o.requests = Math.max(1, Integer.parseInt(v)); break;
+                    case "--size": o.size = Integer.parseInt(v); break;
+                    case "--duration": o.duration = Integer.parseInt(v); break;
+                    case "--warmup": o.warmup = Integer.parseInt(v); break;
+                    case "--timeout": o.timeout = Integer.parseInt(v); break;
+                    case "--loops": o.loops = Math.max(1, Integer.parseInt(v)); break;
+                    case "--nio-loops": o.nioLoops = Math.max(1, Integer.parseInt(v)); break;
+                    case "--latency": o.latency = Integer.parseInt(v); break;
+                    case "--origin-latency": o.originLatency = Integer.parseInt(v); break;
+                    case "--bandwidth": o.bandwidth = Long.parseLong(v); break;
+                    case "--failure": o.failure = Double.parseDouble(v); break;
+                    default: throw new IllegalArgumentException("unknown option " + name);
+                }
+            }
+            return o;
+        }
+
+        @Override
+        public String toString() {
+            return "engine=" + engine + " upstream=" + upstream + (auth ? " auth" : "") + (optimistic ? " optimistic" : "")
+                    + " mode=" + mode + " clients=" + clients + " requests=" + requests + " size=" + size
+                    + " duration=" + duration + "s warmup=" + warmup + "s latency=" + latency + "ms originLatency="
+                    + originLatency + "ms bandwidth=" + bandwidth + " failure=" + failure;
+        }
+    }
+}
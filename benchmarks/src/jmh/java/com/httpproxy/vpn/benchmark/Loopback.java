@@ -0,0 +1,45 @@
+package com.httpproxy.vpn.benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/** 经本地代理建立隧道的客户端操作。 */
+final class Loopback {
+
+    private Loopback() { }
+
+    /** 引擎需要固定端口启动，取一个当前空闲的端口。 */
+    static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return s.getLocalPort();
+        }
+    }
+
+    /** 向本地代理发 CONNECT 并读完响应头，返回可直接收发隧道数据的连接。 */
+    static Socket connect(int proxyPort, int targetPort) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+        try {
+            socket.setTcpNoDelay(true);
+            socket.getOutputStream().write(("CONNECT 127.0.0.1:" + targetPort + " HTTP/1.1\r\nHost: 127.0.0.1:"
+                    + targetPort + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            String head = FakeHttpProxy.readHead(socket.getInputStream());
+            if (head == null || !head.startsWith("HTTP/1.1 200")) throw new IOException("CONNECT failed: " + head);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /** 以 RST 关闭，回环上大量短连接不会堆积 TIME_WAIT。 */
+    static void abort(Socket socket) {
+        try {
+            socket.setSoLinger(true, 0);
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.httpproxy.vpn.benchmark;
+
+import com.httpproxy.vpn.proxy.DirectUpstreamClient;
+import com.httpproxy.vpn.vpn.LocalProxyServer;
+import com.httpproxy.vpn.vpn.NioProxyServer;
+import com.httpproxy.vpn.vpn.ProxyEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 已建立隧道上的转发吞吐：客户端经本地代理直连回环上的回显源站，每次操作发出 size 字节并读回全部回显，
+ * 即上下行各转发 size 字节。吞吐 = ops/s × size × 2。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RelayBenchmark {
+
+    @Param({"blocking", "nio"})
+    public String engine;
+
+    @Param({"1024", "65536"})
+    public int size;
+
+    private EchoOrigin origin;
+    private ProxyEngine proxy;
+    private Socket socket;
+    private OutputStream out;
+    private DataInputStream in;
+    private byte[] sendBuf;
+    private byte[] recvBuf;
+
+    @Setup
+    public void setup() throws IOException {
+        origin = new EchoOrigin();
+        int port = Loopback.freePort();
+        proxy = "nio".equals(engine) ? new NioProxyServer(new DirectUpstreamClient(), port, 2)
+                : new LocalProxyServer(new DirectUpstreamClient(), port);
+        proxy.start();
+        socket = Loopback.connect(port, origin.port());
+        out = socket.getOutputStream();
+        in = new DataInputStream(socket.getInputStream());
+        sendBuf = new byte[size];
+        recvBuf = new byte[size];
+    }
+
+    @Benchmark
+    public byte[] roundTrip() throws IOException {
+        out.write(sendBuf);
+        in.readFully(recvBuf);
+        return recvBuf;
+    }
+
+    @TearDown
+    public void tearDown() {
+        Loopback.abort(socket);
+        proxy.stop();
+        origin.close();
+    }
+}
@@ -0,0 +1,92 @@
+package com.httpproxy.vpn.benchmark;
+
+import com.httpproxy.vpn.rule.RuleAction;
+import com.httpproxy.vpn.rule.RuleSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 规则匹配：每条新连接匹配一次，耗时不应随规则数增长。规则集模拟常见的广告/分流列表，
+ * 以域名后缀为主，另有少量完整域名、关键字与 IP 网段。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RuleSetBenchmark {
+
+    private static final int HOSTS = 4096;
+
+    @Param({"10000", "100000"})
+    public int rules;
+
+    private List<String> lines;
+    private RuleSet ruleSet;
+    private String[] hosts;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        lines = new ArrayList<>(rules + 1);
+        for (int i = 0; i < rules; i++) {
+            int kind = i % 20;
+            if (kind < 16) {
+                lines.add("DOMAIN-SUFFIX,d" + i + ".example" + (i % 97) + ".com,REJECT");
+            } else if (kind < 18) {
+                lines.add("DOMAIN,www.s" + i + ".example.net,DIRECT");
+            } else if (kind < 19 && i < 2000) {
+                lines.add("DOMAIN-KEYWORD,kw" + i + "ads,REJECT");
+            } else {
+                lines.add("IP-CIDR," + (10 + random.nextInt(200)) + "." + random.nextInt(256) + "."
+                        + random.nextInt(256) + ".0/24,DIRECT");
+            }
+        }
+        lines.add("MATCH,PROXY");
+        ruleSet = RuleSet.compile(lines);
+        // 一半命中（子域名、完整域名、IP），一半走到 MATCH
+        hosts = new String[HOSTS];
+        for (int i = 0; i < HOSTS; i++) {
+            int r = random.nextInt(rules);
+            switch (i % 4) {
+                case 0:
+                    hosts[i] = "cdn.img.d" + (r - r % 20) + ".example" + ((r - r % 20) % 97) + ".com";
+                    break;
+                case 1:
+                    hosts[i] = "www.s" + (r - r % 20 + 16) + ".example.net";
+                    break;
+                case 2:
+                    hosts[i] = "api" + r + ".unlisted-host.org";
+                    break;
+                default:
+                    hosts[i] = random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) + "."
+                            + random.nextInt(256);
+            }
+        }
+    }
+
+    @Benchmark
+    public RuleAction match() {
+        int i = next;
+        next = (i + 1) & (HOSTS - 1);
+        return ruleSet.match(hosts[i]);
+    }
+
+    /** 编译整个规则列表（配置重载时在后台执行一次）。 */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public RuleSet compile() {
+        return RuleSet.compile(lines);
+    }
+}
@@ -0,0 +1,86 @@
+package com.httpproxy.vpn.benchmark;
+
+import com.httpproxy.vpn.proxy.DirectProxyConnector;
+import com.httpproxy.vpn.proxy.DirectUpstreamClient;
+import com.httpproxy.vpn.proxy.Http2UpstreamClient;
+import com.httpproxy.vpn.proxy.HttpUpstreamClient;
+import com.httpproxy.vpn.proxy.ProxyConnector;
+import com.httpproxy.vpn.proxy.UpstreamProxyClient;
+import com.httpproxy.vpn.vpn.LocalProxyServer;
+import com.httpproxy.vpn.vpn.NioProxyServer;
+import com.httpproxy.vpn.vpn.ProxyEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一条隧道的完整生命周期：连接本地代理、CONNECT、经上游建立隧道、收发一个字节、关闭。
+ * 配合 gc 分析器（build.gradle 中默认开启），gc.alloc.rate.norm 即每条隧道在全部线程上的分配字节数。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TunnelBenchmark {
+
+    @Param({"blocking", "nio"})
+    public String engine;
+
+    @Param({"direct", "http", "h2"})
+    public String upstream;
+
+    private EchoOrigin origin;
+    private FakeServer upstreamProxy;
+    private UpstreamProxyClient client;
+    private ProxyEngine proxy;
+    private int port;
+
+    @Setup
+    public void setup() throws IOException {
+        origin = new EchoOrigin();
+        if ("http".equals(upstream)) {
+            upstreamProxy = new FakeHttpProxy();
+            client = new HttpUpstreamClient(new DirectProxyConnector("127.0.0.1", upstreamProxy.port()), "", "");
+        } else if ("h2".equals(upstream)) {
+            upstreamProxy = new FakeH2Proxy();
+            ProxyConnector connector = new DirectProxyConnector("127.0.0.1", upstreamProxy.port());
+            client = new Http2UpstreamClient(connector, "", "", new HttpUpstreamClient(connector, "", ""));
+        } else {
+            client = new DirectUpstreamClient();
+        }
+        port = Loopback.freePort();
+        proxy = "nio".equals(engine) ? new NioProxyServer(client, port, 2) : new LocalProxyServer(client, port);
+        proxy.start();
+    }
+
+    @Benchmark
+    public int tunnel() throws IOException {
+        Socket socket = Loopback.connect(port, origin.port());
+        try {
+            socket.getOutputStream().write(1);
+            InputStream in = socket.getInputStream();
+            return in.read();
+        } finally {
+            Loopback.abort(socket);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        proxy.stop();
+        client.abort();
+        if (upstreamProxy != null) upstreamProxy.close();
+        origin.close();
+    }
+}
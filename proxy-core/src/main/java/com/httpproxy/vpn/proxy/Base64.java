@@ -0,0 +1,35 @@
+package com.httpproxy.vpn.proxy;
+
+/**
+ * 标准 Base64 编码（RFC 4648，带填充、不换行），用于 Proxy-Authorization。
+ * android.util.Base64 只在 Android 上可用，java.util.Base64 需要 API 26。
+ */
+final class Base64 {
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private Base64() { }
+
+    static String encode(byte[] data) {
+        char[] out = new char[(data.length + 2) / 3 * 4];
+        int o = 0;
+        int i = 0;
+        for (; i + 2 < data.length; i += 3) {
+            int v = (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff);
+            out[o++] = ALPHABET[v >>> 18];
+            out[o++] = ALPHABET[(v >>> 12) & 0x3f];
+            out[o++] = ALPHABET[(v >>> 6) & 0x3f];
+            out[o++] = ALPHABET[v & 0x3f];
+        }
+        int rest = data.length - i;
+        if (rest > 0) {
+            int v = (data[i] & 0xff) << 16 | (rest == 2 ? (data[i + 1] & 0xff) << 8 : 0);
+            out[o++] = ALPHABET[v >>> 18];
+            out[o++] = ALPHABET[(v >>> 12) & 0x3f];
+            out[o++] = rest == 2 ? ALPHABET[(v >>> 6) & 0x3f] : '=';
+            out[o] = '=';
+        }
+        return new String(out);
+    }
+}
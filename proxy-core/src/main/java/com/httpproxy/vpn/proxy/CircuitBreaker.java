@@ -0,0 +1,198 @@
+package com.httpproxy.vpn.proxy;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * 上游代理熔断器，三种状态：
+ * <ul>
+ * <li>关闭：正常放行。最近 {@link #WINDOW_MILLIS} 内至少 {@link #MIN_CALLS} 次尝试且失败率达到
+ * {@link #FAILURE_PERCENT}% 时打开；另外，有 {@link #MIN_CALLS} 个尝试超过 {@link #SLOW_CALL_MILLIS}
+ * 仍未完成、且这段时间内没有任何成功时也打开——代理不可达时连接要等到超时才失败，不必等超时。</li>
+ * <li>打开：所有尝试立即失败，持续 {@link #BASE_OPEN_MILLIS}，连续打开时翻倍。</li>
+ * <li>半开：打开到期后放行至多 {@link #HALF_OPEN_PROBES} 个尝试，任一成功即关闭，任一失败重新打开。</li>
+ * </ul>
+ * 每次尝试先 {@link #tryAcquire()}，结束后以 {@link #onSuccess} 或 {@link #onFailure} 报告结果；
+ * 超过 {@link #STALE_MILLIS} 未报告的尝试视为已放弃，不再计入。
+ */
+public final class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /** 状态变化回调，在报告结果的线程中持锁调用，不能阻塞。 */
+    public interface Listener {
+        void onStateChanged(State state);
+    }
+
+    static final long WINDOW_MILLIS = 10000;
+    private static final int BUCKETS = 10;
+    private static final long BUCKET_MILLIS = WINDOW_MILLIS / BUCKETS;
+    static final int MIN_CALLS = 5;
+    static final int FAILURE_PERCENT = 50;
+    static final long SLOW_CALL_MILLIS = 5000;
+    static final long BASE_OPEN_MILLIS = 5000;
+    /** 打开时长最多翻倍到 5s << 4 = 80s */
+    private static final int MAX_OPEN_SHIFT = 4;
+    static final int HALF_OPEN_PROBES = 3;
+    static final long STALE_MILLIS = 30000;
+
+    /** 一次尝试，按开始时间记录在未完成集合中。 */
+    public static final class Attempt {
+        final long start;
+
+        Attempt(long start) {
+            this.start = start;
+        }
+    }
+
+    private final long[] bucketIds = new long[BUCKETS];
+    private final int[] calls = new int[BUCKETS];
+    private final int[] failures = new int[BUCKETS];
+    /** 未完成的尝试，按开始时间排列 */
+    private final LinkedHashSet<Attempt> pending = new LinkedHashSet<>();
+    private volatile State state = State.CLOSED;
+    private volatile long openUntil;
+    private int opens;
+    private int probes;
+    private long lastSuccess;
+    /** 最近一次关闭的时刻，之前开始的尝试不参与卡住判断 */
+    private long closedAt;
+    /** 最近一次进入半开的时刻，之后开始的尝试是探测 */
+    private long halfOpenedAt;
+    private Listener listener;
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    /** 当前是否会放行新尝试（半开且探测名额已满时仍返回 true）。 */
+    public boolean isAvailable() {
+        return state != State.OPEN || System.currentTimeMillis() >= openUntil;
+    }
+
+    /** 申请一次尝试，熔断期间返回 null。 */
+    public synchronized Attempt tryAcquire() {
+        long now = System.currentTimeMillis();
+        pruneStale(now);
+        if (state == State.OPEN) {
+            if (now < openUntil) return null;
+            probes = 0;
+            halfOpenedAt = now;
+            setState(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probes >= HALF_OPEN_PROBES) return null;
+            probes++;
+        } else if (slowCallsStuck(now)) {
+            open(now);
+            return null;
+        }
+        Attempt attempt = new Attempt(now);
+        pending.add(attempt);
+        return attempt;
+    }
+
+    public synchronized void onSuccess(Attempt attempt) {
+        if (!pending.remove(attempt)) return;
+        long now = System.currentTimeMillis();
+        lastSuccess = now;
+        if (state != State.CLOSED) {
+            close();
+            return;
+        }
+        record(now, false);
+    }
+
+    public synchronized void onFailure(Attempt attempt) {
+        if (!pending.remove(attempt)) return;
+        long now = System.currentTimeMillis();
+        if (state == State.HALF_OPEN) {
+            open(now);
+            return;
+        }
+        if (state != State.CLOSED) return;
+        record(now, true);
+        int total = 0;
+        int failed = 0;
+        long current = now / BUCKET_MILLIS;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (current - bucketIds[i] >= BUCKETS) continue;
+            total += calls[i];
+            failed += failures[i];
+        }
+        if (total >= MIN_CALLS && failed * 100 >= total * FAILURE_PERCENT) open(now);
+    }
+
+    /** 放弃一次尝试（如参数无法编码），不计入结果。 */
+    public synchronized void cancel(Attempt attempt) {
+        if (pending.remove(attempt) && state == State.HALF_OPEN && attempt.start >= halfOpenedAt) probes--;
+    }
+
+    private void record(long now, boolean failed) {
+        long id = now / BUCKET_MILLIS;
+        int i = (int) (id % BUCKETS);
+        if (bucketIds[i] != id) {
+            bucketIds[i] = id;
+            calls[i] = 0;
+            failures[i] = 0;
+        }
+        calls[i]++;
+        if (failed) failures[i]++;
+    }
+
+    /** 是否有足够多的尝试已卡住超过 {@link #SLOW_CALL_MILLIS}，且期间没有成功。 */
+    private boolean slowCallsStuck(long now) {
+        long threshold = now - SLOW_CALL_MILLIS;
+        if (lastSuccess > threshold) return false;
+        int stuck = 0;
+        for (Attempt attempt : pending) {
+            if (attempt.start > threshold) break;
+            if (attempt.start >= closedAt && ++stuck >= MIN_CALLS) return true;
+        }
+        return false;
+    }
+
+    /** 丢弃未报告结果的过期尝试；半开状态下过期的探测按失败处理。 */
+    private void pruneStale(long now) {
+        boolean probeLost = false;
+        for (Iterator<Attempt> it = pending.iterator(); it.hasNext(); ) {
+            long start = it.next().start;
+            if (now - start < STALE_MILLIS) break;
+            it.remove();
+            if (start >= halfOpenedAt) probeLost = true;
+        }
+        if (probeLost && state == State.HALF_OPEN) open(now);
+    }
+
+    private void open(long now) {
+        openUntil = now + (BASE_OPEN_MILLIS << Math.min(opens, MAX_OPEN_SHIFT));
+        opens++;
+        setState(State.OPEN);
+    }
+
+    private void close() {
+        closedAt = System.currentTimeMillis();
+        opens = 0;
+        probes = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            calls[i] = 0;
+            failures[i] = 0;
+        }
+        setState(State.CLOSED);
+    }
+
+    private void setState(State next) {
+        if (state == next) return;
+        state = next;
+        if (listener != null) listener.onStateChanged(next);
+    }
+
+    @Override
+    public String toString() {
+        return "circuit " + state;
+    }
+}
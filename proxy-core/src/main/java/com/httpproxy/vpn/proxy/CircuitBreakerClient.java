@@ -0,0 +1,190 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * 带熔断的上游客户端：每次建立隧道都向 {@link CircuitBreaker} 申请并报告结果，熔断期间立即抛出
+ * {@link CircuitOpenException}，调用方随即回复 502，不再有线程卡在到不可达代理的连接超时上。
+ * 目标被代理拒绝（{@link TargetRefusedException}）说明代理可用，按成功计。
+ * <p>
+ * 用 {@link #wrap} 创建：被包装的客户端支持非阻塞握手时，返回的客户端同样支持，握手结果由状态机的回调报告。
+ */
+public class CircuitBreakerClient implements UpstreamProxyClient {
+
+    final UpstreamProxyClient delegate;
+    final CircuitBreaker breaker;
+
+    CircuitBreakerClient(UpstreamProxyClient delegate, CircuitBreaker breaker) {
+        this.delegate = delegate;
+        this.breaker = breaker;
+    }
+
+    public static CircuitBreakerClient wrap(UpstreamProxyClient delegate, CircuitBreaker breaker) {
+        return delegate instanceof NonBlockingUpstream
+                ? new NonBlocking(delegate, breaker) : new CircuitBreakerClient(delegate, breaker);
+    }
+
+    public CircuitBreaker breaker() {
+        return breaker;
+    }
+
+    @Override
+    public Socket connect(String targetHost, int targetPort) throws IOException {
+        return connect(targetHost, targetPort, null, 0, 0);
+    }
+
+    @Override
+    public Socket connect(String targetHost, int targetPort, byte[] early, int offset, int length) throws IOException {
+        CircuitBreaker.Attempt attempt = acquire();
+        Socket socket;
+        try {
+            socket = delegate.connect(targetHost, targetPort, early, offset, length);
+        } catch (TargetRefusedException e) {
+            breaker.onSuccess(attempt);
+            throw e;
+        } catch (IOException e) {
+            breaker.onFailure(attempt);
+            throw e;
+        }
+        breaker.onSuccess(attempt);
+        return socket;
+    }
+
+    @Override
+    public boolean canForward() {
+        return delegate.canForward();
+    }
+
+    /** 到代理的 TCP 连接同样计入熔断；代理对转发请求的错误响应原样交给客户端，不计入。 */
+    @Override
+    public Socket connectForward() throws IOException {
+        CircuitBreaker.Attempt attempt = acquire();
+        Socket socket;
+        try {
+            socket = delegate.connectForward();
+        } catch (IOException e) {
+            breaker.onFailure(attempt);
+            throw e;
+        }
+        breaker.onSuccess(attempt);
+        return socket;
+    }
+
+    @Override
+    public byte[] forwardHeaders() {
+        return delegate.forwardHeaders();
+    }
+
+    CircuitBreaker.Attempt acquire() throws CircuitOpenException {
+        CircuitBreaker.Attempt attempt = breaker.tryAcquire();
+        if (attempt == null) {
+            ProxyMetrics.get().error(ProxyMetrics.Error.CIRCUIT_OPEN);
+            throw new CircuitOpenException();
+        }
+        return attempt;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return breaker.isAvailable() && delegate.isAvailable();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    @Override
+    public void abort() {
+        delegate.abort();
+    }
+
+    private static final class NonBlocking extends CircuitBreakerClient implements NonBlockingUpstream {
+
+        NonBlocking(UpstreamProxyClient delegate, CircuitBreaker breaker) {
+            super(delegate, breaker);
+        }
+
+        @Override
+        public boolean isNonBlocking() {
+            return ((NonBlockingUpstream) delegate).isNonBlocking();
+        }
+
+        @Override
+        public InetSocketAddress proxyAddress() {
+            return ((NonBlockingUpstream) delegate).proxyAddress();
+        }
+
+        @Override
+        public Socket pollIdleTransport() {
+            return ((NonBlockingUpstream) delegate).pollIdleTransport();
+        }
+
+        @Override
+        public UpstreamHandshake newHandshake(String targetHost, int targetPort) throws IOException {
+            CircuitBreaker.Attempt attempt = acquire();
+            try {
+                return new Tracked(((NonBlockingUpstream) delegate).newHandshake(targetHost, targetPort), breaker, attempt);
+            } catch (IOException e) {
+                breaker.cancel(attempt);
+                throw e;
+            }
+        }
+    }
+
+    /** 把握手状态机的结果报告给熔断器；重复报告会被忽略。 */
+    private static final class Tracked implements UpstreamHandshake {
+
+        private final UpstreamHandshake handshake;
+        private final CircuitBreaker breaker;
+        private final CircuitBreaker.Attempt attempt;
+
+        Tracked(UpstreamHandshake handshake, CircuitBreaker breaker, CircuitBreaker.Attempt attempt) {
+            this.handshake = handshake;
+            this.breaker = breaker;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public ByteBuffer pendingOutput() {
+            return handshake.pendingOutput();
+        }
+
+        @Override
+        public boolean onInput(ByteBuffer in) throws IOException {
+            boolean done;
+            try {
+                done = handshake.onInput(in);
+            } catch (TargetRefusedException e) {
+                breaker.onSuccess(attempt);
+                throw e;
+            } catch (IOException e) {
+                breaker.onFailure(attempt);
+                throw e;
+            }
+            if (done) breaker.onSuccess(attempt);
+            return done;
+        }
+
+        @Override
+        public void onFailed() {
+            handshake.onFailed();
+            breaker.onFailure(attempt);
+        }
+
+        @Override
+        public void onConnectFailed() {
+            handshake.onConnectFailed();
+            breaker.onFailure(attempt);
+        }
+
+        @Override
+        public void onCancelled() {
+            handshake.onCancelled();
+            breaker.cancel(attempt);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+
+/** 上游代理熔断期间直接拒绝的连接。 */
+public class CircuitOpenException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException() {
+        super("upstream circuit open");
+    }
+}
@@ -0,0 +1,54 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 每次都新建到上游代理的 TCP 连接。Socket 由 SocketChannel 创建，非阻塞引擎可直接接管。
+ * 代理主机名解析出多个地址时按 {@link HappyEyeballs} 并行尝试，不会卡在不可达的地址上。
+ */
+public class DirectProxyConnector implements ProxyConnector {
+
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int SO_TIMEOUT = 0;
+
+    private final HappyEyeballs eyeballs;
+
+    public DirectProxyConnector(String proxyHost, int proxyPort) {
+        this(proxyHost, proxyPort, DnsCache.get());
+    }
+
+    public DirectProxyConnector(String proxyHost, int proxyPort, DnsCache dns) {
+        this.eyeballs = new HappyEyeballs(proxyHost, proxyPort, dns);
+    }
+
+    @Override
+    public Socket connect() throws IOException {
+        SocketChannel channel = eyeballs.connect(CONNECT_TIMEOUT);
+        Socket socket = channel.socket();
+        try {
+            socket.setSoTimeout(SO_TIMEOUT);
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    @Override
+    public Socket pollIdle() {
+        return null;
+    }
+
+    /** 最近连接成功的地址，没有时为解析结果中的第一个。 */
+    @Override
+    public InetSocketAddress address() {
+        return eyeballs.preferred();
+    }
+
+    @Override
+    public void close() { }
+}
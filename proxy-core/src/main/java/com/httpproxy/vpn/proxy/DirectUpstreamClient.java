@@ -0,0 +1,46 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 不经代理直接连接目标，供 DIRECT 规则使用。目标解析出多个地址时同样按 {@link HappyEyeballs} 并行尝试，
+ * 解析结果进入 {@link DnsCache}。返回的 Socket 由 SocketChannel 创建，非阻塞引擎可直接接管。
+ */
+public class DirectUpstreamClient implements UpstreamProxyClient {
+
+    private static final int CONNECT_TIMEOUT = 15000;
+
+    private final DnsCache dns;
+
+    public DirectUpstreamClient() {
+        this(DnsCache.get());
+    }
+
+    public DirectUpstreamClient(DnsCache dns) {
+        this.dns = dns;
+    }
+
+    @Override
+    public Socket connect(String targetHost, int targetPort) throws IOException {
+        ProxyMetrics metrics = ProxyMetrics.get();
+        long start = System.nanoTime();
+        SocketChannel channel;
+        try {
+            channel = new HappyEyeballs(targetHost, targetPort, dns).connect(CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            metrics.error(ProxyMetrics.Error.UPSTREAM_CONNECT);
+            throw e;
+        }
+        metrics.recordTcpConnect(System.nanoTime() - start);
+        Socket socket = channel.socket();
+        try {
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return socket;
+    }
+}
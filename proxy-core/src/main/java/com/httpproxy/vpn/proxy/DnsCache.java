@@ -0,0 +1,213 @@
+package com.httpproxy.vpn.proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 上游代理主机名的解析缓存。
+ * <p>
+ * 成功的解析结果保留 positiveTtl，失败（UnknownHostException）保留 negativeTtl，期间直接返回缓存或抛出同样的异常。
+ * 成功结果使用超过 {@link #REFRESH_AHEAD} 比例的 TTL 后，下一次访问会在后台线程提前刷新，调用方不必等待解析；
+ * 刷新失败时保留原结果直到过期。同一主机同时只有一个解析在进行，并发的请求等待同一个结果。
+ * 最多缓存 {@link #MAX_ENTRIES} 个主机名（直连规则会解析任意目标），超出时先清理过期的结果，仍超出则整体清空。
+ */
+public final class DnsCache {
+
+    public static final long DEFAULT_POSITIVE_TTL_MS = 60000;
+    public static final long DEFAULT_NEGATIVE_TTL_MS = 5000;
+    /** 成功结果的提前刷新点（占 TTL 的比例） */
+    static final double REFRESH_AHEAD = 0.75;
+    static final int MAX_ENTRIES = 1024;
+
+    private static final DnsCache GLOBAL = new DnsCache(DEFAULT_POSITIVE_TTL_MS, DEFAULT_NEGATIVE_TTL_MS);
+
+    /** 进程内共享的解析缓存，{@link DirectProxyConnector} 默认使用它。 */
+    public static DnsCache get() {
+        return GLOBAL;
+    }
+
+    private volatile long positiveTtlMillis;
+    private volatile long negativeTtlMillis;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, FutureTask<Entry>> inflight = new ConcurrentHashMap<>();
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "DnsCache-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    public DnsCache(long positiveTtlMillis, long negativeTtlMillis) {
+        configure(positiveTtlMillis, negativeTtlMillis);
+    }
+
+    /** 修改 TTL，只影响之后写入的结果。 */
+    public void configure(long positiveTtlMillis, long negativeTtlMillis) {
+        this.positiveTtlMillis = Math.max(0, positiveTtlMillis);
+        this.negativeTtlMillis = Math.max(0, negativeTtlMillis);
+    }
+
+    /**
+     * 返回 host 的全部地址（顺序与系统解析器一致）。返回的数组为缓存共享，调用方不得修改。
+     *
+     * @throws UnknownHostException 解析失败，或负缓存尚未过期
+     */
+    public InetAddress[] lookup(String host) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(host);
+        if (entry != null && now < entry.expiresAt) {
+            hits.incrementAndGet();
+            if (entry.addresses != null && now >= entry.refreshAt) refreshAsync(host);
+            return entry.get(host);
+        }
+        misses.incrementAndGet();
+        return resolveShared(host).get(host);
+    }
+
+    /** 丢弃 host 的缓存（如连接其全部地址都失败），下次访问重新解析。 */
+    public void invalidate(String host) {
+        entries.remove(host);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    /** 实际调用系统解析器的次数（含后台刷新）。 */
+    public long lookups() {
+        return lookups.get();
+    }
+
+    public long failures() {
+        return failures.get();
+    }
+
+    public long refreshes() {
+        return refreshes.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "dns size=" + size() + " hits=" + hits() + " misses=" + misses() + " lookups=" + lookups()
+                + " failures=" + failures() + " refreshes=" + refreshes();
+    }
+
+    /** 在调用线程上解析；同一主机已有解析在进行时等待其结果。 */
+    private Entry resolveShared(String host) throws UnknownHostException {
+        FutureTask<Entry> task = new Lookup(host, false);
+        FutureTask<Entry> existing = inflight.putIfAbsent(host, task);
+        if (existing == null) {
+            task.run();
+        } else {
+            task = existing;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(host + ": interrupted");
+        } catch (ExecutionException e) {
+            throw new UnknownHostException(host + ": " + e.getCause());
+        }
+    }
+
+    private void refreshAsync(String host) {
+        FutureTask<Entry> task = new Lookup(host, true);
+        if (inflight.putIfAbsent(host, task) != null) return;
+        refreshes.incrementAndGet();
+        refresher.execute(task);
+    }
+
+    private Entry resolve(String host, boolean refresh) {
+        lookups.incrementAndGet();
+        long now = System.currentTimeMillis();
+        Entry entry;
+        try {
+            InetAddress[] addresses = InetAddress.getAllByName(host);
+            long ttl = positiveTtlMillis;
+            entry = new Entry(addresses, null, now + (long) (ttl * REFRESH_AHEAD), now + ttl);
+        } catch (UnknownHostException e) {
+            failures.incrementAndGet();
+            Entry current = entries.get(host);
+            // 后台刷新失败时保留仍有效的旧结果
+            if (refresh && current != null && current.addresses != null && now < current.expiresAt) return current;
+            entry = new Entry(null, e.getMessage(), now + negativeTtlMillis, now + negativeTtlMillis);
+        }
+        entries.put(host, entry);
+        if (entries.size() > MAX_ENTRIES) trim(now);
+        return entry;
+    }
+
+    private void trim(long now) {
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (now >= it.next().expiresAt) it.remove();
+        }
+        if (entries.size() > MAX_ENTRIES) entries.clear();
+    }
+
+    /** 一次解析，结果写入缓存后才从 inflight 中移除，之后的请求直接命中缓存。 */
+    private final class Lookup extends FutureTask<Entry> {
+
+        private final String host;
+
+        Lookup(final String host, final boolean refresh) {
+            super(new Callable<Entry>() {
+                @Override
+                public Entry call() {
+                    return resolve(host, refresh);
+                }
+            });
+            this.host = host;
+        }
+
+        @Override
+        protected void done() {
+            inflight.remove(host, this);
+        }
+    }
+
+    private static final class Entry {
+
+        final InetAddress[] addresses;
+        final String error;
+        final long refreshAt;
+        final long expiresAt;
+
+        Entry(InetAddress[] addresses, String error, long refreshAt, long expiresAt) {
+            this.addresses = addresses;
+            this.error = error;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
+
+        InetAddress[] get(String host) throws UnknownHostException {
+            if (addresses == null) throw new UnknownHostException(error != null ? error : host);
+            return addresses;
+        }
+    }
+}
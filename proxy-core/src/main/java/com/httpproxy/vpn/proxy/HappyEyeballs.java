@@ -0,0 +1,201 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按 RFC 8305（Happy Eyeballs v2）连接上游代理：解析出全部地址，IPv6/IPv4 交替排列，
+ * 每隔 {@link #ATTEMPT_DELAY_MS} 或上一个尝试失败时发起下一个连接，取最先成功的一个，其余关闭。
+ * <p>
+ * 地址来自 {@link DnsCache}；最近一次成功的地址在 {@link #PREFERENCE_TTL_MS} 内排在最前，
+ * 其地址族优先尝试。所有尝试都在调用线程上用一个 Selector 完成，不额外创建线程。
+ */
+final class HappyEyeballs {
+
+    /** 相邻两次连接尝试的间隔（RFC 8305 建议值） */
+    static final long ATTEMPT_DELAY_MS = 250;
+    static final long PREFERENCE_TTL_MS = 10 * 60000;
+
+    private final String host;
+    private final int port;
+    private final DnsCache dns;
+    /** 上次排序所依据的解析结果，解析缓存更新后重新排序 */
+    private InetAddress[] source;
+    private InetAddress[] resolved;
+    private InetAddress lastGood;
+    private long lastGoodAt;
+
+    HappyEyeballs(String host, int port, DnsCache dns) {
+        this.host = host;
+        this.port = port;
+        this.dns = dns;
+    }
+
+    /** 当前首选的地址（最近成功的地址或解析结果中的第一个），供非阻塞引擎直接连接。 */
+    InetSocketAddress preferred() {
+        try {
+            return new InetSocketAddress(ordered()[0], port);
+        } catch (UnknownHostException e) {
+            return new InetSocketAddress(host, port);
+        }
+    }
+
+    /**
+     * 连接到最先接通的地址，返回阻塞模式的 SocketChannel。
+     *
+     * @throws SocketTimeoutException 在 timeoutMillis 内没有任何地址接通
+     */
+    SocketChannel connect(int timeoutMillis) throws IOException {
+        InetAddress[] addrs = ordered();
+        SocketChannel winner = addrs.length == 1 ? connectSingle(addrs[0], timeoutMillis) : race(addrs, timeoutMillis);
+        succeeded(((InetSocketAddress) winner.socket().getRemoteSocketAddress()).getAddress());
+        return winner;
+    }
+
+    private SocketChannel connectSingle(InetAddress addr, int timeoutMillis) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(addr, port), timeoutMillis);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            failed();
+            throw e;
+        }
+    }
+
+    private SocketChannel race(InetAddress[] addrs, int timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<SocketChannel> pending = new ArrayList<>();
+        SocketChannel winner = null;
+        IOException failure = null;
+        int next = 0;
+        long nextAttemptAt = 0;
+        Selector selector = Selector.open();
+        try {
+            while (winner == null) {
+                long now = System.currentTimeMillis();
+                if (next < addrs.length && (now >= nextAttemptAt || pending.isEmpty())) {
+                    SocketChannel ch = SocketChannel.open();
+                    try {
+                        ch.configureBlocking(false);
+                        if (ch.connect(new InetSocketAddress(addrs[next], port))) {
+                            winner = ch;
+                        } else {
+                            ch.register(selector, SelectionKey.OP_CONNECT);
+                            pending.add(ch);
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                        ch.close();
+                    }
+                    next++;
+                    nextAttemptAt = now + ATTEMPT_DELAY_MS;
+                    continue;
+                }
+                if (pending.isEmpty()) {
+                    throw failure != null ? failure : new ConnectException("no address for " + host);
+                }
+                if (now >= deadline) throw new SocketTimeoutException("connect timed out: " + host);
+                long wait = deadline - now;
+                if (next < addrs.length) wait = Math.min(wait, nextAttemptAt - now);
+                selector.select(Math.max(1, wait));
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel ch = (SocketChannel) key.channel();
+                    try {
+                        if (ch.finishConnect()) {
+                            winner = ch;
+                            break;
+                        }
+                    } catch (IOException e) {
+                        // 失败后立即尝试下一个地址，不等间隔
+                        failure = e;
+                        key.cancel();
+                        ch.close();
+                        pending.remove(ch);
+                        nextAttemptAt = 0;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            failed();
+            throw e;
+        } finally {
+            for (SocketChannel ch : pending) {
+                if (ch != winner) closeQuietly(ch);
+            }
+            selector.close();
+        }
+        try {
+            winner.configureBlocking(true);
+        } catch (IOException e) {
+            winner.close();
+            throw e;
+        }
+        return winner;
+    }
+
+    /** 取全部地址并按优先级排列：最近成功的地址、其所在地址族，两个地址族交替。 */
+    private InetAddress[] ordered() throws UnknownHostException {
+        InetAddress[] all = dns.lookup(host);
+        synchronized (this) {
+            if (all != source) {
+                InetAddress good = lastGood != null && System.currentTimeMillis() - lastGoodAt < PREFERENCE_TTL_MS
+                        ? lastGood : null;
+                source = all;
+                resolved = interleave(all, good);
+            }
+            return resolved;
+        }
+    }
+
+    private synchronized void succeeded(InetAddress addr) {
+        lastGoodAt = System.currentTimeMillis();
+        if (addr.equals(lastGood) || resolved == null) {
+            lastGood = addr;
+            return;
+        }
+        lastGood = addr;
+        resolved = interleave(resolved, addr);
+    }
+
+    /** 全部失败时丢弃解析缓存，下次重新解析（失效的记录可能已更新）。 */
+    private void failed() {
+        dns.invalidate(host);
+    }
+
+    private static InetAddress[] interleave(InetAddress[] all, InetAddress good) {
+        boolean firstV6 = good != null ? good instanceof Inet6Address : all[0] instanceof Inet6Address;
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        if (good != null) first.add(good);
+        for (InetAddress addr : all) {
+            if (addr.equals(good)) continue;
+            ((addr instanceof Inet6Address) == firstV6 ? first : second).add(addr);
+        }
+        InetAddress[] out = new InetAddress[first.size() + second.size()];
+        int n = 0;
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) out[n++] = first.get(i);
+            if (i < second.size()) out[n++] = second.get(i);
+        }
+        return out;
+    }
+
+    private static void closeQuietly(SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException ignored) { }
+    }
+}
@@ -0,0 +1,266 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HPACK（RFC 7541）的最小实现：编码只输出不加入动态表的字面量、不做 Huffman 编码；
+ * 解码完整支持静态表、动态表与 Huffman，供 {@link Http2Connection} 解析代理的响应头。
+ */
+final class Hpack {
+
+    /** 静态表，下标从 1 开始 */
+    private static final String[][] STATIC_TABLE = {
+            null,
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+            {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+            {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+            {"www-authenticate", ""},
+    };
+    static final int INDEX_AUTHORITY = 1;
+    static final int INDEX_METHOD = 2;
+    static final int INDEX_PROXY_AUTHORIZATION = 49;
+
+    /** 动态表默认上限，本端未修改 SETTINGS_HEADER_TABLE_SIZE */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    /** Huffman 码表（RFC 7541 附录 B），下标为符号，256 为 EOS */
+    private static final int[] CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+    private static final byte[] LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    /** Huffman 解码树：节点 i 的子节点为 TREE[2i]（0）与 TREE[2i+1]（1），负值 -1-sym 表示叶子，0 表示不存在 */
+    private static final int[] TREE = buildTree();
+
+    private Hpack() { }
+
+    private static int[] buildTree() {
+        int[] tree = new int[2 * 512];
+        int nodes = 1;
+        for (int sym = 0; sym < CODES.length; sym++) {
+            int node = 0;
+            for (int bit = LENGTHS[sym] - 1; bit >= 0; bit--) {
+                int slot = 2 * node + ((CODES[sym] >>> bit) & 1);
+                if (bit == 0) {
+                    tree[slot] = -1 - sym;
+                } else {
+                    if (tree[slot] == 0) tree[slot] = nodes++;
+                    node = tree[slot];
+                }
+            }
+        }
+        return tree;
+    }
+
+    /** 以静态表中的名称写一个不加入动态表的字面量；sensitive 时要求中间节点也不得索引（如认证头）。 */
+    static void writeLiteral(ByteArrayOutputStream out, int nameIndex, String value, boolean sensitive) {
+        writeInt(out, sensitive ? 0x10 : 0x00, 4, nameIndex);
+        byte[] v = value.getBytes(StandardCharsets.ISO_8859_1);
+        writeInt(out, 0x00, 7, v.length);
+        out.write(v, 0, v.length);
+    }
+
+    /** 按 N 位前缀整数编码写出，first 为首字节中前缀之外的标志位。 */
+    static void writeInt(ByteArrayOutputStream out, int first, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(first | value);
+            return;
+        }
+        out.write(first | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /** 解码一个连接上依次收到的头部块，维护该方向的动态表。 */
+    static final class Decoder {
+
+        private final List<String[]> dynamic = new ArrayList<>();
+        private int size;
+        private int maxSize = DEFAULT_TABLE_SIZE;
+        private byte[] buf;
+        private int pos;
+        private int end;
+
+        /** 解码 [off, off + len)，名称与值依次追加到 out。 */
+        void decode(byte[] block, int off, int len, List<String> out) throws IOException {
+            buf = block;
+            pos = off;
+            end = off + len;
+            while (pos < end) {
+                int b = buf[pos] & 0xff;
+                if ((b & 0x80) != 0) {
+                    String[] entry = entry(readInt(7));
+                    out.add(entry[0]);
+                    out.add(entry[1]);
+                } else if ((b & 0x40) != 0) {
+                    int index = readInt(6);
+                    String name = index == 0 ? readString() : entry(index)[0];
+                    String value = readString();
+                    out.add(name);
+                    out.add(value);
+                    add(name, value);
+                } else if ((b & 0x20) != 0) {
+                    int newSize = readInt(5);
+                    if (newSize > DEFAULT_TABLE_SIZE) throw new ProtocolException("HPACK: table size " + newSize);
+                    maxSize = newSize;
+                    evict(0);
+                } else {
+                    int index = readInt(4);
+                    out.add(index == 0 ? readString() : entry(index)[0]);
+                    out.add(readString());
+                }
+            }
+            buf = null;
+        }
+
+        private String[] entry(int index) throws ProtocolException {
+            if (index <= 0) throw new ProtocolException("HPACK: index 0");
+            if (index < STATIC_TABLE.length) return STATIC_TABLE[index];
+            index -= STATIC_TABLE.length;
+            if (index >= dynamic.size()) throw new ProtocolException("HPACK: index out of range");
+            return dynamic.get(index);
+        }
+
+        private void add(String name, String value) {
+            int entrySize = name.length() + value.length() + 32;
+            evict(entrySize);
+            // 超过表上限的条目不加入，但会清空动态表
+            if (entrySize > maxSize) return;
+            dynamic.add(0, new String[]{name, value});
+            size += entrySize;
+        }
+
+        private void evict(int room) {
+            while (size + room > maxSize && !dynamic.isEmpty()) {
+                String[] last = dynamic.remove(dynamic.size() - 1);
+                size -= last[0].length() + last[1].length() + 32;
+            }
+        }
+
+        private int readInt(int prefixBits) throws ProtocolException {
+            int max = (1 << prefixBits) - 1;
+            int value = buf[pos++] & max;
+            if (value < max) return value;
+            for (int shift = 0; ; shift += 7) {
+                if (pos >= end || shift > 21) throw new ProtocolException("HPACK: bad integer");
+                int b = buf[pos++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+        }
+
+        private String readString() throws ProtocolException {
+            if (pos >= end) throw new ProtocolException("HPACK: truncated string");
+            boolean huffman = (buf[pos] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > end - pos) throw new ProtocolException("HPACK: truncated string");
+            int start = pos;
+            pos += length;
+            if (!huffman) return new String(buf, start, length, StandardCharsets.ISO_8859_1);
+            return huffmanDecode(buf, start, length);
+        }
+    }
+
+    static String huffmanDecode(byte[] b, int off, int len) throws ProtocolException {
+        StringBuilder sb = new StringBuilder(len * 8 / 5);
+        int node = 0;
+        int depth = 0;
+        boolean allOnes = true;
+        for (int i = off; i < off + len; i++) {
+            int octet = b[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (octet >>> bit) & 1;
+                int next = TREE[2 * node + one];
+                if (next < 0) {
+                    int sym = -1 - next;
+                    if (sym == 256) throw new ProtocolException("HPACK: EOS in string");
+                    sb.append((char) sym);
+                    node = 0;
+                    depth = 0;
+                    allOnes = true;
+                } else if (next == 0) {
+                    throw new ProtocolException("HPACK: bad huffman code");
+                } else {
+                    node = next;
+                    depth++;
+                    allOnes &= one == 1;
+                }
+            }
+        }
+        // 末尾填充必须是不足 8 位的 EOS 前缀（全 1）
+        if (depth > 7 || !allOnes) throw new ProtocolException("HPACK: bad huffman padding");
+        return sb.toString();
+    }
+}
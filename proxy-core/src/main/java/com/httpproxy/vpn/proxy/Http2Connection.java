@@ -0,0 +1,592 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 到 HTTP/2 代理的一条明文连接（h2c，先验知识方式直接发送连接前言）。每条隧道是连接上的一个 CONNECT 流
+ * （RFC 7540 8.3），以 {@link Http2Stream} 的形式交给调用方。
+ * <p>
+ * 后台线程读取并分发全部帧，写帧在 writeLock 下进行。流量控制窗口按大流量传输放大：每个流 {@link #STREAM_WINDOW}，
+ * 整个连接 {@link #CONNECTION_WINDOW}，应用读走一半后再补充，避免高延迟链路上窗口先于带宽耗尽。
+ * <p>
+ * 锁顺序：writeLock → this；流自身的锁内只会再取 writeLock。
+ */
+final class Http2Connection {
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    static final int TYPE_DATA = 0x0;
+    static final int TYPE_HEADERS = 0x1;
+    static final int TYPE_RST_STREAM = 0x3;
+    static final int TYPE_SETTINGS = 0x4;
+    static final int TYPE_PUSH_PROMISE = 0x5;
+    static final int TYPE_PING = 0x6;
+    static final int TYPE_GOAWAY = 0x7;
+    static final int TYPE_WINDOW_UPDATE = 0x8;
+    static final int TYPE_CONTINUATION = 0x9;
+
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+
+    /** 每个流的接收窗口 */
+    static final int STREAM_WINDOW = 1 << 20;
+    /** 整个连接的接收窗口 */
+    static final int CONNECTION_WINDOW = 16 << 20;
+    private static final int DEFAULT_WINDOW = 65535;
+    /** 双方都不修改 SETTINGS_MAX_FRAME_SIZE，收发的帧都不超过默认值 */
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int MAX_HEADER_BLOCK = 64 * 1024;
+    private static final int MAX_WINDOW = Integer.MAX_VALUE;
+    private static final int PREFACE_TIMEOUT = 10000;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Object writeLock = new Object();
+    private final Hpack.Decoder decoder = new Hpack.Decoder();
+    private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+    private final byte[] frameHeader = new byte[9];
+
+    // 以下字段由 this 保护
+    private int nextStreamId = 1;
+    /** 已预留、尚未发出 HEADERS 的流数 */
+    private int reserved;
+    private int maxConcurrent = Integer.MAX_VALUE;
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private long sendWindow = DEFAULT_WINDOW;
+    private int recvUnacked;
+    private boolean goAway;
+    /** 不再接受新流，最后一个流结束后关闭 */
+    private boolean draining;
+    private boolean closed;
+    private long idleSince = System.currentTimeMillis();
+
+    private Http2Connection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream(), MAX_FRAME_SIZE + 9);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), MAX_FRAME_SIZE + 9);
+    }
+
+    /**
+     * 在已连接到代理的 socket 上完成连接前言与 SETTINGS 交换，并启动读线程。
+     *
+     * @throws ProtocolException 代理不支持 h2c（如回复了 HTTP/1.1 响应或直接关闭连接）
+     */
+    static Http2Connection open(Socket socket) throws IOException {
+        Http2Connection connection = new Http2Connection(socket);
+        connection.handshake();
+        Thread reader = new Thread(connection::readLoop, "Http2-reader");
+        reader.setDaemon(true);
+        reader.start();
+        return connection;
+    }
+
+    private void handshake() throws IOException {
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(PREFACE_TIMEOUT);
+        synchronized (writeLock) {
+            out.write(PREFACE);
+            writeFrameHeader(12, TYPE_SETTINGS, 0, 0);
+            writeSetting(SETTINGS_ENABLE_PUSH, 0);
+            writeSetting(SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+            writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+            out.flush();
+        }
+        // 第一个帧必须是对端的 SETTINGS；HTTP/1.1 代理会回复错误响应或直接关闭
+        try {
+            readFully(frameHeader, 9);
+        } catch (EOFException e) {
+            throw new ProtocolException("HTTP/2: proxy closed connection after preface");
+        }
+        int length = frameLength();
+        int type = frameHeader[3] & 0xff;
+        int flags = frameHeader[4] & 0xff;
+        if (type != TYPE_SETTINGS || streamId() != 0 || (flags & FLAG_ACK) != 0
+                || length % 6 != 0 || length > MAX_FRAME_SIZE) {
+            throw new ProtocolException("HTTP/2: proxy does not speak h2c");
+        }
+        byte[] payload = new byte[length];
+        readFully(payload, length);
+        applySettings(payload);
+        synchronized (writeLock) {
+            writeFrameHeader(0, TYPE_SETTINGS, FLAG_ACK, 0);
+            out.flush();
+        }
+        socket.setSoTimeout(timeout);
+    }
+
+    /** 预留一个新流的名额；连接不可用或并发流已达上限（取对端限制与 limit 的较小值）时返回 false。 */
+    synchronized boolean reserve(int limit) {
+        if (closed || goAway || draining || nextStreamId + 2 * reserved < 0) return false;
+        if (streams.size() + reserved >= Math.min(maxConcurrent, limit)) return false;
+        reserved++;
+        return true;
+    }
+
+    /** 用 {@link #reserve} 预留的名额发出 CONNECT 请求。proxyAuthorization 为 null 时不带认证头。 */
+    Http2Stream newStream(String authority, String proxyAuthorization) throws IOException {
+        ByteArrayOutputStream block = new ByteArrayOutputStream(64);
+        Hpack.writeLiteral(block, Hpack.INDEX_METHOD, "CONNECT", false);
+        Hpack.writeLiteral(block, Hpack.INDEX_AUTHORITY, authority, false);
+        if (proxyAuthorization != null) {
+            Hpack.writeLiteral(block, Hpack.INDEX_PROXY_AUTHORIZATION, proxyAuthorization, true);
+        }
+        byte[] headers = block.toByteArray();
+        // 流 ID 必须按发出顺序递增，分配与写出在同一把锁内
+        synchronized (writeLock) {
+            Http2Stream stream;
+            synchronized (this) {
+                reserved--;
+                if (closed || goAway || nextStreamId < 0) throw new IOException("HTTP/2: connection closed");
+                stream = new Http2Stream(this, nextStreamId, peerInitialWindow);
+                nextStreamId += 2;
+                streams.put(stream.id, stream);
+            }
+            try {
+                writeHeaders(stream.id, headers);
+                out.flush();
+            } catch (IOException e) {
+                shutdown();
+                throw e;
+            }
+            return stream;
+        }
+    }
+
+    synchronized boolean isUsable() {
+        return !closed && !goAway && !draining && nextStreamId > 0;
+    }
+
+    /** 没有活动流的时长，有活动流时返回 0。 */
+    synchronized long idleMillis(long now) {
+        return streams.isEmpty() && reserved == 0 ? now - idleSince : 0;
+    }
+
+    synchronized int activeStreams() {
+        return streams.size();
+    }
+
+    /**
+     * 发送数据，受流与连接两级发送窗口限制，窗口用尽时等待对端 WINDOW_UPDATE。
+     */
+    void writeData(Http2Stream stream, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n;
+            synchronized (this) {
+                while (!closed && !stream.isReset() && (stream.sendWindow <= 0 || sendWindow <= 0)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (closed || stream.isReset()) throw new IOException("HTTP/2: stream closed");
+                n = (int) Math.min(Math.min(len, MAX_FRAME_SIZE), Math.min(stream.sendWindow, sendWindow));
+                stream.sendWindow -= n;
+                sendWindow -= n;
+            }
+            synchronized (writeLock) {
+                writeFrameHeader(n, TYPE_DATA, 0, stream.id);
+                out.write(b, off, n);
+                if (len == n) out.flush();
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    /** 发送不带数据的 END_STREAM，即半关闭本端方向。 */
+    void writeEndStream(Http2Stream stream) throws IOException {
+        synchronized (writeLock) {
+            writeFrameHeader(0, TYPE_DATA, FLAG_END_STREAM, stream.id);
+            out.flush();
+        }
+    }
+
+    /** 流被本端关闭：未正常结束时发送 RST_STREAM，并移出连接。 */
+    void closeStream(Http2Stream stream, boolean reset) {
+        if (reset && !isClosed()) {
+            try {
+                synchronized (writeLock) {
+                    writeRstStream(stream.id, CANCEL);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                shutdown();
+            }
+        }
+        removeStream(stream);
+    }
+
+    /** 应用读走了 n 字节：累计到窗口的一半时向对端补充流与连接的接收窗口。 */
+    void consumed(Http2Stream stream, int streamCredit, int n) {
+        int connectionCredit = 0;
+        synchronized (this) {
+            recvUnacked += n;
+            if (recvUnacked >= CONNECTION_WINDOW / 2) {
+                connectionCredit = recvUnacked;
+                recvUnacked = 0;
+            }
+        }
+        if (streamCredit == 0 && connectionCredit == 0) return;
+        try {
+            synchronized (writeLock) {
+                if (streamCredit > 0) writeWindowUpdate(stream.id, streamCredit);
+                if (connectionCredit > 0) writeWindowUpdate(0, connectionCredit);
+                out.flush();
+            }
+        } catch (IOException e) {
+            shutdown();
+        }
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /** 不再接受新流，现有的流继续转发，全部结束后关闭连接；没有流时立即关闭。 */
+    void drain() {
+        synchronized (this) {
+            draining = true;
+            if (!streams.isEmpty() || reserved > 0) return;
+        }
+        shutdown();
+    }
+
+    /** 关闭连接，全部流随之失败。 */
+    void shutdown() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        try { socket.close(); } catch (IOException ignored) { }
+        for (Http2Stream stream : streams.values()) stream.onReset(CANCEL);
+        streams.clear();
+    }
+
+    Socket transport() {
+        return socket;
+    }
+
+    private void removeStream(Http2Stream stream) {
+        if (streams.remove(stream.id) == null) return;
+        boolean drained;
+        synchronized (this) {
+            if (streams.isEmpty()) idleSince = System.currentTimeMillis();
+            drained = draining && streams.isEmpty() && reserved == 0;
+            notifyAll();
+        }
+        if (drained) shutdown();
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                readFully(frameHeader, 9);
+                int length = frameLength();
+                int type = frameHeader[3] & 0xff;
+                int flags = frameHeader[4] & 0xff;
+                int id = streamId();
+                if (length > MAX_FRAME_SIZE) throw new ProtocolException("HTTP/2: frame too large");
+                byte[] payload = new byte[length];
+                readFully(payload, length);
+                onFrame(type, flags, id, payload);
+            }
+        } catch (IOException | RuntimeException e) {
+            // 连接已断开或协议错误：尽力告知对端后关闭
+            if (e instanceof ProtocolException && !isClosed()) {
+                try {
+                    synchronized (writeLock) {
+                        writeGoAway(PROTOCOL_ERROR);
+                        out.flush();
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void onFrame(int type, int flags, int id, byte[] payload) throws IOException {
+        switch (type) {
+            case TYPE_DATA:
+                onData(flags, id, payload);
+                break;
+            case TYPE_HEADERS:
+                onHeaders(flags, id, payload);
+                break;
+            case TYPE_RST_STREAM: {
+                if (payload.length != 4 || id == 0) throw new ProtocolException("HTTP/2: bad RST_STREAM");
+                Http2Stream stream = streams.get(id);
+                if (stream != null) {
+                    stream.onReset(readInt(payload, 0));
+                    removeStream(stream);
+                }
+                break;
+            }
+            case TYPE_SETTINGS:
+                if (id != 0 || payload.length % 6 != 0) throw new ProtocolException("HTTP/2: bad SETTINGS");
+                if ((flags & FLAG_ACK) != 0) break;
+                applySettings(payload);
+                synchronized (writeLock) {
+                    writeFrameHeader(0, TYPE_SETTINGS, FLAG_ACK, 0);
+                    out.flush();
+                }
+                break;
+            case TYPE_PING:
+                if (payload.length != 8 || id != 0) throw new ProtocolException("HTTP/2: bad PING");
+                if ((flags & FLAG_ACK) != 0) break;
+                synchronized (writeLock) {
+                    writeFrameHeader(8, TYPE_PING, FLAG_ACK, 0);
+                    out.write(payload);
+                    out.flush();
+                }
+                break;
+            case TYPE_GOAWAY:
+                onGoAway(payload);
+                break;
+            case TYPE_WINDOW_UPDATE:
+                onWindowUpdate(id, payload);
+                break;
+            case TYPE_PUSH_PROMISE:
+                // 已通过 SETTINGS_ENABLE_PUSH 关闭推送
+                throw new ProtocolException("HTTP/2: unexpected PUSH_PROMISE");
+            case TYPE_CONTINUATION:
+                throw new ProtocolException("HTTP/2: unexpected CONTINUATION");
+            default:
+                // PRIORITY 与未知类型的帧忽略
+                break;
+        }
+    }
+
+    private void onData(int flags, int id, byte[] payload) throws IOException {
+        if (id == 0) throw new ProtocolException("HTTP/2: DATA on stream 0");
+        int off = 0;
+        int len = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (len < 1 || (payload[0] & 0xff) >= len) throw new ProtocolException("HTTP/2: bad padding");
+            off = 1;
+            len -= 1 + (payload[0] & 0xff);
+        }
+        Http2Stream stream = streams.get(id);
+        boolean accepted = false;
+        if (stream != null) {
+            try {
+                accepted = stream.onData(payload, off, len, payload.length, (flags & FLAG_END_STREAM) != 0);
+            } catch (ProtocolException e) {
+                // 对端超出了流的接收窗口，只重置该流
+                stream.onReset(FLOW_CONTROL_ERROR);
+                synchronized (writeLock) {
+                    writeRstStream(id, FLOW_CONTROL_ERROR);
+                    out.flush();
+                }
+                removeStream(stream);
+            }
+        }
+        // 无人读取的数据（流已关闭、填充）直接计入已消费，保持连接窗口
+        int unread = accepted ? payload.length - len : payload.length;
+        if (unread > 0) consumed(stream, 0, unread);
+    }
+
+    private void onHeaders(int flags, int id, byte[] payload) throws IOException {
+        if (id == 0) throw new ProtocolException("HTTP/2: HEADERS on stream 0");
+        int off = 0;
+        int end = payload.length;
+        if ((flags & FLAG_PADDED) != 0) {
+            if (end < 1) throw new ProtocolException("HTTP/2: bad padding");
+            end -= payload[0] & 0xff;
+            off = 1;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) off += 5;
+        if (off > end) throw new ProtocolException("HTTP/2: bad HEADERS");
+        byte[] block = payload;
+        int blockOff = off;
+        int blockLen = end - off;
+        if ((flags & FLAG_END_HEADERS) == 0) {
+            // 头部块被拆到后续 CONTINUATION 帧，必须紧接着收到
+            ByteArrayOutputStream whole = new ByteArrayOutputStream(blockLen * 2);
+            whole.write(payload, off, blockLen);
+            while (true) {
+                readFully(frameHeader, 9);
+                int length = frameLength();
+                if ((frameHeader[3] & 0xff) != TYPE_CONTINUATION || streamId() != id
+                        || whole.size() + length > MAX_HEADER_BLOCK || length > MAX_FRAME_SIZE) {
+                    throw new ProtocolException("HTTP/2: bad CONTINUATION");
+                }
+                byte[] more = new byte[length];
+                readFully(more, length);
+                whole.write(more, 0, length);
+                if ((frameHeader[4] & FLAG_END_HEADERS) != 0) break;
+            }
+            block = whole.toByteArray();
+            blockOff = 0;
+            blockLen = block.length;
+        }
+        // 即使流已不存在也要解码，保持动态表同步
+        List<String> headers = new ArrayList<>();
+        decoder.decode(block, blockOff, blockLen, headers);
+        Http2Stream stream = streams.get(id);
+        if (stream != null) stream.onHeaders(headers, (flags & FLAG_END_STREAM) != 0);
+    }
+
+    private void onGoAway(byte[] payload) throws ProtocolException {
+        if (payload.length < 8) throw new ProtocolException("HTTP/2: bad GOAWAY");
+        int lastId = readInt(payload, 0) & 0x7fffffff;
+        synchronized (this) {
+            goAway = true;
+            notifyAll();
+        }
+        // 编号更大的流对端不会处理
+        for (Http2Stream stream : streams.values()) {
+            if (stream.id > lastId) {
+                stream.onReset(REFUSED_STREAM);
+                removeStream(stream);
+            }
+        }
+    }
+
+    private void onWindowUpdate(int id, byte[] payload) throws ProtocolException {
+        if (payload.length != 4) throw new ProtocolException("HTTP/2: bad WINDOW_UPDATE");
+        int increment = readInt(payload, 0) & 0x7fffffff;
+        if (increment == 0 && id == 0) throw new ProtocolException("HTTP/2: zero WINDOW_UPDATE");
+        synchronized (this) {
+            if (id == 0) {
+                sendWindow += increment;
+                if (sendWindow > MAX_WINDOW) throw new ProtocolException("HTTP/2: window overflow");
+            } else {
+                Http2Stream stream = streams.get(id);
+                if (stream != null) stream.sendWindow += increment;
+            }
+            notifyAll();
+        }
+    }
+
+    private void applySettings(byte[] payload) throws ProtocolException {
+        synchronized (this) {
+            for (int i = 0; i < payload.length; i += 6) {
+                int key = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+                int value = readInt(payload, i + 2);
+                switch (key) {
+                    case SETTINGS_MAX_CONCURRENT_STREAMS:
+                        maxConcurrent = value < 0 ? Integer.MAX_VALUE : value;
+                        break;
+                    case SETTINGS_INITIAL_WINDOW_SIZE:
+                        if (value < 0) throw new ProtocolException("HTTP/2: bad initial window");
+                        int delta = value - peerInitialWindow;
+                        peerInitialWindow = value;
+                        for (Http2Stream stream : streams.values()) stream.sendWindow += delta;
+                        break;
+                    case SETTINGS_MAX_FRAME_SIZE:
+                        // 本端始终按默认帧长发送，写缓冲也按它分配
+                        if (value < MAX_FRAME_SIZE || value > 0xffffff) throw new ProtocolException("HTTP/2: bad frame size");
+                        break;
+                    default:
+                        break;
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    private void writeHeaders(int id, byte[] block) throws IOException {
+        int max = MAX_FRAME_SIZE;
+        int first = Math.min(block.length, max);
+        writeFrameHeader(first, TYPE_HEADERS, first == block.length ? FLAG_END_HEADERS : 0, id);
+        out.write(block, 0, first);
+        for (int off = first; off < block.length; ) {
+            int n = Math.min(block.length - off, max);
+            writeFrameHeader(n, TYPE_CONTINUATION, off + n == block.length ? FLAG_END_HEADERS : 0, id);
+            out.write(block, off, n);
+            off += n;
+        }
+    }
+
+    private void writeRstStream(int id, int code) throws IOException {
+        writeFrameHeader(4, TYPE_RST_STREAM, 0, id);
+        writeInt(code);
+    }
+
+    private void writeGoAway(int code) throws IOException {
+        writeFrameHeader(8, TYPE_GOAWAY, 0, 0);
+        writeInt(0);
+        writeInt(code);
+    }
+
+    private void writeWindowUpdate(int id, int increment) throws IOException {
+        writeFrameHeader(4, TYPE_WINDOW_UPDATE, 0, id);
+        writeInt(increment);
+    }
+
+    private void writeSetting(int key, int value) throws IOException {
+        out.write(key >>> 8);
+        out.write(key);
+        writeInt(value);
+    }
+
+    private void writeFrameHeader(int length, int type, int flags, int id) throws IOException {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        writeInt(id);
+    }
+
+    private void writeInt(int value) throws IOException {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private int frameLength() {
+        return ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+    }
+
+    private int streamId() {
+        return readInt(frameHeader, 5) & 0x7fffffff;
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    private void readFully(byte[] b, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int n = in.read(b, off, len - off);
+            if (n < 0) throw new EOFException("HTTP/2: connection closed");
+            off += n;
+        }
+    }
+}
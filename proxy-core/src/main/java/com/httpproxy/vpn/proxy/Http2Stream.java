@@ -0,0 +1,335 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * HTTP/2 连接上的一个 CONNECT 流，以 Socket 的形式交给转发代码：读写即收发 DATA 帧，
+ * shutdownOutput 发送 END_STREAM，close 在流未正常结束时发送 RST_STREAM。
+ * 没有 SocketChannel，nio 引擎按阻塞 socket 转发。
+ */
+final class Http2Stream extends Socket {
+
+    final int id;
+    private final Http2Connection connection;
+    /** 发送窗口，由 connection 的锁保护 */
+    long sendWindow;
+
+    // 以下字段由 this 保护
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+    private int recvWindow = Http2Connection.STREAM_WINDOW;
+    /** 已被读走、尚未补充给对端的接收窗口 */
+    private int unacked;
+    private List<String> responseHeaders;
+    private boolean remoteClosed;
+    private boolean localClosed;
+    private boolean inputShutdown;
+    private boolean closed;
+    private volatile int resetCode = -1;
+    private int soTimeout;
+
+    private final InputStream input = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return Http2Stream.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (Http2Stream.this) {
+                int n = 0;
+                for (ByteBuffer chunk : chunks) n += chunk.remaining();
+                return n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            Http2Stream.this.close();
+        }
+    };
+
+    private final OutputStream output = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (Http2Stream.this) {
+                if (closed || localClosed) throw new IOException("HTTP/2: stream output closed");
+            }
+            connection.writeData(Http2Stream.this, b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            Http2Stream.this.close();
+        }
+    };
+
+    Http2Stream(Http2Connection connection, int id, int initialSendWindow) {
+        this.connection = connection;
+        this.id = id;
+        this.sendWindow = initialSendWindow;
+    }
+
+    /** 等待代理对 CONNECT 的响应头，返回 :status。 */
+    synchronized int awaitResponse(long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (responseHeaders == null) {
+            if (resetCode >= 0) throw new StreamResetException(resetCode);
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) throw new SocketTimeoutException("HTTP/2: CONNECT response timeout");
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        for (int i = 0; i + 1 < responseHeaders.size(); i += 2) {
+            if (":status".equals(responseHeaders.get(i))) {
+                try {
+                    return Integer.parseInt(responseHeaders.get(i + 1));
+                } catch (NumberFormatException e) {
+                    break;
+                }
+            }
+        }
+        throw new ProtocolException("HTTP/2: response without :status");
+    }
+
+    boolean isReset() {
+        return resetCode >= 0;
+    }
+
+    synchronized void onHeaders(List<String> headers, boolean endStream) {
+        // 之后的头部块是 trailer，对隧道没有意义
+        if (responseHeaders == null) responseHeaders = headers;
+        if (endStream) remoteClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * 收到 DATA 帧。frameLength 含填充，计入接收窗口；填充部分直接算作已读。
+     *
+     * @return 数据是否已排队等待读取；流已关闭时返回 false，由连接直接补充连接级窗口
+     * @throws ProtocolException 对端超出了流的接收窗口
+     */
+    synchronized boolean onData(byte[] payload, int off, int len, int frameLength, boolean endStream)
+            throws ProtocolException {
+        if (frameLength > recvWindow) throw new ProtocolException("HTTP/2: stream flow control");
+        recvWindow -= frameLength;
+        if (endStream) remoteClosed = true;
+        notifyAll();
+        if (closed || inputShutdown) return false;
+        unacked += frameLength - len;
+        if (len > 0) chunks.addLast(ByteBuffer.wrap(payload, off, len));
+        return true;
+    }
+
+    /** 流被对端重置或连接断开。 */
+    synchronized void onReset(int code) {
+        if (resetCode < 0) resetCode = code;
+        notifyAll();
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        int n = 0;
+        int streamCredit = 0;
+        synchronized (this) {
+            long deadline = soTimeout > 0 ? System.currentTimeMillis() + soTimeout : 0;
+            while (chunks.isEmpty()) {
+                if (closed) throw new IOException("HTTP/2: stream closed");
+                if (remoteClosed || inputShutdown) return -1;
+                if (resetCode >= 0) throw new StreamResetException(resetCode);
+                long wait = 0;
+                if (deadline != 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) throw new SocketTimeoutException("HTTP/2: read timed out");
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            while (n < len && !chunks.isEmpty()) {
+                ByteBuffer chunk = chunks.peekFirst();
+                int k = Math.min(len - n, chunk.remaining());
+                chunk.get(b, off + n, k);
+                n += k;
+                if (!chunk.hasRemaining()) chunks.pollFirst();
+            }
+            unacked += n;
+            // 对端已结束发送时不必再补充流窗口
+            if (!remoteClosed && unacked >= Http2Connection.STREAM_WINDOW / 2) {
+                streamCredit = unacked;
+                recvWindow += unacked;
+                unacked = 0;
+            }
+        }
+        connection.consumed(this, streamCredit, n);
+        return n;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (isClosed()) throw new IOException("HTTP/2: stream closed");
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (isClosed()) throw new IOException("HTTP/2: stream closed");
+        return output;
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        synchronized (this) {
+            if (closed || localClosed) return;
+            localClosed = true;
+        }
+        connection.writeEndStream(this);
+    }
+
+    @Override
+    public void shutdownInput() {
+        int discarded = 0;
+        synchronized (this) {
+            if (inputShutdown) return;
+            inputShutdown = true;
+            discarded = discard();
+            notifyAll();
+        }
+        if (discarded > 0) connection.consumed(this, 0, discarded);
+    }
+
+    @Override
+    public void close() {
+        boolean reset;
+        int discarded;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            discarded = discard();
+            reset = resetCode < 0 && !(localClosed && remoteClosed);
+            notifyAll();
+        }
+        if (discarded > 0) connection.consumed(this, 0, discarded);
+        connection.closeStream(this, reset);
+    }
+
+    /** 丢弃未读的数据，返回丢弃的字节数。调用方持有 this。 */
+    private int discard() {
+        int n = 0;
+        for (ByteBuffer chunk : chunks) n += chunk.remaining();
+        chunks.clear();
+        return n;
+    }
+
+    @Override
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isInputShutdown() {
+        return inputShutdown;
+    }
+
+    @Override
+    public synchronized boolean isOutputShutdown() {
+        return localClosed;
+    }
+
+    @Override
+    public synchronized void setSoTimeout(int timeout) {
+        soTimeout = timeout;
+    }
+
+    @Override
+    public synchronized int getSoTimeout() {
+        return soTimeout;
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) {
+        // 由底层连接决定
+    }
+
+    @Override
+    public boolean getTcpNoDelay() {
+        return true;
+    }
+
+    @Override
+    public void setKeepAlive(boolean on) {
+    }
+
+    @Override
+    public void setSoLinger(boolean on, int linger) {
+        // 未正常结束的流在 close 时已发送 RST_STREAM
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return connection.transport().getInetAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return connection.transport().getPort();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return connection.transport().getLocalAddress();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return connection.transport().getLocalPort();
+    }
+
+    @Override
+    public String toString() {
+        return "h2 stream " + id + " via " + connection.transport();
+    }
+
+    /** 流被 RST_STREAM 重置，或所在连接已断开。 */
+    static final class StreamResetException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        StreamResetException(int code) {
+            super("HTTP/2: stream reset, error " + code);
+            this.code = code;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP/2 代理上游客户端：每条隧道是共享连接上的一个 CONNECT 流，几十条并发隧道只需一条 TCP 连接，
+ * 省去逐条的 TCP 握手与慢启动。连接上的流达到上限（对端的 SETTINGS_MAX_CONCURRENT_STREAMS 与
+ * {@link #MAX_STREAMS_PER_CONNECTION} 的较小值）时再建新连接。
+ * <p>
+ * 代理不支持 h2c 时（对连接前言回复 HTTP/1.1 响应或直接关闭），改用 fallback 按每条隧道一条连接 CONNECT，
+ * {@link #RETRY_H2_MILLIS} 后再尝试 HTTP/2。普通 HTTP 请求的转发（{@link #canForward()}）始终交给 fallback。
+ * 到 HTTPS 代理时 connector 应以 ALPN 提供 "h2"（见 {@link TlsProxyConnector#withApplicationProtocols}），
+ * 代理选择 HTTP/1.1 时同样改用 fallback。
+ */
+public class Http2UpstreamClient implements UpstreamProxyClient {
+
+    static final int MAX_STREAMS_PER_CONNECTION = 100;
+    /** 一条隧道从等待连接到收到 CONNECT 响应的总时限 */
+    private static final long RESPONSE_TIMEOUT = 15000;
+    /** 空闲超过该时长的连接不再复用，代理多半已将其关闭 */
+    private static final long MAX_IDLE_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    private static final long RETRY_H2_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final ProxyConnector connector;
+    private final UpstreamProxyClient fallback;
+    /** Proxy-Authorization 的值，未配置认证时为 null */
+    private final String authorization;
+    private final List<Http2Connection> connections = new ArrayList<>();
+    /** 正在建立的连接，由 connections 的锁保护；同时发起的隧道等它建好后共用，而不是各建一条 */
+    private Opening opening;
+    private volatile long fallbackUntil;
+    private boolean closed;
+
+    /**
+     * @param connector 到代理的连接来源
+     * @param fallback  代理不支持 HTTP/2 时使用的客户端，通常是同一代理的 {@link HttpUpstreamClient}
+     */
+    public Http2UpstreamClient(ProxyConnector connector, String username, String password, UpstreamProxyClient fallback) {
+        this.connector = connector;
+        this.fallback = fallback;
+        String user = username == null ? "" : username;
+        String pass = password == null ? "" : password;
+        if (!user.isEmpty() || !pass.isEmpty()) {
+            String cred = user + ":" + pass;
+            authorization = "Basic " + Base64.encode(cred.getBytes(StandardCharsets.UTF_8));
+        } else {
+            authorization = null;
+        }
+    }
+
+    @Override
+    public Socket connect(String targetHost, int targetPort) throws IOException {
+        if (System.currentTimeMillis() < fallbackUntil) return fallback.connect(targetHost, targetPort);
+        // IPv6 字面量需要加方括号
+        String authority = (targetHost.indexOf(':') >= 0 && !targetHost.startsWith("[")
+                ? "[" + targetHost + "]" : targetHost) + ":" + targetPort;
+        ProxyMetrics metrics = ProxyMetrics.get();
+        long deadline = System.currentTimeMillis() + RESPONSE_TIMEOUT;
+        for (int attempt = 0; ; attempt++) {
+            Http2Connection connection;
+            try {
+                connection = acquireConnection(deadline);
+            } catch (ProtocolException e) {
+                return fallback(targetHost, targetPort);
+            }
+            long start = System.nanoTime();
+            Http2Stream stream = null;
+            try {
+                stream = connection.newStream(authority, authorization);
+                int status = stream.awaitResponse(Math.max(1, deadline - System.currentTimeMillis()));
+                if (status == 407) throw new IOException("HTTP/2 proxy CONNECT failed: " + status);
+                if (status < 200 || status >= 300) {
+                    throw new TargetRefusedException("HTTP/2 proxy CONNECT failed: " + status);
+                }
+            } catch (Http2Stream.StreamResetException e) {
+                if (stream != null) stream.close();
+                // 连接正在关闭（GOAWAY）或对端拒绝了该流：未被处理，换一条连接重试一次
+                if (e.code == Http2Connection.REFUSED_STREAM && attempt == 0) continue;
+                metrics.error(ProxyMetrics.Error.UPSTREAM_HANDSHAKE);
+                throw e;
+            } catch (IOException e) {
+                if (stream != null) stream.close();
+                metrics.error(ProxyMetrics.Error.UPSTREAM_HANDSHAKE);
+                throw e;
+            }
+            metrics.recordHandshake(System.nanoTime() - start);
+            return stream;
+        }
+    }
+
+    /** 代理不支持 HTTP/2：改用 fallback；fallback 也失败时说明代理本身有问题，下次仍先试 HTTP/2。 */
+    private Socket fallback(String targetHost, int targetPort) throws IOException {
+        Socket socket = fallback.connect(targetHost, targetPort);
+        fallbackUntil = System.currentTimeMillis() + RETRY_H2_MILLIS;
+        return socket;
+    }
+
+    /**
+     * 选一条还有空闲流名额的连接并预留一个名额，都没有时新建一条。建立连接在锁外进行：
+     * 已有连接正在建立时等它建好（最迟到 deadline）再争用其名额，不会阻塞取用其他连接的隧道。
+     */
+    private Http2Connection acquireConnection(long deadline) throws IOException {
+        while (true) {
+            Opening pending;
+            boolean opener = false;
+            synchronized (connections) {
+                if (closed) throw new IOException("HTTP/2: client closed");
+                long now = System.currentTimeMillis();
+                for (Iterator<Http2Connection> it = connections.iterator(); it.hasNext(); ) {
+                    Http2Connection c = it.next();
+                    if (!c.isUsable() || c.idleMillis(now) > MAX_IDLE_MILLIS) {
+                        it.remove();
+                        c.drain();
+                        continue;
+                    }
+                    if (c.reserve(MAX_STREAMS_PER_CONNECTION)) return c;
+                }
+                if (opening == null) {
+                    opening = new Opening();
+                    opener = true;
+                }
+                pending = opening;
+            }
+            if (opener) return open(pending);
+            Http2Connection c = pending.await(deadline);
+            if (c.reserve(MAX_STREAMS_PER_CONNECTION)) return c;
+            // 新连接的名额已被其他等待者占满，重新选择
+        }
+    }
+
+    /** 由发起建立的线程调用：建立连接，为自己预留一个名额后交给等待者。 */
+    private Http2Connection open(Opening pending) throws IOException {
+        Http2Connection c = null;
+        IOException failure = null;
+        try {
+            c = openConnection();
+            if (!c.reserve(MAX_STREAMS_PER_CONNECTION)) {
+                c.shutdown();
+                c = null;
+                failure = new IOException("HTTP/2: proxy allows no streams");
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        synchronized (connections) {
+            opening = null;
+            if (c != null && closed) {
+                c.shutdown();
+                c = null;
+                failure = new IOException("HTTP/2: client closed");
+            }
+            if (c != null) connections.add(c);
+        }
+        pending.complete(c, failure);
+        if (failure != null) throw failure;
+        return c;
+    }
+
+    private Http2Connection openConnection() throws IOException {
+        ProxyMetrics metrics = ProxyMetrics.get();
+        long start = System.nanoTime();
+        Socket socket;
+        try {
+            socket = connector.connect();
+        } catch (IOException e) {
+            metrics.error(ProxyMetrics.Error.UPSTREAM_CONNECT);
+            throw e;
+        }
+        metrics.recordTcpConnect(System.nanoTime() - start);
+        try {
+            // HTTPS 代理经 ALPN 选了 HTTP/1.1：不必再发连接前言试探
+            String protocol = TlsProxyConnector.applicationProtocol(socket);
+            if (protocol != null && !"h2".equals(protocol)) {
+                throw new ProtocolException("HTTP/2: proxy selected " + protocol);
+            }
+            return Http2Connection.open(socket);
+        } catch (IOException e) {
+            try { socket.close(); } catch (IOException ignored) { }
+            if (!(e instanceof ProtocolException)) metrics.error(ProxyMetrics.Error.UPSTREAM_HANDSHAKE);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean canForward() {
+        return fallback.canForward();
+    }
+
+    @Override
+    public Socket connectForward() throws IOException {
+        return fallback.connectForward();
+    }
+
+    @Override
+    public byte[] forwardHeaders() {
+        return fallback.forwardHeaders();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("h2");
+        synchronized (connections) {
+            for (Http2Connection c : connections) sb.append(" [streams=").append(c.activeStreams()).append(']');
+        }
+        if (System.currentTimeMillis() < fallbackUntil) sb.append(" fallback");
+        return sb.toString();
+    }
+
+    /** 不再建立新流与新连接；已交给隧道的流继续转发，每条连接在其最后一个流结束后关闭。 */
+    @Override
+    public void close() {
+        synchronized (connections) {
+            closed = true;
+            for (Http2Connection c : connections) c.drain();
+        }
+        fallback.close();
+    }
+
+    @Override
+    public void abort() {
+        synchronized (connections) {
+            closed = true;
+            for (Http2Connection c : connections) c.shutdown();
+            connections.clear();
+        }
+        fallback.abort();
+    }
+
+    /** 一次正在进行的连接建立，结果交给同时等待的隧道。 */
+    private static final class Opening {
+
+        private boolean done;
+        private Http2Connection connection;
+        private IOException failure;
+
+        synchronized void complete(Http2Connection connection, IOException failure) {
+            this.connection = connection;
+            this.failure = failure;
+            done = true;
+            notifyAll();
+        }
+
+        /** 等待建立完成，失败时抛出同类异常（代理不支持 HTTP/2 时为 ProtocolException）。 */
+        synchronized Http2Connection await(long deadline) throws IOException {
+            while (!done) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) throw new SocketTimeoutException("HTTP/2: timed out waiting for a connection");
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (failure instanceof ProtocolException) throw new ProtocolException(failure.getMessage());
+            if (failure != null) throw new IOException(failure.getMessage(), failure);
+            return connection;
+        }
+    }
+}
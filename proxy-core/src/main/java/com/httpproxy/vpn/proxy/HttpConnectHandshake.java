@@ -0,0 +1,56 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * HTTP CONNECT 握手状态机：发送 CONNECT 请求，逐字节解析响应头，恰好消费到空行为止，之后的数据留在输入缓冲中。
+ */
+final class HttpConnectHandshake implements UpstreamHandshake {
+
+    private static final int MAX_RESPONSE_HEAD = 16 * 1024;
+
+    private final ByteBuffer request;
+    private final StringBuilder statusLine = new StringBuilder();
+    private boolean statusDone;
+    private int lineLength;
+    private int headLength;
+
+    HttpConnectHandshake(byte[] request) {
+        this.request = ByteBuffer.wrap(request);
+    }
+
+    @Override
+    public ByteBuffer pendingOutput() {
+        return request.hasRemaining() ? request : null;
+    }
+
+    @Override
+    public boolean onInput(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (++headLength > MAX_RESPONSE_HEAD) {
+                throw new IOException("HTTP proxy: response head too large");
+            }
+            if (b == '\n') {
+                if (!statusDone) {
+                    statusDone = true;
+                    int code = HttpUpstreamClient.parseStatusCode(statusLine.toString());
+                    if (code == 407) {
+                        throw new IOException("HTTP proxy CONNECT failed: " + statusLine);
+                    }
+                    if (code < 200 || code >= 300) {
+                        throw new TargetRefusedException("HTTP proxy CONNECT failed: " + statusLine);
+                    }
+                } else if (lineLength == 0) {
+                    return true;
+                }
+                lineLength = 0;
+            } else if (b != '\r') {
+                if (!statusDone) statusLine.append((char) (b & 0xff));
+                lineLength++;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,198 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * HTTP 代理上游客户端：CONNECT + Proxy-Authorization Basic 认证。
+ * 代理的响应头按字节精确解析，同一次读到的之后的数据属于隧道，由返回的 Socket 先交给调用方。
+ * 开启 forward 后，普通 HTTP 请求以绝对形式直接发给代理（见 {@link #connectForward()}），不再 CONNECT 到源站。
+ */
+public class HttpUpstreamClient implements UpstreamProxyClient, NonBlockingUpstream {
+
+    /** 代理响应头通常几十字节，一次读取即可读完 */
+    private static final int RESPONSE_BUFFER_SIZE = 1024;
+
+    private final ProxyConnector connector;
+    private final String username;
+    private final String password;
+    private final boolean forward;
+    /** Proxy-Authorization 请求头行，未配置认证时为空串 */
+    private final String authLine;
+    private final byte[] forwardHeaders;
+
+    public HttpUpstreamClient(String proxyHost, int proxyPort, String username, String password) {
+        this(new DirectProxyConnector(proxyHost, proxyPort), username, password);
+    }
+
+    public HttpUpstreamClient(ProxyConnector connector, String username, String password) {
+        this(connector, username, password, false);
+    }
+
+    /**
+     * @param connector 到代理的 TCP 连接来源，可以是 {@link PrewarmedSocketPool}
+     * @param forward   是否把普通 HTTP 请求以绝对形式直接转发给代理
+     */
+    public HttpUpstreamClient(ProxyConnector connector, String username, String password, boolean forward) {
+        this.connector = connector;
+        this.username = username == null ? "" : username;
+        this.password = password == null ? "" : password;
+        this.forward = forward;
+        if (!this.username.isEmpty() || !this.password.isEmpty()) {
+            String cred = this.username + ":" + this.password;
+            String auth = Base64.encode(cred.getBytes(StandardCharsets.UTF_8));
+            authLine = "Proxy-Authorization: Basic " + auth + "\r\n";
+        } else {
+            authLine = "";
+        }
+        forwardHeaders = authLine.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public Socket connect(String targetHost, int targetPort) throws IOException {
+        return connect(targetHost, targetPort, null, 0, 0);
+    }
+
+    /** early 数据紧跟在 CONNECT 请求之后一次写出，代理在隧道建立后转发给目标。 */
+    @Override
+    public Socket connect(String targetHost, int targetPort, byte[] early, int offset, int length) throws IOException {
+        ProxyMetrics metrics = ProxyMetrics.get();
+        long start = System.nanoTime();
+        Socket socket;
+        try {
+            socket = connector.connect();
+        } catch (IOException e) {
+            metrics.error(ProxyMetrics.Error.UPSTREAM_CONNECT);
+            throw e;
+        }
+        long connected = System.nanoTime();
+        metrics.recordTcpConnect(connected - start);
+        try {
+            socket = handshake(socket, targetHost, targetPort, early, offset, length);
+        } catch (IOException e) {
+            metrics.error(ProxyMetrics.Error.UPSTREAM_HANDSHAKE);
+            try { socket.close(); } catch (IOException ignored) { }
+            throw e;
+        }
+        metrics.recordHandshake(System.nanoTime() - connected);
+        return socket;
+    }
+
+    private Socket handshake(Socket socket, String targetHost, int targetPort, byte[] early, int offset, int length)
+            throws IOException {
+        byte[] request = buildConnectRequest(targetHost, targetPort);
+        OutputStream out = socket.getOutputStream();
+        if (length > 0) {
+            byte[] flight = new byte[request.length + length];
+            System.arraycopy(request, 0, flight, 0, request.length);
+            System.arraycopy(early, offset, flight, request.length, length);
+            out.write(flight);
+        } else {
+            out.write(request);
+        }
+        out.flush();
+        return readResponseHead(socket, new HttpConnectHandshake(request));
+    }
+
+    /**
+     * 按普通缓冲区读取 CONNECT 响应头直到空行，通常一次读取即可。同一次读到的空行之后的数据属于隧道，
+     * 此时返回 {@link PrefixedSocket}，读取时先交出这些字节；否则返回原连接。
+     */
+    private static Socket readResponseHead(Socket socket, HttpConnectHandshake response) throws IOException {
+        InputStream in = socket.getInputStream();
+        byte[] buf = new byte[RESPONSE_BUFFER_SIZE];
+        ByteBuffer view = ByteBuffer.wrap(buf);
+        while (true) {
+            int n = in.read(buf);
+            if (n < 0) throw new IOException("HTTP proxy: no response");
+            view.clear();
+            view.limit(n);
+            if (response.onInput(view)) {
+                if (!view.hasRemaining()) return socket;
+                return new PrefixedSocket(socket, Arrays.copyOfRange(buf, view.position(), n));
+            }
+        }
+    }
+
+    @Override
+    public boolean canForward() {
+        return forward;
+    }
+
+    /** 只建立到代理的 TCP 连接；请求由调用方原样写出，并带上 {@link #forwardHeaders()}。 */
+    @Override
+    public Socket connectForward() throws IOException {
+        ProxyMetrics metrics = ProxyMetrics.get();
+        long start = System.nanoTime();
+        Socket socket;
+        try {
+            socket = connector.connect();
+        } catch (IOException e) {
+            metrics.error(ProxyMetrics.Error.UPSTREAM_CONNECT);
+            throw e;
+        }
+        metrics.recordTcpConnect(System.nanoTime() - start);
+        return socket;
+    }
+
+    @Override
+    public byte[] forwardHeaders() {
+        return forwardHeaders;
+    }
+
+    /** 到 HTTPS 代理的连接需要先完成 TLS 握手，只能走阻塞的 connect。 */
+    @Override
+    public boolean isNonBlocking() {
+        return connector.isPlain();
+    }
+
+    @Override
+    public InetSocketAddress proxyAddress() {
+        return connector.address();
+    }
+
+    @Override
+    public Socket pollIdleTransport() {
+        return connector.pollIdle();
+    }
+
+    @Override
+    public void close() {
+        connector.close();
+    }
+
+    @Override
+    public UpstreamHandshake newHandshake(String targetHost, int targetPort) {
+        return new HttpConnectHandshake(buildConnectRequest(targetHost, targetPort));
+    }
+
+    private byte[] buildConnectRequest(String targetHost, int targetPort) {
+        // IPv6 字面量需要加方括号
+        String authority = (targetHost.indexOf(':') >= 0 && !targetHost.startsWith("[")
+                ? "[" + targetHost + "]" : targetHost) + ":" + targetPort;
+        StringBuilder req = new StringBuilder();
+        req.append("CONNECT ").append(authority).append(" HTTP/1.1\r\n");
+        req.append("Host: ").append(authority).append("\r\n");
+        req.append(authLine);
+        req.append("Connection: keep-alive\r\n\r\n");
+        return req.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static int parseStatusCode(String statusLine) {
+        try {
+            int firstSpace = statusLine.indexOf(' ');
+            if (firstSpace < 0) return 0;
+            int secondSpace = statusLine.indexOf(' ', firstSpace + 1);
+            if (secondSpace < 0) secondSpace = statusLine.length();
+            return Integer.parseInt(statusLine.substring(firstSpace + 1, secondSpace).trim());
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.httpproxy.vpn.proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 固定桶的延迟直方图，记录与读取都不加锁。分位数按所在桶的上界估算。
+ */
+public final class LatencyHistogram {
+
+    /** 各桶上界（毫秒），最后一个桶收容更大的值 */
+    private static final long[] BOUNDS_MILLIS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_MILLIS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int i = 0;
+        while (i < BOUNDS_MILLIS.length && millis >= BOUNDS_MILLIS[i]) i++;
+        counts.incrementAndGet(i);
+        count.incrementAndGet();
+        sumNanos.addAndGet(nanos);
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public double meanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : sumNanos.get() / 1e6 / n;
+    }
+
+    /**
+     * 估算分位数（毫秒），q 取 0~1；超出最大桶时返回 -1，尚无记录时返回 0。
+     */
+    public long percentileMillis(double q) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) total += counts.get(i);
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return i < BOUNDS_MILLIS.length ? BOUNDS_MILLIS[i] : -1;
+        }
+        return -1;
+    }
+
+    /** 以 {"<1ms":n, ...} 形式追加各桶计数。 */
+    void appendBuckets(StringBuilder sb) {
+        sb.append('{');
+        for (int i = 0; i < counts.length(); i++) {
+            if (i > 0) sb.append(',');
+            sb.append('"').append(i < BOUNDS_MILLIS.length ? "<" + BOUNDS_MILLIS[i] : ">=" + BOUNDS_MILLIS[i - 1])
+                    .append("ms\":").append(counts.get(i));
+        }
+        sb.append('}');
+    }
+}
@@ -0,0 +1,29 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * 可由非阻塞引擎驱动的上游代理：引擎自行建立到代理的 TCP 连接，再用 {@link UpstreamHandshake} 完成协议握手。
+ */
+public interface NonBlockingUpstream {
+
+    /** 当前配置能否由引擎驱动握手；返回 false 时引擎改为在线程池中调用阻塞的 connect。 */
+    default boolean isNonBlocking() {
+        return true;
+    }
+
+    /** 上游代理地址。 */
+    InetSocketAddress proxyAddress();
+
+    /** 取出一条已预先建立好的到代理的 TCP 连接（阻塞模式），没有时返回 null。 */
+    Socket pollIdleTransport();
+
+    /**
+     * 创建到目标 host:port 的握手状态机。
+     *
+     * @throws IOException 参数无法编码（如主机名过长）时抛出
+     */
+    UpstreamHandshake newHandshake(String targetHost, int targetPort) throws IOException;
+}
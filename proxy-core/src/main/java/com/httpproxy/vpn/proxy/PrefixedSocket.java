@@ -0,0 +1,69 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 读取代理响应头时多读到的隧道数据：读取时先交出这些字节，再从原连接继续读取，调用方看到的字节流与代理发出的完全一致。
+ * 不暴露 Channel，直接读 Channel 会跳过这些字节，nio 引擎因此按阻塞 socket 转发。
+ */
+final class PrefixedSocket extends DelegatingSocket {
+
+    private final byte[] prefix;
+    private InputStream input;
+
+    PrefixedSocket(Socket delegate, byte[] prefix) {
+        super(delegate);
+        this.prefix = prefix;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (input == null) input = new PrefixedInputStream(delegate.getInputStream());
+        return input;
+    }
+
+    @Override
+    public SocketChannel getChannel() {
+        return null;
+    }
+
+    private final class PrefixedInputStream extends InputStream {
+
+        private final InputStream in;
+        private int position;
+
+        PrefixedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position < prefix.length) return prefix[position++] & 0xff;
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int buffered = prefix.length - position;
+            if (buffered <= 0) return in.read(b, off, len);
+            int n = Math.min(buffered, len);
+            System.arraycopy(prefix, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.max(prefix.length - position, 0) + in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            PrefixedSocket.this.close();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * 上游代理 TCP 连接预热池：后台保持若干条已连接的空闲 Socket，新隧道直接取用，省去一次 TCP 握手的 RTT。
+ * <p>
+ * 取出时检查连接是否仍然存活，空闲超过 maxIdleMillis 的连接直接丢弃。只有最近一段时间内有取用时才补充连接，
+ * 长时间无流量时池子自然清空，避免在移动网络上反复唤醒射频。
+ */
+public class PrewarmedSocketPool implements ProxyConnector {
+
+    private static final long DEMAND_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    private static final long MIN_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    private final ProxyConnector delegate;
+    private final int size;
+    private final long maxIdleMillis;
+    private final Object lock = new Object();
+    /** 队首最旧、队尾最新，取用时从队尾取 */
+    private final ArrayDeque<Idle> idle = new ArrayDeque<>();
+    private final Thread refiller;
+    private boolean closed;
+    private long lastDemand = System.currentTimeMillis();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong connectNanosAvg = new AtomicLong();
+    private final AtomicLong savedNanos = new AtomicLong();
+
+    /**
+     * @param delegate      实际建立连接的方式
+     * @param size          保持的空闲连接数
+     * @param maxIdleMillis 空闲连接的最长保留时间，应小于上游代理的空闲超时
+     */
+    public PrewarmedSocketPool(ProxyConnector delegate, int size, long maxIdleMillis) {
+        this.delegate = delegate;
+        this.size = Math.max(1, size);
+        this.maxIdleMillis = maxIdleMillis;
+        this.refiller = new Thread(this::refillLoop, "ProxyPool-refill");
+        refiller.setDaemon(true);
+        refiller.start();
+        ProxyMetrics.get().addPool(this);
+    }
+
+    @Override
+    public Socket connect() throws IOException {
+        Socket socket = pollIdle();
+        if (socket != null) return socket;
+        long start = System.nanoTime();
+        socket = delegate.connect();
+        recordConnect(System.nanoTime() - start);
+        return socket;
+    }
+
+    @Override
+    public Socket pollIdle() {
+        synchronized (lock) {
+            lastDemand = System.currentTimeMillis();
+            lock.notifyAll();
+        }
+        while (true) {
+            Idle entry;
+            synchronized (lock) {
+                entry = idle.pollLast();
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            if (System.currentTimeMillis() - entry.since < maxIdleMillis && isAlive(entry.socket)) {
+                hits.incrementAndGet();
+                savedNanos.addAndGet(connectNanosAvg.get());
+                return entry.socket;
+            }
+            discarded.incrementAndGet();
+            closeQuietly(entry.socket);
+        }
+    }
+
+    @Override
+    public InetSocketAddress address() {
+        return delegate.address();
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            for (Idle entry : idle) closeQuietly(entry.socket);
+            idle.clear();
+            lock.notifyAll();
+        }
+        ProxyMetrics.get().removePool(this);
+        delegate.close();
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    /** 取出时已失效或空闲超时而丢弃的连接数。 */
+    public long discarded() {
+        return discarded.get();
+    }
+
+    /** 命中率（0~1），尚无取用时为 0。 */
+    public double hitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /** 命中预热连接累计省下的连接耗时（按当时的平均连接耗时估算）。 */
+    public long savedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(savedNanos.get());
+    }
+
+    public int idleCount() {
+        synchronized (lock) {
+            return idle.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "prewarm idle=" + idleCount() + " hits=" + hits() + " misses=" + misses()
+                + " hitRate=" + Math.round(hitRate() * 1000) / 1000.0
+                + " discarded=" + discarded() + " savedMs=" + savedMillis();
+    }
+
+    private void refillLoop() {
+        long backoff = 0;
+        while (true) {
+            synchronized (lock) {
+                while (true) {
+                    if (closed) return;
+                    long now = System.currentTimeMillis();
+                    evictExpired(now);
+                    if (idle.size() < size && now - lastDemand < DEMAND_WINDOW_MILLIS) break;
+                    long wait = idle.isEmpty() ? 0 : Math.max(1, idle.peekFirst().since + maxIdleMillis - now);
+                    try {
+                        lock.wait(wait);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            try {
+                long start = System.nanoTime();
+                Socket socket = delegate.connect();
+                recordConnect(System.nanoTime() - start);
+                backoff = 0;
+                synchronized (lock) {
+                    if (closed) {
+                        closeQuietly(socket);
+                        return;
+                    }
+                    idle.addLast(new Idle(socket, System.currentTimeMillis()));
+                }
+            } catch (IOException e) {
+                backoff = backoff == 0 ? MIN_BACKOFF_MILLIS : Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                synchronized (lock) {
+                    if (closed) return;
+                    try {
+                        lock.wait(backoff);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /** 需持有 lock。 */
+    private void evictExpired(long now) {
+        Iterator<Idle> it = idle.iterator();
+        while (it.hasNext()) {
+            Idle entry = it.next();
+            if (now - entry.since < maxIdleMillis) break;
+            it.remove();
+            discarded.incrementAndGet();
+            closeQuietly(entry.socket);
+        }
+    }
+
+    private void recordConnect(long nanos) {
+        long avg = connectNanosAvg.get();
+        connectNanosAvg.set(avg == 0 ? nanos : avg + (nanos - avg) / 8);
+    }
+
+    /** 空闲连接不应收到任何数据：读到 EOF 或数据都视为不可用。 */
+    public static boolean isAlive(Socket socket) {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) return false;
+        try {
+            // 分层的 SSLSocket 可能返回底层 TCP 的 Channel，绕过 TLS 读取会破坏记录流
+            SocketChannel channel = socket instanceof SSLSocket ? null : socket.getChannel();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                try {
+                    return channel.read(ByteBuffer.allocate(1)) == 0;
+                } finally {
+                    channel.configureBlocking(true);
+                }
+            }
+            int timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                socket.getInputStream().read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                socket.setSoTimeout(timeout);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try { socket.close(); } catch (IOException ignored) { }
+    }
+
+    private static final class Idle {
+
+        final Socket socket;
+        final long since;
+
+        Idle(Socket socket, long since) {
+            this.socket = socket;
+            this.since = since;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * 到上游代理的 TCP 传输连接来源：直接连接或从预热池中取出。返回的 Socket 处于阻塞模式，
+ * 尚未进行任何代理协议握手。
+ */
+public interface ProxyConnector {
+
+    /** 建立（或取出已预先建立的）到上游代理的 TCP 连接。 */
+    Socket connect() throws IOException;
+
+    /** 立即取出一条已建立好的空闲连接，没有时返回 null，不会发起新连接。 */
+    Socket pollIdle();
+
+    /** 上游代理地址。 */
+    InetSocketAddress address();
+
+    /**
+     * 返回的是否为可直接读写代理协议的明文 TCP 连接。经过 TLS 等包装的连接返回 false，
+     * 非阻塞引擎不能自行建立这样的连接，也不能直接读写其底层 SocketChannel。
+     */
+    default boolean isPlain() {
+        return true;
+    }
+
+    /** 释放持有的空闲连接与后台线程。 */
+    void close();
+}
@@ -0,0 +1,458 @@
+package com.httpproxy.vpn.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 代理运行指标：活动隧道数、按目标主机统计的上下行字节、上游连接延迟（TCP 建连与代理握手分开统计）
+ * 以及按原因分类的错误数。全部使用原子计数器，不在转发路径上加锁。
+ * <p>
+ * 按主机的统计最多保留 {@link #MAX_HOSTS} 个，之后出现的主机计入 {@link #OTHER_HOSTS}。
+ */
+public final class ProxyMetrics {
+
+    /** 错误原因 */
+    public enum Error {
+        /** 本地监听 accept 失败 */
+        ACCEPT,
+        /** 客户端请求格式错误 */
+        CLIENT_PROTOCOL,
+        /** 到上游代理的 TCP 连接失败或超时 */
+        UPSTREAM_CONNECT,
+        /** 上游代理握手失败（CONNECT 非 2xx、SOCKS5 拒绝、认证失败等） */
+        UPSTREAM_HANDSHAKE,
+        /** 源站响应格式错误 */
+        UPSTREAM_PROTOCOL,
+        /** 转发过程中连接异常断开 */
+        RELAY,
+        /** 上游熔断期间直接拒绝 */
+        CIRCUIT_OPEN
+    }
+
+    /** 本地代理因超时回收客户端连接时所处的阶段 */
+    public enum Timeout {
+        /** 建立上游隧道（TCP 连接与代理握手） */
+        HANDSHAKE,
+        /** 等待客户端的请求头，包括 keep-alive 连接上两个请求之间的空闲 */
+        HEADER,
+        /** 转发中双向都没有数据 */
+        IDLE
+    }
+
+    /** 本地代理准入控制拒绝连接（排队已满或等待超时）时触及的上限 */
+    public enum Limit {
+        /** 同时服务的客户端连接数 */
+        TUNNELS,
+        /** 到同一目标的隧道数 */
+        HOST,
+        /** 同时进行的上游握手数 */
+        HANDSHAKES
+    }
+
+    /** 可导出到统计的缓冲池，由缓冲池实现并通过 {@link #addBufferPool} 登记。 */
+    public interface BufferStats {
+        /** JSON 中的键，如 heap、direct */
+        String name();
+
+        long hits();
+
+        long misses();
+
+        /** 已借出尚未归还的数量 */
+        long outstanding();
+
+        /** 池中空闲缓冲区数量 */
+        int retained();
+
+        /** 被 GC 回收却从未归还的数量 */
+        long leaks();
+
+        /** 最近一次泄漏缓冲区的借出位置，没有泄漏时为 null */
+        Throwable lastLeakSite();
+    }
+
+    public static final int MAX_HOSTS = 256;
+    public static final String OTHER_HOSTS = "(other)";
+
+    private static final ProxyMetrics GLOBAL = new ProxyMetrics();
+
+    /** 进程内共享的指标实例，两种引擎与上游客户端都记录到这里。 */
+    public static ProxyMetrics get() {
+        return GLOBAL;
+    }
+
+    private final long startMillis = System.currentTimeMillis();
+    private final AtomicLong activeTunnels = new AtomicLong();
+    private final AtomicLong totalTunnels = new AtomicLong();
+    private final AtomicLong reusedTunnels = new AtomicLong();
+    private final AtomicLong bytesUp = new AtomicLong();
+    private final AtomicLong bytesDown = new AtomicLong();
+    private final ConcurrentHashMap<String, HostStats> hosts = new ConcurrentHashMap<>();
+    private final LatencyHistogram tcpConnect = new LatencyHistogram();
+    private final LatencyHistogram handshake = new LatencyHistogram();
+    private final LatencyHistogram tlsHandshake = new LatencyHistogram();
+    private final AtomicLong tlsResumed = new AtomicLong();
+    private final AtomicLongArray errors = new AtomicLongArray(Error.values().length);
+    private final AtomicLongArray timeouts = new AtomicLongArray(Timeout.values().length);
+    private final AtomicLongArray rejected = new AtomicLongArray(Limit.values().length);
+    private final AtomicLong admissionQueued = new AtomicLong();
+    /** 当前上游的预热池，随上游替换而更换 */
+    private final List<PrewarmedSocketPool> pools = new CopyOnWriteArrayList<>();
+    /** 缓冲池由所在的包自行登记，本类不依赖其实现 */
+    private final List<BufferStats> buffers = new CopyOnWriteArrayList<>();
+
+    /** 目标主机的统计项，主机过多时返回汇总项。 */
+    public HostStats host(String host) {
+        HostStats stats = hosts.get(host);
+        if (stats != null) return stats;
+        if (hosts.size() >= MAX_HOSTS) host = OTHER_HOSTS;
+        stats = new HostStats(this, host);
+        HostStats existing = hosts.putIfAbsent(host, stats);
+        return existing != null ? existing : stats;
+    }
+
+    /** 一条隧道开始转发，返回其目标主机的统计项。 */
+    public HostStats tunnelOpened(String host) {
+        HostStats stats = host(host);
+        stats.tunnels.incrementAndGet();
+        activeTunnels.incrementAndGet();
+        totalTunnels.incrementAndGet();
+        return stats;
+    }
+
+    /** 一条从复用池取出的已有隧道开始转发下一个请求，与 {@link #tunnelOpened} 一样以 {@link #tunnelClosed()} 结束。 */
+    public HostStats tunnelReused(String host) {
+        activeTunnels.incrementAndGet();
+        reusedTunnels.incrementAndGet();
+        return host(host);
+    }
+
+    public void tunnelClosed() {
+        activeTunnels.decrementAndGet();
+    }
+
+    public void recordTcpConnect(long nanos) {
+        tcpConnect.record(nanos);
+    }
+
+    public void recordHandshake(long nanos) {
+        handshake.record(nanos);
+    }
+
+    /** 到 HTTPS 代理的一次 TLS 握手，resumed 表示由缓存的会话恢复。 */
+    public void recordTlsHandshake(long nanos, boolean resumed) {
+        tlsHandshake.record(nanos);
+        if (resumed) tlsResumed.incrementAndGet();
+    }
+
+    public void error(Error cause) {
+        errors.incrementAndGet(cause.ordinal());
+    }
+
+    public void timeout(Timeout phase) {
+        timeouts.incrementAndGet(phase.ordinal());
+    }
+
+    public void reject(Limit limit) {
+        rejected.incrementAndGet(limit.ordinal());
+    }
+
+    /** 准入控制的排队数变化：进入队列为 1，离开为 -1。 */
+    public void admissionQueued(int delta) {
+        admissionQueued.addAndGet(delta);
+    }
+
+    public long activeTunnels() {
+        return activeTunnels.get();
+    }
+
+    public long totalTunnels() {
+        return totalTunnels.get();
+    }
+
+    public long reusedTunnels() {
+        return reusedTunnels.get();
+    }
+
+    public long bytesUp() {
+        return bytesUp.get();
+    }
+
+    public long bytesDown() {
+        return bytesDown.get();
+    }
+
+    public long errors(Error cause) {
+        return errors.get(cause.ordinal());
+    }
+
+    public long timeouts(Timeout phase) {
+        return timeouts.get(phase.ordinal());
+    }
+
+    public long rejected(Limit limit) {
+        return rejected.get(limit.ordinal());
+    }
+
+    /** 当前在准入控制中排队等待的连接数 */
+    public long admissionQueued() {
+        return admissionQueued.get();
+    }
+
+    public long totalErrors() {
+        long n = 0;
+        for (int i = 0; i < errors.length(); i++) n += errors.get(i);
+        return n;
+    }
+
+    public LatencyHistogram tcpConnectLatency() {
+        return tcpConnect;
+    }
+
+    public LatencyHistogram handshakeLatency() {
+        return handshake;
+    }
+
+    public LatencyHistogram tlsHandshakeLatency() {
+        return tlsHandshake;
+    }
+
+    public long tlsResumed() {
+        return tlsResumed.get();
+    }
+
+    /** 恢复会话的握手占全部 TLS 握手的比例，尚无握手时为 0。 */
+    public double tlsResumedRatio() {
+        long total = tlsHandshake.count();
+        return total == 0 ? 0 : (double) Math.min(tlsResumed(), total) / total;
+    }
+
+    /** 按总流量降序排列的主机统计。 */
+    public List<HostStats> topHosts(int limit) {
+        List<HostStats> list = new ArrayList<>(hosts.values());
+        Collections.sort(list, new Comparator<HostStats>() {
+            @Override
+            public int compare(HostStats a, HostStats b) {
+                long x = a.bytesUp() + a.bytesDown();
+                long y = b.bytesUp() + b.bytesDown();
+                return x < y ? 1 : (x > y ? -1 : 0);
+            }
+        });
+        return list.size() > limit ? list.subList(0, limit) : list;
+    }
+
+    /** 预热池创建时登记，其命中情况导出到 {@link #toJson()}。 */
+    void addPool(PrewarmedSocketPool pool) {
+        pools.add(pool);
+    }
+
+    /** 预热池关闭（上游被替换或 VPN 停止）时注销。 */
+    void removePool(PrewarmedSocketPool pool) {
+        pools.remove(pool);
+    }
+
+    /** 登记一个缓冲池，其复用与泄漏情况以 {@link BufferStats#name()} 为键导出到 {@link #toJson()}。 */
+    public void addBufferPool(BufferStats pool) {
+        buffers.add(pool);
+    }
+
+    /** 全部指标的 JSON 快照。 */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("{\"uptimeSeconds\":").append((System.currentTimeMillis() - startMillis) / 1000);
+        sb.append(",\"activeTunnels\":").append(activeTunnels());
+        sb.append(",\"totalTunnels\":").append(totalTunnels());
+        sb.append(",\"reusedTunnels\":").append(reusedTunnels());
+        sb.append(",\"bytesUp\":").append(bytesUp());
+        sb.append(",\"bytesDown\":").append(bytesDown());
+        sb.append(",\"tcpConnect\":");
+        appendLatency(sb, tcpConnect);
+        sb.append(",\"handshake\":");
+        appendLatency(sb, handshake);
+        long tlsTotal = tlsHandshake.count();
+        long resumed = Math.min(tlsResumed(), tlsTotal);
+        sb.append(",\"tls\":{\"full\":").append(tlsTotal - resumed);
+        sb.append(",\"resumed\":").append(resumed);
+        sb.append(",\"resumedRatio\":").append(Math.round(tlsResumedRatio() * 1000) / 1000.0);
+        sb.append(",\"handshake\":");
+        appendLatency(sb, tlsHandshake);
+        sb.append('}');
+        sb.append(",\"dns\":");
+        appendDns(sb, DnsCache.get());
+        sb.append(",\"prewarm\":");
+        appendPrewarm(sb, pools);
+        sb.append(",\"buffers\":{");
+        for (int i = 0; i < buffers.size(); i++) {
+            if (i > 0) sb.append(',');
+            BufferStats pool = buffers.get(i);
+            appendString(sb, pool.name());
+            sb.append(':');
+            appendBuffers(sb, pool);
+        }
+        sb.append('}');
+        sb.append(",\"errors\":{");
+        Error[] causes = Error.values();
+        for (int i = 0; i < causes.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append('"').append(causes[i].name().toLowerCase()).append("\":").append(errors.get(i));
+        }
+        sb.append("},\"timeouts\":{");
+        Timeout[] phases = Timeout.values();
+        for (int i = 0; i < phases.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append('"').append(phases[i].name().toLowerCase()).append("\":").append(timeouts.get(i));
+        }
+        sb.append("},\"admission\":{\"queued\":").append(admissionQueued());
+        sb.append(",\"rejected\":{");
+        Limit[] limits = Limit.values();
+        for (int i = 0; i < limits.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append('"').append(limits[i].name().toLowerCase()).append("\":").append(rejected.get(i));
+        }
+        sb.append("}},\"hosts\":[");
+        List<HostStats> top = topHosts(MAX_HOSTS);
+        for (int i = 0; i < top.size(); i++) {
+            HostStats h = top.get(i);
+            if (i > 0) sb.append(',');
+            sb.append("{\"host\":");
+            appendString(sb, h.host);
+            sb.append(",\"tunnels\":").append(h.tunnels()).append(",\"bytesUp\":").append(h.bytesUp())
+                    .append(",\"bytesDown\":").append(h.bytesDown()).append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static void appendLatency(StringBuilder sb, LatencyHistogram h) {
+        sb.append("{\"count\":").append(h.count());
+        sb.append(",\"meanMs\":").append(Math.round(h.meanMillis() * 10) / 10.0);
+        sb.append(",\"p50Ms\":").append(h.percentileMillis(0.5));
+        sb.append(",\"p99Ms\":").append(h.percentileMillis(0.99));
+        sb.append(",\"buckets\":");
+        h.appendBuckets(sb);
+        sb.append('}');
+    }
+
+    private static void appendDns(StringBuilder sb, DnsCache dns) {
+        sb.append("{\"hits\":").append(dns.hits());
+        sb.append(",\"misses\":").append(dns.misses());
+        sb.append(",\"lookups\":").append(dns.lookups());
+        sb.append(",\"failures\":").append(dns.failures());
+        sb.append(",\"refreshes\":").append(dns.refreshes());
+        sb.append('}');
+    }
+
+    /** 全部预热池的合计，没有启用预热时 pools 为 0。 */
+    private static void appendPrewarm(StringBuilder sb, List<PrewarmedSocketPool> pools) {
+        long idle = 0;
+        long hits = 0;
+        long misses = 0;
+        long discarded = 0;
+        long savedMillis = 0;
+        for (PrewarmedSocketPool pool : pools) {
+            idle += pool.idleCount();
+            hits += pool.hits();
+            misses += pool.misses();
+            discarded += pool.discarded();
+            savedMillis += pool.savedMillis();
+        }
+        long total = hits + misses;
+        sb.append("{\"pools\":").append(pools.size());
+        sb.append(",\"idle\":").append(idle);
+        sb.append(",\"hits\":").append(hits);
+        sb.append(",\"misses\":").append(misses);
+        sb.append(",\"hitRate\":").append(total == 0 ? 0 : Math.round(hits * 1000.0 / total) / 1000.0);
+        sb.append(",\"discarded\":").append(discarded);
+        sb.append(",\"savedMs\":").append(savedMillis);
+        sb.append('}');
+    }
+
+    /** 缓冲池的复用与泄漏情况，lastLeakSite 为最近一次泄漏缓冲区在池外的借出位置。 */
+    private static void appendBuffers(StringBuilder sb, BufferStats pool) {
+        sb.append("{\"hits\":").append(pool.hits());
+        sb.append(",\"misses\":").append(pool.misses());
+        sb.append(",\"outstanding\":").append(pool.outstanding());
+        sb.append(",\"retained\":").append(pool.retained());
+        sb.append(",\"leaks\":").append(pool.leaks());
+        sb.append(",\"lastLeakSite\":");
+        String site = leakSite(pool.lastLeakSite(), pool.getClass().getName());
+        if (site != null) {
+            appendString(sb, site);
+        } else {
+            sb.append("null");
+        }
+        sb.append('}');
+    }
+
+    private static String leakSite(Throwable site, String poolClass) {
+        if (site == null) return null;
+        for (StackTraceElement frame : site.getStackTrace()) {
+            if (!frame.getClassName().startsWith(poolClass)) return frame.toString();
+        }
+        return null;
+    }
+
+    private static void appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /** 单个目标主机的统计，字节数同时累加到全局计数。 */
+    public static final class HostStats {
+
+        final String host;
+        private final ProxyMetrics owner;
+        final AtomicLong tunnels = new AtomicLong();
+        private final AtomicLong up = new AtomicLong();
+        private final AtomicLong down = new AtomicLong();
+
+        HostStats(ProxyMetrics owner, String host) {
+            this.owner = owner;
+            this.host = host;
+        }
+
+        public String host() {
+            return host;
+        }
+
+        public long tunnels() {
+            return tunnels.get();
+        }
+
+        public long bytesUp() {
+            return up.get();
+        }
+
+        public long bytesDown() {
+            return down.get();
+        }
+
+        /** 客户端 → 上游 */
+        public void addUp(long n) {
+            up.addAndGet(n);
+            owner.bytesUp.addAndGet(n);
+        }
+
+        /** 上游 → 客户端 */
+        public void addDown(long n) {
+            down.addAndGet(n);
+            owner.bytesDown.addAndGet(n);
+        }
+    }
+}
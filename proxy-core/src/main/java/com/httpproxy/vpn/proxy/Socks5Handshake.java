@@ -0,0 +1,102 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * SOCKS5 握手状态机：方法协商 → 用户名/密码认证（可选）→ CONNECT，按阶段累积定长应答。
+ * 流水线模式下全部请求在开始时一次发出，之后只依次校验应答。
+ */
+final class Socks5Handshake implements UpstreamHandshake {
+
+    private static final int PHASE_METHOD = 0;
+    private static final int PHASE_AUTH = 1;
+    private static final int PHASE_REPLY = 2;
+    private static final int PHASE_REPLY_ADDRESS = 3;
+
+    private final Socks5UpstreamClient owner;
+    private final boolean pipelined;
+    private final byte[] auth;
+    private final byte[] connectRequest;
+    private final byte[] reply = new byte[4 + 1 + 255 + 2];
+    private ByteBuffer output;
+    private int phase = PHASE_METHOD;
+    private int have;
+    private int need = 2;
+
+    /**
+     * @param owner          握手结果回报给该客户端，用于决定之后是否流水线发送
+     * @param greeting       方法协商请求
+     * @param auth           RFC 1929 认证请求，不认证时为 null
+     * @param connectRequest CONNECT 请求
+     * @param pipelined      是否一次发出全部请求
+     */
+    Socks5Handshake(Socks5UpstreamClient owner, byte[] greeting, byte[] auth, byte[] connectRequest, boolean pipelined) {
+        this.owner = owner;
+        this.pipelined = pipelined;
+        this.auth = auth;
+        this.connectRequest = connectRequest;
+        this.output = ByteBuffer.wrap(pipelined ? Socks5UpstreamClient.concat(greeting, auth, connectRequest) : greeting);
+    }
+
+    @Override
+    public ByteBuffer pendingOutput() {
+        return output != null && output.hasRemaining() ? output : null;
+    }
+
+    @Override
+    public boolean onInput(ByteBuffer in) throws IOException {
+        try {
+            while (in.hasRemaining()) {
+                int n = Math.min(need - have, in.remaining());
+                in.get(reply, have, n);
+                have += n;
+                if (have < need) return false;
+                if (step()) return true;
+            }
+            return false;
+        } catch (IOException e) {
+            onFailed();
+            throw e;
+        }
+    }
+
+    @Override
+    public void onFailed() {
+        if (phase < PHASE_REPLY_ADDRESS) owner.handshakeFailed();
+    }
+
+    /** 处理一条已收齐的应答，返回握手是否完成。 */
+    private boolean step() throws IOException {
+        switch (phase) {
+            case PHASE_METHOD:
+                if (Socks5UpstreamClient.checkMethod(reply[0], reply[1] & 0xff, auth, pipelined)) {
+                    expect(PHASE_AUTH, 2, auth);
+                } else {
+                    expect(PHASE_REPLY, Socks5UpstreamClient.REPLY_HEAD, connectRequest);
+                }
+                return false;
+            case PHASE_AUTH:
+                Socks5UpstreamClient.checkAuth(reply[0], reply[1]);
+                expect(PHASE_REPLY, Socks5UpstreamClient.REPLY_HEAD, connectRequest);
+                return false;
+            case PHASE_REPLY:
+                // 收到 CONNECT 应答说明代理能处理这种握手方式，无论目标是否可达
+                phase = PHASE_REPLY_ADDRESS;
+                owner.handshakeSucceeded();
+                need = Socks5UpstreamClient.replyLength(reply);
+                return false;
+            default:
+                output = null;
+                return true;
+        }
+    }
+
+    private void expect(int nextPhase, int length, byte[] send) {
+        phase = nextPhase;
+        have = 0;
+        need = length;
+        // 流水线模式下请求已随方法协商一起发出
+        output = pipelined ? null : ByteBuffer.wrap(send);
+    }
+}
@@ -0,0 +1,259 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * SOCKS5 上游代理客户端：握手 + 用户名/密码认证（RFC 1929）+ CONNECT。
+ * <p>
+ * 每个阶段的请求预先编码为一个字节数组、一次写出；方法协商与认证请求在构造时生成并复用。
+ * 开启 optimistic 后，同一代理完整握手成功过一次，之后的握手把方法协商、认证与 CONNECT 一次发出再依次校验应答，
+ * 建立隧道只需一个往返。因为方法协商只提供一种方法，代理的选择是确定的；流水线握手失败后退回逐步握手。
+ */
+public class Socks5UpstreamClient implements UpstreamProxyClient, NonBlockingUpstream {
+
+    static final int VERSION = 0x05;
+    static final int METHOD_NO_AUTH = 0x00;
+    static final int METHOD_USERNAME_PASSWORD = 0x02;
+    static final int METHOD_NONE_ACCEPTABLE = 0xff;
+    private static final int CMD_CONNECT = 0x01;
+    private static final int ATYP_DOMAIN = 0x03;
+    static final int AUTH_VERSION = 0x01;
+    /** CONNECT 应答的固定部分 + 地址首字节（域名时为长度） */
+    static final int REPLY_HEAD = 5;
+
+    private final ProxyConnector connector;
+    private final boolean optimistic;
+    /** 方法协商请求 */
+    private final byte[] greeting;
+    /** RFC 1929 认证请求，不认证时为 null */
+    private final byte[] auth;
+    private final boolean credentialsTooLong;
+    /** 该代理已用当前方法完整握手成功过，可以流水线发送 */
+    private volatile boolean confirmed;
+
+    public Socks5UpstreamClient(String proxyHost, int proxyPort, String username, String password) {
+        this(new DirectProxyConnector(proxyHost, proxyPort), username, password);
+    }
+
+    /**
+     * @param connector 到代理的 TCP 连接来源，可以是 {@link PrewarmedSocketPool}
+     */
+    public Socks5UpstreamClient(ProxyConnector connector, String username, String password) {
+        this(connector, username, password, false);
+    }
+
+    /**
+     * @param optimistic 是否在确认代理可用后一次发出全部握手请求
+     */
+    public Socks5UpstreamClient(ProxyConnector connector, String username, String password, boolean optimistic) {
+        this.connector = connector;
+        this.optimistic = optimistic;
+        byte[] user = (username == null ? "" : username).getBytes(StandardCharsets.UTF_8);
+        byte[] pass = (password == null ? "" : password).getBytes(StandardCharsets.UTF_8);
+        boolean useAuth = user.length > 0 || pass.length > 0;
+        this.greeting = new byte[]{VERSION, 1, (byte) (useAuth ? METHOD_USERNAME_PASSWORD : METHOD_NO_AUTH)};
+        this.credentialsTooLong = user.length > 255 || pass.length > 255;
+        if (useAuth && !credentialsTooLong) {
+            auth = new byte[3 + user.length + pass.length];
+            auth[0] = AUTH_VERSION;
+            auth[1] = (byte) user.length;
+            System.arraycopy(user, 0, auth, 2, user.length);
+            auth[2 + user.length] = (byte) pass.length;
+            System.arraycopy(pass, 0, auth, 3 + user.length, pass.length);
+        } else {
+            auth = null;
+        }
+    }
+
+    @Override
+    public Socket connect(String targetHost, int targetPort) throws IOException {
+        ProxyMetrics metrics = ProxyMetrics.get();
+        long start = System.nanoTime();
+        Socket socket;
+        try {
+            socket = connector.connect();
+        } catch (IOException e) {
+            metrics.error(ProxyMetrics.Error.UPSTREAM_CONNECT);
+            throw e;
+        }
+        long connected = System.nanoTime();
+        metrics.recordTcpConnect(connected - start);
+        try {
+            handshake(socket, targetHost, targetPort);
+        } catch (IOException e) {
+            metrics.error(ProxyMetrics.Error.UPSTREAM_HANDSHAKE);
+            try { socket.close(); } catch (IOException ignored) { }
+            throw e;
+        }
+        metrics.recordHandshake(System.nanoTime() - connected);
+        return socket;
+    }
+
+    private void handshake(Socket socket, String targetHost, int targetPort) throws IOException {
+        byte[] connect = connectRequest(targetHost, targetPort);
+        checkCredentials();
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        boolean pipelined = pipelined();
+        byte[] buf = new byte[REPLY_HEAD + 255 + 2];
+        try {
+            if (pipelined) {
+                out.write(concat(greeting, auth, connect));
+            } else {
+                out.write(greeting);
+            }
+            out.flush();
+
+            readExactly(in, buf, 2);
+            boolean sendAuth = checkMethod(buf[0], buf[1] & 0xff, auth, pipelined);
+            if (sendAuth) {
+                if (!pipelined) {
+                    out.write(auth);
+                    out.flush();
+                }
+                readExactly(in, buf, 2);
+                checkAuth(buf[0], buf[1]);
+            }
+            if (!pipelined) {
+                out.write(connect);
+                out.flush();
+            }
+
+            readExactly(in, buf, REPLY_HEAD);
+        } catch (IOException e) {
+            confirmed = false;
+            throw e;
+        }
+        // 收到 CONNECT 应答说明代理能处理这种握手方式，无论目标是否可达
+        confirmed = true;
+        readExactly(in, buf, replyLength(buf) - REPLY_HEAD);
+    }
+
+    /** 是否使用流水线握手。 */
+    boolean pipelined() {
+        return optimistic && confirmed;
+    }
+
+    void handshakeSucceeded() {
+        confirmed = true;
+    }
+
+    void handshakeFailed() {
+        confirmed = false;
+    }
+
+    private void checkCredentials() throws IOException {
+        if (credentialsTooLong) throw new IOException("SOCKS5: username/password too long");
+    }
+
+    /**
+     * 校验方法协商应答，返回是否需要进行用户名/密码认证。
+     *
+     * @param pipelined 认证与 CONNECT 请求是否已随方法协商一起发出
+     */
+    static boolean checkMethod(byte version, int chosen, byte[] auth, boolean pipelined) throws IOException {
+        if (version != VERSION) {
+            throw new IOException("SOCKS5: invalid version in method response");
+        }
+        if (chosen == METHOD_NONE_ACCEPTABLE) {
+            throw new IOException("SOCKS5: no acceptable method");
+        }
+        if (chosen == METHOD_USERNAME_PASSWORD && auth != null) return true;
+        // 已发出的认证请求会被当作 CONNECT 解析，无法继续
+        if (pipelined && auth != null) {
+            throw new IOException("SOCKS5: unexpected method " + chosen + " for pipelined handshake");
+        }
+        return false;
+    }
+
+    static void checkAuth(byte version, byte status) throws IOException {
+        if (version != AUTH_VERSION || status != 0x00) {
+            throw new IOException("SOCKS5: authentication failed");
+        }
+    }
+
+    /**
+     * 校验 CONNECT 应答的前 {@link #REPLY_HEAD} 个字节，返回整个应答的长度。
+     */
+    static int replyLength(byte[] reply) throws IOException {
+        if (reply[0] != VERSION) {
+            throw new IOException("SOCKS5: invalid version in CONNECT reply");
+        }
+        int rep = reply[1] & 0xff;
+        // 0x02..0x06：规则禁止、网络/主机不可达、连接被拒绝、TTL 过期，均为目标侧的原因
+        if (rep >= 0x02 && rep <= 0x06) {
+            throw new TargetRefusedException("SOCKS5: CONNECT failed reply " + rep);
+        }
+        if (rep != 0x00) {
+            throw new IOException("SOCKS5: CONNECT failed reply " + rep);
+        }
+        int atyp = reply[3] & 0xff;
+        if (atyp == 0x01) return 4 + 4 + 2;
+        if (atyp == 0x03) return 4 + 1 + (reply[4] & 0xff) + 2;
+        if (atyp == 0x04) return 4 + 16 + 2;
+        throw new IOException("SOCKS5: unknown address type");
+    }
+
+    /** CONNECT 请求（目标以域名形式发送，由代理解析）。 */
+    static byte[] connectRequest(String targetHost, int targetPort) throws IOException {
+        byte[] hostBytes = targetHost.getBytes(StandardCharsets.UTF_8);
+        if (hostBytes.length > 255) {
+            throw new IOException("SOCKS5: host too long");
+        }
+        byte[] connect = new byte[7 + hostBytes.length];
+        connect[0] = VERSION;
+        connect[1] = CMD_CONNECT;
+        connect[2] = 0x00;
+        connect[3] = ATYP_DOMAIN;
+        connect[4] = (byte) hostBytes.length;
+        System.arraycopy(hostBytes, 0, connect, 5, hostBytes.length);
+        connect[5 + hostBytes.length] = (byte) ((targetPort >> 8) & 0xff);
+        connect[6 + hostBytes.length] = (byte) (targetPort & 0xff);
+        return connect;
+    }
+
+    static byte[] concat(byte[] greeting, byte[] auth, byte[] connect) {
+        int authLength = auth != null ? auth.length : 0;
+        byte[] all = new byte[greeting.length + authLength + connect.length];
+        System.arraycopy(greeting, 0, all, 0, greeting.length);
+        if (auth != null) System.arraycopy(auth, 0, all, greeting.length, authLength);
+        System.arraycopy(connect, 0, all, greeting.length + authLength, connect.length);
+        return all;
+    }
+
+    @Override
+    public InetSocketAddress proxyAddress() {
+        return connector.address();
+    }
+
+    @Override
+    public Socket pollIdleTransport() {
+        return connector.pollIdle();
+    }
+
+    @Override
+    public void close() {
+        connector.close();
+    }
+
+    @Override
+    public UpstreamHandshake newHandshake(String targetHost, int targetPort) throws IOException {
+        byte[] connect = connectRequest(targetHost, targetPort);
+        checkCredentials();
+        return new Socks5Handshake(this, greeting, auth, connect, pipelined());
+    }
+
+    private static void readExactly(InputStream in, byte[] buf, int n) throws IOException {
+        int off = 0;
+        while (off < n) {
+            int r = in.read(buf, off, n - off);
+            if (r <= 0) throw new IOException("SOCKS5: unexpected EOF");
+            off += r;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+
+/**
+ * 上游代理正常应答但拒绝了目标（HTTP CONNECT 非 2xx、SOCKS5 目标不可达等）：代理本身可用，
+ * 问题出在目标上，不应计为代理的故障。代理认证失败不属于此类。
+ */
+public class TargetRefusedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TargetRefusedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,207 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * 到 HTTPS 代理（TLS 加密的 HTTP 代理）的连接来源：在 tcp 给出的连接上完成 TLS 握手，按系统信任的 CA
+ * 校验代理证书与主机名。
+ * <p>
+ * 每个实例有自己的 SSLContext，会话缓存（含 TLS 1.3 会话票据）只属于这一个代理。之后的连接以同一 host:port
+ * 发起握手，由缓存恢复会话，省去证书链的传输与校验和一次完整的密钥交换。握手耗时及完整/恢复次数记入
+ * {@link ProxyMetrics}。
+ * <p>
+ * 是否恢复没有公开 API 可查，按会话是否取自缓存判断：握手前按 {@link SSLSessionContext#getIds()} 记下缓存中的
+ * 会话 ID，握手得到的会话 ID 在其中即为恢复。JDK 上 TLS 1.2 与 1.3 均已验证；Conscrypt（Android）的客户端缓存
+ * 同样可以枚举，若恢复的会话换了 ID 只会少算、不会多算。缓存从未枚举出会话的实现上退回比较会话创建时间，
+ * Conscrypt 的创建时间只精确到秒，因此只有创建于握手开始之前的整秒才算恢复，同样宁可少算。
+ */
+public class TlsProxyConnector implements ProxyConnector {
+
+    private static final int HANDSHAKE_TIMEOUT = 15000;
+    private static final int SESSION_CACHE_SIZE = 32;
+    private static final int SESSION_TIMEOUT_SECONDS = 12 * 60 * 60;
+
+    /** ALPN 的标准 API 在 Android 10 才有，更早的系统上为 null，不协商应用层协议 */
+    private static final Method SET_APPLICATION_PROTOCOLS =
+            method(SSLParameters.class, "setApplicationProtocols", String[].class);
+    private static final Method GET_APPLICATION_PROTOCOL = method(SSLSocket.class, "getApplicationProtocol");
+
+    private final ProxyConnector tcp;
+    private final String host;
+    private final int port;
+    private final SSLSocketFactory factory;
+    /** 客户端会话缓存，实现不提供时为 null */
+    private final SSLSessionContext sessions;
+    /** ALPN 提供的协议，null 表示不协商 */
+    private final String[] protocols;
+    /** 会话缓存曾枚举出会话，可以按 ID 判断是否恢复 */
+    private volatile boolean sessionIdsListed;
+
+    public TlsProxyConnector(ProxyConnector tcp, String proxyHost, int proxyPort) {
+        this(tcp, proxyHost, proxyPort, newContext());
+    }
+
+    /** @param context 使用其 TrustManager 与客户端会话缓存，通常每个代理一个 */
+    public TlsProxyConnector(ProxyConnector tcp, String proxyHost, int proxyPort, SSLContext context) {
+        this(tcp, proxyHost, proxyPort, context.getSocketFactory(), context.getClientSessionContext(), null);
+        if (sessions != null) {
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        }
+    }
+
+    private TlsProxyConnector(ProxyConnector tcp, String host, int port, SSLSocketFactory factory,
+                              SSLSessionContext sessions, String[] protocols) {
+        this.tcp = tcp;
+        this.host = host;
+        this.port = port;
+        this.factory = factory;
+        this.sessions = sessions;
+        this.protocols = protocols;
+    }
+
+    /** 共用同一会话缓存、在握手时以 ALPN 提供 protocols 的连接来源。 */
+    public TlsProxyConnector withApplicationProtocols(String... protocols) {
+        return new TlsProxyConnector(tcp, host, port, factory, sessions, protocols.clone());
+    }
+
+    @Override
+    public Socket connect() throws IOException {
+        Socket raw = tcp.connect();
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        List<byte[]> cached = cachedSessionIds();
+        SSLSession session;
+        SSLSocket ssl = null;
+        try {
+            int timeout = raw.getSoTimeout();
+            ssl = (SSLSocket) factory.createSocket(raw, host, port, true);
+            boolean hostnameChecked = configure(ssl);
+            ssl.setSoTimeout(HANDSHAKE_TIMEOUT);
+            ssl.startHandshake();
+            session = ssl.getSession();
+            if (!hostnameChecked && !HttpsURLConnection.getDefaultHostnameVerifier().verify(host, session)) {
+                throw new SSLPeerUnverifiedException("TLS: certificate does not match " + host);
+            }
+            ssl.setSoTimeout(timeout);
+        } catch (IOException | RuntimeException e) {
+            try { (ssl != null ? ssl : raw).close(); } catch (IOException ignored) { }
+            throw e;
+        }
+        ProxyMetrics.get().recordTlsHandshake(System.nanoTime() - start, isResumed(session, cached, startMillis));
+        return ssl;
+    }
+
+    /** 握手前缓存中的会话 ID；缓存为空或无法枚举时返回空列表。 */
+    private List<byte[]> cachedSessionIds() {
+        List<byte[]> ids = new ArrayList<>();
+        if (sessions == null) return ids;
+        try {
+            for (Enumeration<byte[]> e = sessions.getIds(); e != null && e.hasMoreElements(); ) ids.add(e.nextElement());
+        } catch (RuntimeException ignored) {
+        }
+        if (!ids.isEmpty()) sessionIdsListed = true;
+        return ids;
+    }
+
+    private boolean isResumed(SSLSession session, List<byte[]> cached, long startMillis) {
+        if (sessionIdsListed) {
+            byte[] id = session.getId();
+            if (id == null || id.length == 0) return false;
+            for (byte[] c : cached) {
+                if (Arrays.equals(c, id)) return true;
+            }
+            return false;
+        }
+        // 恢复的会话沿用首次握手时的创建时间；按整秒比较，只精确到秒的实现上同一秒内的完整握手不会被算作恢复
+        return session.getCreationTime() < startMillis / 1000 * 1000;
+    }
+
+    /** 设置主机名校验与 ALPN，返回主机名是否已由 TLS 层在握手中校验。 */
+    private boolean configure(SSLSocket ssl) {
+        SSLParameters params = ssl.getSSLParameters();
+        boolean hostnameChecked;
+        try {
+            // Android 7.0 之前没有该方法，改为握手后用系统的 HostnameVerifier 校验
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            hostnameChecked = true;
+        } catch (NoSuchMethodError e) {
+            hostnameChecked = false;
+        }
+        if (protocols != null && SET_APPLICATION_PROTOCOLS != null) {
+            try {
+                SET_APPLICATION_PROTOCOLS.invoke(params, (Object) protocols);
+            } catch (ReflectiveOperationException ignored) {
+            }
+        }
+        ssl.setSSLParameters(params);
+        return hostnameChecked;
+    }
+
+    /** 握手时经 ALPN 选定的协议；未协商或系统不支持时返回 null。 */
+    public static String applicationProtocol(Socket socket) {
+        if (!(socket instanceof SSLSocket) || GET_APPLICATION_PROTOCOL == null) return null;
+        try {
+            String protocol = (String) GET_APPLICATION_PROTOCOL.invoke(socket);
+            return protocol == null || protocol.isEmpty() ? null : protocol;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** 预热的 TCP 连接还需要 TLS 握手，不能当作已就绪的连接取出。 */
+    @Override
+    public Socket pollIdle() {
+        return null;
+    }
+
+    @Override
+    public InetSocketAddress address() {
+        return tcp.address();
+    }
+
+    @Override
+    public boolean isPlain() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        tcp.close();
+    }
+
+    private static SSLContext newContext() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("TLS unavailable", e);
+        }
+    }
+
+    private static Method method(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 上游代理握手状态机：只负责编码请求与解析响应，收发字节由调用方（如非阻塞引擎）完成。
+ */
+public interface UpstreamHandshake {
+
+    /**
+     * 当前需要发送给上游代理的数据，没有待发送数据时返回 null。
+     * 调用方应先把返回的缓冲区写完，再继续读取代理响应。
+     */
+    ByteBuffer pendingOutput();
+
+    /**
+     * 处理从上游代理读到的数据（缓冲区处于读模式）。
+     * 只消费握手所需的字节，握手完成后 in 中剩余的数据属于隧道本身，由调用方继续转发。
+     *
+     * @param in 代理返回的数据
+     * @return 握手是否已完成
+     * @throws IOException 代理拒绝或协议错误时抛出
+     */
+    boolean onInput(ByteBuffer in) throws IOException;
+
+    /** 握手完成前连接失败（对端关闭、超时等）时由调用方通知。 */
+    default void onFailed() { }
+
+    /** 到代理的 TCP 连接未能建立（握手尚未开始）时由调用方通知。 */
+    default void onConnectFailed() { }
+
+    /** 调用方在握手完成前放弃（如客户端已断开）时通知；已通知过失败时也可能调用。 */
+    default void onCancelled() { }
+}
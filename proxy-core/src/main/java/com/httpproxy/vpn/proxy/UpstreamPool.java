@@ -0,0 +1,341 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多个上游代理组成的客户端：每条隧道按 {@link Policy} 选择一个成员建立，失败时换一个成员重试一次。
+ * <p>
+ * 成员连续失败 {@link #FAILURE_THRESHOLD} 次（TCP 连接或代理握手失败；目标被代理拒绝不算）即被暂时剔除，
+ * 剔除时长随连续剔除次数翻倍。到期后重新参与选择，成功一次恢复正常，失败一次立即再次剔除。
+ * 有流量期间后台线程定期探测各成员的 TCP 可达性，探测失败同样计入失败次数。
+ * 全部成员都被剔除时仍在全部成员中选择，不会让所有连接直接失败。
+ * <p>
+ * 选择路径不加锁：成员数组不变，健康状态、活动隧道数与延迟均值都是 volatile 或原子变量。
+ * 返回的 Socket 关闭时即减少所属成员的活动隧道数，不依赖后台清点。
+ * 本类不实现 {@link NonBlockingUpstream}，nio 引擎在线程池中调用 {@link #connect}。
+ */
+public class UpstreamPool implements UpstreamProxyClient {
+
+    /** 选择策略 */
+    public enum Policy {
+        /** 依次轮流 */
+        ROUND_ROBIN,
+        /** 活动隧道最少的成员 */
+        LEAST_ACTIVE,
+        /** 握手延迟的指数加权移动平均乘以（活动隧道数 + 1）最小的成员 */
+        EWMA
+    }
+
+    static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_EJECTION_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    /** 剔除时长最多翻倍到 10s << 5 = 320s */
+    private static final int MAX_EJECTION_SHIFT = 5;
+    /** EWMA 新样本的权重 */
+    private static final double EWMA_ALPHA = 0.3;
+    /** 失败按该延迟计入 EWMA，使失败的成员在被剔除前就少被选中 */
+    private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+    private static final long PROBE_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    private static final int PROBE_TIMEOUT = 3000;
+    private static final long DEMAND_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private final Member[] members;
+    private final Policy policy;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Object lock = new Object();
+    private final Thread monitor;
+    private volatile boolean closed;
+    private volatile long lastDemand = System.currentTimeMillis();
+    /** 后台线程因长时间无流量而停止计时等待时为 true，新连接据此唤醒它 */
+    private volatile boolean idle;
+
+    public UpstreamPool(List<Member> members, Policy policy) {
+        if (members.isEmpty()) throw new IllegalArgumentException("no upstream");
+        this.members = members.toArray(new Member[0]);
+        this.policy = policy;
+        this.monitor = new Thread(this::monitorLoop, "UpstreamPool-monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    @Override
+    public Socket connect(String targetHost, int targetPort) throws IOException {
+        return connect(targetHost, targetPort, null, 0, 0);
+    }
+
+    @Override
+    public Socket connect(String targetHost, int targetPort, byte[] early, int offset, int length) throws IOException {
+        lastDemand = System.currentTimeMillis();
+        if (idle) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+        Member first = select(null);
+        try {
+            return connect(first, targetHost, targetPort, early, offset, length);
+        } catch (TargetRefusedException e) {
+            throw e;
+        } catch (IOException e) {
+            Member second = select(first);
+            if (second == null) throw e;
+            return connect(second, targetHost, targetPort, early, offset, length);
+        }
+    }
+
+    private Socket connect(Member member, String targetHost, int targetPort, byte[] early, int offset, int length)
+            throws IOException {
+        member.active.incrementAndGet();
+        long start = System.nanoTime();
+        Socket socket;
+        try {
+            socket = member.client.connect(targetHost, targetPort, early, offset, length);
+        } catch (TargetRefusedException e) {
+            member.active.decrementAndGet();
+            member.succeeded(System.nanoTime() - start);
+            throw e;
+        } catch (IOException e) {
+            member.active.decrementAndGet();
+            member.failed(System.currentTimeMillis());
+            throw e;
+        }
+        member.succeeded(System.nanoTime() - start);
+        member.open.incrementAndGet();
+        return new MemberSocket(socket, member);
+    }
+
+    /**
+     * 按策略选择一个可用成员，跳过 exclude。没有可用成员时：首次选择（exclude 为 null）取剔除最早到期的成员，
+     * 重试时返回 null。
+     */
+    Member select(Member exclude) {
+        long now = System.currentTimeMillis();
+        Member[] m = members;
+        int n = m.length;
+        int ticket = next.getAndIncrement() & Integer.MAX_VALUE;
+        int start = ticket % n;
+        Member best = null;
+        if (policy == Policy.ROUND_ROBIN) {
+            // 只在可用成员之间轮流，被剔除成员的份额平均分给其余成员，而不是都落到它后面的一个上
+            int available = 0;
+            for (Member c : m) {
+                if (c != exclude && c.available(now)) available++;
+            }
+            int k = available == 0 ? -1 : ticket % available;
+            for (int i = 0; i < n && k >= 0; i++) {
+                Member c = m[i];
+                if (c != exclude && c.available(now) && k-- == 0) best = c;
+            }
+        } else if (policy == Policy.LEAST_ACTIVE) {
+            int bestActive = Integer.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                Member c = m[(start + i) % n];
+                if (c == exclude || !c.available(now)) continue;
+                int active = c.active.get();
+                if (active < bestActive) {
+                    best = c;
+                    bestActive = active;
+                }
+            }
+        } else {
+            // 尚无样本的成员按已知的最小均值计，既能被试到，又不会在取得样本前吸走全部连接
+            long floor = Long.MAX_VALUE;
+            for (Member c : m) {
+                long ewma = c.ewmaNanos.get();
+                if (ewma > 0 && ewma < floor) floor = ewma;
+            }
+            if (floor == Long.MAX_VALUE) floor = 1;
+            double bestScore = Double.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                Member c = m[(start + i) % n];
+                if (c == exclude || !c.available(now)) continue;
+                long ewma = c.ewmaNanos.get();
+                double score = (double) (ewma > 0 ? ewma : floor) * (c.active.get() + 1);
+                if (score < bestScore) {
+                    best = c;
+                    bestScore = score;
+                }
+            }
+        }
+        if (best != null || exclude != null) return best;
+        for (Member c : m) {
+            if (best == null || c.ejectedUntil < best.ejectedUntil) best = c;
+        }
+        return best;
+    }
+
+    /** 有流量期间定期探测各成员；长时间无流量且没有隧道时停止计时，等待新连接唤醒。 */
+    private void monitorLoop() {
+        long nextProbe = 0;
+        while (!closed) {
+            try {
+                int open = 0;
+                for (Member member : members) open += member.open.get();
+                long now = System.currentTimeMillis();
+                boolean demand = now - lastDemand < DEMAND_WINDOW_MILLIS;
+                if (demand && now >= nextProbe) {
+                    probe();
+                    nextProbe = System.currentTimeMillis() + PROBE_INTERVAL_MILLIS;
+                }
+                synchronized (lock) {
+                    if (closed) return;
+                    if (!demand && open == 0) {
+                        // 先置位再复查，与 connect 中先写 lastDemand 再读 idle 配对，不会错过唤醒
+                        idle = true;
+                        if (System.currentTimeMillis() - lastDemand >= DEMAND_WINDOW_MILLIS) lock.wait();
+                        idle = false;
+                    } else {
+                        lock.wait(SWEEP_INTERVAL_MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException ignored) {
+            }
+        }
+    }
+
+    /** 对未被剔除（或剔除已到期）的成员做一次 TCP 连接探测；不消耗预热连接。 */
+    private void probe() {
+        for (Member member : members) {
+            if (closed) return;
+            long now = System.currentTimeMillis();
+            if (!member.available(now)) continue;
+            InetSocketAddress address = member.connector.address();
+            boolean ok = false;
+            if (address != null && !address.isUnresolved()) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(address, PROBE_TIMEOUT);
+                    ok = true;
+                } catch (IOException ignored) {
+                }
+            }
+            if (!ok) member.failed(System.currentTimeMillis());
+        }
+    }
+
+    /** 各成员的状态，用于日志。 */
+    @Override
+    public String toString() {
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder("upstreams policy=").append(policy);
+        for (Member m : members) {
+            sb.append(' ').append(m.name)
+                    .append("[active=").append(m.active.get())
+                    .append(" ewmaMs=").append(TimeUnit.NANOSECONDS.toMillis(m.ewmaNanos.get()));
+            if (!m.available(now)) sb.append(" ejected");
+            sb.append(']');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() {
+        stop();
+        for (Member member : members) {
+            member.client.close();
+        }
+    }
+
+    @Override
+    public void abort() {
+        stop();
+        for (Member member : members) {
+            member.client.abort();
+        }
+    }
+
+    private void stop() {
+        closed = true;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /** 经某个成员建立的隧道，第一次 close 时归还该成员的活动数。 */
+    private static final class MemberSocket extends DelegatingSocket {
+
+        private final Member member;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        MemberSocket(Socket delegate, Member member) {
+            super(delegate);
+            this.member = member;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (released.compareAndSet(false, true)) {
+                member.active.decrementAndGet();
+                member.open.decrementAndGet();
+            }
+            super.close();
+        }
+    }
+
+    /** 池中的一个上游代理。 */
+    public static final class Member {
+
+        final String name;
+        final UpstreamProxyClient client;
+        final ProxyConnector connector;
+        /** 正在建立与已建立的隧道数 */
+        final AtomicInteger active = new AtomicInteger();
+        /** 已建立且尚未关闭的隧道数 */
+        final AtomicInteger open = new AtomicInteger();
+        final AtomicLong ewmaNanos = new AtomicLong();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger ejections = new AtomicInteger();
+        /** 剔除到期时刻；0 表示正常，非 0 且已到期表示试用中 */
+        volatile long ejectedUntil;
+
+        /**
+         * @param name      显示名称，如 host:port
+         * @param client    该代理的客户端
+         * @param connector client 使用的连接来源，用于探测代理地址
+         */
+        public Member(String name, UpstreamProxyClient client, ProxyConnector connector) {
+            this.name = name;
+            this.client = client;
+            this.connector = connector;
+        }
+
+        boolean available(long now) {
+            long until = ejectedUntil;
+            return until == 0 || now >= until;
+        }
+
+        void succeeded(long nanos) {
+            record(nanos);
+            failures.set(0);
+            if (ejectedUntil != 0) {
+                ejectedUntil = 0;
+                ejections.set(0);
+            }
+        }
+
+        void failed(long now) {
+            record(FAILURE_PENALTY_NANOS);
+            // 试用中的成员一次失败就再次剔除
+            if (failures.incrementAndGet() < FAILURE_THRESHOLD && ejectedUntil == 0) return;
+            int shift = Math.min(ejections.getAndIncrement(), MAX_EJECTION_SHIFT);
+            failures.set(0);
+            ejectedUntil = now + (BASE_EJECTION_MILLIS << shift);
+        }
+
+        private void record(long nanos) {
+            while (true) {
+                long old = ewmaNanos.get();
+                long updated = old == 0 ? nanos : (long) (old + EWMA_ALPHA * (nanos - old));
+                if (ewmaNanos.compareAndSet(old, Math.max(1, updated))) return;
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.httpproxy.vpn.proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * 上游代理客户端抽象：根据配置连接 HTTP 或 SOCKS5 代理，建立到目标 host:port 的隧道。
+ */
+public interface UpstreamProxyClient {
+
+    /**
+     * 通过上游代理连接到目标 host:port，返回已建立好的 Socket（可用于双向转发）。
+     *
+     * @param targetHost 目标主机
+     * @param targetPort 目标端口
+     * @return 与目标建立好的连接（经代理转发）
+     * @throws IOException 连接或代理协议失败时抛出
+     */
+    Socket connect(String targetHost, int targetPort) throws IOException;
+
+    /**
+     * 与 {@link #connect(String, int)} 相同，隧道建立后立即发出客户端已发来的首批数据（如 TLS ClientHello）。
+     * 实现可以把这些数据与代理握手请求合并发送，省去一次往返。
+     */
+    default Socket connect(String targetHost, int targetPort, byte[] early, int offset, int length) throws IOException {
+        Socket socket = connect(targetHost, targetPort);
+        if (length > 0) {
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write(early, offset, length);
+                out.flush();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+        return socket;
+    }
+
+    /** 是否支持把普通 HTTP 请求以绝对形式直接发给代理，不必先 CONNECT 到源站。 */
+    default boolean canForward() {
+        return false;
+    }
+
+    /**
+     * 建立一条到代理本身的连接，用于发送绝对形式的普通 HTTP 请求；同一连接可以依次发往不同源站的请求。
+     * 仅在 {@link #canForward()} 为 true 时调用。
+     */
+    default Socket connectForward() throws IOException {
+        throw new IOException("forwarding not supported");
+    }
+
+    /** 转发的请求需要追加的请求头（每行以 CRLF 结尾），如 Proxy-Authorization；没有时返回空数组。调用方不得修改返回的数组。 */
+    default byte[] forwardHeaders() {
+        return new byte[0];
+    }
+
+    /** 当前是否可能建立隧道；返回 false 时（如上游熔断）调用方不必先回复客户端成功。 */
+    default boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * 释放客户端持有的资源（如预热连接），之后不再建立新的上游连接；已交给隧道的连接继续转发直到自然结束。
+     * 配置修改替换上游时调用。
+     */
+    default void close() { }
+
+    /** 与 {@link #close()} 相同，并立即断开仍被隧道使用的共享连接（如 HTTP/2 连接），VPN 停止时调用。 */
+    default void abort() {
+        close();
+    }
+}
@@ -0,0 +1,100 @@
+package com.httpproxy.vpn.rule;
+
+/**
+ * 按位组织的压缩前缀树（radix tree），IPv4 与 IPv6 各一棵。只有分叉处才有节点，
+ * 一次查找沿地址的位向下最多经过 33 / 129 个节点，并取途经所有匹配前缀中序号最小的规则。
+ */
+final class CidrTree {
+
+    static final int NO_MATCH = Integer.MAX_VALUE;
+
+    private Node root4;
+    private Node root6;
+    private int size;
+
+    /** 添加前缀 address/prefixLength（address 为 4 或 16 字节，前缀之外的位会被清零）。 */
+    void add(byte[] address, int prefixLength, int rule) {
+        byte[] key = mask(address, prefixLength);
+        if (key.length == 4) {
+            root4 = insert(root4, key, prefixLength, rule);
+        } else {
+            root6 = insert(root6, key, prefixLength, rule);
+        }
+        size++;
+    }
+
+    /** 返回包含 address 的前缀中最小的规则序号，没有命中时返回 {@link #NO_MATCH}。 */
+    int match(byte[] address) {
+        int best = NO_MATCH;
+        Node node = address.length == 4 ? root4 : root6;
+        int bits = address.length * 8;
+        while (node != null) {
+            if (commonPrefix(node.key, address, node.length) < node.length) break;
+            best = Math.min(best, node.rule);
+            if (node.length == bits) break;
+            node = node.children[bit(address, node.length)];
+        }
+        return best;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static Node insert(Node node, byte[] key, int length, int rule) {
+        if (node == null) return new Node(key, length, rule);
+        int common = commonPrefix(node.key, key, Math.min(node.length, length));
+        if (common == node.length) {
+            if (length == node.length) {
+                node.rule = Math.min(node.rule, rule);
+            } else {
+                int b = bit(key, node.length);
+                node.children[b] = insert(node.children[b], key, length, rule);
+            }
+            return node;
+        }
+        // 在分歧处拆分：新前缀较短时它本身成为父节点，否则新建一个不带规则的分叉节点
+        Node parent = common == length ? new Node(key, length, rule) : new Node(mask(key, common), common, NO_MATCH);
+        parent.children[bit(node.key, common)] = node;
+        if (common < length) parent.children[bit(key, common)] = new Node(key, length, rule);
+        return parent;
+    }
+
+    /** a 与 b 前 limit 位中相同前缀的位数。 */
+    private static int commonPrefix(byte[] a, byte[] b, int limit) {
+        int i = 0;
+        while (i < limit) {
+            int diff = (a[i >> 3] ^ b[i >> 3]) & 0xff;
+            if (diff != 0) return Math.min(limit, (i & ~7) + Integer.numberOfLeadingZeros(diff) - 24);
+            i = (i & ~7) + 8;
+        }
+        return limit;
+    }
+
+    private static int bit(byte[] key, int index) {
+        return (key[index >> 3] >> (7 - (index & 7))) & 1;
+    }
+
+    private static byte[] mask(byte[] address, int prefixLength) {
+        byte[] key = address.clone();
+        for (int i = 0; i < key.length; i++) {
+            int keep = prefixLength - i * 8;
+            if (keep >= 8) continue;
+            key[i] = keep <= 0 ? 0 : (byte) (key[i] & (0xff << (8 - keep)));
+        }
+        return key;
+    }
+
+    private static final class Node {
+        final byte[] key;
+        final int length;
+        int rule;
+        final Node[] children = new Node[2];
+
+        Node(byte[] key, int length, int rule) {
+            this.key = key;
+            this.length = length;
+            this.rule = rule;
+        }
+    }
+}
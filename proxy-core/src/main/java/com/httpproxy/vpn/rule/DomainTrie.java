@@ -0,0 +1,68 @@
+package com.httpproxy.vpn.rule;
+
+import java.util.HashMap;
+
+/**
+ * 按标签倒序组织的域名前缀树：example.com 存为 com -> example。
+ * 一次查找从主机名最后一个标签开始逐级向下，代价与标签数成正比，与规则数量无关。
+ * 每个节点记录以它结尾的精确匹配规则与后缀匹配规则的序号，序号小的规则优先。
+ */
+final class DomainTrie {
+
+    static final int NO_MATCH = Integer.MAX_VALUE;
+
+    private final Node root = new Node();
+    private int size;
+
+    /**
+     * @param suffix 为 true 时匹配该域名及其全部子域名，否则只匹配该域名本身
+     */
+    void add(String domain, boolean suffix, int rule) {
+        Node node = root;
+        int end = domain.length();
+        while (end > 0) {
+            int dot = domain.lastIndexOf('.', end - 1);
+            String label = domain.substring(dot + 1, end);
+            if (node.children == null) node.children = new HashMap<>(4);
+            Node child = node.children.get(label);
+            if (child == null) {
+                child = new Node();
+                node.children.put(label, child);
+            }
+            node = child;
+            end = dot;
+        }
+        if (suffix) {
+            node.suffixRule = Math.min(node.suffixRule, rule);
+        } else {
+            node.exactRule = Math.min(node.exactRule, rule);
+        }
+        size++;
+    }
+
+    /** 返回命中的最小规则序号，没有命中时返回 {@link #NO_MATCH}。host 须为小写、不带末尾的点。 */
+    int match(String host) {
+        int best = NO_MATCH;
+        Node node = root;
+        int end = host.length();
+        while (end > 0 && node.children != null) {
+            int dot = host.lastIndexOf('.', end - 1);
+            node = node.children.get(host.substring(dot + 1, end));
+            if (node == null) break;
+            best = Math.min(best, node.suffixRule);
+            if (dot < 0) best = Math.min(best, node.exactRule);
+            end = dot;
+        }
+        return best;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static final class Node {
+        HashMap<String, Node> children;
+        int exactRule = NO_MATCH;
+        int suffixRule = NO_MATCH;
+    }
+}
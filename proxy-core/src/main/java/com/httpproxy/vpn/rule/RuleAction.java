@@ -0,0 +1,11 @@
+package com.httpproxy.vpn.rule;
+
+/** 规则命中后的处理方式。 */
+public enum RuleAction {
+    /** 不经代理，直接连接目标 */
+    DIRECT,
+    /** 经上游代理转发 */
+    PROXY,
+    /** 拒绝连接 */
+    REJECT
+}
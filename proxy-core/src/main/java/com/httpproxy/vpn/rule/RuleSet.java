@@ -0,0 +1,195 @@
+package com.httpproxy.vpn.rule;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 按目标主机决定直连、走代理还是拒绝的规则集，规则写法与 Clash 相同，按顺序第一条命中的生效：
+ * <pre>
+ * DOMAIN,example.com,DIRECT          只匹配该域名
+ * DOMAIN-SUFFIX,cn,DIRECT            匹配该域名及其子域名
+ * DOMAIN-KEYWORD,ads,REJECT          域名包含该字符串
+ * IP-CIDR,192.168.0.0/16,DIRECT      IPv4/IPv6 网段（IP-CIDR6 同义）
+ * MATCH,PROXY                        其余全部（FINAL 同义）
+ * </pre>
+ * 编译后域名规则在按标签倒序的前缀树中、网段规则在压缩前缀树中，一次匹配的代价与规则数量无关；
+ * 关键字规则逐条比较，只比较序号小于当前命中规则的部分。
+ * 网段规则只匹配以 IP 地址给出的目标，域名不在本地解析。没有规则命中时走代理。
+ */
+public final class RuleSet {
+
+    public static final RuleSet EMPTY = compile(Collections.<String>emptyList());
+
+    private final DomainTrie domains = new DomainTrie();
+    private final CidrTree cidrs = new CidrTree();
+    private final List<String> keywords = new ArrayList<>();
+    private final List<Integer> keywordRules = new ArrayList<>();
+    private final List<RuleAction> actions = new ArrayList<>();
+    private int finalRule = Integer.MAX_VALUE;
+    private RuleAction finalAction = RuleAction.PROXY;
+    private int skipped;
+
+    private RuleSet() { }
+
+    /** 编译规则列表；无法识别的行跳过并计入 {@link #skipped()}，以 # 开头的行为注释。 */
+    public static RuleSet compile(List<String> lines) {
+        RuleSet set = new RuleSet();
+        for (String line : lines) {
+            String trimmed = line == null ? "" : line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+            if (!set.add(trimmed)) set.skipped++;
+        }
+        return set;
+    }
+
+    private boolean add(String line) {
+        String[] parts = line.split(",");
+        if (parts.length < 2) return false;
+        String type = parts[0].trim().toUpperCase(Locale.ROOT);
+        if (type.equals("MATCH") || type.equals("FINAL")) {
+            RuleAction action = parseAction(parts[1]);
+            if (action == null) return false;
+            if (finalRule == Integer.MAX_VALUE) {
+                finalRule = actions.size();
+                finalAction = action;
+            }
+            actions.add(action);
+            return true;
+        }
+        if (parts.length < 3) return false;
+        // 第四项起为 Clash 的附加选项（如 no-resolve），忽略
+        RuleAction action = parseAction(parts[2]);
+        String value = parts[1].trim();
+        if (action == null || value.isEmpty()) return false;
+        int rule = actions.size();
+        switch (type) {
+            case "DOMAIN":
+            case "DOMAIN-SUFFIX": {
+                String domain = normalize(value.startsWith(".") ? value.substring(1) : value);
+                if (domain.isEmpty()) return false;
+                domains.add(domain, type.equals("DOMAIN-SUFFIX"), rule);
+                break;
+            }
+            case "DOMAIN-KEYWORD":
+                keywords.add(value.toLowerCase(Locale.ROOT));
+                keywordRules.add(rule);
+                break;
+            case "IP-CIDR":
+            case "IP-CIDR6": {
+                int slash = value.indexOf('/');
+                byte[] address = parseAddress(slash < 0 ? value : value.substring(0, slash));
+                if (address == null) return false;
+                int prefix;
+                try {
+                    prefix = slash < 0 ? address.length * 8 : Integer.parseInt(value.substring(slash + 1).trim());
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+                if (prefix < 0 || prefix > address.length * 8) return false;
+                cidrs.add(address, prefix, rule);
+                break;
+            }
+            default:
+                return false;
+        }
+        actions.add(action);
+        return true;
+    }
+
+    /** 目标主机（域名或 IP 地址，IPv6 可带方括号）对应的处理方式。 */
+    public RuleAction match(String host) {
+        int best = Integer.MAX_VALUE;
+        String h = normalize(host);
+        byte[] address = parseAddress(h);
+        if (address != null) {
+            best = cidrs.match(address);
+        } else {
+            best = domains.match(h);
+            for (int i = 0; i < keywords.size() && keywordRules.get(i) < best; i++) {
+                if (h.contains(keywords.get(i))) {
+                    best = keywordRules.get(i);
+                    break;
+                }
+            }
+        }
+        if (best < finalRule) return actions.get(best);
+        return finalAction;
+    }
+
+    /** 有效规则数。 */
+    public int size() {
+        return actions.size();
+    }
+
+    /** 无法识别而被跳过的规则数。 */
+    public int skipped() {
+        return skipped;
+    }
+
+    @Override
+    public String toString() {
+        return "rules size=" + size() + " domains=" + domains.size() + " keywords=" + keywords.size()
+                + " cidrs=" + cidrs.size() + " skipped=" + skipped;
+    }
+
+    /** 转为小写，去掉 IPv6 的方括号与末尾的点；已是小写时不复制。 */
+    static String normalize(String host) {
+        int start = 0;
+        int end = host.length();
+        if (end > 1 && host.charAt(0) == '[' && host.charAt(end - 1) == ']') {
+            start = 1;
+            end--;
+        }
+        while (end > start && host.charAt(end - 1) == '.') end--;
+        boolean lower = true;
+        for (int i = start; i < end; i++) {
+            char c = host.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                lower = false;
+                break;
+            }
+        }
+        String h = start == 0 && end == host.length() ? host : host.substring(start, end);
+        return lower ? h : h.toLowerCase(Locale.ROOT);
+    }
+
+    /** 解析 IPv4/IPv6 地址字面量，不是地址时返回 null（不做 DNS 查询）。 */
+    static byte[] parseAddress(String s) {
+        if (s.indexOf(':') >= 0) {
+            try {
+                // 含冒号的只可能是 IPv6 字面量，不会触发解析
+                return InetAddress.getByName(s).getAddress();
+            } catch (UnknownHostException | SecurityException e) {
+                return null;
+            }
+        }
+        byte[] out = new byte[4];
+        int part = 0;
+        int value = -1;
+        for (int i = 0; i <= s.length(); i++) {
+            char c = i < s.length() ? s.charAt(i) : '.';
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) return null;
+            } else if (c == '.' && value >= 0 && part < 4) {
+                out[part++] = (byte) value;
+                value = -1;
+            } else {
+                return null;
+            }
+        }
+        return part == 4 ? out : null;
+    }
+
+    private static RuleAction parseAction(String s) {
+        try {
+            return RuleAction.valueOf(s.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
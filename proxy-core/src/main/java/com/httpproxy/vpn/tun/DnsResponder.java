@@ -0,0 +1,95 @@
+package com.httpproxy.vpn.tun;
+
+/**
+ * TUN 上的 DNS 应答：A/AAAA 查询立即用 {@link FakeIpPool} 分配的假 IP 回答，不向任何解析器转发；
+ * 其他类型返回无记录（NODATA），非标准查询返回 NOTIMP。真正的解析在连接时由上游代理按主机名完成。
+ */
+final class DnsResponder {
+
+    static final int PORT = 53;
+    /** 应答 TTL（秒）：较短以免客户端缓存的假 IP 在映射淘汰后仍被使用 */
+    static final int TTL_SECONDS = 10;
+    /** 最大应答长度：头部 + 问题（编码后的名字至多 257 字节） + 一条 AAAA 记录 */
+    static final int MAX_RESPONSE = 12 + 257 + 4 + 12 + 16;
+
+    private static final int HEADER = 12;
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int CLASS_IN = 1;
+    private static final int RCODE_FORMERR = 1;
+    private static final int RCODE_NOTIMP = 4;
+
+    private final FakeIpPool pool;
+    private final StringBuilder name = new StringBuilder(64);
+
+    DnsResponder(FakeIpPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * 对 buf[offset, offset + length) 中的查询生成应答写入 out[0..]，返回应答长度；不是查询或无法回应时返回 -1。
+     * 只在单个线程中调用。
+     */
+    int answer(byte[] buf, int offset, int length, byte[] out) {
+        if (length < HEADER) return -1;
+        int flags = IpPacket.u16(buf, offset + 2);
+        if ((flags & 0x8000) != 0) return -1; // 应答
+        int opcode = (flags >> 11) & 0x0f;
+        int questions = IpPacket.u16(buf, offset + 4);
+        if (opcode != 0) return header(buf, offset, flags, RCODE_NOTIMP, out);
+        if (questions != 1) return header(buf, offset, flags, RCODE_FORMERR, out);
+
+        int end = offset + length;
+        int i = offset + HEADER;
+        name.setLength(0);
+        while (true) {
+            if (i >= end) return header(buf, offset, flags, RCODE_FORMERR, out);
+            int label = buf[i++] & 0xff;
+            if (label == 0) break;
+            // 问题中的名字不应使用压缩指针
+            if (label > 63 || i + label > end || name.length() + label + 1 > 255) {
+                return header(buf, offset, flags, RCODE_FORMERR, out);
+            }
+            if (name.length() > 0) name.append('.');
+            for (int k = 0; k < label; k++) {
+                name.append(Character.toLowerCase((char) (buf[i + k] & 0xff)));
+            }
+            i += label;
+        }
+        if (i + 4 > end) return header(buf, offset, flags, RCODE_FORMERR, out);
+        int type = IpPacket.u16(buf, i);
+        int qclass = IpPacket.u16(buf, i + 2);
+        int questionEnd = i + 4;
+
+        boolean address = qclass == CLASS_IN && (type == TYPE_A || type == TYPE_AAAA) && name.length() > 0;
+        int n = header(buf, offset, flags, 0, out);
+        Packets.put16(out, 6, address ? 1 : 0);
+        int questionLength = questionEnd - offset - HEADER;
+        System.arraycopy(buf, offset + HEADER, out, n, questionLength);
+        n += questionLength;
+        if (!address) return n;
+
+        int index = pool.indexFor(name.toString());
+        boolean ipv6 = type == TYPE_AAAA;
+        Packets.put16(out, n, 0xc000 | HEADER); // 指向问题中的名字
+        Packets.put16(out, n + 2, type);
+        Packets.put16(out, n + 4, CLASS_IN);
+        Packets.put32(out, n + 6, TTL_SECONDS);
+        Packets.put16(out, n + 10, ipv6 ? 16 : 4);
+        FakeIpPool.writeAddress(index, ipv6, out, n + 12);
+        return n + 12 + (ipv6 ? 16 : 4);
+    }
+
+    /** 写应答头部（问题与记录数为 0），返回头部长度。 */
+    private static int header(byte[] buf, int offset, int flags, int rcode, byte[] out) {
+        out[0] = buf[offset];
+        out[1] = buf[offset + 1];
+        // QR、保留 opcode 与 RD，置 RA
+        Packets.put16(out, 2, 0x8000 | (flags & 0x7900) | 0x0080 | rcode);
+        Packets.put16(out, 4, rcode == 0 ? 1 : 0);
+        Packets.put16(out, 6, 0);
+        Packets.put16(out, 8, 0);
+        Packets.put16(out, 10, 0);
+        return HEADER;
+    }
+}
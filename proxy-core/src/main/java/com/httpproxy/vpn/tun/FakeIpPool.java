@@ -0,0 +1,104 @@
+package com.httpproxy.vpn.tun;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 假 IP 地址池：为每个查询过的主机名分配一个保留网段内的地址，并记录双向映射，
+ * 之后到该地址的 TCP 连接按主机名交给上游代理，由代理解析。
+ * <p>
+ * IPv4 使用 198.18.0.0/16（RFC 2544 测试网段），IPv6 使用 {@link #IPV6_BASE}/96，两者共用同一个序号，
+ * 同一主机名的 A 与 AAAA 记录指向同一条映射。映射最多保留 capacity 条，超出时淘汰最久未使用的；
+ * 序号循环分配并跳过仍在使用的，被淘汰的地址尽量晚地被复用，减少客户端缓存的旧地址指向新主机的机会。
+ */
+final class FakeIpPool {
+
+    static final byte[] IPV4_BASE = {(byte) 198, 18, 0, 0};
+    static final int IPV4_PREFIX = 16;
+    static final byte[] IPV6_BASE = {(byte) 0xfd, (byte) 0xfe, (byte) 0xdc, (byte) 0xba, (byte) 0x98, 0x76,
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    static final int IPV6_PREFIX = 96;
+    /** 0 为网络地址，1 为接口地址，2 为 DNS 服务器地址，不分配给主机名 */
+    static final int FIRST_INDEX = 3;
+    static final int DNS_INDEX = 2;
+    static final int DEFAULT_CAPACITY = 16384;
+    private static final int SIZE = 1 << (32 - IPV4_PREFIX);
+
+    private final int capacity;
+    private final String[] hosts = new String[SIZE];
+    /** 主机名 -> 序号，按访问顺序排列，最前面的最久未使用 */
+    private final LinkedHashMap<String, Integer> indices = new LinkedHashMap<>(64, 0.75f, true);
+    private int next = FIRST_INDEX;
+
+    FakeIpPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    FakeIpPool(int capacity) {
+        this.capacity = Math.max(1, Math.min(capacity, SIZE - FIRST_INDEX));
+    }
+
+    /** 返回 host 的序号，没有时分配一个。 */
+    synchronized int indexFor(String host) {
+        Integer index = indices.get(host);
+        if (index != null) return index;
+        if (indices.size() >= capacity) {
+            Iterator<Map.Entry<String, Integer>> eldest = indices.entrySet().iterator();
+            hosts[eldest.next().getValue()] = null;
+            eldest.remove();
+        }
+        while (hosts[next] != null) advance();
+        int allocated = next;
+        advance();
+        hosts[allocated] = host;
+        indices.put(host, allocated);
+        return allocated;
+    }
+
+    private void advance() {
+        if (++next == SIZE) next = FIRST_INDEX;
+    }
+
+    /**
+     * 地址 buf[offset, offset + length) 是否在假 IP 网段内。
+     */
+    static boolean contains(byte[] buf, int offset, int length) {
+        byte[] base = length == 4 ? IPV4_BASE : IPV6_BASE;
+        int prefixBytes = (length == 4 ? IPV4_PREFIX : IPV6_PREFIX) / 8;
+        for (int i = 0; i < prefixBytes; i++) {
+            if (buf[offset + i] != base[i]) return false;
+        }
+        // IPv6 只用最低 16 位作为序号
+        for (int i = prefixBytes; i < length - 2; i++) {
+            if (buf[offset + i] != 0) return false;
+        }
+        return true;
+    }
+
+    /** 假 IP 对应的主机名并标记为最近使用；不在网段内或映射已被淘汰时返回 null。 */
+    synchronized String hostFor(byte[] buf, int offset, int length) {
+        if (!contains(buf, offset, length)) return null;
+        String host = hosts[IpPacket.u16(buf, offset + length - 2)];
+        if (host != null) indices.get(host);
+        return host;
+    }
+
+    synchronized int size() {
+        return indices.size();
+    }
+
+    /** 把序号对应的地址写入 out[offset..]，IPv4 4 字节，IPv6 16 字节。 */
+    static void writeAddress(int index, boolean ipv6, byte[] out, int offset) {
+        byte[] base = ipv6 ? IPV6_BASE : IPV4_BASE;
+        System.arraycopy(base, 0, out, offset, base.length);
+        Packets.put16(out, offset + base.length - 2, index);
+    }
+
+    /** 序号对应地址的文本形式，用于配置 VPN 接口。 */
+    static String addressString(int index, boolean ipv6) {
+        byte[] addr = new byte[ipv6 ? 16 : 4];
+        writeAddress(index, ipv6, addr, 0);
+        return Packets.addressString(addr, 0, addr.length);
+    }
+}
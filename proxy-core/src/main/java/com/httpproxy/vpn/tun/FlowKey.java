@@ -0,0 +1,76 @@
+package com.httpproxy.vpn.tun;
+
+import java.util.Arrays;
+
+/**
+ * TCP 流的四元组（客户端地址/端口、目标地址/端口）。
+ * <p>
+ * 查找时用 {@link #set} 把同一个实例指向当前包缓冲区中的地址，不复制；存入流表前用 {@link #copy} 得到独立的键。
+ */
+final class FlowKey {
+
+    private byte[] src;
+    private int srcOffset;
+    private byte[] dst;
+    private int dstOffset;
+    private int addrLength;
+    private int srcPort;
+    private int dstPort;
+    private int hash;
+
+    /** 指向 packet 的地址与端口，返回自身。 */
+    FlowKey set(IpPacket packet) {
+        src = packet.buf;
+        srcOffset = packet.srcOffset;
+        dst = packet.buf;
+        dstOffset = packet.dstOffset;
+        addrLength = packet.addrLength;
+        srcPort = packet.srcPort;
+        dstPort = packet.dstPort;
+        int h = 17;
+        for (int i = 0; i < addrLength; i++) {
+            h = 31 * h + src[srcOffset + i];
+            h = 31 * h + dst[dstOffset + i];
+        }
+        hash = 31 * (31 * h + srcPort) + dstPort;
+        return this;
+    }
+
+    FlowKey copy() {
+        FlowKey key = new FlowKey();
+        key.src = Arrays.copyOfRange(src, srcOffset, srcOffset + addrLength);
+        key.dst = Arrays.copyOfRange(dst, dstOffset, dstOffset + addrLength);
+        key.addrLength = addrLength;
+        key.srcPort = srcPort;
+        key.dstPort = dstPort;
+        key.hash = hash;
+        return key;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FlowKey)) return false;
+        FlowKey other = (FlowKey) o;
+        if (hash != other.hash || srcPort != other.srcPort || dstPort != other.dstPort
+                || addrLength != other.addrLength) {
+            return false;
+        }
+        for (int i = 0; i < addrLength; i++) {
+            if (src[srcOffset + i] != other.src[other.srcOffset + i]) return false;
+            if (dst[dstOffset + i] != other.dst[other.dstOffset + i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return Packets.addressString(src, srcOffset, addrLength) + ":" + srcPort + " -> "
+                + Packets.addressString(dst, dstOffset, addrLength) + ":" + dstPort;
+    }
+}
@@ -0,0 +1,146 @@
+package com.httpproxy.vpn.tun;
+
+/**
+ * 从 TUN 读到的 IP 包的只读视图：解析 IPv4/IPv6 头与 TCP/UDP 头，地址与负载只记录在原缓冲区中的偏移，
+ * 同一实例在读取循环中反复使用，不为每个包分配对象。
+ * <p>
+ * 只处理不分片、传输层紧跟在 IP 头之后的包（IPv6 扩展头不解析），其余包 {@link #parse} 返回 false。
+ */
+final class IpPacket {
+
+    static final int PROTO_TCP = 6;
+    static final int PROTO_UDP = 17;
+
+    static final int TCP_FIN = 0x01;
+    static final int TCP_SYN = 0x02;
+    static final int TCP_RST = 0x04;
+    static final int TCP_PSH = 0x08;
+    static final int TCP_ACK = 0x10;
+
+    byte[] buf;
+    int version;
+    int protocol;
+    /** 源地址、目的地址在 buf 中的偏移，长度为 addrLength（4 或 16） */
+    int srcOffset;
+    int dstOffset;
+    int addrLength;
+    int srcPort;
+    int dstPort;
+
+    // TCP
+    int seq;
+    int ack;
+    int flags;
+    int window;
+    /** SYN 中的 MSS 选项，没有时为 0 */
+    int mss;
+
+    int payloadOffset;
+    int payloadLength;
+
+    /** 解析 buf[offset, offset + length) 中的一个包，不支持的包返回 false。 */
+    boolean parse(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        if (length < 20) return false;
+        version = (buf[offset] >> 4) & 0x0f;
+        int transport;
+        int end;
+        if (version == 4) {
+            int ihl = (buf[offset] & 0x0f) * 4;
+            int total = u16(buf, offset + 2);
+            if (ihl < 20 || total < ihl || total > length) return false;
+            // 分片：MF 置位或片偏移非 0
+            if ((u16(buf, offset + 6) & 0x3fff) != 0) return false;
+            protocol = buf[offset + 9] & 0xff;
+            srcOffset = offset + 12;
+            dstOffset = offset + 16;
+            addrLength = 4;
+            transport = offset + ihl;
+            end = offset + total;
+        } else if (version == 6) {
+            if (length < 40) return false;
+            int payload = u16(buf, offset + 4);
+            if (40 + payload > length) return false;
+            protocol = buf[offset + 6] & 0xff;
+            srcOffset = offset + 8;
+            dstOffset = offset + 24;
+            addrLength = 16;
+            transport = offset + 40;
+            end = transport + payload;
+        } else {
+            return false;
+        }
+        if (protocol == PROTO_TCP) return parseTcp(transport, end);
+        if (protocol == PROTO_UDP) return parseUdp(transport, end);
+        return false;
+    }
+
+    private boolean parseTcp(int t, int end) {
+        if (end - t < 20) return false;
+        srcPort = u16(buf, t);
+        dstPort = u16(buf, t + 2);
+        seq = i32(buf, t + 4);
+        ack = i32(buf, t + 8);
+        int dataOffset = ((buf[t + 12] >> 4) & 0x0f) * 4;
+        if (dataOffset < 20 || t + dataOffset > end) return false;
+        flags = buf[t + 13] & 0xff;
+        window = u16(buf, t + 14);
+        mss = 0;
+        if ((flags & TCP_SYN) != 0) parseOptions(t + 20, t + dataOffset);
+        payloadOffset = t + dataOffset;
+        payloadLength = end - payloadOffset;
+        return true;
+    }
+
+    private boolean parseUdp(int u, int end) {
+        if (end - u < 8) return false;
+        srcPort = u16(buf, u);
+        dstPort = u16(buf, u + 2);
+        int length = u16(buf, u + 4);
+        if (length < 8 || u + length > end) return false;
+        payloadOffset = u + 8;
+        payloadLength = length - 8;
+        return true;
+    }
+
+    private void parseOptions(int i, int end) {
+        while (i < end) {
+            int kind = buf[i] & 0xff;
+            if (kind == 0) return;
+            if (kind == 1) {
+                i++;
+                continue;
+            }
+            if (i + 1 >= end) return;
+            int len = buf[i + 1] & 0xff;
+            if (len < 2 || i + len > end) return;
+            if (kind == 2 && len == 4) mss = u16(buf, i + 2);
+            i += len;
+        }
+    }
+
+    boolean isTcp() {
+        return protocol == PROTO_TCP;
+    }
+
+    boolean isUdp() {
+        return protocol == PROTO_UDP;
+    }
+
+    boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /** 目的地址的文本形式。 */
+    String dstAddressString() {
+        return Packets.addressString(buf, dstOffset, addrLength);
+    }
+
+    static int u16(byte[] b, int i) {
+        return ((b[i] & 0xff) << 8) | (b[i + 1] & 0xff);
+    }
+
+    static int i32(byte[] b, int i) {
+        return ((b[i] & 0xff) << 24) | ((b[i + 1] & 0xff) << 16) | ((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff);
+    }
+}
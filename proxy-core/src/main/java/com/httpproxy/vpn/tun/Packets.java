@@ -0,0 +1,153 @@
+package com.httpproxy.vpn.tun;
+
+/**
+ * 构造写回 TUN 的 IP 包并计算校验和。地址直接以字节数组给出，IPv4 为 4 字节，IPv6 为 16 字节。
+ */
+final class Packets {
+
+    static final int IPV4_HEADER = 20;
+    static final int IPV6_HEADER = 40;
+    static final int TCP_HEADER = 20;
+    private static final int TTL = 64;
+
+    private Packets() { }
+
+    static int ipHeaderLength(int version) {
+        return version == 4 ? IPV4_HEADER : IPV6_HEADER;
+    }
+
+    /**
+     * 在 out[0..] 写一个 TCP 段，返回包长度。mss 大于 0 时附带 MSS 选项（仅用于 SYN）。
+     */
+    static int tcp(byte[] out, byte[] src, byte[] dst, int srcPort, int dstPort,
+                   int seq, int ack, int flags, int window, int mss,
+                   byte[] data, int dataOffset, int dataLength) {
+        int version = src.length == 4 ? 4 : 6;
+        int ip = ipHeaderLength(version);
+        int tcpHeader = TCP_HEADER + (mss > 0 ? 4 : 0);
+        int tcpLength = tcpHeader + dataLength;
+        writeIpHeader(out, src, dst, IpPacket.PROTO_TCP, tcpLength);
+
+        int t = ip;
+        put16(out, t, srcPort);
+        put16(out, t + 2, dstPort);
+        put32(out, t + 4, seq);
+        put32(out, t + 8, ack);
+        out[t + 12] = (byte) ((tcpHeader / 4) << 4);
+        out[t + 13] = (byte) flags;
+        put16(out, t + 14, window);
+        put16(out, t + 16, 0);
+        put16(out, t + 18, 0);
+        if (mss > 0) {
+            out[t + 20] = 2;
+            out[t + 21] = 4;
+            put16(out, t + 22, mss);
+        }
+        if (dataLength > 0) System.arraycopy(data, dataOffset, out, t + tcpHeader, dataLength);
+        put16(out, t + 16, transportChecksum(out, src, dst, IpPacket.PROTO_TCP, t, tcpLength));
+        return ip + tcpLength;
+    }
+
+    /** 在 out[0..] 写一个 UDP 数据报，返回包长度。 */
+    static int udp(byte[] out, byte[] src, byte[] dst, int srcPort, int dstPort,
+                   byte[] data, int dataOffset, int dataLength) {
+        int ip = ipHeaderLength(src.length == 4 ? 4 : 6);
+        int udpLength = 8 + dataLength;
+        writeIpHeader(out, src, dst, IpPacket.PROTO_UDP, udpLength);
+        put16(out, ip, srcPort);
+        put16(out, ip + 2, dstPort);
+        put16(out, ip + 4, udpLength);
+        put16(out, ip + 6, 0);
+        System.arraycopy(data, dataOffset, out, ip + 8, dataLength);
+        int checksum = transportChecksum(out, src, dst, IpPacket.PROTO_UDP, ip, udpLength);
+        // UDP 中 0 表示未计算校验和
+        put16(out, ip + 6, checksum == 0 ? 0xffff : checksum);
+        return ip + udpLength;
+    }
+
+    private static void writeIpHeader(byte[] out, byte[] src, byte[] dst, int protocol, int payloadLength) {
+        if (src.length == 4) {
+            out[0] = 0x45;
+            out[1] = 0;
+            put16(out, 2, IPV4_HEADER + payloadLength);
+            put16(out, 4, 0);
+            put16(out, 6, 0x4000); // DF
+            out[8] = (byte) TTL;
+            out[9] = (byte) protocol;
+            put16(out, 10, 0);
+            System.arraycopy(src, 0, out, 12, 4);
+            System.arraycopy(dst, 0, out, 16, 4);
+            put16(out, 10, fold(sum(out, 0, IPV4_HEADER, 0)));
+        } else {
+            out[0] = 0x60;
+            out[1] = 0;
+            out[2] = 0;
+            out[3] = 0;
+            put16(out, 4, payloadLength);
+            out[6] = (byte) protocol;
+            out[7] = (byte) TTL;
+            System.arraycopy(src, 0, out, 8, 16);
+            System.arraycopy(dst, 0, out, 24, 16);
+        }
+    }
+
+    /** TCP/UDP 校验和，含伪首部。 */
+    private static int transportChecksum(byte[] out, byte[] src, byte[] dst, int protocol, int offset, int length) {
+        long sum = sum(src, 0, src.length, 0);
+        sum = sum(dst, 0, dst.length, sum);
+        sum += protocol;
+        sum += length; // IPv6 伪首部中长度为 32 位，但不超过 65535 时和相同
+        return fold(sum(out, offset, length, sum));
+    }
+
+    /** 按 16 位大端累加，奇数长度末尾补 0。 */
+    static long sum(byte[] b, int offset, int length, long sum) {
+        int end = offset + length;
+        int i = offset;
+        for (; i + 1 < end; i += 2) {
+            sum += ((b[i] & 0xff) << 8) | (b[i + 1] & 0xff);
+        }
+        if (i < end) sum += (b[i] & 0xff) << 8;
+        return sum;
+    }
+
+    /** 折叠进位并取反，得到 16 位校验和。 */
+    static int fold(long sum) {
+        while ((sum >>> 16) != 0) sum = (sum & 0xffff) + (sum >>> 16);
+        return (int) (~sum & 0xffff);
+    }
+
+    static byte[] copy(byte[] buf, int offset, int length) {
+        byte[] out = new byte[length];
+        System.arraycopy(buf, offset, out, 0, length);
+        return out;
+    }
+
+    static String addressString(byte[] buf, int offset, int length) {
+        StringBuilder sb = new StringBuilder(length == 4 ? 15 : 39);
+        if (length == 4) {
+            for (int i = 0; i < 4; i++) {
+                if (i > 0) sb.append('.');
+                sb.append(buf[offset + i] & 0xff);
+            }
+        } else {
+            for (int i = 0; i < 16; i += 2) {
+                if (i > 0) sb.append(':');
+                sb.append(Integer.toHexString(IpPacket.u16(buf, offset + i)));
+            }
+        }
+        return sb.toString();
+    }
+
+    static void put16(byte[] b, int i, int v) {
+        b[i] = (byte) (v >>> 8);
+        b[i + 1] = (byte) v;
+    }
+
+    static void put32(byte[] b, int i, int v) {
+        b[i] = (byte) (v >>> 24);
+        b[i + 1] = (byte) (v >>> 16);
+        b[i + 2] = (byte) (v >>> 8);
+        b[i + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,431 @@
+package com.httpproxy.vpn.tun;
+
+import com.httpproxy.vpn.proxy.ProxyMetrics;
+import com.httpproxy.vpn.proxy.UpstreamProxyClient;
+import com.httpproxy.vpn.vpn.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * TUN 上一条 TCP 连接的服务端状态机：收到客户端 SYN 后先通过上游代理连接目标，成功才回复 SYN-ACK，
+ * 失败或被规则拒绝时回复 RST，因此客户端看到的连接结果与目标一致。
+ * <p>
+ * 两个方向各有一个环形缓冲区：客户端数据按序写入 rx，由写线程转发给上游；上游数据由读线程写入 tx，
+ * 按客户端窗口与 MSS 分段发出，确认后释放。只接收按序到达的数据，乱序段丢弃并重复确认；
+ * 重传采用回退 N，由超时（RTO 从 {@link #MIN_RTO_MS} 起倍增）或三个重复确认触发。不支持窗口缩放与 SACK，通告窗口即 rx 的空闲空间。
+ * <p>
+ * 所有状态由 this 保护；数据包由引擎读线程与定时线程调用，上游读写在引擎线程池中进行。
+ */
+final class TcpFlow {
+
+    /** 每个方向的环形缓冲区大小，也是最大通告窗口 */
+    static final int RING_SIZE = 32 * 1024;
+    static final int MIN_RTO_MS = 500;
+    static final int MAX_RTO_MS = 8000;
+    /** 收到这么多个重复确认即认为丢包，不等超时立即重传 */
+    static final int DUP_ACK_THRESHOLD = 3;
+    /** 连续超时重传（期间客户端没有任何回应）的最大次数 */
+    static final int MAX_RETRIES = 8;
+    static final long IDLE_TIMEOUT_MS = 10 * 60000;
+
+    private static final int CONNECTING = 0;
+    private static final int SYN_RECEIVED = 1;
+    private static final int ESTABLISHED = 2;
+    private static final int CLOSED = 3;
+
+    private final TunEngine engine;
+    final FlowKey key;
+    private final byte[] clientAddr;
+    private final byte[] serverAddr;
+    private final int clientPort;
+    private final int serverPort;
+    private final String host;
+    private final int mss;
+    private final ProxyMetrics metrics = ProxyMetrics.get();
+
+    private final ByteBuffer rxBuffer;
+    private final ByteBuffer txBuffer;
+    private final ByteBuffer outBuffer;
+    private final byte[] rx;
+    private final byte[] tx;
+    private final byte[] out;
+
+    private int state = CONNECTING;
+    private Socket socket;
+    private ProxyMetrics.HostStats stats;
+    /** 仍在运行、可能访问缓冲区的线程数，归零且已关闭后归还缓冲区 */
+    private int threads;
+    private boolean released;
+    private long lastActivity;
+
+    // 客户端 -> 上游
+    private int rcvNxt;
+    private int rxHead;
+    private int rxCount;
+    private boolean clientFin;
+    private boolean outputShut;
+    private int advertised;
+
+    // 上游 -> 客户端
+    private int iss;
+    private int sndUna;
+    private int sndNxt;
+    private int sndWnd;
+    /** tx 中 sndUna 对应的位置；txCount 包括已发出未确认与尚未发出的数据 */
+    private int txHead;
+    private int txCount;
+    private boolean upstreamEof;
+    private boolean finSent;
+    private boolean finAcked;
+    private int rto = MIN_RTO_MS;
+    private long rtoAt;
+    private int retries;
+    private int dupAcks;
+
+    TcpFlow(TunEngine engine, FlowKey key, IpPacket syn, String host, int mss) {
+        this.engine = engine;
+        this.key = key;
+        this.clientAddr = Packets.copy(syn.buf, syn.srcOffset, syn.addrLength);
+        this.serverAddr = Packets.copy(syn.buf, syn.dstOffset, syn.addrLength);
+        this.clientPort = syn.srcPort;
+        this.serverPort = syn.dstPort;
+        this.host = host;
+        this.mss = mss;
+        this.rcvNxt = syn.seq + 1;
+        this.sndWnd = syn.window;
+        this.lastActivity = System.currentTimeMillis();
+        BufferPool pool = BufferPool.heap();
+        rxBuffer = pool.acquire(RING_SIZE);
+        txBuffer = pool.acquire(RING_SIZE);
+        outBuffer = pool.acquire(Packets.IPV6_HEADER + Packets.TCP_HEADER + 4 + mss);
+        rx = rxBuffer.array();
+        tx = txBuffer.array();
+        out = outBuffer.array();
+    }
+
+    /** 连接上游；成功后回复 SYN-ACK，并在当前线程继续读取上游。 */
+    void connect() {
+        synchronized (this) {
+            if (state == CLOSED) return;
+            threads++;
+        }
+        UpstreamProxyClient target = engine.route(host);
+        Socket s;
+        try {
+            if (target == null) throw new IOException("rejected by rule: " + host);
+            s = target.connect(host, serverPort);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (state != CLOSED) send(IpPacket.TCP_RST | IpPacket.TCP_ACK, 0, null, 0, 0);
+                close();
+            }
+            threadExited();
+            return;
+        }
+        synchronized (this) {
+            if (state == CLOSED) {
+                closeQuietly(s);
+                threadExited();
+                return;
+            }
+            socket = s;
+            stats = metrics.tunnelOpened(host);
+            iss = ThreadLocalRandom.current().nextInt();
+            sndUna = iss;
+            sndNxt = iss + 1;
+            state = SYN_RECEIVED;
+            send(IpPacket.TCP_SYN | IpPacket.TCP_ACK, iss, null, 0, 0);
+            rtoAt = System.currentTimeMillis() + rto;
+            threads++;
+        }
+        try {
+            engine.execute(this::writeLoop);
+        } catch (RejectedExecutionException e) {
+            threadExited();
+            abort();
+        }
+        readLoop();
+    }
+
+    /** 处理客户端发来的一个段。 */
+    synchronized void onSegment(IpPacket p) {
+        if (state == CLOSED) return;
+        lastActivity = System.currentTimeMillis();
+        if (p.hasFlag(IpPacket.TCP_RST)) {
+            close();
+            return;
+        }
+        if (state == CONNECTING) return; // 客户端重传的 SYN，等待上游连接结果
+        if (state == SYN_RECEIVED) {
+            if (p.hasFlag(IpPacket.TCP_SYN)) {
+                send(IpPacket.TCP_SYN | IpPacket.TCP_ACK, iss, null, 0, 0);
+                return;
+            }
+            if (!p.hasFlag(IpPacket.TCP_ACK) || p.ack != iss + 1) return;
+            state = ESTABLISHED;
+            sndUna = iss + 1;
+            sndNxt = sndUna;
+            rtoAt = 0;
+            rto = MIN_RTO_MS;
+        }
+        if (p.hasFlag(IpPacket.TCP_ACK)) {
+            boolean pure = p.payloadLength == 0 && (p.flags & (IpPacket.TCP_SYN | IpPacket.TCP_FIN)) == 0;
+            onAck(p.ack, p.window, pure);
+        }
+        if (p.payloadLength > 0 || p.hasFlag(IpPacket.TCP_FIN) || p.hasFlag(IpPacket.TCP_SYN)) {
+            receive(p);
+            sendAck();
+        }
+        sendPending();
+        maybeFinish();
+    }
+
+    private void receive(IpPacket p) {
+        if (clientFin) return;
+        int len = p.payloadLength;
+        int start = rcvNxt - p.seq; // 已收到的前缀长度，负数表示乱序
+        if (start < 0 || start > len) return;
+        int accept = Math.min(len - start, rx.length - rxCount);
+        int tail = (rxHead + rxCount) % rx.length;
+        int first = Math.min(accept, rx.length - tail);
+        System.arraycopy(p.buf, p.payloadOffset + start, rx, tail, first);
+        System.arraycopy(p.buf, p.payloadOffset + start + first, rx, 0, accept - first);
+        rxCount += accept;
+        rcvNxt += accept;
+        if (start + accept == len && p.hasFlag(IpPacket.TCP_FIN)) {
+            rcvNxt++;
+            clientFin = true;
+        }
+        if (accept > 0 || clientFin) notifyAll();
+    }
+
+    private void onAck(int ack, int window, boolean pure) {
+        retries = 0;
+        int acked = ack - sndUna;
+        int inFlight = sndNxt - sndUna;
+        if (acked > 0 && acked <= inFlight) {
+            int data = acked;
+            if (finSent && acked == inFlight) {
+                finAcked = true;
+                data--;
+            }
+            txHead = (txHead + data) % tx.length;
+            txCount -= data;
+            sndUna = ack;
+            rto = MIN_RTO_MS;
+            rtoAt = sndNxt != sndUna ? System.currentTimeMillis() + rto : 0;
+            dupAcks = 0;
+            notifyAll();
+        } else if (acked == 0 && inFlight > 0 && pure && window == sndWnd
+                && ++dupAcks == DUP_ACK_THRESHOLD) {
+            // 快速重传：随后的 sendPending 从 sndUna 起重新发送
+            sndNxt = sndUna;
+            finSent = false;
+            rtoAt = 0;
+        }
+        sndWnd = window;
+    }
+
+    /** 在客户端窗口内发出 tx 中尚未发送的数据，数据发完且上游已结束时发出 FIN。 */
+    private void sendPending() {
+        if (state != ESTABLISHED || finSent) return;
+        while (true) {
+            int inFlight = sndNxt - sndUna;
+            int unsent = txCount - inFlight;
+            if (unsent <= 0) break;
+            int room = sndWnd - inFlight;
+            if (room <= 0) {
+                // 零窗口：由超时定时器发出窗口探测
+                armRto();
+                return;
+            }
+            int offset = (txHead + inFlight) % tx.length;
+            int n = Math.min(Math.min(unsent, room), Math.min(mss, tx.length - offset));
+            int flags = IpPacket.TCP_ACK | (n == unsent ? IpPacket.TCP_PSH : 0);
+            send(flags, sndNxt, tx, offset, n);
+            sndNxt += n;
+            armRto();
+        }
+        if (upstreamEof) {
+            send(IpPacket.TCP_FIN | IpPacket.TCP_ACK, sndNxt, null, 0, 0);
+            sndNxt++;
+            finSent = true;
+            armRto();
+        }
+    }
+
+    /** 定时线程调用：超时重传、零窗口探测与空闲超时。 */
+    synchronized void tick(long now) {
+        if (state == CLOSED || state == CONNECTING) return;
+        if (now - lastActivity > IDLE_TIMEOUT_MS) {
+            abort();
+            return;
+        }
+        if (rtoAt == 0 || now < rtoAt) return;
+        if (++retries > MAX_RETRIES) {
+            abort();
+            return;
+        }
+        rto = Math.min(rto * 2, MAX_RTO_MS);
+        rtoAt = 0;
+        if (state == SYN_RECEIVED) {
+            send(IpPacket.TCP_SYN | IpPacket.TCP_ACK, iss, null, 0, 0);
+            armRto();
+            return;
+        }
+        // 回退 N：从最早未确认的字节重新发送
+        sndNxt = sndUna;
+        finSent = false;
+        sendPending();
+        if (sndNxt == sndUna && txCount > 0) {
+            send(IpPacket.TCP_ACK, sndNxt, tx, txHead, 1);
+            sndNxt++;
+        }
+        armRto();
+    }
+
+    private void readLoop() {
+        try {
+            InputStream in = socket.getInputStream();
+            while (true) {
+                int offset;
+                int n;
+                synchronized (this) {
+                    while (state != CLOSED && txCount == tx.length) wait();
+                    if (state == CLOSED) return;
+                    offset = (txHead + txCount) % tx.length;
+                    n = Math.min(tx.length - txCount, tx.length - offset);
+                }
+                int r = in.read(tx, offset, n);
+                synchronized (this) {
+                    if (state == CLOSED) return;
+                    lastActivity = System.currentTimeMillis();
+                    if (r < 0) {
+                        upstreamEof = true;
+                        sendPending();
+                        return;
+                    }
+                    txCount += r;
+                    stats.addDown(r);
+                    sendPending();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            synchronized (this) {
+                if (state != CLOSED) metrics.error(ProxyMetrics.Error.RELAY);
+            }
+            abort();
+        } finally {
+            threadExited();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            OutputStream os = socket.getOutputStream();
+            while (true) {
+                int offset;
+                int n;
+                synchronized (this) {
+                    while (state != CLOSED && rxCount == 0 && !clientFin) wait();
+                    if (state == CLOSED) return;
+                    if (rxCount == 0) {
+                        socket.shutdownOutput();
+                        outputShut = true;
+                        maybeFinish();
+                        return;
+                    }
+                    offset = rxHead;
+                    n = Math.min(rxCount, rx.length - rxHead);
+                }
+                os.write(rx, offset, n);
+                synchronized (this) {
+                    if (state == CLOSED) return;
+                    lastActivity = System.currentTimeMillis();
+                    rxHead = (rxHead + n) % rx.length;
+                    rxCount -= n;
+                    stats.addUp(n);
+                    // 窗口明显打开时主动通告，避免客户端停在小窗口上
+                    int window = window();
+                    if ((advertised < mss && window >= mss) || window - advertised >= rx.length / 2) sendAck();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            synchronized (this) {
+                if (state != CLOSED) metrics.error(ProxyMetrics.Error.RELAY);
+            }
+            abort();
+        } finally {
+            threadExited();
+        }
+    }
+
+    /** 双方都已发出 FIN 并被确认时关闭。 */
+    private void maybeFinish() {
+        if (clientFin && outputShut && finAcked) close();
+    }
+
+    /** 向客户端发 RST 并关闭。 */
+    synchronized void abort() {
+        if (state == CLOSED) return;
+        if (state != CONNECTING) send(IpPacket.TCP_RST | IpPacket.TCP_ACK, sndNxt, null, 0, 0);
+        close();
+    }
+
+    private void close() {
+        if (state == CLOSED) return;
+        state = CLOSED;
+        engine.remove(this);
+        if (socket != null) closeQuietly(socket);
+        if (stats != null) metrics.tunnelClosed();
+        notifyAll();
+        releaseIfIdle();
+    }
+
+    private synchronized void threadExited() {
+        threads--;
+        releaseIfIdle();
+    }
+
+    private void releaseIfIdle() {
+        if (state != CLOSED || threads > 0 || released) return;
+        released = true;
+        BufferPool pool = BufferPool.heap();
+        pool.release(rxBuffer);
+        pool.release(txBuffer);
+        pool.release(outBuffer);
+    }
+
+    private void armRto() {
+        if (rtoAt == 0) rtoAt = System.currentTimeMillis() + rto;
+    }
+
+    private int window() {
+        return Math.min(rx.length - rxCount, 0xffff);
+    }
+
+    private void sendAck() {
+        send(IpPacket.TCP_ACK, sndNxt, null, 0, 0);
+    }
+
+    private void send(int flags, int seq, byte[] data, int offset, int length) {
+        int window = window();
+        int mssOption = (flags & IpPacket.TCP_SYN) != 0 ? mss : 0;
+        int n = Packets.tcp(out, serverAddr, clientAddr, serverPort, clientPort, seq, rcvNxt, flags, window,
+                mssOption, data, offset, length);
+        advertised = window;
+        engine.write(out, n);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) { }
+    }
+}
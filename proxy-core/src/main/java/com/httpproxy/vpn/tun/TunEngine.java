@@ -0,0 +1,246 @@
+package com.httpproxy.vpn.tun;
+
+import com.httpproxy.vpn.proxy.DirectUpstreamClient;
+import com.httpproxy.vpn.proxy.UpstreamProxyClient;
+import com.httpproxy.vpn.rule.RuleAction;
+import com.httpproxy.vpn.rule.RuleSet;
+import com.httpproxy.vpn.vpn.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 用户态 TCP/IP 栈：直接读写 VPN 接口（TUN）上的 IP 包，把每条 TCP 连接终结在本地，
+ * 再通过 {@link UpstreamProxyClient#connect(String, int)} 转发到上游代理，不依赖应用遵守系统 HTTP 代理设置。
+ * <p>
+ * 输入流每次 read 返回一个完整的 IP 包，输出流每次 write 写出一个完整的 IP 包；
+ * 除 VPN 文件描述符外也可以是任意包流，便于在普通 JVM 上测试。
+ * <p>
+ * 发往 53 端口的 UDP 查询由内置的 {@link DnsResponder} 立即用假 IP 回答，到假 IP 的连接按主机名交给上游代理，
+ * 本地不做任何解析。其余 UDP 与非 TCP 包丢弃。每条连接按 {@link RuleSet} 直连、走代理或回复 RST。
+ */
+public final class TunEngine {
+
+    /** 内置 DNS 服务器地址（VPN 接口的 DNS 设置） */
+    public static final String DNS_SERVER = FakeIpPool.addressString(FakeIpPool.DNS_INDEX, false);
+    /** 假 IP 网段，需加入 VPN 路由 */
+    public static final String FAKE_IPV4_NETWORK = FakeIpPool.addressString(0, false);
+    public static final int FAKE_IPV4_PREFIX = FakeIpPool.IPV4_PREFIX;
+    public static final String FAKE_IPV6_NETWORK = FakeIpPool.addressString(0, true);
+    public static final int FAKE_IPV6_PREFIX = FakeIpPool.IPV6_PREFIX;
+    /** VPN 接口的 IPv6 地址，位于假 IP 网段内，使客户端能连接 AAAA 应答中的地址 */
+    public static final String IPV6_ADDRESS = FakeIpPool.addressString(1, true);
+
+    /** 重传与空闲检查的定时间隔 */
+    static final long TICK_MS = 200;
+    /** 客户端 SYN 没有 MSS 选项时按 RFC 默认值 */
+    private static final int DEFAULT_MSS_V4 = 536;
+    private static final int DEFAULT_MSS_V6 = 1220;
+
+    private volatile UpstreamProxyClient upstream;
+    private volatile RuleSet rules = RuleSet.EMPTY;
+    private final UpstreamProxyClient direct = new DirectUpstreamClient();
+    private final InputStream tunIn;
+    private final OutputStream tunOut;
+    private final int mtu;
+    private final ConcurrentHashMap<FlowKey, TcpFlow> flows = new ConcurrentHashMap<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final FakeIpPool fakeIps = new FakeIpPool();
+    private final DnsResponder dns = new DnsResponder(fakeIps);
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Tun-" + r.hashCode());
+        t.setDaemon(true);
+        return t;
+    });
+    // 以下只在读线程中使用
+    private final IpPacket packet = new IpPacket();
+    private final FlowKey probe = new FlowKey();
+    private byte[] resetBuffer;
+    private byte[] dnsAnswer;
+    private byte[] dnsPacket;
+
+    public TunEngine(UpstreamProxyClient upstream, InputStream tunIn, OutputStream tunOut, int mtu) {
+        this.upstream = upstream;
+        this.tunIn = tunIn;
+        this.tunOut = tunOut;
+        this.mtu = mtu;
+    }
+
+    public synchronized void start() {
+        if (!running.compareAndSet(false, true)) return;
+        Thread reader = new Thread(this::readLoop, "Tun-reader");
+        reader.setDaemon(true);
+        reader.start();
+        Thread timer = new Thread(this::timerLoop, "Tun-timer");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    /** 停止读包并重置全部连接。读线程阻塞在 TUN 上时，随文件描述符关闭退出。 */
+    public synchronized void stop() {
+        if (!running.compareAndSet(true, false)) return;
+        for (TcpFlow flow : flows.values()) {
+            flow.abort();
+        }
+        executor.shutdown();
+    }
+
+    /** 替换上游代理，只影响之后建立的连接。 */
+    public void setUpstream(UpstreamProxyClient upstream) {
+        this.upstream = upstream;
+    }
+
+    /** 替换路由规则，只影响之后建立的连接。 */
+    public void setRules(RuleSet rules) {
+        this.rules = rules;
+    }
+
+    public int activeFlows() {
+        return flows.size();
+    }
+
+    /** 当前保留的假 IP 映射数。 */
+    public int fakeIpMappings() {
+        return fakeIps.size();
+    }
+
+    /** 按规则选择 host 的出口，拒绝时返回 null。 */
+    UpstreamProxyClient route(String host) {
+        RuleAction action = rules.match(host);
+        if (action == RuleAction.REJECT) return null;
+        return action == RuleAction.DIRECT ? direct : upstream;
+    }
+
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    void remove(TcpFlow flow) {
+        flows.remove(flow.key, flow);
+    }
+
+    /** 写出一个 IP 包。TUN 写失败（接口已关闭）时丢弃。 */
+    void write(byte[] buf, int length) {
+        synchronized (tunOut) {
+            try {
+                tunOut.write(buf, 0, length);
+            } catch (IOException ignored) { }
+        }
+    }
+
+    private void readLoop() {
+        ByteBuffer buffer = BufferPool.heap().acquire(mtu);
+        resetBuffer = new byte[Packets.IPV6_HEADER + Packets.TCP_HEADER];
+        dnsAnswer = new byte[DnsResponder.MAX_RESPONSE];
+        dnsPacket = new byte[Packets.IPV6_HEADER + 8 + DnsResponder.MAX_RESPONSE];
+        try {
+            byte[] buf = buffer.array();
+            while (running.get()) {
+                int n = tunIn.read(buf, 0, buf.length);
+                if (n < 0) break;
+                if (n > 0) onPacket(buf, n);
+            }
+        } catch (IOException ignored) {
+        } finally {
+            BufferPool.heap().release(buffer);
+            stop();
+        }
+    }
+
+    private void timerLoop() {
+        while (running.get()) {
+            try {
+                Thread.sleep(TICK_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (TcpFlow flow : flows.values()) {
+                flow.tick(now);
+            }
+        }
+    }
+
+    private void onPacket(byte[] buf, int length) {
+        if (!packet.parse(buf, 0, length)) return;
+        if (packet.isUdp()) {
+            if (packet.dstPort == DnsResponder.PORT) answerDns();
+            return;
+        }
+        TcpFlow flow = flows.get(probe.set(packet));
+        if (flow != null) {
+            flow.onSegment(packet);
+            return;
+        }
+        if (packet.hasFlag(IpPacket.TCP_SYN) && !packet.hasFlag(IpPacket.TCP_ACK)) {
+            open();
+        } else if (!packet.hasFlag(IpPacket.TCP_RST)) {
+            reset();
+        }
+    }
+
+    private void open() {
+        String host = hostFor(packet);
+        if (host == null) {
+            reset();
+            return;
+        }
+        FlowKey key = probe.copy();
+        TcpFlow flow = new TcpFlow(this, key, packet, host, mssFor(packet));
+        flows.put(key, flow);
+        try {
+            executor.execute(flow::connect);
+        } catch (RejectedExecutionException e) {
+            flow.abort();
+        }
+    }
+
+    /** 连接目标的主机名：假 IP 取映射的主机名（映射已淘汰时为 null），其他地址直接使用。 */
+    private String hostFor(IpPacket p) {
+        if (FakeIpPool.contains(p.buf, p.dstOffset, p.addrLength)) {
+            return fakeIps.hostFor(p.buf, p.dstOffset, p.addrLength);
+        }
+        return p.dstAddressString();
+    }
+
+    /** 回答 DNS 查询，查询发往哪个地址就以哪个地址的身份回复。 */
+    private void answerDns() {
+        IpPacket p = packet;
+        int n = dns.answer(p.buf, p.payloadOffset, p.payloadLength, dnsAnswer);
+        if (n < 0) return;
+        byte[] src = Packets.copy(p.buf, p.dstOffset, p.addrLength);
+        byte[] dst = Packets.copy(p.buf, p.srcOffset, p.addrLength);
+        write(dnsPacket, Packets.udp(dnsPacket, src, dst, p.dstPort, p.srcPort, dnsAnswer, 0, n));
+    }
+
+    private int mssFor(IpPacket p) {
+        int local = mtu - Packets.ipHeaderLength(p.version) - Packets.TCP_HEADER;
+        int remote = p.mss > 0 ? p.mss : (p.version == 4 ? DEFAULT_MSS_V4 : DEFAULT_MSS_V6);
+        return Math.min(local, remote);
+    }
+
+    /** 对不属于任何连接的段回复 RST（RFC 793 3.4）。 */
+    private void reset() {
+        IpPacket p = packet;
+        byte[] src = Packets.copy(p.buf, p.dstOffset, p.addrLength);
+        byte[] dst = Packets.copy(p.buf, p.srcOffset, p.addrLength);
+        int n;
+        if (p.hasFlag(IpPacket.TCP_ACK)) {
+            n = Packets.tcp(resetBuffer, src, dst, p.dstPort, p.srcPort, p.ack, 0, IpPacket.TCP_RST, 0, 0,
+                    null, 0, 0);
+        } else {
+            int ack = p.seq + p.payloadLength + (p.hasFlag(IpPacket.TCP_SYN) ? 1 : 0)
+                    + (p.hasFlag(IpPacket.TCP_FIN) ? 1 : 0);
+            n = Packets.tcp(resetBuffer, src, dst, p.dstPort, p.srcPort, 0, ack,
+                    IpPacket.TCP_RST | IpPacket.TCP_ACK, 0, 0, null, 0, 0);
+        }
+        write(resetBuffer, n);
+    }
+}
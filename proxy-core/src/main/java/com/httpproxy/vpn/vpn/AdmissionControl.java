@@ -0,0 +1,271 @@
+package com.httpproxy.vpn.vpn;
+
+import com.httpproxy.vpn.proxy.ProxyMetrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 本地代理的准入控制：限制同时服务的客户端连接数、到同一目标的隧道数与同时进行的上游握手数，上限为 0 表示不限制。
+ * <p>
+ * 超出连接数上限的新连接放入有界队列，不占用线程，有空位时按先后交给 {@link Handler}；目标与握手的上限在处理线程中等待。
+ * 所有等待者合计不超过 queue 个，队列已满或等待超过 queueTimeoutMillis 时回复 503 并附 Retry-After。
+ */
+final class AdmissionControl {
+
+    /** 阻塞引擎每条连接占用一到两个线程 */
+    static final int DEFAULT_MAX_TUNNELS = 512;
+    /** 浏览器对同一主机通常最多 6 条连接，留出余量给并发较多的应用 */
+    static final int DEFAULT_MAX_TUNNELS_PER_HOST = 64;
+    static final int DEFAULT_MAX_HANDSHAKES = 64;
+    static final int DEFAULT_QUEUE = 128;
+    static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 10000;
+    static final int RETRY_AFTER_SECONDS = 2;
+    static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + RETRY_AFTER_SECONDS
+            + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    /** 开始处理一条已获准的客户端连接，不得阻塞。 */
+    interface Handler {
+        void serve(Socket client);
+    }
+
+    private final Handler handler;
+    private final ProxyMetrics metrics = ProxyMetrics.get();
+    private int maxTunnels = DEFAULT_MAX_TUNNELS;
+    private int maxTunnelsPerHost = DEFAULT_MAX_TUNNELS_PER_HOST;
+    private int maxHandshakes = DEFAULT_MAX_HANDSHAKES;
+    private int queue = DEFAULT_QUEUE;
+    private long queueTimeoutMillis = DEFAULT_QUEUE_TIMEOUT_MILLIS;
+    /** 已获准、尚未结束的客户端连接数 */
+    private int tunnels;
+    private int handshakes;
+    private final Map<String, int[]> hosts = new HashMap<>();
+    /** 等待连接名额的新连接，按到达先后排列，截止时间递增 */
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    /** 在处理线程中等待目标或握手名额的连接数 */
+    private int waiting;
+    private boolean closed;
+
+    AdmissionControl(Handler handler) {
+        this.handler = handler;
+        Thread expirer = new Thread(this::expireLoop, "LocalProxy-admission");
+        expirer.setDaemon(true);
+        expirer.start();
+    }
+
+    /** 调整上限，已排队与等待中的连接按新上限继续。 */
+    synchronized void setLimits(int maxTunnels, int maxTunnelsPerHost, int maxHandshakes, int queue, long queueTimeoutMillis) {
+        this.maxTunnels = Math.max(0, maxTunnels);
+        this.maxTunnelsPerHost = Math.max(0, maxTunnelsPerHost);
+        this.maxHandshakes = Math.max(0, maxHandshakes);
+        this.queue = Math.max(0, queue);
+        this.queueTimeoutMillis = Math.max(0, queueTimeoutMillis);
+        notifyAll();
+    }
+
+    /** 新接受的客户端连接：有名额时交给 Handler，否则排队；队列已满时回复 503。 */
+    void offer(Socket client) {
+        synchronized (this) {
+            if (closed) {
+                closeQuietly(client);
+                return;
+            }
+            if ((maxTunnels == 0 || tunnels < maxTunnels) && pending.isEmpty()) {
+                tunnels++;
+            } else if (pending.size() + waiting < queue) {
+                pending.addLast(new Pending(client, System.currentTimeMillis() + queueTimeoutMillis));
+                metrics.admissionQueued(1);
+                notifyAll();
+                return;
+            } else {
+                client = reject(client, ProxyMetrics.Limit.TUNNELS);
+            }
+        }
+        if (client != null) handler.serve(client);
+    }
+
+    /** 一条获准的连接结束，名额交给排在最前的连接。 */
+    void release() {
+        Socket next = null;
+        synchronized (this) {
+            if (!pending.isEmpty() && (maxTunnels == 0 || tunnels <= maxTunnels)) {
+                next = pending.pollFirst().client;
+                metrics.admissionQueued(-1);
+            } else if (tunnels > 0) {
+                tunnels--;
+            }
+        }
+        if (next != null) handler.serve(next);
+    }
+
+    /** 取得到 host 的隧道名额，需要时等待；排队已满或超时返回 false，由调用方回复 503。 */
+    synchronized boolean acquireHost(String host) {
+        if (!await(host)) return false;
+        int[] count = hosts.get(host);
+        if (count == null) {
+            count = new int[1];
+            hosts.put(host, count);
+        }
+        count[0]++;
+        return true;
+    }
+
+    synchronized void releaseHost(String host) {
+        int[] count = hosts.get(host);
+        if (count == null) return;
+        if (--count[0] == 0) hosts.remove(host);
+        notifyAll();
+    }
+
+    /** 取得一个上游握手名额，需要时等待；排队已满或超时返回 false，由调用方回复 503。 */
+    synchronized boolean acquireHandshake() {
+        if (!await(null)) return false;
+        handshakes++;
+        return true;
+    }
+
+    synchronized void releaseHandshake() {
+        if (handshakes > 0) handshakes--;
+        notifyAll();
+    }
+
+    /** 关闭所有排队中的连接，唤醒等待者。 */
+    void close() {
+        List<Pending> dropped;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            dropped = new ArrayList<>(pending);
+            pending.clear();
+            metrics.admissionQueued(-dropped.size());
+            notifyAll();
+        }
+        for (Pending p : dropped) closeQuietly(p.client);
+    }
+
+    /** 回复 503 并关闭客户端，供处理线程在取得名额失败后调用。 */
+    static void serviceUnavailable(Socket client, OutputStream clientOut) {
+        try {
+            clientOut.write(SERVICE_UNAVAILABLE);
+            clientOut.flush();
+        } catch (IOException ignored) {
+        } finally {
+            closeQuietly(client);
+        }
+    }
+
+    /** host 为 null 时等待握手名额。调用方持有 this。 */
+    private boolean await(String host) {
+        ProxyMetrics.Limit limit = host != null ? ProxyMetrics.Limit.HOST : ProxyMetrics.Limit.HANDSHAKES;
+        long deadline = 0;
+        try {
+            while (!hasSlot(host)) {
+                long now = System.currentTimeMillis();
+                if (closed) return false;
+                if (deadline == 0) {
+                    if (pending.size() + waiting >= queue) {
+                        metrics.reject(limit);
+                        return false;
+                    }
+                    deadline = now + queueTimeoutMillis;
+                    waiting++;
+                    metrics.admissionQueued(1);
+                } else if (now >= deadline) {
+                    metrics.reject(limit);
+                    return false;
+                }
+                wait(Math.max(1, deadline - now));
+            }
+            return true;
+        } catch (InterruptedException e) {
+            // 握手超时时处理线程被中断
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (deadline != 0) {
+                waiting--;
+                metrics.admissionQueued(-1);
+            }
+        }
+    }
+
+    private boolean hasSlot(String host) {
+        if (host == null) return maxHandshakes == 0 || handshakes < maxHandshakes;
+        if (maxTunnelsPerHost == 0) return true;
+        int[] count = hosts.get(host);
+        return count == null || count[0] < maxTunnelsPerHost;
+    }
+
+    /** 记录拒绝并回复 503，返回 null。调用方持有 this；回环连接刚建立时发送缓冲区为空，写入不会阻塞。 */
+    private Socket reject(Socket client, ProxyMetrics.Limit limit) {
+        metrics.reject(limit);
+        try {
+            serviceUnavailable(client, client.getOutputStream());
+        } catch (IOException e) {
+            closeQuietly(client);
+        }
+        return null;
+    }
+
+    /** 排队超时的连接回复 503；上限调大后按新上限放行排队的连接。 */
+    private void expireLoop() {
+        List<Socket> expired = new ArrayList<>();
+        List<Socket> admitted = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                if (closed) return;
+                long now = System.currentTimeMillis();
+                while (!pending.isEmpty() && (maxTunnels == 0 || tunnels < maxTunnels)) {
+                    admitted.add(pending.pollFirst().client);
+                    metrics.admissionQueued(-1);
+                    tunnels++;
+                }
+                while (!pending.isEmpty() && pending.peekFirst().deadline <= now) {
+                    expired.add(pending.pollFirst().client);
+                    metrics.admissionQueued(-1);
+                    metrics.reject(ProxyMetrics.Limit.TUNNELS);
+                }
+                if (expired.isEmpty() && admitted.isEmpty()) {
+                    try {
+                        wait(pending.isEmpty() ? 0 : Math.max(1, pending.peekFirst().deadline - now));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            for (Socket client : expired) {
+                try {
+                    serviceUnavailable(client, client.getOutputStream());
+                } catch (IOException e) {
+                    closeQuietly(client);
+                }
+            }
+            for (Socket client : admitted) handler.serve(client);
+            expired.clear();
+            admitted.clear();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try { socket.close(); } catch (IOException ignored) { }
+    }
+
+    private static final class Pending {
+
+        final Socket client;
+        final long deadline;
+
+        Pending(Socket client, long deadline) {
+            this.client = client;
+            this.deadline = deadline;
+        }
+    }
+}
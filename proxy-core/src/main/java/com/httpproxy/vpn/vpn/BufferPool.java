@@ -0,0 +1,238 @@
+package com.httpproxy.vpn.vpn;
+
+import com.httpproxy.vpn.proxy.ProxyMetrics;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 有界的共享缓冲池：按容量分级复用 ByteBuffer，稳态转发不再为每个连接分配缓冲区。
+ * <p>
+ * 每个容量级别最多保留固定数量的空闲缓冲区，超出的直接丢弃交给 GC；超过最大级别的请求不入池。
+ * 按采样间隔对借出的缓冲区做泄漏跟踪：被 GC 回收却从未归还的缓冲区计入 {@link #leaks()}。
+ */
+public final class BufferPool implements ProxyMetrics.BufferStats {
+
+    private static final int[] SIZE_CLASSES = {8 * 1024, 16 * 1024, 32 * 1024, 64 * 1024};
+    private static final int[] MAX_RETAINED = {256, 64, 16, 8};
+    private static final int DEFAULT_LEAK_SAMPLE_INTERVAL = 128;
+    private static final int MAX_TRACKED = 64;
+
+    private static final BufferPool HEAP = new BufferPool(false, DEFAULT_LEAK_SAMPLE_INTERVAL);
+    private static final BufferPool DIRECT = new BufferPool(true, DEFAULT_LEAK_SAMPLE_INTERVAL);
+
+    static {
+        ProxyMetrics.get().addBufferPool(HEAP);
+        ProxyMetrics.get().addBufferPool(DIRECT);
+    }
+
+    /** 堆内缓冲池，用于需要 byte[] 的阻塞流读写与请求头解析。 */
+    public static BufferPool heap() {
+        return HEAP;
+    }
+
+    /** 直接内存缓冲池，用于 Channel 读写。 */
+    public static BufferPool direct() {
+        return DIRECT;
+    }
+
+    private final boolean direct;
+    private final SizeClass[] classes;
+    private final int leakSampleInterval;
+    private final AtomicLong acquires = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+    private final ReferenceQueue<ByteBuffer> leakQueue = new ReferenceQueue<>();
+    private final LeakRef[] tracked = new LeakRef[MAX_TRACKED];
+    private int trackedCount;
+    private volatile Throwable lastLeakSite;
+
+    /**
+     * @param direct             是否使用直接内存
+     * @param leakSampleInterval 每借出多少个缓冲区跟踪一个，0 表示关闭泄漏检测
+     */
+    public BufferPool(boolean direct, int leakSampleInterval) {
+        this.direct = direct;
+        this.leakSampleInterval = leakSampleInterval;
+        this.classes = new SizeClass[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            classes[i] = new SizeClass(SIZE_CLASSES[i], MAX_RETAINED[i]);
+        }
+    }
+
+    /** 借出容量不小于 minCapacity 的缓冲区（已 clear），用完必须 {@link #release}。 */
+    public ByteBuffer acquire(int minCapacity) {
+        pollLeaks();
+        outstanding.incrementAndGet();
+        SizeClass sc = classFor(minCapacity);
+        ByteBuffer buf = sc != null ? sc.poll() : null;
+        if (buf != null) {
+            hits.incrementAndGet();
+            buf.clear();
+        } else {
+            misses.incrementAndGet();
+            int capacity = sc != null ? sc.size : minCapacity;
+            buf = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        if (leakSampleInterval > 0 && acquires.incrementAndGet() % leakSampleInterval == 0) {
+            track(buf);
+        }
+        return buf;
+    }
+
+    /** 归还缓冲区；null 会被忽略。归还后调用方不得再使用该缓冲区。 */
+    public void release(ByteBuffer buf) {
+        if (buf == null) return;
+        outstanding.decrementAndGet();
+        untrack(buf);
+        if (buf.isDirect() != direct) return;
+        for (SizeClass sc : classes) {
+            if (sc.size == buf.capacity()) {
+                sc.offer(buf);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String name() {
+        return direct ? "direct" : "heap";
+    }
+
+    @Override
+    public long hits() {
+        return hits.get();
+    }
+
+    @Override
+    public long misses() {
+        return misses.get();
+    }
+
+    /** 已借出尚未归还的数量（不含已判定为泄漏的）。 */
+    @Override
+    public long outstanding() {
+        return outstanding.get();
+    }
+
+    /** 被 GC 回收却从未归还的缓冲区数量（按采样统计）。 */
+    @Override
+    public long leaks() {
+        return leaks.get();
+    }
+
+    /** 最近一次泄漏缓冲区的借出位置，没有泄漏时为 null。 */
+    @Override
+    public Throwable lastLeakSite() {
+        return lastLeakSite;
+    }
+
+    /** 池中空闲缓冲区总数。 */
+    @Override
+    public int retained() {
+        int n = 0;
+        for (SizeClass sc : classes) n += sc.count();
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return name() + " hits=" + hits() + " misses=" + misses()
+                + " outstanding=" + outstanding() + " retained=" + retained() + " leaks=" + leaks();
+    }
+
+    private SizeClass classFor(int capacity) {
+        for (SizeClass sc : classes) {
+            if (sc.size >= capacity) return sc;
+        }
+        return null;
+    }
+
+    private void track(ByteBuffer buf) {
+        synchronized (tracked) {
+            if (trackedCount == MAX_TRACKED) return;
+            for (int i = 0; i < MAX_TRACKED; i++) {
+                if (tracked[i] == null) {
+                    tracked[i] = new LeakRef(buf, leakQueue);
+                    trackedCount++;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void untrack(ByteBuffer buf) {
+        synchronized (tracked) {
+            if (trackedCount == 0) return;
+            for (int i = 0; i < MAX_TRACKED; i++) {
+                LeakRef ref = tracked[i];
+                if (ref != null && ref.get() == buf) {
+                    // clear() 不会入队，归还过的缓冲区不会被误判为泄漏
+                    ref.clear();
+                    tracked[i] = null;
+                    trackedCount--;
+                    return;
+                }
+            }
+        }
+    }
+
+    private void pollLeaks() {
+        Object ref;
+        while ((ref = leakQueue.poll()) != null) {
+            synchronized (tracked) {
+                for (int i = 0; i < MAX_TRACKED; i++) {
+                    if (tracked[i] == ref) {
+                        tracked[i] = null;
+                        trackedCount--;
+                        leaks.incrementAndGet();
+                        outstanding.decrementAndGet();
+                        lastLeakSite = ((LeakRef) ref).site;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /** 单个容量级别的空闲缓冲区，数组栈实现，归还时不产生额外分配。 */
+    private static final class SizeClass {
+
+        final int size;
+        private final ByteBuffer[] stack;
+        private int top;
+
+        SizeClass(int size, int maxRetained) {
+            this.size = size;
+            this.stack = new ByteBuffer[maxRetained];
+        }
+
+        synchronized ByteBuffer poll() {
+            if (top == 0) return null;
+            ByteBuffer buf = stack[--top];
+            stack[top] = null;
+            return buf;
+        }
+
+        synchronized void offer(ByteBuffer buf) {
+            if (top < stack.length) stack[top++] = buf;
+        }
+
+        synchronized int count() {
+            return top;
+        }
+    }
+
+    private static final class LeakRef extends WeakReference<ByteBuffer> {
+
+        final Throwable site = new Throwable("buffer acquired here");
+
+        LeakRef(ByteBuffer referent, ReferenceQueue<ByteBuffer> queue) {
+            super(referent, queue);
+        }
+    }
+}
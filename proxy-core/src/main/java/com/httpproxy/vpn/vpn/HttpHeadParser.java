@@ -0,0 +1,461 @@
+package com.httpproxy.vpn.vpn;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 增量式 HTTP 消息头解析器：直接在字节数组上按偏移定位起始行与各个头部，不为每个头部创建 String。
+ * <p>
+ * 消息头必须从 buf[0] 开始，调用方只能在末尾追加数据；每读到新数据就以新的 limit 再次调用
+ * {@link #parse}，解析器从上次停下的行继续。同一实例可通过 {@link #reset()} 复用。
+ * 默认解析请求头，{@link #forResponses()} 创建的实例解析上游返回的响应头。
+ */
+public final class HttpHeadParser {
+
+    public static final int DEFAULT_MAX_HEAD_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_HEADERS = 100;
+
+    public static final int STATUS_BAD_REQUEST = 400;
+    public static final int STATUS_HEADERS_TOO_LARGE = 431;
+
+    private final int maxHeadSize;
+    private final int maxHeaders;
+    private final boolean response;
+    private final int[] nameStart;
+    private final int[] nameEnd;
+    private final int[] valueStart;
+    private final int[] valueEnd;
+    private byte[] buf;
+    private byte[] scratch = new byte[256];
+    private int headerCount;
+    private int methodStart;
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private int versionStart;
+    private int versionEnd;
+    private int startLineEnd;
+    private int lineStart;
+    private int scan;
+    private int headLength;
+    private int errorStatus;
+    private String targetHost;
+    private int targetPort;
+    private int statusCode;
+
+    public HttpHeadParser() {
+        this(DEFAULT_MAX_HEAD_SIZE, DEFAULT_MAX_HEADERS);
+    }
+
+    public HttpHeadParser(int maxHeadSize, int maxHeaders) {
+        this(maxHeadSize, maxHeaders, false);
+    }
+
+    private HttpHeadParser(int maxHeadSize, int maxHeaders, boolean response) {
+        this.maxHeadSize = maxHeadSize;
+        this.maxHeaders = maxHeaders;
+        this.response = response;
+        this.nameStart = new int[maxHeaders];
+        this.nameEnd = new int[maxHeaders];
+        this.valueStart = new int[maxHeaders];
+        this.valueEnd = new int[maxHeaders];
+    }
+
+    /** 创建解析响应头（状态行 + 头部）的实例。 */
+    public static HttpHeadParser forResponses() {
+        return new HttpHeadParser(DEFAULT_MAX_HEAD_SIZE, DEFAULT_MAX_HEADERS, true);
+    }
+
+    public void reset() {
+        buf = null;
+        headerCount = 0;
+        startLineEnd = 0;
+        lineStart = 0;
+        scan = 0;
+        headLength = 0;
+        errorStatus = 0;
+        targetHost = null;
+        targetPort = 0;
+        statusCode = 0;
+    }
+
+    /**
+     * 继续解析 buf[0, limit)。
+     *
+     * @return 请求头是否已完整，完整后 {@link #headLength()} 为请求头（含结尾空行）的字节数
+     * @throws ProtocolException 格式错误或超出大小/数量限制，对应状态码见 {@link #errorStatus()}
+     */
+    public boolean parse(byte[] buf, int limit) throws ProtocolException {
+        this.buf = buf;
+        if (headLength > 0) return true;
+        int i = scan;
+        while (i < limit) {
+            if (buf[i] != '\n') {
+                i++;
+                continue;
+            }
+            int next = i + 1;
+            if (next > maxHeadSize) throw error(STATUS_HEADERS_TOO_LARGE, "HTTP: head too large");
+            int lineEnd = i > lineStart && buf[i - 1] == '\r' ? i - 1 : i;
+            if (startLineEnd == 0) {
+                // 请求行之前的空行按 RFC 7230 忽略
+                if (lineEnd > lineStart) {
+                    parseStartLine(lineStart, lineEnd);
+                    startLineEnd = next;
+                }
+            } else if (lineEnd == lineStart) {
+                headLength = next;
+                scan = next;
+                return true;
+            } else {
+                parseHeaderLine(lineStart, lineEnd);
+            }
+            lineStart = next;
+            i = next;
+        }
+        scan = i;
+        if (limit >= maxHeadSize) throw error(STATUS_HEADERS_TOO_LARGE, "HTTP: head too large");
+        return false;
+    }
+
+    /** 最近一次解析失败应返回给客户端的状态码。 */
+    public int errorStatus() {
+        return errorStatus;
+    }
+
+    public int headLength() {
+        return headLength;
+    }
+
+    public int headerCount() {
+        return headerCount;
+    }
+
+    public int nameStart(int index) {
+        return nameStart[index];
+    }
+
+    public int nameEnd(int index) {
+        return nameEnd[index];
+    }
+
+    public int valueStart(int index) {
+        return valueStart[index];
+    }
+
+    public int valueEnd(int index) {
+        return valueEnd[index];
+    }
+
+    public boolean isConnect() {
+        return isMethod("connect");
+    }
+
+    /** 请求目标是否为源站形式（以 / 开头）。 */
+    public boolean isOriginForm() {
+        return targetEnd > targetStart && buf[targetStart] == '/';
+    }
+
+    /** 请求目标是否为 http:// 绝对形式，可以原样发给 HTTP 代理。 */
+    public boolean isAbsoluteForm() {
+        return absoluteAuthorityStart() >= 0;
+    }
+
+    /** 请求行在 buf 中的起点（跳过了请求行前的空行）。 */
+    public int startLineStart() {
+        return methodStart;
+    }
+
+    /** 请求路径（不含查询串；绝对形式时去掉 scheme 与 authority）是否等于 lowerPath。 */
+    public boolean pathEquals(String lowerPath) {
+        int start = targetStart;
+        int authority = absoluteAuthorityStart();
+        if (authority >= 0) start = authorityEnd(authority);
+        int end = start;
+        while (end < targetEnd && buf[end] != '?' && buf[end] != '#') end++;
+        return equalsIgnoreCase(start, end, lowerPath);
+    }
+
+    /** 请求方法是否为 lowerMethod（小写）。 */
+    public boolean isMethod(String lowerMethod) {
+        return equalsIgnoreCase(methodStart, methodEnd, lowerMethod);
+    }
+
+    /** 响应状态码，仅对 {@link #forResponses()} 创建的实例有效。 */
+    public int statusCode() {
+        return statusCode;
+    }
+
+    public boolean isHttp11() {
+        return equalsIgnoreCase(versionStart, versionEnd, "http/1.1");
+    }
+
+    /**
+     * 消息结束后连接是否保持：HTTP/1.1 默认保持，除非 Connection 含 close；
+     * HTTP/1.0 需显式 keep-alive。客户端发来的 Proxy-Connection 视同 Connection。
+     */
+    public boolean isKeepAlive() {
+        if (hasToken("connection", "close") || hasToken("proxy-connection", "close")) return false;
+        if (isHttp11()) return true;
+        return hasToken("connection", "keep-alive") || hasToken("proxy-connection", "keep-alive");
+    }
+
+    /** 名为 lowerName 的头部（可出现多次）的逗号分隔列表中是否含有 lowerToken。 */
+    public boolean hasToken(String lowerName, String lowerToken) {
+        for (int i = 0; i < headerCount; i++) {
+            if (!equalsIgnoreCase(nameStart[i], nameEnd[i], lowerName)) continue;
+            int p = valueStart[i];
+            int end = valueEnd[i];
+            while (p < end) {
+                int comma = p;
+                while (comma < end && buf[comma] != ',') comma++;
+                int ts = p;
+                int te = comma;
+                while (ts < te && isSpace(buf[ts])) ts++;
+                while (te > ts && isSpace(buf[te - 1])) te--;
+                if (equalsIgnoreCase(ts, te, lowerToken)) return true;
+                p = comma + 1;
+            }
+        }
+        return false;
+    }
+
+    /** 最后一个 Transfer-Encoding 编码是否为 chunked。 */
+    public boolean isChunked() {
+        int last = -1;
+        for (int i = 0; i < headerCount; i++) {
+            if (equalsIgnoreCase(nameStart[i], nameEnd[i], "transfer-encoding")) last = i;
+        }
+        if (last < 0) return false;
+        int te = valueEnd[last];
+        int ts = te;
+        while (ts > valueStart[last] && buf[ts - 1] != ',') ts--;
+        while (ts < te && isSpace(buf[ts])) ts++;
+        return equalsIgnoreCase(ts, te, "chunked");
+    }
+
+    /**
+     * Content-Length 的值，没有该头部时返回 -1。
+     *
+     * @throws ProtocolException 值非法，或多个 Content-Length 互相矛盾
+     */
+    public long contentLength() throws ProtocolException {
+        long length = -1;
+        for (int i = 0; i < headerCount; i++) {
+            if (!equalsIgnoreCase(nameStart[i], nameEnd[i], "content-length")) continue;
+            if (valueEnd[i] == valueStart[i]) throw error(STATUS_BAD_REQUEST, "HTTP: invalid Content-Length");
+            long value = 0;
+            for (int p = valueStart[i]; p < valueEnd[i]; p++) {
+                int d = buf[p] - '0';
+                if (d < 0 || d > 9 || value > (Long.MAX_VALUE - d) / 10) {
+                    throw error(STATUS_BAD_REQUEST, "HTTP: invalid Content-Length");
+                }
+                value = value * 10 + d;
+            }
+            if (length >= 0 && length != value) throw error(STATUS_BAD_REQUEST, "HTTP: conflicting Content-Length");
+            length = value;
+        }
+        return length;
+    }
+
+    /** 按名称（小写 ASCII）查找头部，返回下标，不存在时返回 -1。 */
+    public int headerIndex(String lowerName) {
+        for (int i = 0; i < headerCount; i++) {
+            if (equalsIgnoreCase(nameStart[i], nameEnd[i], lowerName)) return i;
+        }
+        return -1;
+    }
+
+    /** buf[start, end) 是否等于 lowerAscii（忽略大小写）。 */
+    public boolean equalsIgnoreCase(int start, int end, String lowerAscii) {
+        if (end - start != lowerAscii.length()) return false;
+        for (int i = start; i < end; i++) {
+            int c = buf[i];
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            if (c != lowerAscii.charAt(i - start)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 确定目标 host:port：CONNECT 取请求行中的 authority（默认 443），
+     * 其他请求优先取 Host 头，没有时取绝对 URI 中的 authority（默认 80）。
+     * 只在这里为主机名创建 String。
+     *
+     * @return 是否能确定目标
+     */
+    public boolean resolveTarget() {
+        if (isConnect()) return parseAuthority(targetStart, targetEnd, 443);
+        int host = headerIndex("host");
+        if (host >= 0 && valueEnd[host] > valueStart[host]) {
+            return parseAuthority(valueStart[host], valueEnd[host], 80);
+        }
+        int authority = absoluteAuthorityStart();
+        if (authority < 0) return false;
+        return parseAuthority(authority, authorityEnd(authority), 80);
+    }
+
+    public String targetHost() {
+        return targetHost;
+    }
+
+    public int targetPort() {
+        return targetPort;
+    }
+
+    /**
+     * 就地把绝对形式的请求行（METHOD http://host/path VERSION）改写为源站形式（METHOD /path VERSION），
+     * 新请求行右对齐写在原请求行的位置上，头部字节保持不动。
+     *
+     * @return 改写后请求头在 buf 中的起始下标；请求行本就不是绝对形式时返回请求行原起点
+     */
+    public int rewriteToOriginForm() {
+        int authority = absoluteAuthorityStart();
+        if (authority < 0) return methodStart;
+        int pathStart = authorityEnd(authority);
+        boolean insertSlash = pathStart == targetEnd || buf[pathStart] != '/';
+        int methodLen = methodEnd - methodStart;
+        int pathLen = targetEnd - pathStart;
+        int versionLen = versionEnd - versionStart;
+        int newLen = methodLen + 1 + (insertSlash ? 1 : 0) + pathLen + 1 + versionLen + 2;
+        if (scratch.length < newLen) scratch = new byte[Math.max(newLen, scratch.length * 2)];
+        int p = 0;
+        System.arraycopy(buf, methodStart, scratch, p, methodLen);
+        p += methodLen;
+        scratch[p++] = ' ';
+        if (insertSlash) scratch[p++] = '/';
+        System.arraycopy(buf, pathStart, scratch, p, pathLen);
+        p += pathLen;
+        scratch[p++] = ' ';
+        System.arraycopy(buf, versionStart, scratch, p, versionLen);
+        p += versionLen;
+        scratch[p++] = '\r';
+        scratch[p++] = '\n';
+        int newStart = startLineEnd - newLen;
+        System.arraycopy(scratch, 0, buf, newStart, newLen);
+        return newStart;
+    }
+
+    private void parseStartLine(int start, int end) throws ProtocolException {
+        if (response) {
+            parseStatusLine(start, end);
+            return;
+        }
+        int p = start;
+        methodStart = p;
+        while (p < end && !isSpace(buf[p])) p++;
+        methodEnd = p;
+        while (p < end && isSpace(buf[p])) p++;
+        targetStart = p;
+        while (p < end && !isSpace(buf[p])) p++;
+        targetEnd = p;
+        while (p < end && isSpace(buf[p])) p++;
+        versionStart = p;
+        int e = end;
+        while (e > p && isSpace(buf[e - 1])) e--;
+        versionEnd = e;
+        if (methodEnd == methodStart || targetEnd == targetStart || versionEnd == versionStart) {
+            throw error(STATUS_BAD_REQUEST, "HTTP: malformed request line");
+        }
+    }
+
+    /** 状态行：HTTP-version SP status-code SP [reason-phrase]，原因短语可为空。 */
+    private void parseStatusLine(int start, int end) throws ProtocolException {
+        int p = start;
+        versionStart = p;
+        while (p < end && !isSpace(buf[p])) p++;
+        versionEnd = p;
+        while (p < end && isSpace(buf[p])) p++;
+        int code = 0;
+        int digits = 0;
+        while (p < end && !isSpace(buf[p])) {
+            int d = buf[p++] - '0';
+            if (d < 0 || d > 9) throw error(STATUS_BAD_REQUEST, "HTTP: malformed status line");
+            code = code * 10 + d;
+            digits++;
+        }
+        if (versionEnd - versionStart < 5 || !equalsIgnoreCase(versionStart, versionStart + 5, "http/") || digits != 3) {
+            throw error(STATUS_BAD_REQUEST, "HTTP: malformed status line");
+        }
+        statusCode = code;
+    }
+
+    private void parseHeaderLine(int start, int end) throws ProtocolException {
+        if (isSpace(buf[start])) throw error(STATUS_BAD_REQUEST, "HTTP: obsolete line folding");
+        int colon = start;
+        while (colon < end && buf[colon] != ':') colon++;
+        if (colon == start || colon == end) throw error(STATUS_BAD_REQUEST, "HTTP: malformed header");
+        if (headerCount == maxHeaders) throw error(STATUS_HEADERS_TOO_LARGE, "HTTP: too many headers");
+        int ne = colon;
+        while (ne > start && isSpace(buf[ne - 1])) ne--;
+        int vs = colon + 1;
+        while (vs < end && isSpace(buf[vs])) vs++;
+        int ve = end;
+        while (ve > vs && isSpace(buf[ve - 1])) ve--;
+        nameStart[headerCount] = start;
+        nameEnd[headerCount] = ne;
+        valueStart[headerCount] = vs;
+        valueEnd[headerCount] = ve;
+        headerCount++;
+    }
+
+    /** 请求目标为 http:// 绝对形式时返回 authority 起点，否则返回 -1。 */
+    private int absoluteAuthorityStart() {
+        int schemeEnd = targetStart + 7;
+        if (schemeEnd > targetEnd || !equalsIgnoreCase(targetStart, schemeEnd, "http://")) return -1;
+        return schemeEnd;
+    }
+
+    /** authority 结束位置：第一个 '/'、'?'、'#' 或目标末尾。 */
+    private int authorityEnd(int authority) {
+        int p = authority;
+        while (p < targetEnd && buf[p] != '/' && buf[p] != '?' && buf[p] != '#') p++;
+        return p;
+    }
+
+    /** 解析 host[:port]，IPv6 字面量保留方括号。 */
+    private boolean parseAuthority(int start, int end, int defaultPort) {
+        int at = start;
+        for (int i = start; i < end; i++) {
+            if (buf[i] == '@') at = i + 1;
+        }
+        start = at;
+        int hostEnd = end;
+        int search = start;
+        if (start < end && buf[start] == '[') {
+            while (search < end && buf[search] != ']') search++;
+        }
+        for (int i = end - 1; i >= search; i--) {
+            if (buf[i] == ':') {
+                hostEnd = i;
+                break;
+            }
+        }
+        if (hostEnd == start) return false;
+        int port = defaultPort;
+        if (hostEnd < end - 1) {
+            int parsed = 0;
+            for (int i = hostEnd + 1; i < end; i++) {
+                int d = buf[i] - '0';
+                if (d < 0 || d > 9 || parsed > 65535) {
+                    parsed = -1;
+                    break;
+                }
+                parsed = parsed * 10 + d;
+            }
+            if (parsed > 0 && parsed <= 65535) port = parsed;
+        }
+        targetHost = new String(buf, start, hostEnd - start, StandardCharsets.ISO_8859_1);
+        targetPort = port;
+        return true;
+    }
+
+    private ProtocolException error(int status, String message) {
+        errorStatus = status;
+        return new ProtocolException(message);
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+}
@@ -0,0 +1,208 @@
+package com.httpproxy.vpn.vpn;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * 带缓冲的 HTTP/1.1 消息读取：读取消息头，并按 Content-Length / chunked / 直到关闭三种方式
+ * 把消息体原样复制到另一端。缓冲区来自 {@link BufferPool#heap()}，用完必须 {@link #release()}。
+ * <p>
+ * 一条连接上的多个消息共用同一实例，前一个消息之后多读到的字节（管线化请求）会保留给下一个消息。
+ * 设置了 {@link #track(TunnelRegistry.Tunnel)} 时，复制消息体期间每次读到数据记为连接的一次活动；
+ * 读取消息头不计，慢速发送请求头的客户端仍受请求头超时限制。
+ */
+final class HttpInput {
+
+    /** chunk 大小行与 trailer 行的最大长度 */
+    private static final int MAX_LINE = 4096;
+
+    private final InputStream in;
+    private ByteBuffer pooled;
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private TunnelRegistry.Tunnel tunnel;
+
+    HttpInput(InputStream in, int initialCapacity) {
+        this.in = in;
+        this.pooled = BufferPool.heap().acquire(initialCapacity);
+        this.buf = pooled.array();
+    }
+
+    void track(TunnelRegistry.Tunnel tunnel) {
+        this.tunnel = tunnel;
+    }
+
+    byte[] array() {
+        return buf;
+    }
+
+    /** 缓冲区中尚未消费的字节数。 */
+    int buffered() {
+        return limit - pos;
+    }
+
+    int position() {
+        return pos;
+    }
+
+    /** 消费 n 个已缓冲的字节（如已转发的消息头）。 */
+    void skip(int n) {
+        pos += n;
+    }
+
+    /**
+     * 读取一个完整的消息头，读完后消息头位于 buf[0, parser.headLength())，position 为 0。
+     *
+     * @return 对端在两个消息之间正常关闭连接时返回 false
+     * @throws EOFException      消息头读到一半连接关闭
+     * @throws ProtocolException 消息头格式错误或过大
+     */
+    boolean readHead(HttpHeadParser parser) throws IOException {
+        compact();
+        while (!parser.parse(buf, limit)) {
+            if (limit == buf.length) grow();
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n < 0) {
+                if (limit == 0) return false;
+                throw new EOFException("HTTP: connection closed inside message head");
+            }
+            limit += n;
+        }
+        return true;
+    }
+
+    /** 复制 length 字节的定长消息体，返回复制的字节数。 */
+    long copyFixed(long length, OutputStream out) throws IOException {
+        long total = length;
+        while (length > 0) {
+            if (pos == limit && fill() < 0) throw new EOFException("HTTP: connection closed inside body");
+            int n = (int) Math.min(length, limit - pos);
+            out.write(buf, pos, n);
+            pos += n;
+            length -= n;
+        }
+        return total;
+    }
+
+    /** 原样复制 chunked 消息体，包括各个 chunk 头、结尾的 0 长度 chunk 与 trailer，返回复制的字节数。 */
+    long copyChunked(OutputStream out) throws IOException {
+        long total = 0;
+        while (true) {
+            int lineEnd = readLine();
+            long size = parseChunkSize(pos, lineEnd);
+            out.write(buf, pos, lineEnd - pos);
+            total += lineEnd - pos;
+            pos = lineEnd;
+            if (size == 0) break;
+            total += copyFixed(size, out);
+            int crlf = readLine();
+            if (crlf - pos > 2) throw new ProtocolException("HTTP: missing CRLF after chunk");
+            out.write(buf, pos, crlf - pos);
+            total += crlf - pos;
+            pos = crlf;
+        }
+        // trailer，直到空行
+        while (true) {
+            int lineEnd = readLine();
+            boolean empty = lineEnd - pos <= 2;
+            out.write(buf, pos, lineEnd - pos);
+            total += lineEnd - pos;
+            pos = lineEnd;
+            if (empty) return total;
+        }
+    }
+
+    /** 复制直到对端关闭连接（无长度信息的响应体），返回复制的字节数。 */
+    long copyToEof(OutputStream out) throws IOException {
+        long total = 0;
+        while (true) {
+            if (pos < limit) {
+                out.write(buf, pos, limit - pos);
+                total += limit - pos;
+                pos = limit;
+            }
+            if (fill() < 0) return total;
+        }
+    }
+
+    /**
+     * 从连接读取一次追加到缓冲区，返回读到的字节数，连接已关闭时返回 -1。
+     * 受连接的 SO_TIMEOUT 限制，超时抛出 SocketTimeoutException。
+     */
+    int fillOnce() throws IOException {
+        return fill();
+    }
+
+    void release() {
+        BufferPool.heap().release(pooled);
+        pooled = null;
+        buf = null;
+    }
+
+    /** 确保缓冲区中有一整行，返回行尾（'\n' 之后）的下标。 */
+    private int readLine() throws IOException {
+        int scan = pos;
+        while (true) {
+            for (int i = scan; i < limit; i++) {
+                if (buf[i] == '\n') return i + 1;
+            }
+            if (limit - pos >= MAX_LINE) throw new ProtocolException("HTTP: line too long");
+            scan = limit - pos;
+            if (fill() < 0) throw new EOFException("HTTP: connection closed inside chunked body");
+            scan += pos;
+        }
+    }
+
+    private long parseChunkSize(int start, int end) throws ProtocolException {
+        long size = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            int c = buf[i];
+            int d;
+            if (c >= '0' && c <= '9') d = c - '0';
+            else if (c >= 'a' && c <= 'f') d = c - 'a' + 10;
+            else if (c >= 'A' && c <= 'F') d = c - 'A' + 10;
+            else break;
+            if (++digits > 15) throw new ProtocolException("HTTP: chunk size too large");
+            size = size * 16 + d;
+        }
+        if (digits == 0) throw new ProtocolException("HTTP: invalid chunk size");
+        return size;
+    }
+
+    /** 向缓冲区追加数据（必要时先把未消费的字节移到开头），返回读到的字节数或 -1。 */
+    private int fill() throws IOException {
+        if (pos == limit) {
+            pos = 0;
+            limit = 0;
+        } else if (limit == buf.length) {
+            compact();
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n > 0) {
+            limit += n;
+            if (tunnel != null) tunnel.touch();
+        }
+        return n;
+    }
+
+    private void compact() {
+        if (pos == 0) return;
+        System.arraycopy(buf, pos, buf, 0, limit - pos);
+        limit -= pos;
+        pos = 0;
+    }
+
+    private void grow() {
+        ByteBuffer bigger = BufferPool.heap().acquire(buf.length * 2);
+        System.arraycopy(buf, 0, bigger.array(), 0, limit);
+        BufferPool.heap().release(pooled);
+        pooled = bigger;
+        buf = bigger.array();
+    }
+}
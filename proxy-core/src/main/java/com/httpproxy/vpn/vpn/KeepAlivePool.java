@@ -0,0 +1,168 @@
+package com.httpproxy.vpn.vpn;
+
+import com.httpproxy.vpn.proxy.PrewarmedSocketPool;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 普通 HTTP 请求的上游隧道复用池：按 host:port 保存响应结束后仍可复用的隧道，供后续请求（包括其他客户端连接）取用。
+ * <p>
+ * 每个源站与全局的空闲隧道数都有上限，空闲超过 maxIdleMillis 的隧道由后台线程关闭。
+ */
+final class KeepAlivePool {
+
+    static final int DEFAULT_MAX_IDLE_PER_ORIGIN = 4;
+    static final int DEFAULT_MAX_IDLE_TOTAL = 64;
+    /** 多数源站的 keep-alive 超时在 5~60 秒，取较小值以免取到已被对端关闭的连接 */
+    static final long DEFAULT_MAX_IDLE_MILLIS = 15000;
+
+    private final int maxIdlePerOrigin;
+    private final int maxIdleTotal;
+    private final long maxIdleMillis;
+    private final Map<String, ArrayDeque<Idle>> idle = new HashMap<>();
+    private int total;
+    private boolean closed;
+    private final Thread reaper;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    KeepAlivePool() {
+        this(DEFAULT_MAX_IDLE_PER_ORIGIN, DEFAULT_MAX_IDLE_TOTAL, DEFAULT_MAX_IDLE_MILLIS);
+    }
+
+    KeepAlivePool(int maxIdlePerOrigin, int maxIdleTotal, long maxIdleMillis) {
+        this.maxIdlePerOrigin = maxIdlePerOrigin;
+        this.maxIdleTotal = maxIdleTotal;
+        this.maxIdleMillis = maxIdleMillis;
+        this.reaper = new Thread(this::reapLoop, "KeepAlive-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    /** 取出到 key 的空闲隧道（最近归还的优先），没有可用的返回 null。 */
+    Socket acquire(String key) {
+        while (true) {
+            Idle entry;
+            synchronized (this) {
+                ArrayDeque<Idle> queue = idle.get(key);
+                entry = queue != null ? queue.pollLast() : null;
+                if (entry == null) break;
+                total--;
+                if (queue.isEmpty()) idle.remove(key);
+            }
+            if (System.currentTimeMillis() - entry.since < maxIdleMillis
+                    && PrewarmedSocketPool.isAlive(entry.socket)) {
+                hits.incrementAndGet();
+                return entry.socket;
+            }
+            evicted.incrementAndGet();
+            closeQuietly(entry.socket);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /** 归还一条已完整收发完一个请求/响应、可以继续使用的隧道；超出上限时直接关闭。 */
+    void release(String key, Socket socket) {
+        synchronized (this) {
+            if (!closed && total < maxIdleTotal) {
+                ArrayDeque<Idle> queue = idle.get(key);
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                    idle.put(key, queue);
+                }
+                if (queue.size() < maxIdlePerOrigin) {
+                    queue.addLast(new Idle(socket, System.currentTimeMillis()));
+                    total++;
+                    notifyAll();
+                    return;
+                }
+            }
+        }
+        closeQuietly(socket);
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            for (ArrayDeque<Idle> queue : idle.values()) {
+                for (Idle entry : queue) closeQuietly(entry.socket);
+            }
+            idle.clear();
+            total = 0;
+            notifyAll();
+        }
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    synchronized int idleCount() {
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "keepalive idle=" + idleCount() + " hits=" + hits() + " misses=" + misses() + " evicted=" + evicted.get();
+    }
+
+    private synchronized void reapLoop() {
+        while (!closed) {
+            long now = System.currentTimeMillis();
+            long next = 0;
+            Iterator<ArrayDeque<Idle>> queues = idle.values().iterator();
+            while (queues.hasNext()) {
+                ArrayDeque<Idle> queue = queues.next();
+                while (!queue.isEmpty() && now - queue.peekFirst().since >= maxIdleMillis) {
+                    closeQuietly(queue.pollFirst().socket);
+                    total--;
+                    evicted.incrementAndGet();
+                }
+                if (queue.isEmpty()) {
+                    queues.remove();
+                } else {
+                    long expiry = queue.peekFirst().since + maxIdleMillis;
+                    if (next == 0 || expiry < next) next = expiry;
+                }
+            }
+            try {
+                wait(next == 0 ? 0 : Math.max(1, next - now));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try { socket.close(); } catch (IOException ignored) { }
+    }
+
+    private static final class Idle {
+
+        final Socket socket;
+        final long since;
+
+        Idle(Socket socket, long since) {
+            this.socket = socket;
+            this.since = since;
+        }
+    }
+}
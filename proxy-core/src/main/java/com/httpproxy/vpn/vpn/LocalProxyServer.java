@@ -0,0 +1,674 @@
+package com.httpproxy.vpn.vpn;
+
+import com.httpproxy.vpn.proxy.DirectUpstreamClient;
+import com.httpproxy.vpn.proxy.ProxyMetrics;
+import com.httpproxy.vpn.proxy.UpstreamProxyClient;
+import com.httpproxy.vpn.rule.RuleAction;
+import com.httpproxy.vpn.rule.RuleSet;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 本地 HTTP 代理：监听 127.0.0.1，对 CONNECT 与普通 HTTP 请求通过上游代理转发。
+ * 普通 HTTP 请求按报文边界逐个转发，客户端连接与到源站的上游隧道都保持复用。
+ * 每个目标先经 {@link RuleSet} 判断直连、走代理或拒绝。
+ * 所有客户端连接登记在 {@link TunnelRegistry}，握手、等待请求头与转发空闲超时后被关闭，停止时全部关闭。
+ * 新连接、到同一目标的隧道与上游握手的并发数由 {@link AdmissionControl} 限制。
+ */
+public class LocalProxyServer implements ProxyEngine {
+
+    private static final String CONNECT_OK = "HTTP/1.1 200 Connection established\r\n\r\n";
+    /** REJECT 规则命中时的响应 */
+    static final byte[] FORBIDDEN = "HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+            .getBytes(StandardCharsets.ISO_8859_1);
+    /** 本地统计接口路径，直接由本地代理回复，不经过上游 */
+    static final String STATS_PATH = "/__stats";
+    static final int LOCAL_PORT = 18080;
+    private static final int SO_TIMEOUT = 0;
+    /** 快速打开时等待客户端首批数据的最长时间；TLS 客户端收到 200 后会立即发送 ClientHello */
+    private static final int FIRST_FLIGHT_WAIT_MS = 100;
+    private static final int HEAD_BUFFER_SIZE = 8192;
+    /** 转发模式下所有源站共用到代理的连接，空闲连接上限按全部源站计 */
+    private static final int FORWARD_MAX_IDLE = 16;
+    private static final String FORWARD_KEY = "upstream";
+    private static final ThreadLocal<HttpHeadParser> PARSER = new ThreadLocal<HttpHeadParser>() {
+        @Override
+        protected HttpHeadParser initialValue() {
+            return new HttpHeadParser();
+        }
+    };
+    private static final ThreadLocal<HttpHeadParser> RESPONSE_PARSER = new ThreadLocal<HttpHeadParser>() {
+        @Override
+        protected HttpHeadParser initialValue() {
+            return HttpHeadParser.forResponses();
+        }
+    };
+
+    private volatile UpstreamProxyClient upstream;
+    private final int port;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final ProxyMetrics metrics = ProxyMetrics.get();
+    private ServerSocket serverSocket;
+    private volatile KeepAlivePool keepAlive;
+    private volatile TunnelRegistry tunnels;
+    private volatile AdmissionControl admission;
+    private int maxTunnels = AdmissionControl.DEFAULT_MAX_TUNNELS;
+    private int maxTunnelsPerHost = AdmissionControl.DEFAULT_MAX_TUNNELS_PER_HOST;
+    private int maxHandshakes = AdmissionControl.DEFAULT_MAX_HANDSHAKES;
+    private int admissionQueue = AdmissionControl.DEFAULT_QUEUE;
+    private long admissionQueueTimeoutMillis = AdmissionControl.DEFAULT_QUEUE_TIMEOUT_MILLIS;
+    /** 到 HTTP 代理本身的连接，用于以绝对形式转发普通请求 */
+    private volatile KeepAlivePool forwarding;
+    private volatile boolean fastOpen;
+    private volatile RuleSet rules = RuleSet.EMPTY;
+    private final UpstreamProxyClient direct = new DirectUpstreamClient();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "LocalProxy-" + r.hashCode());
+        t.setDaemon(true);
+        return t;
+    });
+
+    public LocalProxyServer(UpstreamProxyClient upstream) {
+        this(upstream, LOCAL_PORT);
+    }
+
+    public LocalProxyServer(UpstreamProxyClient upstream, int port) {
+        this.upstream = upstream;
+        this.port = port;
+    }
+
+    /**
+     * CONNECT 快速打开：不等上游握手完成就回复 200，把客户端的首批数据与 CONNECT 请求一起发给上游。
+     * 上游拒绝时客户端已收到 200，连接会被直接关闭。默认关闭。
+     */
+    public void setFastOpen(boolean fastOpen) {
+        this.fastOpen = fastOpen;
+    }
+
+    /**
+     * 准入控制的上限，运行中调整即时生效；上限为 0 表示不限制。超出上限的连接最多 queue 个排队等待
+     * queueTimeoutMillis，队列已满或等待超时时回复 503。
+     *
+     * @param maxTunnels        同时服务的客户端连接数
+     * @param maxTunnelsPerHost 到同一目标的隧道（CONNECT 隧道或进行中的普通请求）数
+     * @param maxHandshakes     同时进行的上游连接与握手数
+     */
+    public synchronized void setLimits(int maxTunnels, int maxTunnelsPerHost, int maxHandshakes, int queue,
+                                       long queueTimeoutMillis) {
+        this.maxTunnels = maxTunnels;
+        this.maxTunnelsPerHost = maxTunnelsPerHost;
+        this.maxHandshakes = maxHandshakes;
+        this.admissionQueue = queue;
+        this.admissionQueueTimeoutMillis = queueTimeoutMillis;
+        if (running.get()) admission.setLimits(maxTunnels, maxTunnelsPerHost, maxHandshakes, queue, queueTimeoutMillis);
+    }
+
+    /**
+     * 替换路由规则。复用池按 host:port 取用隧道而不区分直连与代理，旧规则下建立的空闲隧道随旧池一起关闭，
+     * 之后的请求按新规则重新建立；到代理本身的转发连接与规则无关，继续保留。
+     */
+    @Override
+    public synchronized void setRules(RuleSet rules) {
+        this.rules = rules;
+        if (!running.get()) return;
+        KeepAlivePool old = keepAlive;
+        keepAlive = new KeepAlivePool();
+        old.close();
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public synchronized void start() throws IOException {
+        if (!running.compareAndSet(false, true)) return;
+        keepAlive = new KeepAlivePool();
+        forwarding = newForwardingPool();
+        tunnels = new TunnelRegistry();
+        admission = new AdmissionControl(this::dispatch);
+        admission.setLimits(maxTunnels, maxTunnelsPerHost, maxHandshakes, admissionQueue, admissionQueueTimeoutMillis);
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new java.net.InetSocketAddress("127.0.0.1", port));
+        executor.execute(this::acceptLoop);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running.compareAndSet(true, false)) return;
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException ignored) { }
+        admission.close();
+        tunnels.close();
+        keepAlive.close();
+        forwarding.close();
+        executor.shutdown();
+    }
+
+    /**
+     * 替换上游代理。旧上游建立的空闲隧道随旧复用池一起关闭；仍在使用中的隧道用完后归还到已关闭的旧池，
+     * 会被直接关闭，不会被新请求取用。
+     */
+    @Override
+    public synchronized void setUpstream(UpstreamProxyClient upstream) {
+        this.upstream = upstream;
+        if (!running.get()) return;
+        KeepAlivePool old = keepAlive;
+        KeepAlivePool oldForwarding = forwarding;
+        keepAlive = new KeepAlivePool();
+        forwarding = newForwardingPool();
+        old.close();
+        oldForwarding.close();
+    }
+
+    private static KeepAlivePool newForwardingPool() {
+        return new KeepAlivePool(FORWARD_MAX_IDLE, FORWARD_MAX_IDLE, KeepAlivePool.DEFAULT_MAX_IDLE_MILLIS);
+    }
+
+    private void acceptLoop() {
+        while (running.get() && serverSocket != null && !serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                client.setSoTimeout(SO_TIMEOUT);
+                // 小的响应块（如 TLS 记录、请求-响应往返）不等待 Nagle 合并
+                client.setTcpNoDelay(true);
+                admission.offer(client);
+            } catch (IOException e) {
+                if (running.get()) metrics.error(ProxyMetrics.Error.ACCEPT);
+                break;
+            }
+        }
+    }
+
+    /** 开始处理一条已获准的客户端连接。 */
+    private void dispatch(Socket client) {
+        TunnelRegistry.Tunnel tunnel = tunnels.register(client);
+        if (tunnel == null) {
+            admission.release();
+            return;
+        }
+        try {
+            executor.execute(() -> handleClient(tunnel));
+        } catch (RejectedExecutionException e) {
+            closeQuietly(client);
+            finish(tunnel);
+        }
+    }
+
+    private void handleClient(TunnelRegistry.Tunnel tunnel) {
+        try {
+            serve(tunnel);
+        } finally {
+            if (!tunnel.detached) finish(tunnel);
+        }
+    }
+
+    /** 连接结束：注销并归还准入名额。 */
+    private void finish(TunnelRegistry.Tunnel tunnel) {
+        tunnels.remove(tunnel);
+        if (tunnel.host != null) admission.releaseHost(tunnel.host);
+        admission.release();
+    }
+
+    private void serve(TunnelRegistry.Tunnel tunnel) {
+        Socket client = tunnel.client;
+        HttpInput input = null;
+        OutputStream clientOut;
+        Socket upstreamSocket = null;
+        String host = null;
+        try {
+            input = new HttpInput(client.getInputStream(), HEAD_BUFFER_SIZE);
+            input.track(tunnel);
+            clientOut = client.getOutputStream();
+            HttpHeadParser parser = PARSER.get();
+            while (readRequest(tunnel, input, parser, clientOut)) {
+                if (isStatsRequest(parser, port)) {
+                    if (!serveStats(client, parser, input, clientOut)) break;
+                    continue;
+                }
+                if (!parser.resolveTarget()) {
+                    client.close();
+                    break;
+                }
+                if (parser.isConnect()) {
+                    host = parser.targetHost();
+                    if (!admission.acquireHost(host)) {
+                        AdmissionControl.serviceUnavailable(client, clientOut);
+                        break;
+                    }
+                    tunnel.host = host;
+                    upstreamSocket = handleConnect(tunnel, parser, input, clientOut);
+                    break;
+                }
+                if (!handleHttpRequest(tunnel, parser, input, clientOut)) break;
+            }
+        } catch (Exception e) {
+            metrics.error(e instanceof ProtocolException ? ProxyMetrics.Error.UPSTREAM_PROTOCOL : ProxyMetrics.Error.RELAY);
+            try { client.close(); } catch (IOException ignored) { }
+            return;
+        } finally {
+            if (input != null) input.release();
+        }
+        if (upstreamSocket != null) {
+            ProxyMetrics.HostStats stats = metrics.tunnelOpened(host);
+            try {
+                relay(tunnel, client.getInputStream(), clientOut, upstreamSocket, stats);
+            } catch (IOException e) {
+                try { client.close(); upstreamSocket.close(); } catch (IOException ignored) { }
+            } finally {
+                metrics.tunnelClosed();
+            }
+        }
+    }
+
+    /** 读取并解析下一个请求头；客户端关闭连接或请求非法时关闭客户端并返回 false。 */
+    private boolean readRequest(TunnelRegistry.Tunnel tunnel, HttpInput input, HttpHeadParser parser,
+                                OutputStream clientOut) throws IOException {
+        Socket client = tunnel.client;
+        tunnel.awaitHeader();
+        parser.reset();
+        try {
+            if (!input.readHead(parser)) {
+                client.close();
+                return false;
+            }
+        } catch (ProtocolException e) {
+            metrics.error(ProxyMetrics.Error.CLIENT_PROTOCOL);
+            clientOut.write(errorResponse(parser.errorStatus()));
+            clientOut.flush();
+            client.close();
+            return false;
+        }
+        return true;
+    }
+
+    /** 是否为本地统计接口：源站形式的 /__stats，或绝对形式且指向本地代理自身。 */
+    static boolean isStatsRequest(HttpHeadParser parser, int port) {
+        if (parser.isConnect() || !parser.pathEquals(STATS_PATH)) return false;
+        if (parser.isOriginForm()) return true;
+        if (!parser.resolveTarget() || parser.targetPort() != port) return false;
+        String host = parser.targetHost();
+        return "127.0.0.1".equals(host) || "localhost".equalsIgnoreCase(host);
+    }
+
+    /** 回复 JSON 格式的运行指标，返回客户端连接是否保持。 */
+    private boolean serveStats(Socket client, HttpHeadParser parser, HttpInput input, OutputStream clientOut) throws IOException {
+        boolean keepAlive = parser.isKeepAlive() && parser.contentLength() <= 0 && !parser.isChunked();
+        clientOut.write(statsResponse(parser.isMethod("head"), keepAlive));
+        clientOut.flush();
+        input.skip(parser.headLength());
+        if (!keepAlive) client.close();
+        return keepAlive;
+    }
+
+    /** 建立 CONNECT 隧道并回复 200，返回上游 Socket；失败时已回复 502（被拒绝时 403）并关闭客户端，返回 null。 */
+    private Socket handleConnect(TunnelRegistry.Tunnel tunnel, HttpHeadParser parser, HttpInput input,
+                                 OutputStream clientOut) throws IOException {
+        Socket client = tunnel.client;
+        UpstreamProxyClient target = route(parser.targetHost());
+        if (target == null) {
+            reject(client, clientOut);
+            return null;
+        }
+        // 上游熔断时不抢先回复 200，让客户端看到 502
+        if (fastOpen && target.isAvailable()) return handleConnectFastOpen(tunnel, target, parser, input, clientOut);
+        Socket upstreamSocket = connectUpstream(tunnel, target, parser, clientOut);
+        if (upstreamSocket == null) return null;
+        clientOut.write(CONNECT_OK.getBytes(StandardCharsets.UTF_8));
+        clientOut.flush();
+        input.skip(parser.headLength());
+        if (input.buffered() > 0) {
+            OutputStream upOut = upstreamSocket.getOutputStream();
+            upOut.write(input.array(), input.position(), input.buffered());
+            upOut.flush();
+        }
+        return upstreamSocket;
+    }
+
+    /**
+     * 快速打开的 CONNECT：先回复 200，最多等待 {@link #FIRST_FLIGHT_WAIT_MS} 读取客户端的首批数据，
+     * 与 CONNECT 请求一起发给上游，省去一次经过代理的往返。客户端没有先发数据的协议在等待超时后照常建立隧道。
+     * 上游拒绝或握手失败时关闭客户端连接，不向隧道写入任何代理的错误响应。
+     */
+    private Socket handleConnectFastOpen(TunnelRegistry.Tunnel tunnel, UpstreamProxyClient target, HttpHeadParser parser,
+                                         HttpInput input, OutputStream clientOut) throws IOException {
+        Socket client = tunnel.client;
+        clientOut.write(CONNECT_OK.getBytes(StandardCharsets.UTF_8));
+        clientOut.flush();
+        input.skip(parser.headLength());
+        if (input.buffered() == 0) {
+            client.setSoTimeout(FIRST_FLIGHT_WAIT_MS);
+            try {
+                if (input.fillOnce() < 0) {
+                    client.close();
+                    return null;
+                }
+            } catch (SocketTimeoutException ignored) {
+                // 服务器先发数据的协议
+            } finally {
+                client.setSoTimeout(SO_TIMEOUT);
+            }
+        }
+        Socket upstreamSocket;
+        tunnel.handshake();
+        // 已回复 200，取不到握手名额时与上游失败一样直接关闭
+        if (!admission.acquireHandshake()) {
+            client.close();
+            return null;
+        }
+        try {
+            upstreamSocket = target.connect(parser.targetHost(), parser.targetPort(),
+                    input.array(), input.position(), input.buffered());
+        } catch (IOException e) {
+            client.close();
+            return null;
+        } finally {
+            admission.releaseHandshake();
+        }
+        tunnel.relay(upstreamSocket);
+        input.skip(input.buffered());
+        return upstreamSocket;
+    }
+
+    /**
+     * 在目标名额内转发一个普通请求；取不到名额时回复 503。协议升级时名额随连接交给 relay，连接结束时归还。
+     *
+     * @return 客户端连接是否可以继续读取下一个请求
+     */
+    private boolean handleHttpRequest(TunnelRegistry.Tunnel tunnel, HttpHeadParser parser, HttpInput input,
+                                      OutputStream clientOut) throws IOException {
+        String host = parser.targetHost();
+        if (!admission.acquireHost(host)) {
+            AdmissionControl.serviceUnavailable(tunnel.client, clientOut);
+            return false;
+        }
+        try {
+            return forwardHttpRequest(tunnel, parser, input, clientOut);
+        } finally {
+            if (tunnel.host == null) admission.releaseHost(host);
+        }
+    }
+
+    /**
+     * 按 HTTP/1.1 报文边界转发一个普通请求及其响应。上游隧道按 host:port 从 {@link KeepAlivePool} 取用，
+     * 响应完整结束且双方都未要求关闭时归还复用；101 协议升级后转为原始双向转发。
+     * 上游支持转发（{@link UpstreamProxyClient#canForward()}）时，绝对形式的请求加上代理认证头原样发给代理，
+     * 不经 CONNECT，到代理的连接由所有源站共用。
+     *
+     * @return 客户端连接是否可以继续读取下一个请求；返回 false 时客户端已关闭或已交给 relay
+     */
+    private boolean forwardHttpRequest(TunnelRegistry.Tunnel tunnel, HttpHeadParser parser, HttpInput input,
+                                       OutputStream clientOut) throws IOException {
+        Socket client = tunnel.client;
+        long requestLength;
+        boolean requestChunked = parser.isChunked();
+        try {
+            requestLength = parser.contentLength();
+            if (parser.headerIndex("transfer-encoding") >= 0 && (!requestChunked || requestLength >= 0)) {
+                throw new ProtocolException("HTTP: unsupported request framing");
+            }
+        } catch (ProtocolException e) {
+            metrics.error(ProxyMetrics.Error.CLIENT_PROTOCOL);
+            clientOut.write(errorResponse(HttpHeadParser.STATUS_BAD_REQUEST));
+            clientOut.flush();
+            client.close();
+            return false;
+        }
+        boolean hasBody = requestChunked || requestLength > 0;
+        boolean expectContinue = hasBody && parser.hasToken("expect", "100-continue");
+        boolean headRequest = parser.isMethod("head");
+        boolean requestKeepAlive = parser.isKeepAlive();
+        // 先于复用池判断，规则改为拒绝后不再使用之前的隧道
+        UpstreamProxyClient target = route(parser.targetHost());
+        if (target == null) {
+            reject(client, clientOut);
+            return false;
+        }
+        boolean forward = target.canForward() && parser.isAbsoluteForm();
+        KeepAlivePool pool = forward ? forwarding : keepAlive;
+        String key = forward ? FORWARD_KEY : KeepAlivePool.key(parser.targetHost(), parser.targetPort());
+        int start = forward ? parser.startLineStart() : parser.rewriteToOriginForm();
+        int headEnd = parser.headLength();
+        byte[] head = input.array();
+        // 代理认证头插在结束头部的空行之前：先写 [start, split)，再写 extra 与 [split, headEnd)
+        byte[] extra = forward ? target.forwardHeaders() : null;
+        int split = extra != null && extra.length > 0 ? headEnd - (head[headEnd - 2] == '\r' ? 2 : 1) : headEnd;
+
+        Socket up = pool.acquire(key);
+        boolean reused = up != null;
+        if (reused) {
+            tunnel.relay(up);
+        } else if ((up = connectUpstream(tunnel, target, parser, forward, clientOut)) == null) {
+            return false;
+        }
+        HttpHeadParser response = RESPONSE_PARSER.get();
+        HttpInput upInput = null;
+        boolean bodyStarted = false;
+        boolean reusable = false;
+        ProxyMetrics.HostStats stats = reused ? metrics.tunnelReused(parser.targetHost())
+                : metrics.tunnelOpened(parser.targetHost());
+        try {
+            while (true) {
+                upInput = new HttpInput(up.getInputStream(), HEAD_BUFFER_SIZE);
+                upInput.track(tunnel);
+                response.reset();
+                try {
+                    OutputStream upOut = up.getOutputStream();
+                    upOut.write(head, start, split - start);
+                    if (split < headEnd) {
+                        upOut.write(extra);
+                        upOut.write(head, split, headEnd - split);
+                    }
+                    if (hasBody && !expectContinue) {
+                        bodyStarted = true;
+                        input.skip(headEnd);
+                        stats.addUp(copyBody(input, requestChunked, requestLength, upOut));
+                    }
+                    upOut.flush();
+                    if (upInput.readHead(response)) break;
+                } catch (ProtocolException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (!reused || bodyStarted) throw e;
+                }
+                // 复用的隧道可能已被源站关闭：请求体尚未读取时换一条新隧道重发（请求头仍在 buf[start, headEnd)）
+                if (!reused || bodyStarted) throw new EOFException("HTTP: upstream closed before response");
+                upInput.release();
+                upInput = null;
+                closeQuietly(up);
+                reused = false;
+                if ((up = connectUpstream(tunnel, target, parser, forward, clientOut)) == null) return false;
+                metrics.tunnelClosed();
+                stats = metrics.tunnelOpened(parser.targetHost());
+            }
+            if (!bodyStarted) input.skip(headEnd);
+            stats.addUp(headEnd - start);
+            int status = response.statusCode();
+            // 1xx 中间响应原样转发；客户端要求 100-continue 时收到 100 才转发请求体
+            while (status >= 100 && status < 200 && status != 101) {
+                stats.addDown(writeHead(upInput, response, clientOut));
+                if (status == 100 && expectContinue && !bodyStarted) {
+                    bodyStarted = true;
+                    OutputStream upOut = up.getOutputStream();
+                    stats.addUp(copyBody(input, requestChunked, requestLength, upOut));
+                    upOut.flush();
+                }
+                response.reset();
+                if (!upInput.readHead(response)) throw new EOFException("HTTP: upstream closed before response");
+                status = response.statusCode();
+            }
+            stats.addDown(writeHead(upInput, response, clientOut));
+            if (status == 101) {
+                tunnel.host = parser.targetHost();
+                upgrade(tunnel, input, clientOut, upInput, up, stats);
+                up = null;
+                stats = null;
+                return false;
+            }
+            boolean untilEof = false;
+            if (headRequest || status == 204 || status == 304) {
+                // 无响应体
+            } else if (response.isChunked()) {
+                stats.addDown(upInput.copyChunked(clientOut));
+            } else if (response.headerIndex("transfer-encoding") < 0 && response.contentLength() >= 0) {
+                stats.addDown(upInput.copyFixed(response.contentLength(), clientOut));
+            } else {
+                untilEof = true;
+                stats.addDown(upInput.copyToEof(clientOut));
+            }
+            clientOut.flush();
+            // 源站在 100-continue 之前就给出最终响应时，客户端可能仍会发来请求体，两端都不能再复用
+            boolean complete = !untilEof && (!hasBody || bodyStarted);
+            reusable = complete && requestKeepAlive && response.isKeepAlive() && upInput.buffered() == 0;
+            if (complete && requestKeepAlive && response.isKeepAlive()) return true;
+            client.close();
+            return false;
+        } finally {
+            // 升级后的隧道由 relay 结束时计为关闭
+            if (stats != null) metrics.tunnelClosed();
+            if (upInput != null) upInput.release();
+            if (up != null) {
+                if (reusable) {
+                    pool.release(key, up);
+                } else {
+                    closeQuietly(up);
+                }
+            }
+        }
+    }
+
+    private static long copyBody(HttpInput input, boolean chunked, long length, OutputStream out) throws IOException {
+        if (chunked) return input.copyChunked(out);
+        return length > 0 ? input.copyFixed(length, out) : 0;
+    }
+
+    /** 把已解析的响应头原样写给客户端并从上游缓冲中消费掉，返回写出的字节数。 */
+    private static int writeHead(HttpInput upInput, HttpHeadParser response, OutputStream clientOut) throws IOException {
+        int length = response.headLength();
+        clientOut.write(upInput.array(), 0, length);
+        upInput.skip(length);
+        return length;
+    }
+
+    /** 101 协议升级（如 WebSocket）：把双方已缓冲的数据转发后交给原始双向转发，连接的注销也随之交给转发任务。 */
+    private void upgrade(TunnelRegistry.Tunnel tunnel, HttpInput input, OutputStream clientOut, HttpInput upInput, Socket up,
+                         ProxyMetrics.HostStats stats) throws IOException {
+        Socket client = tunnel.client;
+        try {
+            if (upInput.buffered() > 0) {
+                clientOut.write(upInput.array(), upInput.position(), upInput.buffered());
+                stats.addDown(upInput.buffered());
+            }
+            clientOut.flush();
+            if (input.buffered() > 0) {
+                OutputStream upOut = up.getOutputStream();
+                upOut.write(input.array(), input.position(), input.buffered());
+                upOut.flush();
+                stats.addUp(input.buffered());
+            }
+            InputStream clientIn = client.getInputStream();
+            tunnel.detached = true;
+            executor.execute(() -> {
+                try {
+                    relay(tunnel, clientIn, clientOut, up, stats);
+                } finally {
+                    metrics.tunnelClosed();
+                    finish(tunnel);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            tunnel.detached = false;
+            metrics.tunnelClosed();
+            closeQuietly(up);
+            throw e;
+        }
+    }
+
+    /** 按规则选择出口：拒绝时返回 null。 */
+    private UpstreamProxyClient route(String host) {
+        RuleAction action = rules.match(host);
+        if (action == RuleAction.REJECT) return null;
+        return action == RuleAction.DIRECT ? direct : upstream;
+    }
+
+    private static void reject(Socket client, OutputStream clientOut) throws IOException {
+        clientOut.write(FORBIDDEN);
+        clientOut.flush();
+        client.close();
+    }
+
+    private Socket connectUpstream(TunnelRegistry.Tunnel tunnel, UpstreamProxyClient target, HttpHeadParser parser,
+                                   OutputStream clientOut) throws IOException {
+        return connectUpstream(tunnel, target, parser, false, clientOut);
+    }
+
+    /**
+     * forward 为 true 时只连接到代理本身，否则经代理建立到目标的隧道；失败时回复 502 并关闭客户端，
+     * 取不到握手名额时回复 503。等待名额、连接与握手期间按握手超时计时，成功后连接转入转发阶段。
+     */
+    private Socket connectUpstream(TunnelRegistry.Tunnel tunnel, UpstreamProxyClient target, HttpHeadParser parser,
+                                   boolean forward, OutputStream clientOut) throws IOException {
+        Socket up;
+        tunnel.handshake();
+        if (!admission.acquireHandshake()) {
+            AdmissionControl.serviceUnavailable(tunnel.client, clientOut);
+            return null;
+        }
+        try {
+            up = forward ? target.connectForward() : target.connect(parser.targetHost(), parser.targetPort());
+        } catch (IOException e) {
+            clientOut.write(("HTTP/1.1 502 Bad Gateway\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+            clientOut.flush();
+            tunnel.client.close();
+            return null;
+        } finally {
+            admission.releaseHandshake();
+        }
+        tunnel.relay(up);
+        return up;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try { socket.close(); } catch (IOException ignored) { }
+    }
+
+    /** 本地统计接口的响应：JSON 格式的 {@link ProxyMetrics} 快照。 */
+    static byte[] statsResponse(boolean headOnly, boolean keepAlive) {
+        byte[] body = ProxyMetrics.get().toJson().getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 200 OK\r\nContent-Type: application/json; charset=utf-8\r\nCache-Control: no-store\r\n"
+                + "Content-Length: " + body.length + "\r\n" + (keepAlive ? "" : "Connection: close\r\n") + "\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+        if (headOnly) return headBytes;
+        byte[] out = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, out, 0, headBytes.length);
+        System.arraycopy(body, 0, out, headBytes.length, body.length);
+        return out;
+    }
+
+    /** 请求头解析失败时回复给客户端的响应。 */
+    static byte[] errorResponse(int status) {
+        String reason = status == HttpHeadParser.STATUS_HEADERS_TOO_LARGE
+                ? "Request Header Fields Too Large" : "Bad Request";
+        return ("HTTP/1.1 " + status + " " + reason + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void relay(TunnelRegistry.Tunnel tunnel, InputStream clientIn, OutputStream clientOut, Socket upstreamSocket,
+                       ProxyMetrics.HostStats stats) {
+        SocketRelay.relay(executor, tunnel.client, clientIn, clientOut, upstreamSocket, stats, tunnel);
+    }
+}
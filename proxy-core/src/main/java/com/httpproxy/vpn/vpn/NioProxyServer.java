@@ -0,0 +1,711 @@
+package com.httpproxy.vpn.vpn;
+
+import com.httpproxy.vpn.proxy.DirectUpstreamClient;
+import com.httpproxy.vpn.proxy.NonBlockingUpstream;
+import com.httpproxy.vpn.proxy.ProxyMetrics;
+import com.httpproxy.vpn.proxy.UpstreamHandshake;
+import com.httpproxy.vpn.proxy.UpstreamProxyClient;
+import com.httpproxy.vpn.rule.RuleAction;
+import com.httpproxy.vpn.rule.RuleSet;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * 基于 Selector 的本地 HTTP 代理：固定数量的事件循环线程完成 accept、请求头解析、上游握手与双向转发，
+ * 不再为每条隧道占用两个线程。对外行为与 {@link LocalProxyServer} 一致，可通过配置切换对比。
+ * <p>
+ * 上游实现 {@link NonBlockingUpstream} 且可由引擎驱动时握手在事件循环内完成；否则退化为在线程池中调用阻塞的
+ * {@link UpstreamProxyClient#connect}，若返回的 Socket 没有 Channel（或是 TLS 连接），该隧道改用阻塞方式转发。
+ * DIRECT 规则的直连同样在线程池中建立，之后仍由事件循环转发。
+ * 一端半关闭时把 FIN 转发给另一端并继续转发另一方向，两个方向都结束后关闭隧道。
+ * <p>
+ * 超时与 {@link TunnelRegistry} 相同：等待请求头、建立上游隧道（含线程池中的阻塞连接）、转发中空闲分别计时。
+ * 每个事件循环把自己的隧道放在一个 {@link TimingWheel} 中，转发时读到数据只更新时间戳，到期时再按最近一次活动判断；
+ * 改用阻塞方式转发的隧道登记在一个 {@link TunnelRegistry} 中。
+ */
+public class NioProxyServer implements ProxyEngine {
+
+    private static final byte[] CONNECT_OK = "HTTP/1.1 200 Connection established\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] BAD_GATEWAY = "HTTP/1.1 502 Bad Gateway\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int BUFFER_SIZE = 8192;
+    /** 同时是超时检查的间隔与时间轮的刻度 */
+    private static final long SELECT_TIMEOUT = 1000;
+    /** 一圈约 8.5 分钟，默认的几种超时都不超过一圈 */
+    private static final int WHEEL_SLOTS = 512;
+
+    private static final int STATE_HEAD = 0;
+    private static final int STATE_CONNECTING = 1;
+    private static final int STATE_HANDSHAKE = 2;
+    private static final int STATE_BLOCKING_CONNECT = 3;
+    private static final int STATE_RELAY = 4;
+    private static final int STATE_CLOSED = 5;
+
+    private volatile UpstreamProxyClient upstream;
+    private volatile RuleSet rules = RuleSet.EMPTY;
+    private final UpstreamProxyClient direct = new DirectUpstreamClient();
+    private final int port;
+    private final int loopCount;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final ProxyMetrics metrics = ProxyMetrics.get();
+    private final long[] timeouts = new long[ProxyMetrics.Timeout.values().length];
+    /** 改用阻塞方式转发的隧道 */
+    private volatile TunnelRegistry bridgedTunnels;
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops;
+    private int nextLoop;
+    private final ExecutorService blockingExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "NioProxy-blocking-" + r.hashCode());
+        t.setDaemon(true);
+        return t;
+    });
+
+    public NioProxyServer(UpstreamProxyClient upstream) {
+        this(upstream, LocalProxyServer.LOCAL_PORT, Math.min(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public NioProxyServer(UpstreamProxyClient upstream, int port, int loopCount) {
+        this(upstream, port, loopCount, TunnelRegistry.DEFAULT_HANDSHAKE_TIMEOUT_MILLIS,
+                TunnelRegistry.DEFAULT_HEADER_TIMEOUT_MILLIS, TunnelRegistry.DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    NioProxyServer(UpstreamProxyClient upstream, int port, int loopCount, long handshakeMillis, long headerMillis,
+                   long idleMillis) {
+        this.upstream = upstream;
+        this.port = port;
+        this.loopCount = Math.max(1, loopCount);
+        timeouts[ProxyMetrics.Timeout.HANDSHAKE.ordinal()] = handshakeMillis;
+        timeouts[ProxyMetrics.Timeout.HEADER.ordinal()] = headerMillis;
+        timeouts[ProxyMetrics.Timeout.IDLE.ordinal()] = idleMillis;
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (!running.compareAndSet(false, true)) return;
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress("127.0.0.1", port));
+            serverChannel.configureBlocking(false);
+            loops = new EventLoop[loopCount];
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new EventLoop(i);
+            }
+            serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            running.set(false);
+            closeQuietly(serverChannel);
+            if (loops != null) {
+                for (EventLoop loop : loops) {
+                    if (loop != null) loop.selector.close();
+                }
+            }
+            throw e;
+        }
+        bridgedTunnels = new TunnelRegistry(timeout(ProxyMetrics.Timeout.HANDSHAKE), timeout(ProxyMetrics.Timeout.HEADER),
+                timeout(ProxyMetrics.Timeout.IDLE));
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (!running.compareAndSet(true, false)) return;
+        closeQuietly(serverChannel);
+        if (loops != null) {
+            for (EventLoop loop : loops) loop.selector.wakeup();
+        }
+        bridgedTunnels.close();
+        blockingExecutor.shutdown();
+    }
+
+    @Override
+    public void setUpstream(UpstreamProxyClient upstream) {
+        this.upstream = upstream;
+    }
+
+    @Override
+    public void setRules(RuleSet rules) {
+        this.rules = rules;
+    }
+
+    /** 在 loops[0] 上执行：接收新连接并轮流分配给各事件循环。 */
+    private void accept() {
+        while (true) {
+            SocketChannel ch;
+            try {
+                ch = serverChannel.accept();
+            } catch (IOException e) {
+                metrics.error(ProxyMetrics.Error.ACCEPT);
+                return;
+            }
+            if (ch == null) return;
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            loop.execute(() -> loop.register(ch));
+        }
+    }
+
+    private long timeout(ProxyMetrics.Timeout phase) {
+        return timeouts[phase.ordinal()];
+    }
+
+    private static void closeQuietly(java.io.Closeable c) {
+        if (c == null) return;
+        try { c.close(); } catch (IOException ignored) { }
+    }
+
+    private static void setInterest(SelectionKey key, int op, boolean on) {
+        if (key == null || !key.isValid()) return;
+        int ops = key.interestOps();
+        int next = on ? (ops | op) : (ops & ~op);
+        if (next != ops) key.interestOps(next);
+    }
+
+    private final class EventLoop implements Runnable {
+
+        final Selector selector;
+        final Thread thread;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        /** 本线程的所有隧道，按所处阶段的超时排期；仅在本线程访问 */
+        final TimingWheel wheel;
+        final List<TimingWheel.Entry> expired = new ArrayList<>();
+        /** 本线程共用的请求头解析器：每次读到数据后对已累积的请求头重新解析 */
+        final HttpHeadParser parser = new HttpHeadParser();
+        /** 粗粒度时钟，每次 select 返回时更新；隧道读到数据时只记录这个值 */
+        long clock = System.currentTimeMillis();
+        long lastTimeoutCheck = clock;
+
+        EventLoop(int index) throws IOException {
+            wheel = new TimingWheel(SELECT_TIMEOUT, WHEEL_SLOTS, clock);
+            selector = Selector.open();
+            thread = new Thread(this, "NioProxy-loop-" + index);
+            thread.setDaemon(true);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel ch) {
+            try {
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                Tunnel tunnel = new Tunnel(this, ch);
+                tunnel.clientKey = ch.register(selector, SelectionKey.OP_READ, tunnel);
+                tunnel.enter(ProxyMetrics.Timeout.HEADER);
+            } catch (IOException e) {
+                closeQuietly(ch);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running.get()) {
+                try {
+                    selector.select(SELECT_TIMEOUT);
+                } catch (IOException e) {
+                    break;
+                }
+                clock = System.currentTimeMillis();
+                runTasks();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    Object attachment = key.attachment();
+                    if (attachment instanceof Tunnel) {
+                        ((Tunnel) attachment).handle(key);
+                    } else if (key.isAcceptable()) {
+                        accept();
+                    }
+                }
+                checkTimeouts();
+            }
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof Tunnel) ((Tunnel) attachment).close();
+            }
+            closeQuietly(selector);
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException ignored) { }
+            }
+        }
+
+        private void checkTimeouts() {
+            long now = clock;
+            if (now - lastTimeoutCheck < SELECT_TIMEOUT) return;
+            lastTimeoutCheck = now;
+            wheel.advance(now, expired);
+            for (TimingWheel.Entry entry : expired) {
+                Tunnel tunnel = (Tunnel) entry;
+                long deadline = tunnel.lastActivity + timeout(tunnel.phase);
+                if (deadline > now) {
+                    wheel.schedule(tunnel, deadline);
+                } else {
+                    metrics.timeout(tunnel.phase);
+                    // 建立隧道超时按上游失败处理：回 502 并计入熔断
+                    if (tunnel.phase == ProxyMetrics.Timeout.HANDSHAKE) {
+                        tunnel.fail();
+                    } else {
+                        tunnel.close();
+                    }
+                }
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * 单向转发：从 src 读入缓冲区（填充模式）并写给 dst，dst 写不动时暂停读取 src。
+     * src 读到 EOF 且缓冲区写完后对 dst 半关闭，把 FIN 转发过去，另一方向继续转发；两个方向都结束后关闭隧道。
+     */
+    private final class Pipe {
+
+        final Tunnel tunnel;
+        final SocketChannel src;
+        final SocketChannel dst;
+        final SelectionKey srcKey;
+        final SelectionKey dstKey;
+        final ByteBuffer buf;
+        /** 是否为 client → upstream 方向，用于字节统计 */
+        final boolean upstreamBound;
+        boolean eof;
+        /** 已读到 EOF 且数据全部写出，FIN 已转发 */
+        boolean done;
+
+        Pipe(Tunnel tunnel, SocketChannel src, SelectionKey srcKey, SocketChannel dst, SelectionKey dstKey, ByteBuffer buf,
+             boolean upstreamBound) {
+            this.tunnel = tunnel;
+            this.src = src;
+            this.srcKey = srcKey;
+            this.dst = dst;
+            this.dstKey = dstKey;
+            this.buf = buf;
+            this.upstreamBound = upstreamBound;
+        }
+
+        void onReadable() throws IOException {
+            if (buf.hasRemaining()) {
+                int n = src.read(buf);
+                if (n < 0) {
+                    eof = true;
+                } else if (n > 0) {
+                    tunnel.lastActivity = tunnel.loop.clock;
+                }
+            }
+            onWritable();
+        }
+
+        void onWritable() throws IOException {
+            if (buf.position() > 0) {
+                buf.flip();
+                int n = dst.write(buf);
+                buf.compact();
+                if (n > 0) {
+                    if (upstreamBound) {
+                        tunnel.stats.addUp(n);
+                    } else {
+                        tunnel.stats.addDown(n);
+                    }
+                }
+            }
+            if (buf.position() > 0) {
+                setInterest(srcKey, SelectionKey.OP_READ, false);
+                setInterest(dstKey, SelectionKey.OP_WRITE, true);
+                return;
+            }
+            setInterest(dstKey, SelectionKey.OP_WRITE, false);
+            if (!eof) {
+                setInterest(srcKey, SelectionKey.OP_READ, true);
+            } else if (!done) {
+                finish();
+            }
+        }
+
+        private void finish() throws IOException {
+            done = true;
+            setInterest(srcKey, SelectionKey.OP_READ, false);
+            Pipe other = this == tunnel.up ? tunnel.down : tunnel.up;
+            if (other.done) {
+                tunnel.close();
+                return;
+            }
+            dst.socket().shutdownOutput();
+        }
+    }
+
+    private final class Tunnel extends TimingWheel.Entry {
+
+        final EventLoop loop;
+        final SocketChannel client;
+        SelectionKey clientKey;
+        SocketChannel upstreamChannel;
+        /** 阻塞建立的上游连接，转发经其 Channel 进行；结束时关闭它本身，上游客户端据此得知隧道已关闭 */
+        Socket upstreamSocket;
+        SelectionKey upstreamKey;
+        /** client → upstream；请求头阶段也用于累积请求头（堆内，便于按数组扫描） */
+        ByteBuffer toUpstream = BufferPool.heap().acquire(BUFFER_SIZE);
+        /** upstream → client；握手阶段也用于接收代理响应 */
+        ByteBuffer toClient;
+        UpstreamHandshake handshake;
+        Pipe up;
+        Pipe down;
+        int state = STATE_HEAD;
+        boolean connectMethod;
+        String host;
+        long connectStart;
+        long handshakeStart;
+        /** 开始转发后才有值 */
+        ProxyMetrics.HostStats stats;
+        /** 线程池中进行的阻塞连接，超时或关闭时中断 */
+        Future<?> blockingConnect;
+        ProxyMetrics.Timeout phase;
+        /** 进入当前阶段或转发中最近一次读到数据的时间 */
+        long lastActivity;
+
+        Tunnel(EventLoop loop, SocketChannel client) {
+            this.loop = loop;
+            this.client = client;
+        }
+
+        /** 进入新阶段，按该阶段的超时重新计时。 */
+        void enter(ProxyMetrics.Timeout phase) {
+            this.phase = phase;
+            lastActivity = loop.clock;
+            loop.wheel.schedule(this, lastActivity + timeout(phase));
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                if (key == clientKey) {
+                    if (state == STATE_HEAD) {
+                        if (key.isReadable()) readHead();
+                    } else if (state == STATE_RELAY) {
+                        if (key.isWritable()) down.onWritable();
+                        if (state == STATE_RELAY && key.isValid() && key.isReadable()) up.onReadable();
+                    }
+                } else if (key == upstreamKey) {
+                    if (state == STATE_CONNECTING) {
+                        if (key.isConnectable()) onUpstreamConnected();
+                    } else if (state == STATE_HANDSHAKE) {
+                        if (key.isWritable()) writeHandshake();
+                        if (state == STATE_HANDSHAKE && key.isValid() && key.isReadable()) readHandshake();
+                    } else if (state == STATE_RELAY) {
+                        if (key.isWritable()) up.onWritable();
+                        if (state == STATE_RELAY && key.isValid() && key.isReadable()) down.onReadable();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                fail();
+            }
+        }
+
+        private void readHead() throws IOException {
+            if (client.read(toUpstream) < 0) {
+                close();
+                return;
+            }
+            HttpHeadParser parser = loop.parser;
+            parser.reset();
+            try {
+                if (!parser.parse(toUpstream.array(), toUpstream.position())) {
+                    if (!toUpstream.hasRemaining()) {
+                        ByteBuffer bigger = BufferPool.heap().acquire(toUpstream.capacity() * 2);
+                        toUpstream.flip();
+                        bigger.put(toUpstream);
+                        BufferPool.heap().release(toUpstream);
+                        toUpstream = bigger;
+                    }
+                    return;
+                }
+            } catch (ProtocolException e) {
+                metrics.error(ProxyMetrics.Error.CLIENT_PROTOCOL);
+                client.write(ByteBuffer.wrap(LocalProxyServer.errorResponse(parser.errorStatus())));
+                close();
+                return;
+            }
+            if (LocalProxyServer.isStatsRequest(parser, port)) {
+                // 回环连接的发送缓冲区足以一次写完，写不完时直接关闭
+                client.write(ByteBuffer.wrap(LocalProxyServer.statsResponse(parser.isMethod("head"), false)));
+                close();
+                return;
+            }
+            if (!parser.resolveTarget()) {
+                close();
+                return;
+            }
+            // CONNECT 丢弃请求头；普通请求就地改写为源站形式，与已读到的请求体一起发往上游
+            connectMethod = parser.isConnect();
+            int start = connectMethod ? parser.headLength() : parser.rewriteToOriginForm();
+            toUpstream.flip();
+            toUpstream.position(start);
+            toUpstream.compact();
+            clientKey.interestOps(0);
+            connectUpstream(parser.targetHost(), parser.targetPort());
+        }
+
+        private void connectUpstream(String host, int targetPort) throws IOException {
+            this.host = host;
+            connectStart = System.nanoTime();
+            RuleAction action = rules.match(host);
+            if (action == RuleAction.REJECT) {
+                // 回环连接的发送缓冲区足以一次写完
+                client.write(ByteBuffer.wrap(LocalProxyServer.FORBIDDEN));
+                close();
+                return;
+            }
+            enter(ProxyMetrics.Timeout.HANDSHAKE);
+            // 只读取一次，运行中替换上游时本隧道始终使用同一个上游
+            UpstreamProxyClient current = action == RuleAction.DIRECT ? direct : upstream;
+            if (!(current instanceof NonBlockingUpstream) || !((NonBlockingUpstream) current).isNonBlocking()) {
+                state = STATE_BLOCKING_CONNECT;
+                connectBlocking(current, host, targetPort);
+                return;
+            }
+            NonBlockingUpstream nb = (NonBlockingUpstream) current;
+            try {
+                handshake = nb.newHandshake(host, targetPort);
+            } catch (IOException e) {
+                // 上游熔断或目标无法编码：尚未回复客户端，回 502
+                client.write(ByteBuffer.wrap(BAD_GATEWAY));
+                close();
+                return;
+            }
+            state = STATE_CONNECTING;
+            // 优先使用预热池中已连接好的传输连接，省去一次 TCP 握手
+            Socket idle = nb.pollIdleTransport();
+            if (idle != null && idle.getChannel() != null) {
+                upstreamChannel = idle.getChannel();
+                upstreamChannel.configureBlocking(false);
+                upstreamKey = upstreamChannel.register(loop.selector, 0, this);
+                onUpstreamConnected();
+                return;
+            }
+            if (idle != null) idle.close();
+            upstreamChannel = SocketChannel.open();
+            upstreamChannel.configureBlocking(false);
+            upstreamChannel.socket().setTcpNoDelay(true);
+            if (upstreamChannel.connect(nb.proxyAddress())) {
+                upstreamKey = upstreamChannel.register(loop.selector, 0, this);
+                onUpstreamConnected();
+            } else {
+                upstreamKey = upstreamChannel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        private void onUpstreamConnected() throws IOException {
+            if (!upstreamChannel.finishConnect()) return;
+            handshakeStart = System.nanoTime();
+            metrics.recordTcpConnect(handshakeStart - connectStart);
+            state = STATE_HANDSHAKE;
+            toClient = BufferPool.direct().acquire(BUFFER_SIZE);
+            writeHandshake();
+        }
+
+        private void writeHandshake() throws IOException {
+            ByteBuffer out = handshake.pendingOutput();
+            if (out != null) {
+                upstreamChannel.write(out);
+                if (out.hasRemaining()) {
+                    upstreamKey.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            upstreamKey.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void readHandshake() throws IOException {
+            if (upstreamChannel.read(toClient) < 0) {
+                throw new EOFException("upstream closed during handshake");
+            }
+            toClient.flip();
+            boolean done = handshake.onInput(toClient);
+            toClient.compact();
+            if (done) {
+                established();
+            } else {
+                writeHandshake();
+            }
+        }
+
+        /** 上游隧道已建立：CONNECT 先回复 200，随后两个方向开始转发（含握手阶段多读到的数据）。 */
+        private void established() throws IOException {
+            // 阻塞连接方式的延迟由上游客户端自行记录
+            if (handshake != null) metrics.recordHandshake(System.nanoTime() - handshakeStart);
+            handshake = null;
+            state = STATE_RELAY;
+            enter(ProxyMetrics.Timeout.IDLE);
+            stats = metrics.tunnelOpened(host);
+            if (connectMethod) {
+                ByteBuffer buf = BufferPool.direct().acquire(CONNECT_OK.length + toClient.position());
+                buf.put(CONNECT_OK);
+                toClient.flip();
+                buf.put(toClient);
+                BufferPool.direct().release(toClient);
+                toClient = buf;
+            }
+            clientKey.interestOps(0);
+            upstreamKey.interestOps(0);
+            up = new Pipe(this, client, clientKey, upstreamChannel, upstreamKey, toUpstream, true);
+            down = new Pipe(this, upstreamChannel, upstreamKey, client, clientKey, toClient, false);
+            up.onWritable();
+            if (state == STATE_RELAY) down.onWritable();
+        }
+
+        private void connectBlocking(UpstreamProxyClient current, String host, int targetPort) {
+            blockingConnect = blockingExecutor.submit(() -> {
+                Socket socket;
+                try {
+                    socket = current.connect(host, targetPort);
+                } catch (IOException e) {
+                    loop.execute(this::fail);
+                    return;
+                }
+                loop.execute(() -> onBlockingConnected(socket));
+            });
+        }
+
+        private void onBlockingConnected(Socket socket) {
+            if (state == STATE_CLOSED) {
+                closeQuietly(socket);
+                return;
+            }
+            try {
+                // 分层的 SSLSocket 可能返回底层 TCP 的 Channel，直接读写会绕过 TLS
+                SocketChannel ch = socket instanceof SSLSocket ? null : socket.getChannel();
+                if (ch != null) {
+                    ch.configureBlocking(false);
+                    upstreamSocket = socket;
+                    upstreamChannel = ch;
+                    upstreamKey = ch.register(loop.selector, 0, this);
+                    toClient = BufferPool.direct().acquire(BUFFER_SIZE);
+                    established();
+                } else {
+                    bridge(socket);
+                }
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(socket);
+                fail();
+            }
+        }
+
+        /** 上游 Socket 不支持 Channel：把客户端切回阻塞模式，交给 {@link SocketRelay} 转发。 */
+        private void bridge(Socket upstreamSocket) throws IOException {
+            state = STATE_CLOSED;
+            loop.wheel.cancel(this);
+            clientKey.cancel();
+            loop.selector.selectNow();
+            client.configureBlocking(true);
+            Socket clientSocket = client.socket();
+            toUpstream.flip();
+            byte[] pending = new byte[toUpstream.remaining()];
+            toUpstream.get(pending);
+            BufferPool.heap().release(toUpstream);
+            toUpstream = null;
+            boolean sendConnectOk = connectMethod;
+            TunnelRegistry registry = bridgedTunnels;
+            TunnelRegistry.Tunnel tunnel = registry.register(clientSocket);
+            if (tunnel == null) {
+                // 引擎已停止，登记表已关闭客户端连接
+                closeQuietly(upstreamSocket);
+                return;
+            }
+            tunnel.relay(upstreamSocket);
+            ProxyMetrics.HostStats bridged = metrics.tunnelOpened(host);
+            blockingExecutor.execute(() -> {
+                try {
+                    OutputStream clientOut = clientSocket.getOutputStream();
+                    if (sendConnectOk) {
+                        clientOut.write(CONNECT_OK);
+                        clientOut.flush();
+                    }
+                    if (pending.length > 0) {
+                        OutputStream upOut = upstreamSocket.getOutputStream();
+                        upOut.write(pending);
+                        upOut.flush();
+                    }
+                    SocketRelay.relay(blockingExecutor, clientSocket, clientSocket.getInputStream(), clientOut, upstreamSocket, bridged, tunnel);
+                } catch (IOException | RuntimeException e) {
+                    closeQuietly(clientSocket);
+                    closeQuietly(upstreamSocket);
+                } finally {
+                    registry.remove(tunnel);
+                    metrics.tunnelClosed();
+                }
+            });
+        }
+
+        /** 出错时关闭隧道；若尚未给客户端任何回复则尽力回 502。 */
+        void fail() {
+            if (state == STATE_CLOSED) return;
+            if (state == STATE_CONNECTING) {
+                metrics.error(ProxyMetrics.Error.UPSTREAM_CONNECT);
+                handshake.onConnectFailed();
+            } else if (state == STATE_HANDSHAKE) {
+                metrics.error(ProxyMetrics.Error.UPSTREAM_HANDSHAKE);
+                handshake.onFailed();
+            } else if (state == STATE_HEAD || state == STATE_RELAY) {
+                metrics.error(ProxyMetrics.Error.RELAY);
+            }
+            if (state != STATE_HEAD && state != STATE_RELAY) {
+                try {
+                    client.write(ByteBuffer.wrap(BAD_GATEWAY));
+                } catch (IOException ignored) { }
+            }
+            close();
+        }
+
+        void close() {
+            if (state == STATE_CLOSED) return;
+            state = STATE_CLOSED;
+            if (stats != null) metrics.tunnelClosed();
+            if (handshake != null) handshake.onCancelled();
+            // 已完成时无效果；仍在连接时中断线程池中的线程，结果送回事件循环时隧道已关闭，连接随即被关闭
+            if (blockingConnect != null) blockingConnect.cancel(true);
+            loop.wheel.cancel(this);
+            closeQuietly(client);
+            closeQuietly(upstreamChannel);
+            closeQuietly(upstreamSocket);
+            BufferPool.heap().release(toUpstream);
+            BufferPool.direct().release(toClient);
+            toUpstream = null;
+            toClient = null;
+        }
+    }
+}
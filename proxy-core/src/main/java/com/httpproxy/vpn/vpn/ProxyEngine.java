@@ -0,0 +1,27 @@
+package com.httpproxy.vpn.vpn;
+
+import com.httpproxy.vpn.proxy.UpstreamProxyClient;
+import com.httpproxy.vpn.rule.RuleSet;
+
+import java.io.IOException;
+
+/**
+ * 本地代理引擎：监听 127.0.0.1 上的端口，把应用的 CONNECT 与普通 HTTP 请求经上游代理转发。
+ */
+public interface ProxyEngine {
+
+    void start() throws IOException;
+
+    void stop();
+
+    int getPort();
+
+    /**
+     * 运行中替换上游代理：之后建立的隧道使用新上游，已建立的隧道继续使用原连接直到自然结束。
+     * 旧的上游客户端由调用方关闭。
+     */
+    void setUpstream(UpstreamProxyClient upstream);
+
+    /** 替换路由规则，之后建立的隧道按新规则选择直连、代理或拒绝。 */
+    void setRules(RuleSet rules);
+}
@@ -0,0 +1,119 @@
+package com.httpproxy.vpn.vpn;
+
+import com.httpproxy.vpn.proxy.ProxyMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 阻塞式双向转发：当前线程负责 upstream → client，另起一个任务负责 client → upstream。
+ * 一个方向读到 EOF 时用 shutdownOutput 把 FIN 转发给另一端，另一方向继续转发，两个方向都结束后才关闭两端；
+ * 任一方向出错时立即关闭两端。半关闭后迟迟不结束的隧道由 {@link TunnelRegistry} 的空闲超时回收，
+ * 因此只有给出 tunnel 时才保留半关闭的隧道，否则任一方向结束即关闭两端。
+ * 转发的字节数记入目标主机的统计项；给出 tunnel 时每次读到数据都记为一次活动，供空闲超时判断。
+ */
+final class SocketRelay {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private SocketRelay() { }
+
+    static void relay(Executor executor, Socket client, InputStream clientIn, OutputStream clientOut, Socket upstreamSocket,
+                      ProxyMetrics.HostStats stats, TunnelRegistry.Tunnel tunnel) {
+        InputStream upIn;
+        OutputStream upOut;
+        try {
+            upIn = upstreamSocket.getInputStream();
+            upOut = upstreamSocket.getOutputStream();
+        } catch (IOException e) {
+            try { client.close(); upstreamSocket.close(); } catch (IOException ignored) { }
+            return;
+        }
+        AtomicInteger open = new AtomicInteger(2);
+        try {
+            executor.execute(() -> copy(clientIn, upOut, client, upstreamSocket, stats, tunnel, open, true));
+        } catch (RejectedExecutionException e) {
+            // 引擎已停止
+            open.decrementAndGet();
+            try { client.close(); upstreamSocket.close(); } catch (IOException ignored) { }
+        }
+        copy(upIn, clientOut, upstreamSocket, client, stats, tunnel, open, false);
+        if (tunnel != null) awaitClosed(open, client, upstreamSocket);
+    }
+
+    /** 下行先结束（上游半关闭）时等待上行也结束，relay 返回即表示隧道已完全关闭，调用方据此统计与注销连接。 */
+    private static void awaitClosed(AtomicInteger open, Socket client, Socket upstreamSocket) {
+        synchronized (open) {
+            while (open.get() > 0) {
+                try {
+                    open.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    try { client.close(); upstreamSocket.close(); } catch (IOException ignored) { }
+                    return;
+                }
+            }
+        }
+    }
+
+    /** 从 src 复制到 dst 直到 EOF 或出错；open 为仍在转发的方向数，最后一个结束的方向关闭两端。 */
+    private static void copy(InputStream from, OutputStream to, Socket src, Socket dst, ProxyMetrics.HostStats stats,
+                             TunnelRegistry.Tunnel tunnel, AtomicInteger open, boolean up) {
+        ByteBuffer pooled = BufferPool.heap().acquire(BUFFER_SIZE);
+        byte[] buf = pooled.array();
+        int off = pooled.arrayOffset();
+        int len = pooled.capacity();
+        boolean eof = false;
+        try {
+            int n;
+            while ((n = from.read(buf, off, len)) != -1) {
+                if (tunnel != null) tunnel.touch();
+                to.write(buf, off, n);
+                // 读满缓冲区且还有数据可读时不 flush，与后面的数据合并发出；读到的是当前最后一批数据时立即 flush
+                if (n < len || from.available() == 0) to.flush();
+                if (up) {
+                    stats.addUp(n);
+                } else {
+                    stats.addDown(n);
+                }
+            }
+            to.flush();
+            eof = true;
+        } catch (IOException e) {
+            // 另一方向出错时会关闭两端，此时的异常不计为错误
+            if (!src.isClosed() && !dst.isClosed()) ProxyMetrics.get().error(ProxyMetrics.Error.RELAY);
+        } finally {
+            BufferPool.heap().release(pooled);
+        }
+        int remaining = open.decrementAndGet();
+        if (eof && tunnel != null && remaining > 0 && forwardFin(dst)) return;
+        try { src.close(); } catch (IOException ignored) { }
+        try { dst.close(); } catch (IOException ignored) { }
+        if (remaining == 0) {
+            synchronized (open) {
+                open.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 把 EOF 转发给 dst 的对端，另一方向继续转发。dst 不支持半关闭（如部分 TLS 实现）时不转发 FIN，
+     * 同样保留另一方向；半关闭失败（连接已断开）时返回 false，由调用方关闭两端。
+     */
+    private static boolean forwardFin(Socket dst) {
+        try {
+            dst.shutdownOutput();
+        } catch (UnsupportedOperationException ignored) {
+            // 对端收不到 FIN，由另一方向结束或空闲超时关闭
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+}
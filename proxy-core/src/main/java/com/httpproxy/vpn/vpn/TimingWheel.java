@@ -0,0 +1,95 @@
+package com.httpproxy.vpn.vpn;
+
+import java.util.List;
+
+/**
+ * 哈希时间轮：到期时刻按刻度取模落入固定数量的槽位，每个槽位是一条带哨兵的双向链表，
+ * 加入、改期与取消都是 O(1)。推进时只检查经过的槽位，到期超过一圈的项留在原槽位等后面几圈。
+ * <p>
+ * 到期时刻向上取整到刻度，项只会晚到期不会早到期，误差不超过一个刻度。不是线程安全的，由调用方加锁。
+ */
+final class TimingWheel {
+
+    /** 时间轮中的一项；使用方直接继承，省去额外的节点对象。 */
+    static class Entry {
+
+        private Entry prev;
+        private Entry next;
+        private long deadlineTick;
+
+        final boolean isScheduled() {
+            return next != null;
+        }
+    }
+
+    private final long tickMillis;
+    private final Entry[] slots;
+    private final int mask;
+    /** 已处理到的刻度 */
+    private long tick;
+    private int size;
+
+    /** @param slotCount 槽位数，必须是 2 的幂 */
+    TimingWheel(long tickMillis, int slotCount, long nowMillis) {
+        if (Integer.bitCount(slotCount) != 1) throw new IllegalArgumentException("slotCount: " + slotCount);
+        this.tickMillis = tickMillis;
+        this.slots = new Entry[slotCount];
+        this.mask = slotCount - 1;
+        this.tick = nowMillis / tickMillis;
+        for (int i = 0; i < slotCount; i++) {
+            Entry head = new Entry();
+            head.prev = head;
+            head.next = head;
+            slots[i] = head;
+        }
+    }
+
+    /** 加入或改期：已在时间轮中的项先从原槽位摘下。已过期的时刻在下一次推进时到期。 */
+    void schedule(Entry entry, long deadlineMillis) {
+        if (entry.isScheduled()) unlink(entry);
+        long deadlineTick = Math.max((deadlineMillis + tickMillis - 1) / tickMillis, tick + 1);
+        entry.deadlineTick = deadlineTick;
+        Entry head = slots[(int) (deadlineTick & mask)];
+        entry.prev = head.prev;
+        entry.next = head;
+        head.prev.next = entry;
+        head.prev = entry;
+        size++;
+    }
+
+    void cancel(Entry entry) {
+        if (entry.isScheduled()) unlink(entry);
+    }
+
+    /** 推进到 nowMillis，把到期的项摘下并追加到 expired。 */
+    void advance(long nowMillis, List<Entry> expired) {
+        long nowTick = nowMillis / tickMillis;
+        // 停顿超过一圈时每个槽位只需检查一次
+        long from = Math.max(tick + 1, nowTick - mask);
+        for (long t = from; t <= nowTick; t++) {
+            Entry head = slots[(int) (t & mask)];
+            Entry e = head.next;
+            while (e != head) {
+                Entry next = e.next;
+                if (e.deadlineTick <= nowTick) {
+                    unlink(e);
+                    expired.add(e);
+                }
+                e = next;
+            }
+        }
+        if (nowTick > tick) tick = nowTick;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void unlink(Entry entry) {
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+        size--;
+    }
+}
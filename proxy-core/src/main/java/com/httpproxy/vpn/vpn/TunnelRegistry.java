@@ -0,0 +1,249 @@
+package com.httpproxy.vpn.vpn;
+
+import com.httpproxy.vpn.proxy.ProxyMetrics;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 本地代理上所有活动客户端连接（从 accept 到关闭）的登记表，按各自所处阶段的超时由后台线程回收：
+ * 建立上游隧道、等待请求头、转发中空闲分别计时。
+ * <p>
+ * 登记与注销都是 O(1)：连接串在一条双向链表上，超时项放在 {@link TimingWheel} 中。转发循环读到数据时只调用
+ * {@link Tunnel#touch()} 更新时间戳，不碰锁和时间轮；时间轮到期时再按最近一次活动判断是真的超时还是顺延。
+ * {@link #close()} 立即关闭所有登记的连接，阻塞在读写上的线程随之退出。
+ */
+final class TunnelRegistry {
+
+    static final long DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 30000;
+    /** 同时限制慢速发送请求头的客户端与 keep-alive 连接上两个请求之间的空闲 */
+    static final long DEFAULT_HEADER_TIMEOUT_MILLIS = 60000;
+    /** 长连接应用通常每隔几十秒发一次心跳，5 分钟没有数据的隧道视为对端已消失 */
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 300000;
+    /** 超时只需秒级精度 */
+    private static final long TICK_MILLIS = 1000;
+    /** 一圈约 8.5 分钟，默认的几种超时都不超过一圈 */
+    private static final int WHEEL_SLOTS = 512;
+
+    private final long[] timeouts = new long[ProxyMetrics.Timeout.values().length];
+    private final TimingWheel wheel;
+    /** 链表哨兵 */
+    private final Tunnel head = new Tunnel(this, null);
+    private final ProxyMetrics metrics = ProxyMetrics.get();
+    private final Thread reaper;
+    private int size;
+    private boolean closed;
+    /** 粗粒度时钟，由回收线程每个刻度更新；{@link Tunnel#touch()} 只读这个字段 */
+    private volatile long clock = System.currentTimeMillis();
+
+    TunnelRegistry() {
+        this(DEFAULT_HANDSHAKE_TIMEOUT_MILLIS, DEFAULT_HEADER_TIMEOUT_MILLIS, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    TunnelRegistry(long handshakeMillis, long headerMillis, long idleMillis) {
+        timeouts[ProxyMetrics.Timeout.HANDSHAKE.ordinal()] = handshakeMillis;
+        timeouts[ProxyMetrics.Timeout.HEADER.ordinal()] = headerMillis;
+        timeouts[ProxyMetrics.Timeout.IDLE.ordinal()] = idleMillis;
+        head.prev = head;
+        head.next = head;
+        wheel = new TimingWheel(TICK_MILLIS, WHEEL_SLOTS, clock);
+        reaper = new Thread(this::reapLoop, "LocalProxy-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /** 登记一条刚 accept 的客户端连接，初始阶段为等待请求头；登记表已关闭时关闭该连接并返回 null。 */
+    Tunnel register(Socket client) {
+        Tunnel tunnel = new Tunnel(this, client);
+        synchronized (this) {
+            if (!closed) {
+                tunnel.prev = head.prev;
+                tunnel.next = head;
+                head.prev.next = tunnel;
+                head.prev = tunnel;
+                size++;
+                wheel.schedule(tunnel, tunnel.lastActivity + timeout(tunnel.phase));
+                return tunnel;
+            }
+        }
+        closeQuietly(client);
+        return null;
+    }
+
+    /**
+     * 注销一条已结束的连接，可重复调用。由最后处理该连接的线程调用：握手失败时连接不会再进入其他阶段，
+     * 这里结束握手阶段，之后的超时回收不会再中断这个已回到线程池的线程。
+     */
+    void remove(Tunnel tunnel) {
+        tunnel.leaveHandshake();
+        synchronized (this) {
+            if (tunnel.next == null) return;
+            unlink(tunnel);
+            wheel.cancel(tunnel);
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /** 停止回收线程并关闭所有登记的连接。 */
+    void close() {
+        List<Tunnel> all = new ArrayList<>();
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            for (Tunnel t = head.next; t != head; t = t.next) all.add(t);
+            while (head.next != head) {
+                Tunnel t = head.next;
+                unlink(t);
+                wheel.cancel(t);
+            }
+            notifyAll();
+        }
+        for (Tunnel tunnel : all) tunnel.abort();
+    }
+
+    private long timeout(ProxyMetrics.Timeout phase) {
+        return timeouts[phase.ordinal()];
+    }
+
+    private synchronized void reschedule(Tunnel tunnel) {
+        if (tunnel.next == null) return;
+        wheel.schedule(tunnel, tunnel.lastActivity + timeout(tunnel.phase));
+    }
+
+    private void unlink(Tunnel tunnel) {
+        tunnel.prev.next = tunnel.next;
+        tunnel.next.prev = tunnel.prev;
+        tunnel.prev = null;
+        tunnel.next = null;
+        size--;
+    }
+
+    private void reapLoop() {
+        List<TimingWheel.Entry> expired = new ArrayList<>();
+        List<Tunnel> idle = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                try {
+                    wait(TICK_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) return;
+                long now = System.currentTimeMillis();
+                clock = now;
+                wheel.advance(now, expired);
+                for (TimingWheel.Entry entry : expired) {
+                    Tunnel tunnel = (Tunnel) entry;
+                    long deadline = tunnel.lastActivity + timeout(tunnel.phase);
+                    if (deadline > now) {
+                        wheel.schedule(tunnel, deadline);
+                    } else {
+                        unlink(tunnel);
+                        idle.add(tunnel);
+                    }
+                }
+                expired.clear();
+            }
+            for (Tunnel tunnel : idle) {
+                metrics.timeout(tunnel.phase);
+                tunnel.abort();
+            }
+            idle.clear();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try { socket.close(); } catch (IOException ignored) { }
+    }
+
+    /**
+     * 一条客户端连接。处理线程在阶段切换时调用 {@link #awaitHeader()}、{@link #handshake()}、{@link #relay(Socket)}，
+     * 转发时每次读到数据调用 {@link #touch()}。
+     */
+    static final class Tunnel extends TimingWheel.Entry {
+
+        final Socket client;
+        private final TunnelRegistry registry;
+        /** 注册表链表，由 registry 的锁保护 */
+        private Tunnel prev;
+        private Tunnel next;
+        private volatile ProxyMetrics.Timeout phase = ProxyMetrics.Timeout.HEADER;
+        private volatile long lastActivity;
+        private volatile Socket upstream;
+        /** 处理线程已把连接交给另一个转发任务（协议升级），由该任务注销 */
+        boolean detached;
+        /** 占用了 {@link AdmissionControl} 目标名额的主机，连接结束时归还 */
+        String host;
+        /** 建立上游隧道期间的处理线程，超时时中断以打断阻塞在 SocketChannel 上的连接与握手；由本对象的锁保护 */
+        private Thread handshakeThread;
+        /** 已中断过 handshakeThread，该线程离开握手阶段时要清掉中断标志 */
+        private boolean interruptSent;
+
+        private Tunnel(TunnelRegistry registry, Socket client) {
+            this.registry = registry;
+            this.client = client;
+            this.lastActivity = registry.clock;
+        }
+
+        /** 记录一次读到数据；同一刻度内的重复调用只读不写 */
+        void touch() {
+            long now = registry.clock;
+            if (lastActivity < now) lastActivity = now;
+        }
+
+        /** 开始等待客户端的下一个请求头。 */
+        void awaitHeader() {
+            enter(ProxyMetrics.Timeout.HEADER, null);
+        }
+
+        /** 开始由当前线程建立上游隧道。 */
+        void handshake() {
+            synchronized (this) {
+                handshakeThread = Thread.currentThread();
+            }
+            enter(ProxyMetrics.Timeout.HANDSHAKE, null);
+        }
+
+        /** 开始经 upstream 转发；超时时与客户端连接一起关闭。 */
+        void relay(Socket upstream) {
+            enter(ProxyMetrics.Timeout.IDLE, upstream);
+        }
+
+        private void enter(ProxyMetrics.Timeout phase, Socket upstream) {
+            if (phase != ProxyMetrics.Timeout.HANDSHAKE) leaveHandshake();
+            this.upstream = upstream;
+            this.phase = phase;
+            this.lastActivity = System.currentTimeMillis();
+            registry.reschedule(this);
+        }
+
+        /** 由握手线程自己调用：此后超时不再中断它。 */
+        private synchronized void leaveHandshake() {
+            handshakeThread = null;
+            if (interruptSent) {
+                interruptSent = false;
+                // 超时中断恰好发生在握手完成之后时，清掉中断标志，连接已被关闭，后续读写会自然失败
+                Thread.interrupted();
+            }
+        }
+
+        private void abort() {
+            closeQuietly(client);
+            Socket up = upstream;
+            if (up != null) closeQuietly(up);
+            synchronized (this) {
+                // 只中断仍在为这条连接握手的线程，离开握手阶段后线程可能已在服务别的连接
+                if (handshakeThread != null) {
+                    handshakeThread.interrupt();
+                    handshakeThread = null;
+                    interruptSent = true;
+                }
+            }
+        }
+    }
+}